@@ -30,7 +30,9 @@ import pt.ua.dicoogle.core.settings.ServerSettingsManager;
 import pt.ua.dicoogle.plugins.PluginController;
 import pt.ua.dicoogle.utils.Platform;
 import pt.ua.dicoogle.sdk.settings.server.ServerSettings;
+import pt.ua.dicoogle.server.IndexQueueWorker;
 import pt.ua.dicoogle.server.web.auth.Authentication;
+import pt.ua.dicoogle.server.web.utils.ImagePrerenderer;
 
 import javax.imageio.ImageIO;
 import javax.imageio.spi.IIORegistry;
@@ -191,6 +193,12 @@ public class Main {
 
         // set up shutdown hook
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            // keep the objects pending indexing for the next start
+            IndexQueueWorker.getInstance().shutdown();
+            if (ImagePrerenderer.isEnabled()) {
+                ImagePrerenderer.getInstance().shutdown();
+            }
+
             boolean shutdownPlugins = settings.getArchiveSettings().isCallShutdown();
 
             if (shutdownPlugins) {
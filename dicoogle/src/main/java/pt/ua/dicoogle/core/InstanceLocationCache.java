@@ -0,0 +1,288 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.core;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalNotification;
+
+import pt.ua.dicoogle.plugins.PluginController;
+import pt.ua.dicoogle.sdk.StorageInputStream;
+import pt.ua.dicoogle.sdk.StorageInterface;
+import pt.ua.dicoogle.sdk.datastructs.SearchResult;
+import pt.ua.dicoogle.sdk.task.JointQueryTask;
+import pt.ua.dicoogle.sdk.task.Task;
+
+/**
+ * A shared cache of where each DICOM instance is stored, by SOP Instance UID.
+ *
+ * Services which retrieve a single instance should locate it through this cache,
+ * which only queries the providers when the instance is not known yet.
+ * The cache is filled as a side effect of searches and of the storage service,
+ * and entries are dropped when the respective files are unindexed or removed.
+ * Instances which could not be found are remembered for a short while as well,
+ * so that repeated requests for a missing instance do not query the providers every time.
+ */
+public class InstanceLocationCache {
+    private static final Logger logger = LoggerFactory.getLogger(InstanceLocationCache.class);
+
+    /** Maximum number of instance locations to keep */
+    private static final long MAXIMUM_SIZE = Long.getLong("dicoogle.locationCache.maxSize", 100000);
+    /** How long to keep a known location, in minutes (0 to keep until evicted) */
+    private static final long EXPIRY = Long.getLong("dicoogle.locationCache.expiry", 60);
+    /** How long to remember that an instance was not found, in seconds (0 to disable) */
+    private static final long NEGATIVE_EXPIRY = Long.getLong("dicoogle.locationCache.negativeExpiry", 30);
+    private static InstanceLocationCache instance = null;
+
+    private final Cache<String, URI> locations;
+    /** the UIDs of the known locations, by location, so that whole directories can be invalidated at once */
+    private final NavigableMap<String, Set<String>> byLocation = new TreeMap<>();
+    /** the query providers of the last lookup which found nothing, by UID */
+    private final Cache<String, String> missing;
+
+    private InstanceLocationCache() {
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder().maximumSize(MAXIMUM_SIZE).recordStats();
+        if (EXPIRY > 0) {
+            builder.expireAfterWrite(EXPIRY, TimeUnit.MINUTES);
+        }
+        this.locations = builder.removalListener(this::onRemoval).build();
+        this.missing = CacheBuilder.newBuilder().maximumSize(MAXIMUM_SIZE)
+                .expireAfterWrite(Math.max(NEGATIVE_EXPIRY, 0), TimeUnit.SECONDS).build();
+    }
+
+    public static synchronized InstanceLocationCache getInstance() {
+        if (instance == null) {
+            instance = new InstanceLocationCache();
+        }
+        return instance;
+    }
+
+    /** Obtain the location of an instance, querying the given providers if it is not known.
+     *
+     * @param sopInstanceUID the SOP Instance UID
+     * @param providers the query providers to issue if the location is not cached,
+     *        or null to issue all enabled providers
+     * @return the URI of the instance, or null if it could not be found
+     */
+    public URI locate(String sopInstanceUID, List<String> providers) {
+        Objects.requireNonNull(sopInstanceUID);
+        URI uri = locations.getIfPresent(sopInstanceUID);
+        if (uri != null) {
+            return uri;
+        }
+        String providersKey = providers == null ? "" : String.join(",", providers);
+        if (providersKey.equals(missing.getIfPresent(sopInstanceUID))) {
+            return null;
+        }
+
+        uri = query(sopInstanceUID, providers);
+        if (uri == null) {
+            if (NEGATIVE_EXPIRY > 0) {
+                missing.put(sopInstanceUID, providersKey);
+            }
+        } else {
+            record(sopInstanceUID, uri);
+        }
+        return uri;
+    }
+
+    /** Obtain a storage item for an instance, querying the given providers if its location is not known.
+     * If the cached location is no longer available in storage, the location is looked up again.
+     *
+     * @param sopInstanceUID the SOP Instance UID
+     * @param providers the query providers to issue if the location is not cached,
+     *        or null to issue all enabled providers
+     * @return the storage item of the instance, or null if it could not be found
+     */
+    public StorageInputStream open(String sopInstanceUID, List<String> providers) {
+        boolean cached = locations.getIfPresent(sopInstanceUID) != null;
+        StorageInputStream item = get(locate(sopInstanceUID, providers));
+        if (item == null && cached) {
+            // stale entry, try again
+            locations.invalidate(sopInstanceUID);
+            item = get(locate(sopInstanceUID, providers));
+        }
+        return item;
+    }
+
+    private static StorageInputStream get(URI uri) {
+        if (uri == null) {
+            return null;
+        }
+        StorageInterface storage = PluginController.getInstance().getStorageForSchema(uri);
+        if (storage == null) {
+            logger.warn("No storage for location {}", uri);
+            return null;
+        }
+        return storage.get(uri);
+    }
+
+    private URI query(String sopInstanceUID, List<String> providers) {
+        JointQueryTask holder = new JointQueryTask() {
+            @Override
+            public void onCompletion() {}
+
+            @Override
+            public void onReceive(Task<Iterable<SearchResult>> e) {}
+        };
+        Map<String, String> extraFields = new HashMap<>();
+        extraFields.put("SOPInstanceUID", "SOPInstanceUID");
+
+        PluginController pc = PluginController.getInstance();
+        if (providers == null) {
+            providers = pc.getQueryProvidersName(true);
+        }
+        String uid = sopInstanceUID.replace("\\", "\\\\").replace("\"", "\\\"");
+        pc.query(holder, providers, "SOPInstanceUID:\"" + uid + '"', extraFields);
+        try (Stream<SearchResult> results =
+                holder.stream(PluginController.QUERY_PROVIDER_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            Iterator<SearchResult> it = results.iterator();
+            while (it.hasNext()) {
+                URI uri = it.next().getURI();
+                if (uri != null) {
+                    return uri;
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Record the location of an instance.
+     *
+     * @param sopInstanceUID the SOP Instance UID
+     * @param uri the location of the instance
+     */
+    public void put(String sopInstanceUID, URI uri) {
+        if (sopInstanceUID == null || uri == null) {
+            return;
+        }
+        String uid = sopInstanceUID.trim();
+        if (uid.isEmpty()) {
+            return;
+        }
+        record(uid, uri);
+        missing.invalidate(uid);
+    }
+
+    private void record(String uid, URI uri) {
+        locations.put(uid, uri);
+        synchronized (byLocation) {
+            byLocation.computeIfAbsent(uri.toString(), k -> new HashSet<>()).add(uid);
+        }
+    }
+
+    private void onRemoval(RemovalNotification<Object, Object> notification) {
+        Object uid = notification.getKey();
+        Object uri = notification.getValue();
+        if (uid == null || uri == null || uri.equals(locations.getIfPresent(uid))) {
+            // collected, or replaced with the same location
+            return;
+        }
+        synchronized (byLocation) {
+            Set<String> uids = byLocation.get(uri.toString());
+            if (uids != null && uids.remove(uid) && uids.isEmpty()) {
+                byLocation.remove(uri.toString());
+            }
+        }
+    }
+
+    /** Record the location of the instance of a search result,
+     * if the result contains its SOP Instance UID.
+     *
+     * @param result a search result
+     */
+    public void put(SearchResult result) {
+        Object uid = result.get("SOPInstanceUID");
+        if (uid != null) {
+            put(uid.toString(), result.getURI());
+        }
+    }
+
+    /** Forget the locations of instances in the given file or directory.
+     *
+     * @param path the URI of an unindexed or removed file or directory
+     */
+    public void invalidate(URI path) {
+        invalidate(Collections.singleton(path));
+    }
+
+    /** Forget the locations of instances in the given files or directories.
+     *
+     * @param paths the URIs of unindexed or removed files or directories
+     */
+    public void invalidate(Collection<URI> paths) {
+        if (paths.isEmpty() || locations.size() == 0) {
+            return;
+        }
+        List<String> uids = new ArrayList<>();
+        synchronized (byLocation) {
+            for (URI p : paths) {
+                String s = p.toString();
+                Set<String> exact = byLocation.remove(s);
+                if (exact != null) {
+                    uids.addAll(exact);
+                }
+                String prefix = s.endsWith("/") ? s : s + '/';
+                Map<String, Set<String>> inside = byLocation.subMap(prefix, prefix + '\uffff');
+                inside.values().forEach(uids::addAll);
+                inside.clear();
+            }
+        }
+        locations.invalidateAll(uids);
+    }
+
+    /** Forget all known locations. */
+    public void invalidateAll() {
+        locations.invalidateAll();
+        missing.invalidateAll();
+        synchronized (byLocation) {
+            byLocation.clear();
+        }
+    }
+
+    /** @return the number of locations currently known */
+    public long size() {
+        return locations.size();
+    }
+
+    /** @return the hit and miss statistics of the cache */
+    public CacheStats stats() {
+        return locations.stats();
+    }
+}
@@ -29,9 +29,12 @@ package pt.ua.dicoogle.core;
 
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.List;
 import java.util.StringTokenizer;
+import java.util.function.Function;
 
+import pt.ua.dicoogle.core.query.QueryPlanCache;
+import pt.ua.dicoogle.sdk.datastructs.QueryExpression;
 import pt.ua.dicoogle.sdk.utils.TagsStruct;
 
 /**
@@ -44,6 +47,11 @@ public class QueryExpressionBuilder {
 
     private ArrayList<String> tags = null;
 
+    /** the DIM aliases, while no other tags were given */
+    private ArrayList<String> dimAliases = null;
+
+    private static final String PLAN_KIND = "freetext";
+
 
 
     public QueryExpressionBuilder(String text, ArrayList tags) {
@@ -84,6 +92,7 @@ public class QueryExpressionBuilder {
         TagsStruct _tags = TagsStruct.getInstance();
 
         this.tags = _tags.getDIMAlias();
+        this.dimAliases = this.tags;
 
     }
 
@@ -106,69 +115,48 @@ public class QueryExpressionBuilder {
         /** It will be used to call the Lucene - Indexer
          * It crucial respect the BNF grammer able to search in library
          */
-        String queryString = "";
-
-
-        /** Search in Lucene in freetext is non-Trivial
-         *  There are some constrains by the library Lunce 2.X
-         *  it was implemented with the repeat of fields
-         *
-         *  Get it for free text: "Smith CT", where the tags domain is:
-         *  PatientName and Modality
-         *
-         *  the result should be:
-         *
-         *  (PatientName=Smith OR Modality=Smith) OR
-         *  (PatientName=CT OR Modality=CT)
-         *
-         *  More general expression was:
-         *  (field1=a1 or field2=a1 or field3=a3 .. or fieldn=an) or
-         *  (...)
-         *  (field1=z1 or field2=z2 or field3=z3 .. or fiendn=zn)
-         *
-         *  This way the search will be in free text really
-         *
-         */
-
-        Iterator<String> itTokens = tokens.iterator();
-        Iterator<String> itTags;
-
-        String token = null;
-
-        /** Build the query string
-         *
-         * Iterating for each token
-         */
-        while (itTokens.hasNext()) {
-            /**
-             * Iterating each tags
-             */
-            queryString += "(";
-            String tag = null;
-
-            token = itTokens.next();
-            itTags = tags.iterator();
-            while (itTags.hasNext()) {
-
-                tag = itTags.next();
-                queryString += tag + ":" + token;
-                /**
-                 * If it have next then the logical condition will continue
-                 * in next iteration
-                 */
-                if (itTags.hasNext()) {
-                    queryString += " OR ";
-                }
-            }
-            queryString += "OR others:" + token + " )";
-
-            if (itTokens.hasNext()) {
-                queryString += " AND ";
-            }
+        return getQueryExpression().toQueryString();
+    }
 
+    /**
+     * Obtain the structured query for the free text.
+     *
+     * Search in Lucene in freetext is non-Trivial:
+     * each token is matched against every tag, and all tokens must match.
+     * Get it for free text: "Smith CT", where the tags domain is PatientName and Modality:
+     * (PatientName:Smith OR Modality:Smith OR others:Smith) AND (PatientName:CT OR Modality:CT OR others:CT)
+     *
+     * Free text queries are often repeated with different terms, so the plans binding the tokens
+     * to the tags are kept in the {@link QueryPlanCache} by the number of tokens and the tags,
+     * with the tokens themselves left out as placeholders.
+     *
+     * @return the query expression
+     */
+    public QueryExpression getQueryExpression() {
+        final boolean dimTags = tags == dimAliases;
+        // tags have no white space
+        StringBuilder shape = new StringBuilder();
+        for (int i = 0; i < tokens.size(); i++) {
+            shape.append("? ");
+        }
+        if (!dimTags) {
+            shape.append(tags.size()).append(' ').append(String.join(" ", tags));
         }
+        List<String> fields = dimTags ? null : new ArrayList<>(tags);
+        Function<List<String>, QueryExpression> plan = QueryPlanCache.getInstance()
+                .get(dimTags ? PLAN_KIND : PLAN_KIND + "-tags", shape.toString(), () -> plan(fields));
+        return plan.apply(tokens);
+    }
 
-        return queryString;
+    /** Match each token against the given fields (or the DIM fields if null), requiring all tokens to match. */
+    private static Function<List<String>, QueryExpression> plan(List<String> fields) {
+        return values -> {
+            List<QueryExpression> operands = new ArrayList<>(values.size());
+            for (String value : values) {
+                operands.add(fields == null ? QueryExpression.freeText(value) : QueryExpression.freeText(value, fields));
+            }
+            return QueryExpression.and(operands);
+        };
     }
 
     /**
@@ -0,0 +1,603 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.core.index;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pt.ua.dicoogle.sdk.IndexerInterface;
+import pt.ua.dicoogle.sdk.StorageInputStream;
+import pt.ua.dicoogle.sdk.StorageInterface;
+import pt.ua.dicoogle.sdk.datastructs.IndexReport2;
+import pt.ua.dicoogle.sdk.datastructs.Report;
+import pt.ua.dicoogle.sdk.task.ProgressCallable;
+import pt.ua.dicoogle.sdk.task.Task;
+import pt.ua.dicoogle.taskManager.TaskManager;
+
+/**
+ * Bulk indexing procedure over a storage tree.
+ *
+ * The tree is partitioned into shards (sub-trees, or the files directly inside a directory),
+ * which are walked in parallel by a configurable number of workers.
+ * Each worker walks its shard in URI order and hands the files over to the indexers in batches.
+ *
+ * The progress of the procedure is recorded in a checkpoint file.
+ * If it is interrupted (cancelled, failed or the server stopped),
+ * indexing the same tree with the same indexers resumes from where it stopped:
+ * complete shards are skipped, and partially indexed shards resume after the last file handed over.
+ * Directories created since the first run are added to the recorded plan as new shards,
+ * but files added to the parts of the tree already walked are left to the incremental indexer.
+ * The checkpoint file is removed once all shards are complete.
+ */
+public class BulkIndexer implements ProgressCallable<Report> {
+
+    private static final Logger logger = LoggerFactory.getLogger(BulkIndexer.class);
+
+    /** Number of shards indexed at the same time */
+    private static final int PARALLELISM = Math.max(1, Integer.parseInt(System.getProperty(
+            "dicoogle.index.bulk.parallelism",
+            String.valueOf(Math.max(1, Runtime.getRuntime().availableProcessors() / 2)))));
+    /** Number of files handed over to the indexers at a time */
+    private static final int BATCH_SIZE =
+            Math.max(1, Integer.parseInt(System.getProperty("dicoogle.index.bulk.batchSize", "256")));
+    /** Directory of the checkpoint files */
+    private static final String CHECKPOINT_DIR =
+            System.getProperty("dicoogle.index.bulk.checkpointDir", "index-checkpoints");
+    /** Maximum depth to descend into the tree when partitioning it */
+    private static final int MAX_SHARD_DEPTH =
+            Math.max(0, Integer.parseInt(System.getProperty("dicoogle.index.bulk.maxShardDepth", "3")));
+    /** Number of shards to aim for, per worker */
+    private static final int SHARDS_PER_WORKER = 4;
+
+    /** Obtain the pool in which bulk indexing procedures and their shards are run.
+     * Running them apart from the regular indexing tasks keeps a long procedure from holding those back.
+     *
+     * @return the task manager of bulk indexing
+     */
+    public static TaskManager getTaskManager() {
+        return TaskManager.shared("bulk-index", PARALLELISM);
+    }
+
+    private final URI root;
+    private final StorageInterface storage;
+    private final IndexBatchFeeder feeder;
+    private final int parallelism;
+    private final int batchSize;
+    private final Path checkpointFile;
+
+    private volatile int shardsTotal = 0;
+    private final AtomicInteger shardsDone = new AtomicInteger();
+
+    /**
+     * Create a bulk indexing procedure with the default settings.
+     *
+     * @param root the root of the tree to index
+     * @param storage the storage of the tree
+     * @param indexers the indexers to feed
+     */
+    public BulkIndexer(URI root, StorageInterface storage, Collection<IndexerInterface> indexers) {
+        this(root, storage, indexers, PARALLELISM, BATCH_SIZE, Paths.get(CHECKPOINT_DIR));
+    }
+
+    /**
+     * Create a bulk indexing procedure.
+     *
+     * @param root the root of the tree to index
+     * @param storage the storage of the tree
+     * @param indexers the indexers to feed
+     * @param parallelism the number of shards to index at the same time
+     * @param batchSize the number of files to hand over to the indexers at a time
+     * @param checkpointDir the directory in which to keep the checkpoint file
+     */
+    public BulkIndexer(URI root, StorageInterface storage, Collection<IndexerInterface> indexers, int parallelism,
+            int batchSize, Path checkpointDir) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Illegal parallelism: " + parallelism);
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Illegal batch size: " + batchSize);
+        }
+        this.root = root;
+        this.storage = storage;
+        this.feeder = new IndexBatchFeeder(indexers);
+        this.parallelism = parallelism;
+        this.batchSize = batchSize;
+
+        // the same tree indexed by the same indexers always maps to the same checkpoint
+        this.checkpointFile =
+                checkpointDir.resolve("bulk-index-" + IndexBatchFeeder.procedureId(root, indexers) + ".ckpt");
+    }
+
+    @Override
+    public float getProgress() {
+        int total = shardsTotal;
+        if (total == 0) {
+            return 0;
+        }
+        return (float) shardsDone.get() / total;
+    }
+
+    @Override
+    public Report call() throws Exception {
+        long start = System.currentTimeMillis();
+        Files.createDirectories(checkpointFile.getParent());
+
+        int failedShards;
+        try (Checkpoint checkpoint = Checkpoint.open(checkpointFile)) {
+            if (checkpoint.getShards().isEmpty()) {
+                checkpoint.writePlan(plan());
+                logger.info("Bulk indexing {} in {} shards", root, checkpoint.getShards().size());
+            } else {
+                List<Shard> added = extend(checkpoint.getShards());
+                checkpoint.writePlan(added);
+                logger.info("Resuming bulk indexing of {}: {} of {} shards were complete, {} new shards", root,
+                        checkpoint.countDone(), checkpoint.getShards().size(), added.size());
+            }
+            List<Shard> shards = checkpoint.getShards();
+            shardsTotal = shards.size();
+            shardsDone.set(checkpoint.countDone());
+
+            Queue<Shard> pending = new ConcurrentLinkedQueue<>();
+            for (Shard shard : shards) {
+                if (!checkpoint.isDone(shard.getKey())) {
+                    pending.add(shard);
+                }
+            }
+            AtomicInteger failed = new AtomicInteger();
+            TaskManager pool = getTaskManager();
+            List<Task<Void>> workers = new ArrayList<>();
+            List<AtomicBoolean> claims = new ArrayList<>();
+            try {
+                int nWorkers = Math.min(parallelism, pending.size());
+                for (int i = 1; i < nWorkers; i++) {
+                    AtomicBoolean claim = new AtomicBoolean();
+                    Task<Void> worker = new Task<>("bulk index " + root, () -> {
+                        if (claim.compareAndSet(false, true)) {
+                            indexShards(pending, checkpoint, failed);
+                        }
+                        return null;
+                    });
+                    workers.add(worker);
+                    claims.add(claim);
+                    pool.dispatch(worker);
+                }
+                // this thread indexes shards as well, so that the procedure progresses
+                // even while the other procedures in the pool keep all of its threads busy
+                indexShards(pending, checkpoint, failed);
+                for (int i = 0; i < workers.size(); i++) {
+                    if (claims.get(i).compareAndSet(false, true)) {
+                        // never started, and there is nothing left for it to do
+                        workers.get(i).cancel(false);
+                        continue;
+                    }
+                    try {
+                        workers.get(i).get();
+                    } catch (ExecutionException | CancellationException ex) {
+                        logger.warn("A bulk indexing worker of {} stopped", root, ex);
+                    }
+                }
+            } finally {
+                // stops the workers if this task was cancelled
+                for (Task<Void> worker : workers) {
+                    worker.cancel(true);
+                }
+            }
+            // shards left behind by a worker which stopped are incomplete as well
+            failedShards = failed.get() + pending.size();
+
+            if (failedShards == 0) {
+                checkpoint.delete();
+            } else {
+                logger.warn("Bulk indexing of {} finished with {} incomplete shards, index it again to resume", root,
+                        failedShards);
+            }
+        }
+
+        long elapsed = System.currentTimeMillis() - start;
+        logger.info("Bulk indexing of {} finished: {} indexed, {} errors, {} ms", root, feeder.getIndexed(),
+                feeder.getErrors(), elapsed);
+        return new IndexReport2(feeder.getIndexed(), feeder.getErrors(), elapsed);
+    }
+
+    /** Partition the tree into shards, descending into it until there are enough shards for all workers. */
+    List<Shard> plan() throws IOException {
+        List<Shard> shards = new ArrayList<>();
+        List<URI> frontier = Collections.singletonList(root);
+        int target = parallelism * SHARDS_PER_WORKER;
+        for (int depth = 0; depth < MAX_SHARD_DEPTH && !frontier.isEmpty()
+                && shards.size() + frontier.size() < target; depth++) {
+            List<URI> next = new ArrayList<>();
+            for (URI dir : frontier) {
+                List<URI> children;
+                try (Stream<URI> entries = storage.list(dir)) {
+                    children = entries.sorted().collect(Collectors.toList());
+                } catch (UnsupportedOperationException | IOException ex) {
+                    // not a listable directory, index it as a whole
+                    shards.add(new Shard(Shard.TREE, dir));
+                    continue;
+                }
+                boolean hasFiles = false;
+                for (URI child : children) {
+                    if (isDirectory(child)) {
+                        next.add(child);
+                    } else {
+                        hasFiles = true;
+                    }
+                }
+                if (hasFiles) {
+                    shards.add(new Shard(Shard.FILES, dir));
+                }
+            }
+            frontier = next;
+        }
+        for (URI dir : frontier) {
+            shards.add(new Shard(Shard.TREE, dir));
+        }
+        return shards;
+    }
+
+    /**
+     * Find the parts of the tree which are not covered by a recorded plan,
+     * because they were created after it was made.
+     * The directories which the plan descended into are listed again,
+     * and each of their subdirectories which the plan does not know about becomes a new shard.
+     */
+    List<Shard> extend(List<Shard> recorded) throws IOException {
+        List<String> trees = new ArrayList<>();
+        Set<String> locations = new HashSet<>();
+        Set<String> files = new HashSet<>();
+        for (Shard shard : recorded) {
+            String location = shard.location.toString();
+            locations.add(location);
+            if (Shard.TREE.equals(shard.kind)) {
+                trees.add(location);
+            } else {
+                files.add(location);
+            }
+        }
+
+        List<Shard> added = new ArrayList<>();
+        Deque<URI> dirs = new ArrayDeque<>();
+        dirs.add(root);
+        while (!dirs.isEmpty()) {
+            URI dir = dirs.poll();
+            String path = dir.toString();
+            if (trees.stream().anyMatch(path::startsWith)) {
+                // walked by a recorded shard
+                continue;
+            }
+            if (locations.stream().noneMatch(location -> location.startsWith(path))) {
+                // the plan did not descend into this directory, so it is new
+                added.add(new Shard(Shard.TREE, dir));
+                continue;
+            }
+            List<URI> children;
+            try (Stream<URI> entries = storage.list(dir)) {
+                children = entries.collect(Collectors.toList());
+            } catch (UnsupportedOperationException | IOException ex) {
+                continue;
+            }
+            boolean hasFiles = false;
+            for (URI child : children) {
+                if (isDirectory(child)) {
+                    dirs.add(child);
+                } else {
+                    hasFiles = true;
+                }
+            }
+            if (hasFiles && !files.contains(path)) {
+                added.add(new Shard(Shard.FILES, dir));
+            }
+        }
+        return added;
+    }
+
+    private static boolean isDirectory(URI uri) {
+        return uri.getPath() != null && uri.getPath().endsWith("/");
+    }
+
+    /** Index shards until there are none left, recording the ones which could not be completed. */
+    private void indexShards(Queue<Shard> pending, Checkpoint checkpoint, AtomicInteger failed)
+            throws InterruptedException {
+        Shard shard;
+        while ((shard = pending.poll()) != null) {
+            try {
+                indexShard(shard, checkpoint);
+            } catch (InterruptedException ex) {
+                failed.incrementAndGet();
+                throw ex;
+            } catch (Exception ex) {
+                logger.warn("Failed to index shard {} of {}, it will be retried on the next run", shard.location,
+                        root, ex);
+                failed.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Walk a shard in URI order and feed its files to the indexers,
+     * recording the last file handed over after each batch.
+     */
+    private void indexShard(Shard shard, Checkpoint checkpoint) throws IOException, InterruptedException {
+        ShardBatcher batcher = new ShardBatcher(shard.getKey(), checkpoint);
+        String after = checkpoint.getLast(shard.getKey());
+        if (Shard.TREE.equals(shard.kind)) {
+            try {
+                walk(shard.location, after, batcher);
+            } catch (UnsupportedOperationException ex) {
+                // not listable, sort all files of the tree
+                List<StorageInputStream> items = new ArrayList<>();
+                for (StorageInputStream item : storage.at(shard.location)) {
+                    if (item != null && item.getURI() != null
+                            && (after == null || item.getURI().toString().compareTo(after) > 0)) {
+                        items.add(item);
+                    }
+                }
+                items.sort(Comparator.comparing(item -> item.getURI().toString()));
+                for (StorageInputStream item : items) {
+                    batcher.add(Collections.singletonList(item), item.getURI().toString());
+                }
+            }
+        } else {
+            for (URI file : list(shard.location)) {
+                if (!isDirectory(file) && (after == null || file.toString().compareTo(after) > 0)) {
+                    batcher.add(storage.at(file), file.toString());
+                }
+            }
+        }
+        batcher.flush();
+        checkpoint.writeDone(shard.getKey());
+        shardsDone.incrementAndGet();
+    }
+
+    /**
+     * Visit the files under a directory in URI order, skipping the ones up to a given URI.
+     * Sorting the entries of each directory is enough for the whole walk to be in URI order,
+     * as all URIs under a directory start with the URI of the directory.
+     */
+    private void walk(URI dir, String after, ShardBatcher batcher) throws IOException, InterruptedException {
+        for (URI child : list(dir)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException("Indexing was cancelled");
+            }
+            String path = child.toString();
+            if (isDirectory(child)) {
+                // skip directories which were walked completely
+                if (after == null || path.compareTo(after) > 0 || after.startsWith(path)) {
+                    walk(child, after, batcher);
+                }
+            } else if (after == null || path.compareTo(after) > 0) {
+                batcher.add(storage.at(child), path);
+            }
+        }
+    }
+
+    /** The entries of a directory, sorted by URI. */
+    private List<URI> list(URI dir) throws IOException {
+        try (Stream<URI> entries = storage.list(dir)) {
+            return entries.sorted(Comparator.comparing(URI::toString)).collect(Collectors.toList());
+        }
+    }
+
+    /** Gathers the files of a shard into batches, and records the last file of each batch in the checkpoint. */
+    private final class ShardBatcher {
+        private final String key;
+        private final Checkpoint checkpoint;
+        private List<StorageInputStream> batch = new ArrayList<>(batchSize);
+        private String last;
+
+        ShardBatcher(String key, Checkpoint checkpoint) {
+            this.key = key;
+            this.checkpoint = checkpoint;
+        }
+
+        /** Add the items at a location, which is never split across batches. */
+        void add(Iterable<StorageInputStream> items, String location) throws IOException, InterruptedException {
+            for (StorageInputStream item : items) {
+                if (item != null) {
+                    batch.add(item);
+                }
+            }
+            last = location;
+            if (batch.size() >= batchSize) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException, InterruptedException {
+            if (batch.isEmpty()) {
+                return;
+            }
+            if (!feeder.feed(batch)) {
+                // stop here without recording the batch, so that the shard is resumed from it on the next run
+                throw new IOException("The indexers did not complete a batch of shard " + key);
+            }
+            checkpoint.writeLast(key, last);
+            batch = new ArrayList<>(batchSize);
+        }
+    }
+
+    /** A part of the tree, indexed by a single worker. */
+    static final class Shard {
+        /** The whole tree under the location */
+        static final String TREE = "tree";
+        /** Only the files directly inside the location */
+        static final String FILES = "files";
+
+        final String kind;
+        final URI location;
+
+        Shard(String kind, URI location) {
+            this.kind = kind;
+            this.location = location;
+        }
+
+        String getKey() {
+            return kind + ' ' + location;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Shard && ((Shard) o).getKey().equals(getKey());
+        }
+
+        @Override
+        public int hashCode() {
+            return getKey().hashCode();
+        }
+    }
+
+    /**
+     * An append-only record of a bulk indexing procedure.
+     * Each line is one of:
+     * <ul>
+     * <li><tt>shard &lt;kind&gt; &lt;uri&gt;</tt>: a shard of the plan;</li>
+     * <li><tt>after &lt;file&gt; &lt;kind&gt; &lt;uri&gt;</tt>: the last file of a shard
+     * handed over so far, in URI order;</li>
+     * <li><tt>done &lt;kind&gt; &lt;uri&gt;</tt>: a complete shard.</li>
+     * </ul>
+     * A truncated last line, left by a crash, is ignored.
+     */
+    static final class Checkpoint implements Closeable {
+        private final Path file;
+        private final List<Shard> shards = new ArrayList<>();
+        private final Map<String, String> lasts = new HashMap<>();
+        private final Set<String> done = new HashSet<>();
+        private BufferedWriter writer;
+
+        private Checkpoint(Path file) {
+            this.file = file;
+        }
+
+        static Checkpoint open(Path file) throws IOException {
+            Checkpoint checkpoint = new Checkpoint(file);
+            if (Files.exists(file)) {
+                for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                    checkpoint.parse(line);
+                }
+            }
+            checkpoint.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND);
+            return checkpoint;
+        }
+
+        private void parse(String line) {
+            String[] parts = line.split(" ", 4);
+            try {
+                switch (parts[0]) {
+                    case "shard":
+                        shards.add(new Shard(parts[1], new URI(parts[2])));
+                        break;
+                    case "after":
+                        lasts.put(parts[2] + ' ' + new URI(parts[3]), new URI(parts[1]).toString());
+                        break;
+                    case "done":
+                        done.add(parts[1] + ' ' + new URI(parts[2]));
+                        break;
+                    default:
+                        logger.debug("Ignoring unknown checkpoint line: {}", line);
+                }
+            } catch (Exception ex) {
+                logger.debug("Ignoring malformed checkpoint line: {}", line);
+            }
+        }
+
+        synchronized List<Shard> getShards() {
+            return new ArrayList<>(shards);
+        }
+
+        synchronized boolean isDone(String key) {
+            return done.contains(key);
+        }
+
+        synchronized int countDone() {
+            return done.size();
+        }
+
+        /** @return the last file handed over of a shard, or null if none was */
+        synchronized String getLast(String key) {
+            return lasts.get(key);
+        }
+
+        synchronized void writePlan(List<Shard> plan) throws IOException {
+            if (plan.isEmpty()) {
+                return;
+            }
+            for (Shard shard : plan) {
+                writer.write("shard " + shard.getKey());
+                writer.newLine();
+            }
+            writer.flush();
+            shards.addAll(plan);
+        }
+
+        synchronized void writeLast(String key, String location) throws IOException {
+            lasts.put(key, location);
+            writer.write("after " + location + ' ' + key);
+            writer.newLine();
+            writer.flush();
+        }
+
+        synchronized void writeDone(String key) throws IOException {
+            done.add(key);
+            writer.write("done " + key);
+            writer.newLine();
+            writer.flush();
+        }
+
+        synchronized void delete() throws IOException {
+            writer.close();
+            Files.deleteIfExists(file);
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            writer.close();
+        }
+    }
+}
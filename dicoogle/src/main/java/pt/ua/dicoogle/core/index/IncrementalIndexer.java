@@ -0,0 +1,233 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.core.index;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pt.ua.dicoogle.core.query.QueryResultCache;
+import pt.ua.dicoogle.sdk.IndexerInterface;
+import pt.ua.dicoogle.sdk.StorageInputStream;
+import pt.ua.dicoogle.sdk.StorageInterface;
+import pt.ua.dicoogle.sdk.datastructs.IndexReport2;
+import pt.ua.dicoogle.sdk.datastructs.Report;
+import pt.ua.dicoogle.sdk.datastructs.UnindexReport;
+import pt.ua.dicoogle.sdk.task.ProgressCallable;
+import pt.ua.dicoogle.sdk.task.Task;
+
+/**
+ * Incremental indexing procedure over a storage tree.
+ *
+ * Only the files which were added or modified since the last incremental indexing of the same tree
+ * with the same indexers are handed over to the indexers,
+ * and the files which were removed since then are unindexed.
+ * The state of the tree is kept in an {@link IndexManifest},
+ * which is updated as batches of files are indexed.
+ * Files unindexed through {@link #invalidate(Collection)} are indexed again on the next run.
+ */
+public class IncrementalIndexer implements ProgressCallable<Report> {
+
+    private static final Logger logger = LoggerFactory.getLogger(IncrementalIndexer.class);
+
+    /** Number of files handed over to the indexers at a time */
+    private static final int BATCH_SIZE =
+            Math.max(1, Integer.parseInt(System.getProperty("dicoogle.index.incremental.batchSize", "256")));
+    /** Directory of the manifest files */
+    private static final String MANIFEST_DIR =
+            System.getProperty("dicoogle.index.manifestDir", "index-manifests");
+
+    private final URI root;
+    private final StorageInterface storage;
+    private final IndexBatchFeeder feeder;
+    private final int batchSize;
+    private final Path manifestFile;
+
+    private volatile int expected = 0;
+    private volatile int visited = 0;
+    private volatile boolean finished = false;
+
+    /**
+     * Create an incremental indexing procedure with the default settings.
+     *
+     * @param root the root of the tree to index
+     * @param storage the storage of the tree
+     * @param indexers the indexers to feed
+     */
+    public IncrementalIndexer(URI root, StorageInterface storage, Collection<IndexerInterface> indexers) {
+        this(root, storage, indexers, BATCH_SIZE, Paths.get(MANIFEST_DIR));
+    }
+
+    /**
+     * Create an incremental indexing procedure.
+     *
+     * @param root the root of the tree to index
+     * @param storage the storage of the tree
+     * @param indexers the indexers to feed
+     * @param batchSize the number of files to hand over to the indexers at a time
+     * @param manifestDir the directory in which to keep the manifest file
+     */
+    public IncrementalIndexer(URI root, StorageInterface storage, Collection<IndexerInterface> indexers,
+            int batchSize, Path manifestDir) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Illegal batch size: " + batchSize);
+        }
+        this.root = root;
+        this.storage = storage;
+        this.feeder = new IndexBatchFeeder(indexers);
+        this.batchSize = batchSize;
+        this.manifestFile =
+                manifestDir.resolve("index-" + IndexBatchFeeder.procedureId(root, indexers) + ".manifest");
+    }
+
+    /**
+     * Record that files were unindexed, so that they are indexed again
+     * by the next incremental indexing of a tree containing them.
+     *
+     * @param paths the URIs of the unindexed files or directories
+     */
+    public static void invalidate(Collection<URI> paths) {
+        try {
+            IndexManifest.recordUnindexed(Paths.get(MANIFEST_DIR), paths);
+        } catch (IOException ex) {
+            logger.warn("Could not record unindexed files for incremental indexing", ex);
+        }
+    }
+
+    @Override
+    public float getProgress() {
+        if (finished) {
+            return 1;
+        }
+        // the size of the tree is only known from the previous run
+        int total = Math.max(expected, visited);
+        if (total == 0) {
+            return 0;
+        }
+        return (float) visited / total;
+    }
+
+    @Override
+    public Report call() throws Exception {
+        long start = System.currentTimeMillis();
+        IndexManifest manifest = IndexManifest.load(manifestFile);
+        expected = manifest.size();
+
+        int unchanged = 0;
+        List<StorageInputStream> batch = new ArrayList<>(batchSize);
+        List<IndexManifest.Entry> batchEntries = new ArrayList<>(batchSize);
+        try {
+            for (StorageInputStream item : storage.at(root)) {
+                if (item == null) {
+                    continue;
+                }
+                visited++;
+                IndexManifest.Entry entry;
+                try {
+                    entry = manifest.probe(item);
+                } catch (IOException ex) {
+                    logger.warn("Could not inspect {}, indexing it", item.getURI(), ex);
+                    manifest.remove(item.getURI());
+                    batch.add(item);
+                    batchEntries.add(null);
+                    continue;
+                }
+                if (entry == null) {
+                    unchanged++;
+                    continue;
+                }
+                batch.add(item);
+                batchEntries.add(entry);
+                if (batch.size() >= batchSize) {
+                    feed(manifest, batch, batchEntries);
+                    batch = new ArrayList<>(batchSize);
+                    batchEntries = new ArrayList<>(batchSize);
+                }
+            }
+            if (!batch.isEmpty()) {
+                feed(manifest, batch, batchEntries);
+            }
+
+            // only a complete walk over the tree tells which files were removed
+            List<URI> missing = manifest.missing(root);
+            if (!missing.isEmpty()) {
+                logger.info("Unindexing {} files which were removed from {}", missing.size(), root);
+                unindex(manifest, missing);
+            }
+        } finally {
+            manifest.save();
+        }
+        finished = true;
+
+        long elapsed = System.currentTimeMillis() - start;
+        logger.info("Incremental indexing of {} finished: {} unchanged, {} indexed, {} errors, {} ms", root,
+                unchanged, feeder.getIndexed(), feeder.getErrors(), elapsed);
+        return new IndexReport2(feeder.getIndexed(), feeder.getErrors(), elapsed);
+    }
+
+    /** Index a batch, recording its files in the manifest journal if all indexers took it. */
+    private void feed(IndexManifest manifest, List<StorageInputStream> batch, List<IndexManifest.Entry> entries)
+            throws InterruptedException, IOException {
+        if (!feeder.feed(batch)) {
+            // leave these files out of the manifest so that they are indexed again on the next run
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            if (entries.get(i) != null) {
+                manifest.put(batch.get(i).getURI(), entries.get(i));
+            }
+        }
+        manifest.flush();
+    }
+
+    /** Unindex the given files from all indexers, forgetting them if all indexers succeeded. */
+    private void unindex(IndexManifest manifest, List<URI> missing) throws InterruptedException {
+        Set<URI> failed = new HashSet<>();
+        for (IndexerInterface indexer : feeder.getIndexers()) {
+            try {
+                Task<UnindexReport> task = indexer.unindex(missing, null);
+                task.run();
+                UnindexReport report = task.get();
+                for (UnindexReport.FailedUnindex failure : report.getUnindexFailures()) {
+                    failed.addAll(failure.urisAffected);
+                }
+            } catch (IOException | ExecutionException ex) {
+                logger.warn("Indexer {} failed to unindex removed files", indexer.getName(), ex);
+                return;
+            } finally {
+                QueryResultCache.getInstance().invalidateIndex(indexer.getName());
+            }
+        }
+        for (URI uri : missing) {
+            if (!failed.contains(uri)) {
+                manifest.remove(uri);
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.core.index;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.hash.Hashing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pt.ua.dicoogle.core.query.QueryResultCache;
+import pt.ua.dicoogle.sdk.IndexerInterface;
+import pt.ua.dicoogle.sdk.StorageInputStream;
+import pt.ua.dicoogle.sdk.datastructs.IndexReport;
+import pt.ua.dicoogle.sdk.datastructs.Report;
+import pt.ua.dicoogle.sdk.task.Task;
+
+/**
+ * Hands batches of files over to a set of indexers, one indexer at a time,
+ * in the calling thread, and keeps count of the outcome.
+ */
+final class IndexBatchFeeder {
+
+    private static final Logger logger = LoggerFactory.getLogger(IndexBatchFeeder.class);
+
+    private final List<IndexerInterface> indexers;
+    private final AtomicInteger nIndexed = new AtomicInteger();
+    private final AtomicInteger nErrors = new AtomicInteger();
+
+    IndexBatchFeeder(Collection<IndexerInterface> indexers) {
+        this.indexers = new ArrayList<>(indexers);
+    }
+
+    /**
+     * Obtain an identifier for indexing the tree at a root with a set of indexers,
+     * which does not depend on the order of the indexers.
+     */
+    static String procedureId(URI root, Collection<IndexerInterface> indexers) {
+        Set<String> names = new TreeSet<>();
+        for (IndexerInterface indexer : indexers) {
+            names.add(indexer.getName());
+        }
+        return Hashing.sha256().hashString(root + "|" + String.join(",", names), StandardCharsets.UTF_8).toString()
+                .substring(0, 32);
+    }
+
+    List<IndexerInterface> getIndexers() {
+        return indexers;
+    }
+
+    int getIndexed() {
+        return nIndexed.get();
+    }
+
+    int getErrors() {
+        return nErrors.get();
+    }
+
+    /**
+     * Hand a batch of files over to each indexer, waiting for them to finish.
+     *
+     * @return whether all indexers completed their tasks (even if some files could not be indexed)
+     * @throws InterruptedException if the calling thread was interrupted
+     */
+    boolean feed(List<StorageInputStream> batch) throws InterruptedException {
+        boolean complete = true;
+        for (IndexerInterface indexer : indexers) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException("Indexing was cancelled");
+            }
+            Task<Report> task = indexer.index(batch);
+            if (task == null) {
+                continue;
+            }
+            task.run();
+            try {
+                Report report = task.get();
+                if (report instanceof IndexReport) {
+                    nIndexed.addAndGet(((IndexReport) report).getNIndexed());
+                    nErrors.addAndGet(Math.max(0, ((IndexReport) report).getNErrors()));
+                }
+            } catch (ExecutionException ex) {
+                logger.warn("Indexer {} failed on a batch of {} files", indexer.getName(), batch.size(),
+                        ex.getCause());
+                nErrors.addAndGet(batch.size());
+                complete = false;
+            } finally {
+                QueryResultCache.getInstance().invalidateIndex(indexer.getName());
+            }
+        }
+        return complete;
+    }
+}
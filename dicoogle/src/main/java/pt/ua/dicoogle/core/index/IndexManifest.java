@@ -0,0 +1,437 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.core.index;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pt.ua.dicoogle.sdk.StorageInputStream;
+
+/**
+ * A record of the files which were last indexed, used to detect which files
+ * were added, modified or removed since then.
+ *
+ * Each file is described by its size, its last modification time (when the storage is a file system)
+ * and, when the modification time is not available, a hash of its first bytes.
+ * A file is considered unchanged if its size and modification time did not change,
+ * or if its size and the hash of its first bytes did not change when there is no modification time.
+ *
+ * Changes are appended to a journal next to the manifest file as they are recorded,
+ * and folded into the manifest file when it is saved.
+ * Files unindexed by other means are dropped from the manifest when it is loaded,
+ * through a log shared by all manifests in a directory, see {@link #recordUnindexed(Path, Collection)}.
+ *
+ * This class is thread safe.
+ */
+public class IndexManifest {
+
+    private static final Logger logger = LoggerFactory.getLogger(IndexManifest.class);
+
+    private static final String HEADER = "# dicoogle index manifest v1";
+    /** Header line with the length of the unindexed log already applied to the manifest */
+    private static final String APPLIED_HEADER = "#unindexed ";
+    /** Journal line prefix of a removed file */
+    private static final String REMOVED = "-\t";
+    /** Name of the log of unindexed files, in the directory of the manifests */
+    private static final String UNINDEXED_LOG = "unindexed.log";
+
+    /** Number of bytes at the beginning of each file to hash */
+    private static final int HASH_PREFIX_BYTES =
+            Math.max(1, Integer.parseInt(System.getProperty("dicoogle.index.manifest.hashPrefixBytes", "65536")));
+
+    /** The description of a file in the manifest. */
+    public static final class Entry {
+        private final long size;
+        private final long lastModified;
+        private final String hash;
+        /** whether the file was found in the current walk over the tree */
+        private volatile boolean seen;
+
+        Entry(long size, long lastModified, String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /** @return the last modification time in milliseconds since the epoch, or -1 if unknown */
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /** @return the hash of the first bytes of the file, or null if not computed */
+        public String getHash() {
+            return hash;
+        }
+
+        private String toLine(String key) {
+            return size + "\t" + lastModified + "\t" + (hash == null ? "" : hash) + "\t" + key;
+        }
+    }
+
+    private final Path file;
+    private final Path journalFile;
+    private final Path unindexedLog;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private BufferedWriter journal;
+    private long unindexedApplied = 0;
+
+    private IndexManifest(Path file) {
+        this.file = file;
+        Path parent = file.toAbsolutePath().getParent();
+        this.journalFile = parent.resolve(file.getFileName() + ".journal");
+        this.unindexedLog = parent.resolve(UNINDEXED_LOG);
+    }
+
+    /**
+     * Load a manifest from a file and its journal, or create an empty manifest if the file does not exist.
+     * Malformed lines are ignored.
+     * The files unindexed since the manifest was saved are dropped from it.
+     *
+     * @param file the manifest file
+     * @return the manifest
+     * @throws IOException if the file exists but could not be read
+     */
+    public static IndexManifest load(Path file) throws IOException {
+        IndexManifest manifest = new IndexManifest(file);
+        boolean exists = Files.exists(file);
+        int malformed = 0;
+        if (exists) {
+            malformed += manifest.read(file);
+        }
+        if (Files.exists(manifest.journalFile)) {
+            exists = true;
+            malformed += manifest.read(manifest.journalFile);
+        }
+        if (malformed > 0) {
+            logger.warn("Ignored {} malformed lines in index manifest {}", malformed, file);
+        }
+        if (exists) {
+            manifest.applyUnindexed();
+        } else if (Files.exists(manifest.unindexedLog)) {
+            // nothing to drop from a new manifest
+            manifest.unindexedApplied = Files.size(manifest.unindexedLog);
+        }
+        return manifest;
+    }
+
+    /** Read the lines of a manifest or journal file, returning the number of malformed lines. */
+    private int read(Path path) throws IOException {
+        int malformed = 0;
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(APPLIED_HEADER)) {
+                    try {
+                        unindexedApplied = Long.parseLong(line.substring(APPLIED_HEADER.length()).trim());
+                    } catch (NumberFormatException ex) {
+                        malformed++;
+                    }
+                    continue;
+                }
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                if (line.startsWith(REMOVED)) {
+                    entries.remove(line.substring(REMOVED.length()));
+                    continue;
+                }
+                String[] parts = line.split("\t", 4);
+                try {
+                    entries.put(parts[3], new Entry(Long.parseLong(parts[0]), Long.parseLong(parts[1]),
+                            parts[2].isEmpty() ? null : parts[2]));
+                } catch (RuntimeException ex) {
+                    malformed++;
+                }
+            }
+        }
+        return malformed;
+    }
+
+    /** Drop the files recorded in the unindexed log since it was last applied. */
+    private void applyUnindexed() throws IOException {
+        if (!Files.exists(unindexedLog)) {
+            unindexedApplied = 0;
+            return;
+        }
+        List<String> paths = new ArrayList<>();
+        try (SeekableByteChannel channel = Files.newByteChannel(unindexedLog, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < unindexedApplied) {
+                // the log was replaced, apply all of it
+                unindexedApplied = 0;
+            }
+            if (size - unindexedApplied > Integer.MAX_VALUE) {
+                throw new IOException("Log of unindexed files is too large: " + unindexedLog);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) (size - unindexedApplied));
+            channel.position(unindexedApplied);
+            while (buffer.hasRemaining() && channel.read(buffer) > 0) {
+                // keep reading
+            }
+            // a line still being written is left for the next load
+            int end = buffer.position();
+            while (end > 0 && buffer.get(end - 1) != '\n') {
+                end--;
+            }
+            for (String line : new String(buffer.array(), 0, end, StandardCharsets.UTF_8).split("\n")) {
+                if (!line.isEmpty()) {
+                    paths.add(line);
+                }
+            }
+            unindexedApplied += end;
+        }
+        int removed = removeUnder(paths);
+        if (removed > 0) {
+            logger.info("Dropped {} unindexed files from index manifest {}", removed, file);
+        }
+    }
+
+    private int removeUnder(List<String> paths) {
+        if (paths.isEmpty()) {
+            return 0;
+        }
+        Set<String> exact = new HashSet<>(paths);
+        List<String> prefixes = new ArrayList<>(paths.size());
+        for (String path : paths) {
+            prefixes.add(path.endsWith("/") ? path : path + '/');
+        }
+        int removed = 0;
+        for (Iterator<String> it = entries.keySet().iterator(); it.hasNext();) {
+            String key = it.next();
+            if (exact.contains(key) || prefixes.stream().anyMatch(key::startsWith)) {
+                it.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Record that files were unindexed by other means than incremental indexing,
+     * so that the manifests in the given directory drop them the next time they are loaded.
+     *
+     * @param manifestDir the directory of the manifests
+     * @param paths the URIs of the unindexed files or directories
+     * @throws IOException if the log could not be written
+     */
+    public static synchronized void recordUnindexed(Path manifestDir, Collection<URI> paths) throws IOException {
+        if (paths.isEmpty() || !Files.isDirectory(manifestDir)) {
+            // no manifests to update
+            return;
+        }
+        List<String> lines = new ArrayList<>(paths.size());
+        for (URI path : paths) {
+            lines.add(path.toString());
+        }
+        Files.write(manifestDir.resolve(UNINDEXED_LOG), lines, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Save the manifest to its file, and discard its journal.
+     * The file is replaced atomically where the file system allows it,
+     * so that a crash never leaves a truncated manifest behind.
+     *
+     * @throws IOException if the manifest could not be written
+     */
+    public synchronized void save() throws IOException {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+        Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path tmp = parent.resolve(file.getFileName() + ".part");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            writer.write(APPLIED_HEADER + unindexedApplied);
+            writer.newLine();
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                writer.write(e.getValue().toLine(e.getKey()));
+                writer.newLine();
+            }
+        }
+        try {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        // replaying the journal over the new file would do no harm, so a crash before this is fine
+        Files.deleteIfExists(journalFile);
+    }
+
+    /**
+     * Write the changes recorded so far to the journal.
+     *
+     * @throws IOException if the journal could not be written
+     */
+    public synchronized void flush() throws IOException {
+        if (journal != null) {
+            journal.flush();
+        }
+    }
+
+    private synchronized void journal(String line) {
+        try {
+            if (journal == null) {
+                Files.createDirectories(journalFile.getParent());
+                journal = Files.newBufferedWriter(journalFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                        StandardOpenOption.APPEND);
+            }
+            journal.write(line);
+            journal.newLine();
+        } catch (IOException ex) {
+            // the change is still saved with the whole manifest
+            logger.warn("Could not write to index manifest journal {}", journalFile, ex);
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public Entry get(URI uri) {
+        return entries.get(uri.toString());
+    }
+
+    /**
+     * Check whether a file changed since it was last recorded, and mark it as found.
+     *
+     * @param item the file to check
+     * @return null if the file is unchanged, or the entry to record once the file is indexed
+     * @throws IOException if the file could not be inspected
+     */
+    public Entry probe(StorageInputStream item) throws IOException {
+        Entry previous = entries.get(item.getURI().toString());
+        if (previous != null) {
+            previous.seen = true;
+        }
+        long size = item.getSize();
+        long lastModified = lastModified(item.getURI());
+        if (lastModified >= 0) {
+            // the file was modified if its modification time changed, whatever its contents
+            if (previous != null && previous.size == size && previous.lastModified == lastModified) {
+                return null;
+            }
+            return new Entry(size, lastModified, null);
+        }
+        // the modification time is unknown, look at the contents
+        String hash = hashPrefix(item);
+        if (previous != null && previous.size == size && hash.equals(previous.hash)) {
+            return null;
+        }
+        return new Entry(size, lastModified, hash);
+    }
+
+    /**
+     * Record the state of a file which was indexed.
+     *
+     * @param uri the file's URI
+     * @param entry the entry obtained from {@link #probe(StorageInputStream)}
+     */
+    public void put(URI uri, Entry entry) {
+        String key = uri.toString();
+        entry.seen = true;
+        entries.put(key, entry);
+        journal(entry.toLine(key));
+    }
+
+    public void remove(URI uri) {
+        String key = uri.toString();
+        if (entries.remove(key) != null) {
+            journal(REMOVED + key);
+        }
+    }
+
+    /**
+     * Obtain the files recorded under the given root which were not found since the manifest was loaded,
+     * that is, neither probed nor recorded.
+     *
+     * @param root the root of the tree
+     * @return the URIs of the recorded files which were not found
+     */
+    public List<URI> missing(URI root) {
+        String prefix = root.toString();
+        String dirPrefix = prefix.endsWith("/") ? prefix : prefix + "/";
+        List<URI> out = new ArrayList<>();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            String key = e.getKey();
+            if ((key.equals(prefix) || key.startsWith(dirPrefix)) && !e.getValue().seen) {
+                out.add(URI.create(key));
+            }
+        }
+        return out;
+    }
+
+    private static long lastModified(URI uri) {
+        if (!"file".equals(uri.getScheme())) {
+            return -1;
+        }
+        try {
+            return Files.getLastModifiedTime(Paths.get(uri)).toMillis();
+        } catch (IOException | RuntimeException ex) {
+            return -1;
+        }
+    }
+
+    private static String hashPrefix(StorageInputStream item) throws IOException {
+        Hasher hasher = Hashing.sha256().newHasher();
+        byte[] buffer = new byte[Math.min(HASH_PREFIX_BYTES, 8192)];
+        int remaining = HASH_PREFIX_BYTES;
+        try (InputStream in = item.getInputStream()) {
+            int n;
+            while (remaining > 0 && (n = in.read(buffer, 0, Math.min(buffer.length, remaining))) > 0) {
+                hasher.putBytes(buffer, 0, n);
+                remaining -= n;
+            }
+        }
+        return hasher.hash().toString().substring(0, 16);
+    }
+}
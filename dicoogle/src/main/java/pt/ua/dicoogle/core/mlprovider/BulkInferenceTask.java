@@ -0,0 +1,297 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.core.mlprovider;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pt.ua.dicoogle.sdk.mlprovider.MLInference;
+import pt.ua.dicoogle.sdk.mlprovider.MLInferenceRequest;
+import pt.ua.dicoogle.sdk.mlprovider.MLProviderInterface;
+import pt.ua.dicoogle.sdk.task.ProgressCallable;
+import pt.ua.dicoogle.sdk.task.Task;
+import pt.ua.dicoogle.taskManager.TaskManager;
+
+/**
+ * A bulk inference procedure over a sequence of items, such as the series of a study or the results of a query.
+ *
+ * Items are taken from the sequence as it is produced, and grouped into batches
+ * no larger than the provider's maximum batch size.
+ * Batches are prepared (e.g. by extracting regions of interest) and sent to the provider
+ * on the shared <code>bulk-infer</code> task manager, with a bounded number of batches in flight,
+ * so that a long sequence of items is never held in memory as a whole.
+ * Each inference is handed over to a listener as soon as it is available.
+ * If the iterator of the sequence is {@link AutoCloseable}, it is closed once the procedure ends,
+ * including when it fails or is cancelled, so that whatever produces the items can be released.
+ *
+ * @param <T> the type of item
+ */
+public class BulkInferenceTask<T> implements ProgressCallable<BulkInferenceTask.Summary> {
+
+    private static final Logger logger = LoggerFactory.getLogger(BulkInferenceTask.class);
+
+    /** Number of batches prepared and inferred at the same time, and threads of the shared pool */
+    private static final int PARALLELISM =
+            Math.max(1, Integer.parseInt(System.getProperty("dicoogle.ml.bulkInfer.parallelism", "4")));
+
+    /** Builds the inference request of an item. */
+    public interface Preparer<T> {
+        MLInferenceRequest prepare(T item) throws Exception;
+    }
+
+    /** Receives the outcome of each item. Methods may be called concurrently from several workers. */
+    public interface Listener<T> {
+        void onInference(T item, MLInference inference);
+
+        void onFailure(T item, Exception error);
+    }
+
+    /** The outcome of a bulk inference procedure */
+    public static final class Summary {
+        private final int submitted;
+        private final int inferred;
+        private final long elapsedTime;
+
+        Summary(int submitted, int inferred, long elapsedTime) {
+            this.submitted = submitted;
+            this.inferred = inferred;
+            this.elapsedTime = elapsedTime;
+        }
+
+        public int getSubmitted() {
+            return submitted;
+        }
+
+        public int getInferred() {
+            return inferred;
+        }
+
+        public int getFailed() {
+            return submitted - inferred;
+        }
+
+        public long getElapsedTime() {
+            return elapsedTime;
+        }
+    }
+
+    private final MLProviderInterface provider;
+    private final Iterable<T> items;
+    private final Preparer<T> preparer;
+    private final Listener<T> listener;
+    private final int parallelism;
+    private final int batchSize;
+
+    private final AtomicInteger submitted = new AtomicInteger();
+    private final AtomicInteger done = new AtomicInteger();
+    private final AtomicInteger inferred = new AtomicInteger();
+    private volatile boolean stopping = false;
+
+    /**
+     * Create a bulk inference procedure with the default settings.
+     *
+     * @param provider the machine learning provider
+     * @param items the items to infer on, which may be produced lazily
+     * @param preparer the function building the inference request of each item
+     * @param listener the listener of the outcome of each item
+     */
+    public BulkInferenceTask(MLProviderInterface provider, Iterable<T> items, Preparer<T> preparer,
+            Listener<T> listener) {
+        this(provider, items, preparer, listener, PARALLELISM, provider.getMaxBatchSize());
+    }
+
+    /**
+     * Create a bulk inference procedure.
+     *
+     * @param provider the machine learning provider
+     * @param items the items to infer on, which may be produced lazily
+     * @param preparer the function building the inference request of each item
+     * @param listener the listener of the outcome of each item
+     * @param parallelism the maximum number of batches in flight
+     * @param batchSize the number of items to send to the provider at once
+     */
+    public BulkInferenceTask(MLProviderInterface provider, Iterable<T> items, Preparer<T> preparer,
+            Listener<T> listener, int parallelism, int batchSize) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Illegal parallelism: " + parallelism);
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Illegal batch size: " + batchSize);
+        }
+        this.provider = provider;
+        this.items = items;
+        this.preparer = preparer;
+        this.listener = listener;
+        this.parallelism = parallelism;
+        this.batchSize = batchSize;
+    }
+
+    /** The fraction of the items taken so far which were handled. */
+    @Override
+    public float getProgress() {
+        int total = submitted.get();
+        if (total == 0) {
+            return 0;
+        }
+        return (float) done.get() / total;
+    }
+
+    @Override
+    public Summary call() throws Exception {
+        long start = System.currentTimeMillis();
+        TaskManager pool = TaskManager.shared("bulk-infer", PARALLELISM);
+        Semaphore inFlight = new Semaphore(parallelism);
+        Set<Task<Void>> running = ConcurrentHashMap.newKeySet();
+        Iterator<T> it = items.iterator();
+        try {
+            List<T> batch = new ArrayList<>(batchSize);
+            while (it.hasNext()) {
+                T item = it.next();
+                if (Thread.interrupted()) {
+                    throw new InterruptedException("Bulk inference was cancelled");
+                }
+                submitted.incrementAndGet();
+                batch.add(item);
+                if (batch.size() == batchSize) {
+                    dispatch(pool, inFlight, running, batch);
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if (!batch.isEmpty()) {
+                dispatch(pool, inFlight, running, batch);
+            }
+            // wait for all batches
+            inFlight.acquire(parallelism);
+        } finally {
+            // stops the batches of this procedure if it was cancelled
+            stopping = true;
+            for (Task<Void> task : running) {
+                task.cancel(true);
+            }
+            if (it instanceof AutoCloseable) {
+                try {
+                    ((AutoCloseable) it).close();
+                } catch (Exception ex) {
+                    logger.warn("Could not close the items of the bulk inference on {}", provider.getName(), ex);
+                }
+            }
+        }
+
+        long elapsed = System.currentTimeMillis() - start;
+        logger.info("Bulk inference on {} finished: {} of {} inferred, {} ms", provider.getName(), inferred.get(),
+                submitted.get(), elapsed);
+        return new Summary(submitted.get(), inferred.get(), elapsed);
+    }
+
+    private void dispatch(TaskManager pool, Semaphore inFlight, Set<Task<Void>> running, List<T> batch)
+            throws InterruptedException {
+        inFlight.acquire();
+        Task<Void> task = new Task<>("bulk inference on " + provider.getName(), () -> {
+            infer(batch);
+            return null;
+        });
+        running.add(task);
+        task.onCompletion(() -> {
+            running.remove(task);
+            if (task.isCancelled() && !stopping) {
+                // rejected by a saturated pool, so none of the batch was handled
+                failAll(batch, new CancellationException("Batch was rejected"));
+            }
+            inFlight.release();
+        });
+        pool.dispatch(task);
+    }
+
+    /** Prepare and infer a batch of items, in the calling thread. */
+    void infer(List<T> batch) {
+        List<T> prepared = new ArrayList<>(batch.size());
+        List<MLInferenceRequest> requests = new ArrayList<>(batch.size());
+        for (T item : batch) {
+            try {
+                MLInferenceRequest request = preparer.prepare(item);
+                if (request == null) {
+                    fail(item, new IllegalArgumentException("Could not build inference request"));
+                    continue;
+                }
+                requests.add(request);
+                prepared.add(item);
+            } catch (Exception ex) {
+                fail(item, ex);
+            }
+        }
+        if (requests.isEmpty()) {
+            return;
+        }
+
+        List<MLInference> inferences;
+        try {
+            Task<List<MLInference>> task = provider.batchInfer(requests);
+            if (task == null) {
+                throw new IllegalStateException("Provider " + provider.getName() + " did not accept the batch");
+            }
+            task.run();
+            inferences = task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            failAll(prepared, ex);
+            return;
+        } catch (ExecutionException ex) {
+            logger.warn("Provider {} failed on a batch of {} requests", provider.getName(), requests.size(),
+                    ex.getCause());
+            failAll(prepared, ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex);
+            return;
+        } catch (RuntimeException ex) {
+            logger.warn("Provider {} failed on a batch of {} requests", provider.getName(), requests.size(), ex);
+            failAll(prepared, ex);
+            return;
+        }
+
+        for (int i = 0; i < prepared.size(); i++) {
+            MLInference inference = inferences != null && i < inferences.size() ? inferences.get(i) : null;
+            if (inference == null) {
+                fail(prepared.get(i), new IllegalStateException("Provider produced no inference"));
+            } else {
+                inferred.incrementAndGet();
+                done.incrementAndGet();
+                listener.onInference(prepared.get(i), inference);
+            }
+        }
+    }
+
+    private void failAll(List<T> items, Exception error) {
+        for (T item : items) {
+            fail(item, error);
+        }
+    }
+
+    private void fail(T item, Exception error) {
+        done.incrementAndGet();
+        listener.onFailure(item, error);
+    }
+}
@@ -20,8 +20,8 @@ package pt.ua.dicoogle.core.mlprovider;
 
 import org.dcm4che2.data.BasicDicomObject;
 import org.dcm4che2.data.Tag;
-import org.dcm4che2.data.TransferSyntax;
 import org.dcm4che2.data.VR;
+import org.dcm4che3.imageio.plugins.dcm.DicomMetaData;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import pt.ua.dicoogle.plugins.PluginController;
@@ -29,42 +29,162 @@ import pt.ua.dicoogle.sdk.datastructs.SearchResult;
 import pt.ua.dicoogle.sdk.datastructs.dim.BulkAnnotation;
 import pt.ua.dicoogle.sdk.datastructs.dim.Point2D;
 import pt.ua.dicoogle.sdk.mlprovider.*;
+import pt.ua.dicoogle.sdk.task.ProgressCallable;
+import pt.ua.dicoogle.sdk.task.Task;
 import pt.ua.dicoogle.server.web.dicom.ROIExtractor;
 import pt.ua.dicoogle.server.web.utils.cache.WSICache;
+import pt.ua.dicoogle.taskManager.TaskManager;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
-import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This task processes Datastore Requests, and builds the appropriate ML Dataset.
+ *
+ * Image datasets are prepared in a pipeline:
+ * the requested instances are first resolved in batches of queries,
+ * then the regions of interest of each instance are extracted on the shared <code>datastore-extract</code> pool,
+ * one instance at a time per worker so that its cached metadata is reused,
+ * and each region is handed over to the shared <code>datastore-encode</code> pool which writes it
+ * to the dataset folder, with a bounded number of regions extracted but not yet written.
+ * Cancelling the task stops the pipeline.
  */
-public class PrepareDatastoreTask implements Callable<MLDataset> {
+public class PrepareDatastoreTask implements ProgressCallable<MLDataset> {
 
     private static final Logger logger = LoggerFactory.getLogger(PrepareDatastoreTask.class);
+
+    /** Number of instances from which regions are extracted at the same time */
+    private static final int PARALLELISM = Math.max(1, Integer.parseInt(System.getProperty(
+            "dicoogle.ml.datastore.parallelism",
+            String.valueOf(Math.max(1, Runtime.getRuntime().availableProcessors() / 2)))));
+    /** Number of regions encoded at the same time */
+    private static final int ENCODERS =
+            Math.max(1, Integer.parseInt(System.getProperty("dicoogle.ml.datastore.encoders", "2")));
+    /** Number of instances resolved by each query */
+    private static final int RESOLVE_BATCH_SIZE =
+            Math.max(1, Integer.parseInt(System.getProperty("dicoogle.ml.datastore.resolveBatchSize", "256")));
+    /** Number of extracted regions which may wait to be encoded, per encoder */
+    private static final int PENDING_PER_ENCODER = 4;
+
+    /** Finds which of the requested instances exist. */
+    interface Resolver {
+        Set<String> resolve(Collection<String> uids) throws InterruptedException;
+    }
+
+    /** Opens an instance for the extraction of its regions of interest. */
+    interface InstanceReader {
+        /** @return a reader of the regions of the instance, or null if the instance cannot be read */
+        RegionReader open(String uid);
+    }
+
+    /** Extracts the regions of interest of an open instance. */
+    interface RegionReader {
+        BufferedImage read(BulkAnnotation.AnnotationType type, List<Point2D> points);
+    }
+
+    /** Encodes a region of interest to a file. */
+    interface RegionWriter {
+        void write(BufferedImage image, File output) throws IOException;
+    }
+
     private final DatastoreRequest request;
-    private final PluginController controller;
     private String dataset;
 
-    private final ROIExtractor roiExtractor;
+    private final Resolver resolver;
+    private final InstanceReader reader;
+    private final RegionWriter writer;
+    /** the folder to write regions to, or null for a new folder in the datasets folder */
+    private final Path folder;
+
+    /** bounds the extracted images held in memory */
+    private final int maxPending;
+    private final Semaphore pending;
 
-    private final WSICache wsiCache;
+    private volatile int roisTotal = 0;
+    private final AtomicInteger roisDone = new AtomicInteger();
 
     public PrepareDatastoreTask(PluginController controller, DatastoreRequest request) {
-        this.controller = controller;
         this.request = request;
         this.dataset = UUID.randomUUID().toString();
+        this.resolver = uids -> resolve(controller, uids);
 
-        this.wsiCache = WSICache.getInstance();
-        this.roiExtractor = new ROIExtractor();
+        WSICache wsiCache = WSICache.getInstance();
+        ROIExtractor roiExtractor = new ROIExtractor();
+        this.reader = uid -> {
+            // the metadata is obtained once for all regions of the instance
+            DicomMetaData metaData = wsiCache.get(uid);
+            if (metaData == null) {
+                return null;
+            }
+            return (type, points) -> roiExtractor.extractROI(metaData, type, points);
+        };
+        this.writer = PrepareDatastoreTask::writeJpeg;
+        this.folder = null;
+        this.maxPending = ENCODERS * PENDING_PER_ENCODER;
+        this.pending = new Semaphore(maxPending);
+    }
+
+    PrepareDatastoreTask(DatastoreRequest request, Resolver resolver, InstanceReader reader, Path folder,
+            int maxPending) {
+        this(request, resolver, reader, PrepareDatastoreTask::writeJpeg, folder, maxPending);
+    }
+
+    PrepareDatastoreTask(DatastoreRequest request, Resolver resolver, InstanceReader reader, RegionWriter writer,
+            Path folder, int maxPending) {
+        this.request = request;
+        this.dataset = UUID.randomUUID().toString();
+        this.resolver = resolver;
+        this.reader = reader;
+        this.writer = writer;
+        this.folder = folder;
+        this.maxPending = maxPending;
+        this.pending = new Semaphore(maxPending);
+    }
+
+    /**
+     * Upload the dataset to a provider once its preparation is done,
+     * unless the preparation was cancelled or failed.
+     *
+     * @param prepareTask the task preparing the dataset
+     * @param provider the provider to upload the dataset to
+     */
+    public static void storeWhenDone(Task<MLDataset> prepareTask, MLProviderInterface provider) {
+        prepareTask.onCompletion(() -> {
+            if (prepareTask.isCancelled()) {
+                logger.info("Task {} was cancelled", prepareTask.getName());
+                return;
+            }
+            try {
+                provider.dataStore(prepareTask.get());
+            } catch (InterruptedException | ExecutionException e) {
+                logger.error("Task {} failed execution", prepareTask.getName(), e);
+            }
+        });
+    }
+
+    @Override
+    public float getProgress() {
+        int total = roisTotal;
+        if (total == 0) {
+            return 0;
+        }
+        return (float) roisDone.get() / total;
+    }
+
+    /** @return the number of regions being extracted or waiting to be written */
+    int pending() {
+        return maxPending - pending.availablePermits();
     }
 
     @Override
@@ -77,63 +197,196 @@ public class PrepareDatastoreTask implements Callable<MLDataset> {
             case DICOM:
                 return new MLDicomDataset(request.getDimLevel(), request.getUids());
             case IMAGE:
-                // throw new UnsupportedOperationException("Datastore requests for image objects is not supported");
+                return prepareImageDataset();
+            default:
+                return null;
+        }
+    }
 
-                HashMap<String, String> extraFields = new HashMap<>();
+    private MLImageDataset prepareImageDataset() throws InterruptedException {
+        String path = folder != null ? folder.toString() : this.ensureAndCreatePath();
+        Map<String, List<BulkAnnotation>> entries = this.request.getDataset();
 
-                String path = this.ensureAndCreatePath();
+        Set<String> instances = resolver.resolve(entries.keySet());
+        int total = 0;
+        for (String uid : instances) {
+            total += countRegions(entries.get(uid));
+        }
+        roisTotal = total;
+        logger.info("Preparing dataset with {} regions from {} instances", total, instances.size());
 
-                extraFields.put("SOPInstanceUID", "SOPInstanceUID");
-                extraFields.put("SharedFunctionalGroupsSequence_PixelMeasuresSequence_PixelSpacing",
-                        "SharedFunctionalGroupsSequence_PixelMeasuresSequence_PixelSpacing");
-                extraFields.put("Rows", "Rows");
-                extraFields.put("Columns", "Columns");
-                extraFields.put("NumberOfFrames", "NumberOfFrames");
-                extraFields.put("TotalPixelMatrixColumns", "TotalPixelMatrixColumns");
-                extraFields.put("TotalPixelMatrixRows", "TotalPixelMatrixRows");
-                extraFields.put("ImageType", "ImageType");
+        Map<ImageEntry, MLlabel> dataset = new ConcurrentHashMap<>();
+        Set<String> classes = ConcurrentHashMap.newKeySet();
+        AtomicInteger fileCount = new AtomicInteger();
 
-                MLImageDataset mlDataset = new MLImageDataset();
-                HashMap<ImageEntry, MLlabel> dataset = new HashMap<>();
-                Set<String> classes = new HashSet<>();
+        TaskManager extractors = TaskManager.shared("datastore-extract", PARALLELISM);
+        TaskManager encoders = TaskManager.shared("datastore-encode", ENCODERS);
+        Map<String, Task<Void>> extractions = new LinkedHashMap<>();
+        Set<Task<Void>> encodings = ConcurrentHashMap.newKeySet();
+        try {
+            for (String uid : instances) {
+                Task<Void> extraction = new Task<>("datastore extraction of " + uid, () -> {
+                    extract(uid, entries.get(uid), roi -> {
+                        Task<Void> encoding = new Task<>("datastore encoding of " + uid, () -> {
+                            try {
+                                String roiFileName = roi.label.getName() + fileCount.getAndIncrement();
+                                File output = new File(path + File.separator + roiFileName + ".jpeg");
+                                writer.write(roi.image, output);
+                                classes.add(roi.label.getName());
+                                dataset.put(new ImageEntry(roi.dcm, output.toURI()), roi.label);
+                            } catch (IOException e) {
+                                logger.error("Could not write region of interest of {}", uid, e);
+                            }
+                            return null;
+                        });
+                        encodings.add(encoding);
+                        encoding.onCompletion(() -> {
+                            encodings.remove(encoding);
+                            roisDone.incrementAndGet();
+                            pending.release();
+                        });
+                        encoders.dispatch(encoding);
+                    });
+                    return null;
+                });
+                extractions.put(uid, extraction);
+                extractors.dispatch(extraction);
+            }
+            for (Map.Entry<String, Task<Void>> e : extractions.entrySet()) {
+                Task<Void> extraction = e.getValue();
+                try {
+                    extraction.get();
+                } catch (ExecutionException ex) {
+                    logger.error("Error preparing datastore task", ex.getCause());
+                } catch (CancellationException ex) {
+                    // rejected by a saturated pool, so none of its regions were extracted
+                    logger.warn("{} was rejected", extraction.getName());
+                    roisDone.addAndGet(countRegions(entries.get(e.getKey())));
+                }
+            }
+            // wait for the regions still being written
+            pending.acquire(maxPending);
+            pending.release(maxPending);
+        } finally {
+            // stops the extractions and encodings if this task was cancelled
+            for (Task<Void> extraction : extractions.values()) {
+                extraction.cancel(true);
+            }
+            for (Task<Void> encoding : encodings) {
+                encoding.cancel(true);
+            }
+        }
 
-                this.request.getDataset().entrySet().forEach((entry -> {
-                    try {
+        MLImageDataset mlDataset = new MLImageDataset();
+        mlDataset.setMultiClass(classes.size() > 2);
+        mlDataset.setDataset(new HashMap<>(dataset));
+        return mlDataset;
+    }
 
-                        // Query this image using the first available query provider
-                        Iterable<SearchResult> results = controller.query(controller.getQueryProvidersName(true).get(0),
-                                "SOPInstanceUID:" + entry.getKey(), extraFields).get();
-
-                        int c = 0;
-                        for (SearchResult image : results) {
-
-                            BasicDicomObject dcm = new BasicDicomObject();
-                            dcm.putString(Tag.TransferSyntaxUID, VR.CS, "1.2.840.10008.1.2.4.50");
-
-                            for (BulkAnnotation annotation : entry.getValue()) {
-                                for (List<Point2D> points : annotation.getAnnotations()) {
-                                    BufferedImage roi = roiExtractor.extractROI(image.get("SOPInstanceUID").toString(),
-                                            annotation.getAnnotationType(), points);
-                                    String roiFileName = annotation.getLabel().getName() + c++;
-                                    classes.add(annotation.getLabel().getName());
-                                    File output = new File(path + File.separator + roiFileName + ".jpeg");
-                                    ImageIO.write(roi, "jpeg", output);
-                                    dataset.put(new ImageEntry(dcm, output.toURI()), annotation.getLabel());
-                                }
-                            }
-                        }
+    private static int countRegions(List<BulkAnnotation> annotations) {
+        int count = 0;
+        for (BulkAnnotation annotation : annotations) {
+            count += annotation.getAnnotations().size();
+        }
+        return count;
+    }
 
-                    } catch (IOException | InterruptedException | ExecutionException e) {
-                        logger.error("Error preparing datastore task", e);
+    private static void writeJpeg(BufferedImage image, File output) throws IOException {
+        ImageIO.write(image, "jpeg", output);
+    }
+
+    /** Find which of the given instances are known to the first query provider, in batches of queries. */
+    private static Set<String> resolve(PluginController controller, Collection<String> uids)
+            throws InterruptedException {
+        String provider = controller.getQueryProvidersName(true).get(0);
+        HashMap<String, String> extraFields = new HashMap<>();
+        extraFields.put("SOPInstanceUID", "SOPInstanceUID");
+
+        List<String> all = new ArrayList<>(uids);
+        List<Task<Iterable<SearchResult>>> tasks = new ArrayList<>();
+        for (int i = 0; i < all.size(); i += RESOLVE_BATCH_SIZE) {
+            StringBuilder query = new StringBuilder();
+            for (String uid : all.subList(i, Math.min(i + RESOLVE_BATCH_SIZE, all.size()))) {
+                if (query.length() > 0) {
+                    query.append(" OR ");
+                }
+                query.append("SOPInstanceUID:\"").append(uid.replace("\\", "\\\\").replace("\"", "\\\""))
+                        .append('"');
+            }
+            tasks.add(controller.query(provider, query.toString(), extraFields));
+        }
+
+        Set<String> found = new LinkedHashSet<>();
+        try {
+            for (Task<Iterable<SearchResult>> task : tasks) {
+                try {
+                    for (SearchResult result : task.get()) {
+                        Object uid = result.get("SOPInstanceUID");
+                        if (uid != null && uids.contains(uid.toString())) {
+                            found.add(uid.toString());
+                        }
                     }
-                }));
+                } catch (ExecutionException e) {
+                    logger.error("Could not resolve instances of the dataset", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            for (Task<Iterable<SearchResult>> task : tasks) {
+                task.cancel(true);
+            }
+            throw e;
+        }
+        return found;
+    }
 
-                mlDataset.setMultiClass(classes.size() > 2);
-                mlDataset.setDataset(dataset);
+    /** A region of interest extracted from an instance */
+    private static final class ExtractedROI {
+        final BasicDicomObject dcm;
+        final MLlabel label;
+        final BufferedImage image;
 
-                return mlDataset;
-            default:
-                return null;
+        ExtractedROI(BasicDicomObject dcm, MLlabel label, BufferedImage image) {
+            this.dcm = dcm;
+            this.label = label;
+            this.image = image;
+        }
+    }
+
+    private interface ROIConsumer {
+        /** Take over a region, releasing its pending permit once it is written. */
+        void accept(ExtractedROI roi);
+    }
+
+    /** Extract all regions of interest of an instance, in the calling thread.
+     * A pending permit is acquired before each region is read,
+     * so that extraction never runs ahead of encoding by more than the bound. */
+    private void extract(String uid, List<BulkAnnotation> annotations, ROIConsumer consumer)
+            throws InterruptedException {
+        BasicDicomObject dcm = new BasicDicomObject();
+        dcm.putString(Tag.TransferSyntaxUID, VR.CS, "1.2.840.10008.1.2.4.50");
+
+        RegionReader regions = reader.open(uid);
+        for (BulkAnnotation annotation : annotations) {
+            for (List<Point2D> points : annotation.getAnnotations()) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException("Dataset preparation was cancelled");
+                }
+                pending.acquire();
+                BufferedImage roi = null;
+                if (regions != null) {
+                    try {
+                        roi = regions.read(annotation.getAnnotationType(), points);
+                    } catch (RuntimeException e) {
+                        logger.warn("Could not extract region of interest of {}", uid, e);
+                    }
+                }
+                if (roi == null) {
+                    pending.release();
+                    roisDone.incrementAndGet();
+                    continue;
+                }
+                consumer.accept(new ExtractedROI(dcm, annotation.getLabel(), roi));
+            }
         }
     }
 
@@ -18,87 +18,144 @@
  */
 package pt.ua.dicoogle.core.query;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import pt.ua.dicoogle.plugins.PluginController;
 
 import pt.ua.dicoogle.sdk.datastructs.SearchResult;
 import pt.ua.dicoogle.sdk.task.JointQueryTask;
 import pt.ua.dicoogle.sdk.task.Task;
 
+/**
+ * Joint query task which exports the results of a query as a CSV table.
+ *
+ * Rows are pulled from the query providers one at a time, as each provider completes,
+ * and written by a single thread with {@link #export()}, so that the full result set is never held in memory.
+ * Exports which exceed the maximum number of rows (<tt>dicoogle.export.maxRows</tt>) end with a trailer row
+ * telling so, instead of the remaining results.
+ */
 public class ExportToCSVQueryTask extends JointQueryTask {
 
     private static final Logger log = LoggerFactory.getLogger(ExportToCSVQueryTask.class);
 
+    /** Number of rows written between flushes to the output stream */
+    private static final int FLUSH_ROWS =
+            Math.max(1, Integer.parseInt(System.getProperty("dicoogle.export.flushRows", "500")));
+    /** Maximum number of rows in an export (0 for unlimited) */
+    private static final long MAX_ROWS =
+            Math.max(0, Long.parseLong(System.getProperty("dicoogle.export.maxRows", "0")));
     private static String[] searchChars = new String[] {"\n", ";"};
     private static String[] replaceChars = new String[] {"", ","};
 
     private List<String> tagsOrder;
-    // private OutputStream outputStream;
-    private PrintWriter writter;
-    private CountDownLatch latch;
+    private Writer writter;
+    private final long maxRows;
 
-    private int nLines = 0;
+    private long nLines = 0;
+    private boolean truncated = false;
 
     public ExportToCSVQueryTask(List<String> tagsOrder, OutputStream outputStream) {
+        this(tagsOrder, outputStream, MAX_ROWS);
+    }
+
+    ExportToCSVQueryTask(List<String> tagsOrder, OutputStream outputStream, long maxRows) {
         super();
         this.tagsOrder = tagsOrder;
-        this.latch = new CountDownLatch(1);
-        writter = new PrintWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
-
-        printFirstLine();
+        this.maxRows = maxRows;
+        writter = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
     }
 
     @Override
     public void onCompletion() {
-        log.debug("ExportToCSV task: completed");
-        writter.flush();
-        writter.close();
-        latch.countDown();
-
-        log.info("Exported CSV Table: ", tagsOrder.toString(), nLines);
+        log.debug("ExportToCSV task: all providers completed");
     }
 
     @Override
     public void onReceive(Task<Iterable<SearchResult>> e) {
-        log.debug("ExportToCSV task: Received results");
-        try {
-            Iterable<SearchResult> it = e.get();
-            for (SearchResult result : it) {
-                printLine(result);
+        log.debug("ExportToCSV task: Received results from {}", e.getName());
+    }
+
+    /**
+     * Write the CSV table to the output stream, as the results arrive from the query providers.
+     * The output stream is flushed regularly and closed at the end.
+     * This should be called once, after the query was issued.
+     *
+     * If writing fails (usually because the client disconnected),
+     * the providers which have not completed yet are cancelled.
+     *
+     * @return the number of rows written, not counting the header and trailer
+     * @throws IOException if writing to the output stream fails
+     */
+    public long export() throws IOException {
+        try (Stream<SearchResult> results =
+                stream(PluginController.QUERY_PROVIDER_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            printFirstLine();
+            Iterator<SearchResult> it = results.iterator();
+            while (it.hasNext()) {
+                if (maxRows > 0 && nLines >= maxRows) {
+                    log.warn("CSV export reached the maximum of {} rows, truncating", maxRows);
+                    truncated = true;
+                    printTruncatedLine();
+                    break;
+                }
+                printLine(it.next());
+                if (nLines % FLUSH_ROWS == 0) {
+                    writter.flush();
+                }
             }
-        } catch (InterruptedException | ExecutionException e1) {
-            e1.printStackTrace();
+            writter.flush();
         }
+        writter.close();
 
+        log.info("Exported CSV Table: {}, {} rows", tagsOrder, nLines);
+        return nLines;
     }
 
     /**
      * Print the first line of the .csv file
      * 
      */
-    private void printFirstLine() {
+    private void printFirstLine() throws IOException {
         StringBuilder builder = new StringBuilder();
 
-        log.debug("Started, Printing first line: ", tagsOrder);
+        log.debug("Started, Printing first line: {}", tagsOrder);
 
         for (String tag : tagsOrder) {
             builder.append("\"").append(tag).append("\";");
         }
 
-        this.writter.println(builder.toString());
+        this.writter.write(builder.append(System.lineSeparator()).toString());
     }
 
-    private void printLine(SearchResult result) {
+    /**
+     * Print the trailer line of a truncated export, so that clients can tell it apart from a complete one.
+     */
+    private void printTruncatedLine() throws IOException {
+        this.writter.write("\"# truncated: the export exceeded the maximum of " + maxRows + " rows\";"
+                + System.lineSeparator());
+    }
+
+    /**
+     * @return whether the export stopped at the maximum number of rows, leaving results out
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    private void printLine(SearchResult result) throws IOException {
         StringBuilder builder = new StringBuilder();
 
         HashMap<String, Object> extraFields = result.getExtraData();
@@ -116,17 +173,8 @@ public class ExportToCSVQueryTask extends JointQueryTask {
             }
         }
 
-        log.trace("Printing Line: ", builder.toString());
+        log.trace("Printing Line: {}", builder);
         nLines++;
-        this.writter.println(builder.toString());
-    }
-
-    public void await() {
-        try {
-            latch.await();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
+        this.writter.write(builder.append(System.lineSeparator()).toString());
     }
-
 }
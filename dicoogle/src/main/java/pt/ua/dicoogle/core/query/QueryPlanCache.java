@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.core.query;
+
+import java.util.function.Supplier;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import pt.ua.dicoogle.sdk.utils.TagsStruct;
+
+/**
+ * A shared cache of query plans, by query shape.
+ *
+ * The services which translate incoming queries into query expressions
+ * (C-FIND identifiers, free text searches) keep here whatever they derive from the shape of a query
+ * alone, such as which keys map to which DIM fields,
+ * so that repeated queries of the same shape (e.g. modality worklist polls) skip that work.
+ * Plans are discarded whenever the DIM fields change.
+ */
+public class QueryPlanCache {
+
+    /** Maximum number of query plans to keep */
+    private static final long MAXIMUM_SIZE = Long.getLong("dicoogle.query.planCacheSize", 1024);
+
+    private static QueryPlanCache instance = null;
+
+    private final Cache<String, Object> plans;
+
+    private QueryPlanCache() {
+        this.plans = CacheBuilder.newBuilder().maximumSize(MAXIMUM_SIZE).recordStats().build();
+    }
+
+    public static synchronized QueryPlanCache getInstance() {
+        if (instance == null) {
+            instance = new QueryPlanCache();
+        }
+        return instance;
+    }
+
+    /** Obtain the plan for a query shape, building it if it is not known.
+     *
+     * @param kind the kind of query, so that different services do not share plans
+     * @param shape a key which identifies the shape of the query
+     * @param planner the function building the plan
+     * @param <P> the type of plan
+     * @return the plan
+     */
+    @SuppressWarnings("unchecked")
+    public <P> P get(String kind, String shape, Supplier<P> planner) {
+        String key = kind + '@' + TagsStruct.getInstance().getVersion() + ':' + shape;
+        Object plan = plans.getIfPresent(key);
+        if (plan == null) {
+            // planning is cheap and deterministic, racing threads may just build the same plan
+            plan = planner.get();
+            plans.put(key, plan);
+        }
+        return (P) plan;
+    }
+
+    public void invalidateAll() {
+        plans.invalidateAll();
+    }
+
+    public long size() {
+        return plans.size();
+    }
+
+    public CacheStats stats() {
+        return plans.stats();
+    }
+}
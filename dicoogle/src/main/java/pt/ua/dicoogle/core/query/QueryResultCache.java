@@ -0,0 +1,426 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.core.query;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pt.ua.dicoogle.sdk.datastructs.PagedResults;
+import pt.ua.dicoogle.sdk.datastructs.QueryPage;
+import pt.ua.dicoogle.sdk.datastructs.SearchResult;
+import pt.ua.dicoogle.sdk.datastructs.dim.DimLevel;
+
+/**
+ * A shared cache of query results, per query provider.
+ *
+ * Clients such as PACS workstations and RIS tend to poll the same queries every few seconds.
+ * The results of each provider are kept here, by provider, normalised query, DIM level and query parameters,
+ * so that repeated queries do not reach the providers at all.
+ *
+ * Entries are discarded when they expire,
+ * when the cache goes over its memory budget,
+ * and whenever the index changes, as signalled by {@link #invalidateIndex(String)} for the query providers
+ * reading from the index of an indexer, or by {@link #invalidate()} for all of them,
+ * which moves the affected providers to a new index generation.
+ * Results obtained from a previous index generation are never stored.
+ * The cache keeps its own copies of the results, and hands out copies as well,
+ * so that callers may modify the results they obtain.
+ */
+public class QueryResultCache {
+    private static final Logger logger = LoggerFactory.getLogger(QueryResultCache.class);
+
+    /** Memory budget of the cache in bytes, 0 to disable the cache */
+    private static final long MAXIMUM_WEIGHT = Long.getLong("dicoogle.query.resultCacheBytes", 64L * 1024 * 1024);
+    /** Time to live of each entry in seconds */
+    private static final long TTL = Long.getLong("dicoogle.query.resultCacheTTL", 30);
+
+    /** Approximate memory footprint of a search result and of each of its fields, besides their strings */
+    private static final int RESULT_OVERHEAD = 96;
+    private static final int FIELD_OVERHEAD = 64;
+
+    private static QueryResultCache instance = null;
+
+    private final Cache<String, Entry> results;
+    private final long maximumWeight;
+    private final long maximumEntryWeight;
+    /** the generation of the whole cache, and the generations of each provider */
+    private final AtomicLong generation = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> providerGenerations = new ConcurrentHashMap<>();
+    /** the query providers reading from the index of each indexer, by indexer name in lower case */
+    private final ConcurrentMap<String, Set<String>> indexReaders = new ConcurrentHashMap<>();
+
+    /** The results of a query, along with their estimated memory footprint */
+    private static final class Entry {
+        final List<SearchResult> results;
+        final int weight;
+
+        Entry(List<SearchResult> results, int weight) {
+            this.results = results;
+            this.weight = weight;
+        }
+    }
+
+    QueryResultCache(long maximumWeight, long ttl, TimeUnit unit) {
+        this.maximumWeight = maximumWeight;
+        // an entry may not take more than a fraction of the budget,
+        // so that a single large result set does not flush everything else
+        this.maximumEntryWeight = Math.min(maximumWeight / 8, Integer.MAX_VALUE);
+        this.results = CacheBuilder.newBuilder().maximumWeight(Math.max(maximumWeight, 0))
+                .weigher((String k, Entry e) -> e.weight).expireAfterWrite(ttl, unit).recordStats().build();
+    }
+
+    public static synchronized QueryResultCache getInstance() {
+        if (instance == null) {
+            instance = new QueryResultCache(MAXIMUM_WEIGHT, TTL, TimeUnit.SECONDS);
+        }
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return maximumWeight > 0;
+    }
+
+    /** Build the cache key of a query. Queries which differ only in white space outside of quoted terms,
+     * or in the order of the clauses of a conjunction, share the same key.
+     *
+     * @param provider the name of the query provider
+     * @param query the query string
+     * @param level the DIM level of the query, or null for a query without level
+     * @param parameters the query parameters
+     * @return the key, or null if the query cannot be cached (e.g. because of an unknown parameter)
+     */
+    public String key(String provider, String query, DimLevel level, Object... parameters) {
+        if (!isEnabled() || provider == null || query == null) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder(provider.toLowerCase()).append('\n').append(level).append('\n')
+                .append(normalize(query));
+        if (parameters != null) {
+            for (Object parameter : parameters) {
+                key.append('\n');
+                if (parameter == null) {
+                    key.append("null");
+                } else if (parameter instanceof QueryPage) {
+                    key.append(parameter);
+                } else if (parameter instanceof Map) {
+                    // the requested fields, in a stable order
+                    TreeMap<String, String> fields = new TreeMap<>();
+                    for (Map.Entry<?, ?> e : ((Map<?, ?>) parameter).entrySet()) {
+                        fields.put(String.valueOf(e.getKey()), String.valueOf(e.getValue()));
+                    }
+                    key.append(fields);
+                } else {
+                    return null;
+                }
+            }
+        }
+        return key.toString();
+    }
+
+    /** Normalise a query string: runs of white space outside of quoted terms become a single space,
+     * and the clauses of a query which is a plain conjunction (<tt>a AND b AND c</tt>) are sorted.
+     */
+    static String normalize(String query) {
+        List<String> clauses = new ArrayList<>();
+        StringBuilder clause = new StringBuilder();
+        boolean quoted = false;
+        int depth = 0;
+        for (int i = 0; i < query.length(); i++) {
+            char ch = query.charAt(i);
+            if (ch == '\\' && i + 1 < query.length()) {
+                clause.append(ch).append(query.charAt(++i));
+                continue;
+            }
+            if (!quoted && Character.isWhitespace(ch)) {
+                if (depth == 0) {
+                    if (clause.length() > 0) {
+                        clauses.add(clause.toString());
+                        clause.setLength(0);
+                    }
+                } else if (clause.charAt(clause.length() - 1) != ' ') {
+                    clause.append(' ');
+                }
+                continue;
+            }
+            if (ch == '"') {
+                quoted = !quoted;
+            } else if (!quoted && (ch == '(' || ch == '[' || ch == '{')) {
+                depth++;
+            } else if (!quoted && (ch == ')' || ch == ']' || ch == '}')) {
+                depth = Math.max(0, depth - 1);
+            }
+            clause.append(ch);
+        }
+        if (clause.length() > 0) {
+            clauses.add(clause.toString());
+        }
+
+        if (isConjunction(clauses)) {
+            List<String> operands = new ArrayList<>(clauses.size() / 2 + 1);
+            for (int i = 0; i < clauses.size(); i += 2) {
+                operands.add(clauses.get(i));
+            }
+            Collections.sort(operands);
+            return String.join(" AND ", operands);
+        }
+        return String.join(" ", clauses);
+    }
+
+    /** @return whether the clauses are operands joined by AND, none of them being an operator */
+    private static boolean isConjunction(List<String> clauses) {
+        if (clauses.size() < 3 || clauses.size() % 2 == 0) {
+            return false;
+        }
+        for (int i = 0; i < clauses.size(); i++) {
+            String c = clauses.get(i);
+            boolean and = c.equals("AND") || c.equals("&&");
+            boolean operator = and || c.equals("OR") || c.equals("||") || c.equals("NOT") || c.equals("!");
+            if (i % 2 == 1 ? !and : operator) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Declare the query providers which read from the index of an indexer,
+     * so that their results are discarded when the indexer changes its index.
+     * Without a declaration, the query provider with the same name as the indexer is assumed.
+     *
+     * @param indexer the name of the indexer
+     * @param providers the names of the query providers
+     */
+    public void addIndexReaders(String indexer, Collection<String> providers) {
+        Set<String> readers = indexReaders.computeIfAbsent(indexer.toLowerCase(), k -> ConcurrentHashMap.newKeySet());
+        readers.add(indexer.toLowerCase());
+        for (String provider : providers) {
+            readers.add(provider.toLowerCase());
+        }
+    }
+
+    /** Obtain the cached results of a query.
+     *
+     * @param key the key of the query, as built by {@link #key}
+     * @return the results, or null if they are not in the cache
+     */
+    public List<SearchResult> get(String key) {
+        if (key == null) {
+            return null;
+        }
+        Entry entry = results.getIfPresent(key);
+        if (entry == null) {
+            return null;
+        }
+        List<SearchResult> copies = new ArrayList<>(entry.results.size());
+        for (SearchResult result : entry.results) {
+            copies.add(copy(result));
+        }
+        return copies;
+    }
+
+    private static SearchResult copy(SearchResult result) {
+        return new SearchResult(result.getURI(), result.getScore(), new HashMap<>(result.getExtraData()));
+    }
+
+    /** @return the number of times the cache was invalidated, as a whole or for some query provider */
+    public long getGeneration() {
+        long total = generation.get();
+        for (AtomicLong g : providerGenerations.values()) {
+            total += g.get();
+        }
+        return total;
+    }
+
+    /** @param provider the name of a query provider
+     * @return the current index generation of the provider, to be passed to {@link #record}
+     */
+    public long getGeneration(String provider) {
+        // both counters only grow, so their sum changes whenever either does
+        return generation.get() + providerGeneration(provider).get();
+    }
+
+    private AtomicLong providerGeneration(String provider) {
+        return providerGenerations.computeIfAbsent(provider.toLowerCase(), k -> new AtomicLong());
+    }
+
+    /** @return the provider of a key, as built by {@link #key} */
+    private static String providerOf(String key) {
+        return key.substring(0, key.indexOf('\n'));
+    }
+
+    /** Wrap the results of a query so that they are kept in the cache once fully traversed.
+     * The results are not kept if the index changed since the given generation,
+     * if the traversal fails, or if they take too much memory.
+     *
+     * @param key the key of the query, as built by {@link #key}
+     * @param generation the index generation obtained before issuing the query
+     * @param source the results produced by the query provider
+     * @return an iterable over the same results
+     */
+    public Iterable<SearchResult> record(String key, long generation, Iterable<SearchResult> source) {
+        if (key == null || source == null || source instanceof PagedResults) {
+            // paged results carry a continuation cursor, which must not be lost
+            return source;
+        }
+        return () -> new RecordingIterator(key, generation, source.iterator());
+    }
+
+    /** Discard all entries, to be called whenever the contents of the index change
+     * in a way which cannot be tied to a specific indexer.
+     */
+    public void invalidate() {
+        generation.incrementAndGet();
+        results.invalidateAll();
+    }
+
+    /** Discard the entries of the query providers reading from the index of an indexer,
+     * to be called whenever the indexer changes its index.
+     *
+     * @param indexer the name of the indexer
+     */
+    public void invalidateIndex(String indexer) {
+        Set<String> providers = indexReaders.get(indexer.toLowerCase());
+        if (providers == null) {
+            providers = Collections.singleton(indexer.toLowerCase());
+        }
+        invalidateProviders(providers);
+    }
+
+    /** Discard the entries of the query providers reading from the indexes of the given indexers.
+     *
+     * @param indexers the names of the indexers
+     */
+    public void invalidateIndexes(Collection<String> indexers) {
+        Set<String> providers = new HashSet<>();
+        for (String indexer : indexers) {
+            providers.addAll(indexReaders.getOrDefault(indexer.toLowerCase(),
+                    Collections.singleton(indexer.toLowerCase())));
+        }
+        invalidateProviders(providers);
+    }
+
+    private void invalidateProviders(Set<String> providers) {
+        for (String provider : providers) {
+            providerGeneration(provider).incrementAndGet();
+        }
+        results.asMap().keySet().removeIf(key -> providers.contains(providerOf(key)));
+    }
+
+    public long size() {
+        return results.size();
+    }
+
+    public long weight() {
+        long weight = 0;
+        for (Entry e : results.asMap().values()) {
+            weight += e.weight;
+        }
+        return weight;
+    }
+
+    public long maximumWeight() {
+        return maximumWeight;
+    }
+
+    public CacheStats stats() {
+        return results.stats();
+    }
+
+    static int weigh(SearchResult result) {
+        long weight = RESULT_OVERHEAD;
+        if (result.getURI() != null) {
+            weight += 2L * result.getURI().toString().length();
+        }
+        for (Map.Entry<String, Object> e : result.getExtraData().entrySet()) {
+            weight += FIELD_OVERHEAD + 2L * e.getKey().length();
+            if (e.getValue() != null) {
+                weight += 2L * String.valueOf(e.getValue()).length();
+            }
+        }
+        return (int) Math.min(weight, Integer.MAX_VALUE);
+    }
+
+    private final class RecordingIterator implements Iterator<SearchResult> {
+        private final String key;
+        private final long generation;
+        private final Iterator<SearchResult> source;
+        private List<SearchResult> recorded = new ArrayList<>();
+        private long weight = 0;
+
+        RecordingIterator(String key, long generation, Iterator<SearchResult> source) {
+            this.key = key;
+            this.generation = generation;
+            this.source = source;
+        }
+
+        @Override
+        public boolean hasNext() {
+            boolean hasNext = source.hasNext();
+            if (!hasNext && recorded != null) {
+                String provider = providerOf(key);
+                if (generation == getGeneration(provider)) {
+                    Entry entry = new Entry(Collections.unmodifiableList(recorded), (int) weight);
+                    results.put(key, entry);
+                    if (generation != getGeneration(provider)) {
+                        // invalidated while storing, which may have missed this entry
+                        results.asMap().remove(key, entry);
+                    } else {
+                        logger.debug("Cached {} results of query {}", recorded.size(), key);
+                    }
+                }
+                recorded = null;
+            }
+            return hasNext;
+        }
+
+        @Override
+        public SearchResult next() {
+            SearchResult result = source.next();
+            if (recorded != null) {
+                weight += weigh(result);
+                if (weight > maximumEntryWeight) {
+                    // too large to be worth caching, stop recording
+                    recorded = null;
+                } else {
+                    // keep a snapshot, unaffected by what the consumer does with the result
+                    recorded.add(copy(result));
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -23,12 +23,19 @@ import org.apache.commons.io.FileUtils;
 import org.restlet.resource.ServerResource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import pt.ua.dicoogle.core.InstanceLocationCache;
+import pt.ua.dicoogle.core.index.BulkIndexer;
+import pt.ua.dicoogle.core.index.IncrementalIndexer;
+import pt.ua.dicoogle.core.mlprovider.BulkInferenceTask;
 import pt.ua.dicoogle.core.mlprovider.DatastoreRequest;
 import pt.ua.dicoogle.core.mlprovider.PrepareDatastoreTask;
+import pt.ua.dicoogle.core.query.QueryResultCache;
 import pt.ua.dicoogle.core.settings.ServerSettingsManager;
 import pt.ua.dicoogle.plugins.webui.WebUIPlugin;
 import pt.ua.dicoogle.plugins.webui.WebUIPluginManager;
 import pt.ua.dicoogle.sdk.*;
+import pt.ua.dicoogle.sdk.datastructs.QueryExpression;
+import pt.ua.dicoogle.sdk.datastructs.QueryPage;
 import pt.ua.dicoogle.sdk.datastructs.Report;
 import pt.ua.dicoogle.sdk.datastructs.UnindexReport;
 import pt.ua.dicoogle.sdk.datastructs.SearchResult;
@@ -40,17 +47,25 @@ import pt.ua.dicoogle.sdk.task.Task;
 import pt.ua.dicoogle.server.ControlServices;
 import pt.ua.dicoogle.server.PluginRestletApplication;
 import pt.ua.dicoogle.server.web.DicoogleWeb;
+import pt.ua.dicoogle.server.web.dicom.WSITileReader;
+import pt.ua.dicoogle.server.web.utils.LocalImageCache;
+import pt.ua.dicoogle.server.web.utils.cache.WSITileCache;
 import pt.ua.dicoogle.taskManager.RunningIndexTasks;
 import pt.ua.dicoogle.taskManager.TaskManager;
+import pt.ua.dicoogle.taskManager.VirtualThreads;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.zip.ZipFile;
 
 /**
@@ -89,13 +104,26 @@ public class PluginController {
     private final DicooglePlatformProxy proxy;
     // Task manager for index processes
     private TaskManager taskManager =
-            new TaskManager(Integer.parseInt(System.getProperty("dicoogle.taskManager.nThreads", "4")));
+            new TaskManager("index", Integer.parseInt(System.getProperty("dicoogle.taskManager.nThreads", "4")));
     // Task Managers for Queries
-    private TaskManager taskManagerQueries =
-            new TaskManager(Integer.parseInt(System.getProperty("dicoogle.taskManager.nQueryThreads", "4")));
+    private TaskManager taskManagerQueries = VirtualThreads.isEnabled() ? TaskManager.newThreadPerTask("query")
+            : new TaskManager("query", Integer.parseInt(System.getProperty("dicoogle.taskManager.nQueryThreads", "4")));
+
+    /** Maximum number of concurrent query calls per provider (0 for unlimited),
+     * see {@link #runWithQueryPermit(String, Callable)}
+     */
+    private static final int MAX_CONCURRENT_QUERIES_PER_PROVIDER = Integer.parseInt(System
+            .getProperty("dicoogle.query.maxConcurrentPerProvider", VirtualThreads.isEnabled() ? "16" : "0"));
+    private final Map<String, Semaphore> queryPermits = new ConcurrentHashMap<>();
+
+    /** Maximum time to wait for each query provider when streaming the results of a query,
+     * in milliseconds (0 to wait indefinitely)
+     */
+    public static final long QUERY_PROVIDER_TIMEOUT =
+            Long.parseLong(System.getProperty("dicoogle.query.providerTimeout", "0"));
 
     private final TaskManager taskManagerML =
-            new TaskManager(Integer.parseInt(System.getProperty("dicoogle.taskManager.nMLThreads", "1")));
+            new TaskManager("ml", Integer.parseInt(System.getProperty("dicoogle.taskManager.nMLThreads", "1")));
 
     /** Whether to shut down Dicoogle when a plugin is marked as dead */
     private static boolean DEAD_PLUGIN_KILL_SWITCH =
@@ -217,9 +245,28 @@ public class PluginController {
 
             // and to the set itself
             this.preparer.setup(set);
+
+            // the query providers of a set are assumed to read from the indexes of its indexers
+            if (set.getIndexPlugins() != null && set.getQueryPlugins() != null) {
+                List<String> readers = new ArrayList<>();
+                for (QueryInterface query : set.getQueryPlugins()) {
+                    readers.add(query.getName());
+                }
+                for (IndexerInterface indexer : set.getIndexPlugins()) {
+                    QueryResultCache.getInstance().addIndexReaders(indexer.getName(), readers);
+                }
+            }
         }
     }
 
+    private static List<String> namesOf(Collection<? extends DicooglePlugin> plugins) {
+        List<String> names = new ArrayList<>(plugins.size());
+        for (DicooglePlugin plugin : plugins) {
+            names.add(plugin.getName());
+        }
+        return names;
+    }
+
     private void applySettings(PluginSet set, ConfigurationHolder holder) {
         // provide platform to each plugin interface
         final Collection<Collection<? extends DicooglePlugin>> all = Arrays.asList(set.getStoragePlugins(),
@@ -297,6 +344,9 @@ public class PluginController {
                 logger.error("Plugin set {} did not shutdown gracefully", plugin.getName(), ex);
             }
         }
+        taskManager.shutdown();
+        taskManagerQueries.shutdown();
+        taskManagerML.shutdown();
     }
 
     /**
@@ -508,6 +558,56 @@ public class PluginController {
                 .collect(Collectors.toList());
     }
 
+    /**
+     * Check whether all of the given query providers honour a {@link QueryPage} in the query parameters.
+     *
+     * @param querySources the names of the query providers
+     * @return true if every provider is active and supports pagination
+     */
+    public boolean supportsPagination(List<String> querySources) {
+        for (String p : querySources) {
+            QueryInterface queryEngine = getQueryProviderByName(p, true);
+            if (queryEngine == null || !queryEngine.supportsPagination()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Count the results of a query across the given providers, without retrieving them.
+     * This runs in the calling thread, one provider at a time.
+     *
+     * @param querySources the names of the query providers
+     * @param query the query text
+     * @param parameters the query parameters
+     * @return the total number of results, or -1 if any of the providers could not count them
+     */
+    public long count(List<String> querySources, final String query, final Object... parameters) {
+        long total = 0;
+        for (String p : querySources) {
+            QueryInterface queryEngine = getQueryProviderByName(p, true);
+            if (queryEngine == null) {
+                continue;
+            }
+            long n;
+            try {
+                n = runWithQueryPermit(p, () -> queryEngine.count(query, parameters));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return -1;
+            } catch (Exception ex) {
+                logger.warn("Query plugin {} failed to count results", p, ex);
+                return -1;
+            }
+            if (n < 0) {
+                return -1;
+            }
+            total += n;
+        }
+        return total;
+    }
+
     // TODO: CONVENIENCE METHOD
     public IndexerInterface getIndexerByName(String name, boolean onlyEnabled) {
         Collection<IndexerInterface> plugins = getIndexingPlugins(onlyEnabled);
@@ -565,6 +665,20 @@ public class PluginController {
         return query(holder, providers, query, level, parameters);
     }
 
+    /**
+     * Issue a structured query to all enabled query providers.
+     * Providers which do not handle query expressions receive the equivalent query string.
+     *
+     * @param holder the joint query task to hold the provider tasks
+     * @param query the query expression
+     * @param parameters the query parameters
+     * @return the holder, or null if the holder is null
+     */
+    public JointQueryTask queryAll(JointQueryTask holder, final QueryExpression query, final Object... parameters) {
+        List<String> providers = this.getQueryProvidersName(true);
+        return query(holder, providers, query, parameters);
+    }
+
     public Task<Iterable<SearchResult>> query(String querySource, final String query, final Object... parameters) {
         Task<Iterable<SearchResult>> t = getTaskForQuery(querySource, query, parameters);
         taskManagerQueries.dispatch(t);
@@ -599,6 +713,34 @@ public class PluginController {
         return holder;// returns the handler to obtain the computation results
     }
 
+    /**
+     * Issue a structured query to the given query providers.
+     * Providers which do not handle query expressions receive the equivalent query string.
+     *
+     * @param holder the joint query task to hold the provider tasks
+     * @param querySources the names of the query providers
+     * @param query the query expression
+     * @param parameters the query parameters
+     * @return the holder, or null if the holder is null
+     */
+    public JointQueryTask query(JointQueryTask holder, List<String> querySources, final QueryExpression query,
+            final Object... parameters) {
+        if (holder == null)
+            return null;
+
+        List<Task<Iterable<SearchResult>>> tasks = new ArrayList<>();
+        for (String p : querySources) {
+            Task<Iterable<SearchResult>> task = getTaskForQuery(p, query, parameters);
+            tasks.add(task);
+            holder.addTask(task);
+        }
+
+        for (Task<?> t : tasks)
+            taskManagerQueries.dispatch(t);
+
+        return holder;
+    }
+
     public JointQueryTask query(JointQueryTask holder, List<String> querySources, final String query,
             final DimLevel level, final Object... parameters) {
         if (holder == null)
@@ -621,6 +763,30 @@ public class PluginController {
 
     private Task<Iterable<SearchResult>> getTaskForQuery(final String querySource, final String query,
             final Object... parameters) {
+        String cacheKey = QueryResultCache.getInstance().key(querySource, query, null, parameters);
+        return newQueryTask(querySource, cacheKey, engine -> engine.query(query, parameters));
+    }
+
+    private Task<Iterable<SearchResult>> getTaskForQuery(final String querySource, final QueryExpression query,
+            final Object... parameters) {
+        String cacheKey = QueryResultCache.getInstance().key(querySource, query.toQueryString(), null, parameters);
+        return newQueryTask(querySource, cacheKey, engine -> engine.query(query, parameters));
+    }
+
+    /** A query to run on a query provider */
+    private interface QueryCall {
+        Iterable<SearchResult> run(QueryInterface engine) throws Exception;
+    }
+
+    /** Create a task running a query on a provider, answered from the query result cache when possible.
+     *
+     * @param querySource the name of the query provider
+     * @param cacheKey the key of the query in the result cache, or null if the query is not to be cached
+     * @param queryCall the query to run
+     * @return the task
+     */
+    private Task<Iterable<SearchResult>> newQueryTask(final String querySource, final String cacheKey,
+            final QueryCall queryCall) {
 
         final QueryInterface queryEngine = getQueryProviderByName(querySource, true);
         // returns a tasks that runs the query from the selected query engine
@@ -630,8 +796,15 @@ public class PluginController {
             public Iterable<SearchResult> call() throws Exception {
                 if (queryEngine == null)
                     return Collections.emptyList();
+                QueryResultCache resultCache = QueryResultCache.getInstance();
+                List<SearchResult> cached = resultCache.get(cacheKey);
+                if (cached != null) {
+                    return cached;
+                }
+                long generation = resultCache.getGeneration(querySource);
                 try {
-                    return queryEngine.query(query, parameters);
+                    Iterable<SearchResult> results = runWithQueryPermit(querySource, () -> queryCall.run(queryEngine));
+                    return resultCache.record(cacheKey, generation, results);
                 } catch (RuntimeException ex) {
                     logger.warn("Query plugin {} failed unexpectedly", querySource, ex);
                     return Collections.emptyList();
@@ -646,39 +819,44 @@ public class PluginController {
     private Task<Iterable<SearchResult>> getTaskForQueryDim(final String querySource, final String query,
             final DimLevel level, final Object... parameters) {
 
-        final QueryDimInterface queryEngine;
-        QueryInterface tmpQueryDimInterface = getQueryProviderByName(querySource, true);
-        if (tmpQueryDimInterface instanceof QueryDimInterface) {
-            queryEngine = (QueryDimInterface) tmpQueryDimInterface;
-        } else {
+        if (!(getQueryProviderByName(querySource, true) instanceof QueryDimInterface)) {
             logger.warn("Query plugin {} is not a DIM query provider", querySource);
-            queryEngine = null;
+            return newQueryTask(querySource, null, engine -> {
+                logger.warn("Could not query provider {} as a DIM source", querySource);
+                return Collections.emptyList();
+            });
         }
 
-        // returns a tasks that runs the query from the selected query engine
-        String uid = UUID.randomUUID().toString();
-        Task<Iterable<SearchResult>> queryTask = new Task<>(uid, querySource, new Callable<Iterable<SearchResult>>() {
-            @Override
-            public Iterable<SearchResult> call() {
-                if (queryEngine == null) {
-                    logger.warn("Could not query provider {} as a DIM source", querySource);
-
-                    return Collections.emptyList();
-                }
-                try {
-                    return queryEngine.query(query, level, parameters);
-                } catch (RuntimeException ex) {
-                    logger.warn("Query plugin {} failed unexpectedly", querySource, ex);
-                    return Collections.emptyList();
-                }
-
-            }
-        });
-        return queryTask;
+        String cacheKey = QueryResultCache.getInstance().key(querySource, query, level, parameters);
+        return newQueryTask(querySource, cacheKey,
+                engine -> ((QueryDimInterface) engine).query(query, level, parameters));
     }
 
 
 
+    /** Run a query on a provider, waiting for one of the provider's query permits if necessary,
+     * so that a single slow provider cannot take over all query threads.
+     *
+     * The permit is only held during the query call.
+     * Providers which return lazy iterables and do their work while results are consumed
+     * are not bounded by this limit, since there is no way to tell
+     * when a consumer abandons an iterator, and holding the permit until then
+     * could leave the provider without permits.
+     */
+    private <T> T runWithQueryPermit(String querySource, Callable<T> query) throws Exception {
+        if (MAX_CONCURRENT_QUERIES_PER_PROVIDER <= 0) {
+            return query.call();
+        }
+        Semaphore permits = queryPermits.computeIfAbsent(querySource.toLowerCase(),
+                k -> new Semaphore(MAX_CONCURRENT_QUERIES_PER_PROVIDER, true));
+        permits.acquire();
+        try {
+            return query.call();
+        } finally {
+            permits.release();
+        }
+    }
+
     /*
      * Given an URI (which may be a path to a dir or file, a web resource or whatever)
      * this method creates a task that
@@ -707,6 +885,7 @@ public class PluginController {
                 final String taskUniqueID = UUID.randomUUID().toString();
                 task.setName(String.format("[%s]index %s", indexer.getName(), path));
                 task.onCompletion(() -> {
+                    QueryResultCache.getInstance().invalidateIndex(indexer.getName());
                     logger.info("Task [{}] complete on {}", taskUniqueID, pathF);
                 });
 
@@ -744,6 +923,7 @@ public class PluginController {
 
                     @Override
                     public void run() {
+                        QueryResultCache.getInstance().invalidateIndex(indexer.getName());
                         logger.info("Task [{}] complete on {}", taskUniqueID, pathF);
                     }
                 });
@@ -761,6 +941,94 @@ public class PluginController {
         return rettasks;
     }
 
+    /**
+     * Creates and dispatches a bulk indexing task over the tree at the given location.
+     * Unlike {@link #index(URI)}, the tree is walked by several workers in parallel,
+     * and an interrupted bulk indexing task over the same tree resumes from where it stopped.
+     *
+     * @param path the root of the tree to index
+     * @param pluginNames the names of the indexers to use, or null to use all enabled indexers
+     * @return the dispatched task, or null if there is no storage or indexer for the request
+     */
+    public Task<Report> bulkIndex(URI path, Collection<String> pluginNames) {
+        logger.info("Starting bulk indexing procedure for {}", path);
+        StorageInterface store = getStorageForSchema(path);
+
+        if (store == null) {
+            logger.error("No storage plugin detected");
+            return null;
+        }
+
+        Collection<IndexerInterface> indexers = getEnabledIndexers(pluginNames);
+        if (indexers.isEmpty()) {
+            logger.warn("No indexers available for bulk indexing {}", path);
+            return null;
+        }
+
+        final String pathF = path.toString();
+        Task<Report> task = new Task<>(String.format("[bulk]index %s", path), new BulkIndexer(path, store, indexers));
+        task.onCompletion(() -> {
+            QueryResultCache.getInstance().invalidateIndexes(namesOf(indexers));
+            logger.info("Bulk indexing task complete on {}", pathF);
+        });
+        BulkIndexer.getTaskManager().dispatch(task);
+        RunningIndexTasks.getInstance().addTask(task);
+        return task;
+    }
+
+    /**
+     * Creates and dispatches an incremental indexing task over the tree at the given location.
+     * Only the files which were added or modified since the last incremental indexing task
+     * over the same tree are indexed, and the files which were removed since then are unindexed.
+     *
+     * @param path the root of the tree to index
+     * @param pluginNames the names of the indexers to use, or null to use all enabled indexers
+     * @return the dispatched task, or null if there is no storage or indexer for the request
+     */
+    public Task<Report> indexIncremental(URI path, Collection<String> pluginNames) {
+        logger.info("Starting incremental indexing procedure for {}", path);
+        StorageInterface store = getStorageForSchema(path);
+
+        if (store == null) {
+            logger.error("No storage plugin detected");
+            return null;
+        }
+
+        Collection<IndexerInterface> indexers = getEnabledIndexers(pluginNames);
+        if (indexers.isEmpty()) {
+            logger.warn("No indexers available for incremental indexing {}", path);
+            return null;
+        }
+
+        final String pathF = path.toString();
+        Task<Report> task = new Task<>(String.format("[incremental]index %s", path),
+                new IncrementalIndexer(path, store, indexers));
+        task.onCompletion(() -> {
+            QueryResultCache.getInstance().invalidateIndexes(namesOf(indexers));
+            logger.info("Incremental indexing task complete on {}", pathF);
+        });
+        taskManager.dispatch(task);
+        RunningIndexTasks.getInstance().addTask(task);
+        return task;
+    }
+
+    /** Resolve the enabled indexers with the given names, or all enabled indexers if null. */
+    private Collection<IndexerInterface> getEnabledIndexers(Collection<String> pluginNames) {
+        if (pluginNames == null) {
+            return getIndexingPlugins(true);
+        }
+        Collection<IndexerInterface> indexers = new ArrayList<>();
+        for (String name : pluginNames) {
+            IndexerInterface indexer = getIndexerByName(name, true);
+            if (indexer != null) {
+                indexers.add(indexer);
+            } else {
+                logger.warn("No such indexer {}, ignoring", name);
+            }
+        }
+        return indexers;
+    }
+
     public List<Task<Report>> index(Collection<URI> paths) {
         logger.info("Starting indexing procedure for {} items", paths.size());
 
@@ -787,6 +1055,7 @@ public class PluginController {
                 final String taskUniqueID = UUID.randomUUID().toString();
                 task.setName(String.format("[%s]index %d items", indexer.getName(), objectsToStore.size()));
                 task.onCompletion(() -> {
+                    QueryResultCache.getInstance().invalidateIndex(indexer.getName());
                     logger.info("Task [{}] complete on {} items", taskUniqueID, objectsToStore.size());
                 });
 
@@ -802,8 +1071,18 @@ public class PluginController {
         return rettasks;
     }
 
+    /** Forget what the caches know about the given files or directories, which are being unindexed or removed. */
+    private static void invalidateCaches(Collection<URI> paths) {
+        InstanceLocationCache.getInstance().invalidate(paths);
+        WSITileReader.getInstance().invalidate(paths);
+        WSITileCache.getInstance().invalidate(paths);
+        LocalImageCache.invalidateAll(paths);
+    }
+
     public void unindex(URI path) {
         logger.info("Starting unindexing procedure for {}", path.toString());
+        invalidateCaches(Collections.singleton(path));
+        IncrementalIndexer.invalidate(Collections.singleton(path));
         this.doUnindex(path, this.getIndexingPlugins(true));
     }
 
@@ -814,6 +1093,8 @@ public class PluginController {
      */
     public void unindex(URI path, Collection<String> indexProviders) {
         logger.info("Starting unindexing procedure for {}", path);
+        invalidateCaches(Collections.singleton(path));
+        IncrementalIndexer.invalidate(Collections.singleton(path));
 
         if (indexProviders != null) {
             List<IndexerInterface> indexers = new ArrayList<>();
@@ -839,6 +1120,8 @@ public class PluginController {
      *         and whether some of them were not found in the database
      */
     public List<Task<UnindexReport>> unindex(Collection<URI> paths, Consumer<Collection<URI>> progressCallback) {
+        invalidateCaches(paths);
+        IncrementalIndexer.invalidate(paths);
         List<Task<UnindexReport>> tasks = new ArrayList<>();
         for (IndexerInterface indexer : this.getIndexingPlugins(true))
             tasks.add(createUnindexTask(paths, progressCallback, indexer));
@@ -869,6 +1152,8 @@ public class PluginController {
         if (indexer == null) {
             indexer = this.getIndexingPlugins(true).iterator().next();
         }
+        invalidateCaches(paths);
+        IncrementalIndexer.invalidate(paths);
         return createUnindexTask(paths, progressCallback, indexer);
     }
 
@@ -881,6 +1166,7 @@ public class PluginController {
         for (IndexerInterface indexer : indexers) {
             indexer.unindex(path);
         }
+        QueryResultCache.getInstance().invalidateIndexes(namesOf(indexers));
         logger.info("Finished unindexing {}", path);
     }
 
@@ -894,7 +1180,9 @@ public class PluginController {
 
     public void doRemove(URI uri, StorageInterface si) {
         if (Objects.equals(uri.getScheme(), si.getScheme())) {
+            invalidateCaches(Collections.singleton(uri));
             si.remove(uri);
+            QueryResultCache.getInstance().invalidate();
         } else {
             logger.warn("Storage Plugin does not handle URI: {},{}", uri, si);
         }
@@ -922,6 +1210,27 @@ public class PluginController {
         return reports;
     }
 
+    /*
+     * Convenience method that calls index(Collection<URI>) and waits
+     * for the returned tasks on the executing thread
+     */
+    public List<Report> indexBlocking(Collection<URI> paths) {
+        logger.info("Starting indexing blocking procedure for {} items", paths.size());
+        List<Task<Report>> ret = index(paths);
+
+        ArrayList<Report> reports = new ArrayList<>(ret.size());
+        for (Task<Report> t : ret) {
+            try {
+                reports.add(t.get());
+            } catch (InterruptedException | ExecutionException e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
+        logger.info("Finished indexing {} items", paths.size());
+
+        return reports;
+    }
+
     /**
      * Generate and dispatch an unindex task.
      * @param items Collection of URIs to unindex
@@ -944,6 +1253,7 @@ public class PluginController {
             final String taskUniqueID = UUID.randomUUID().toString();
             task.setName(String.format("[%s]unindex", indexer.getName()));
             task.onCompletion(() -> {
+                QueryResultCache.getInstance().invalidateIndex(indexer.getName());
                 logger.info("Unindexing task [{}] complete", taskUniqueID);
             });
             taskManager.dispatch(task);
@@ -968,6 +1278,92 @@ public class PluginController {
         return result;
     }
 
+    /**
+     * Creates a bulk inference task over the DIM objects matching a query.
+     * The objects are sent to the provider in batches as the query results arrive,
+     * and the outcome of each object is handed over to the listener.
+     * It is up to the caller to run the task.
+     *
+     * @param provider the name of the machine learning provider
+     * @param modelID the model identifier
+     * @param level the DIM level of the objects to infer on
+     * @param query the query selecting the objects, e.g. the series of a study
+     * @param parameters the inference parameters
+     * @param listener the listener of the outcome of each object, identified by its UID
+     * @return the created task, or null if there is no such provider
+     */
+    public Task<BulkInferenceTask.Summary> bulkInfer(final String provider, final String modelID,
+            final DimLevel level, final String query, final Map<String, Object> parameters,
+            BulkInferenceTask.Listener<String> listener) {
+        MLProviderInterface providerInterface = this.getMachineLearningProviderByName(provider, true);
+        if (providerInterface == null)
+            return null;
+
+        final String uidField = getUIDField(level);
+        final HashMap<String, String> extraFields = new HashMap<>();
+        extraFields.put(uidField, uidField);
+        // the distinct UIDs at the requested level, produced as the query providers complete,
+        // closed by the bulk task once it ends so that slow or abandoned providers are cancelled
+        Iterable<String> uids = () -> {
+            JointQueryTask holder = new JointQueryTask() {
+                @Override
+                public void onCompletion() {}
+
+                @Override
+                public void onReceive(Task<Iterable<SearchResult>> e) {}
+            };
+            queryAll(holder, query, extraFields);
+            return new ClosingIterator<>(holder.stream(QUERY_PROVIDER_TIMEOUT, TimeUnit.MILLISECONDS)
+                    .map(r -> r.get(uidField)).filter(Objects::nonNull).map(Object::toString).distinct());
+        };
+
+        BulkInferenceTask<String> bulkTask = new BulkInferenceTask<>(providerInterface, uids, uid -> {
+            MLInferenceRequest request = new MLInferenceRequest(false, level, uid, modelID);
+            request.setParameters(parameters);
+            return request;
+        }, listener);
+        return new Task<>("MLBulkInferenceTask" + UUID.randomUUID(), bulkTask);
+    }
+
+    /** An iterator over a stream, which closes the stream when closed. */
+    private static final class ClosingIterator<T> implements Iterator<T>, AutoCloseable {
+        private final Stream<T> stream;
+        private final Iterator<T> it;
+
+        ClosingIterator(Stream<T> stream) {
+            this.stream = stream;
+            this.it = stream.iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return it.hasNext();
+        }
+
+        @Override
+        public T next() {
+            return it.next();
+        }
+
+        @Override
+        public void close() {
+            stream.close();
+        }
+    }
+
+    private static String getUIDField(DimLevel level) {
+        switch (level) {
+            case PATIENT:
+                return "PatientID";
+            case STUDY:
+                return "StudyInstanceUID";
+            case SERIES:
+                return "SeriesInstanceUID";
+            default:
+                return "SOPInstanceUID";
+        }
+    }
+
     /**
      * This method creates a {@link PrepareDatasetTask}.
      * The task is responsible for creating a directory where the processed dataset will be placed.
@@ -986,13 +1382,7 @@ public class PluginController {
             return prepareTask;
         }
 
-        prepareTask.onCompletion(() -> {
-            try {
-                mlInterface.dataStore(prepareTask.get());
-            } catch (InterruptedException | ExecutionException e) {
-                logger.error("Task {} failed execution", prepareTask.getName(), e);
-            }
-        });
+        PrepareDatastoreTask.storeWhenDone(prepareTask, mlInterface);
         logger.debug("Fired prepare dataset task with uuid {}", uuid);
         taskManagerML.dispatch(prepareTask);
         return prepareTask;
@@ -18,17 +18,28 @@
  */
 package pt.ua.dicoogle.server;
 
+import pt.ua.dicoogle.core.InstanceLocationCache;
 import pt.ua.dicoogle.core.settings.ServerSettingsManager;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.dcm4che2.data.BasicDicomObject;
 import org.dcm4che2.data.DicomObject;
 import org.dcm4che2.data.Tag;
 import org.dcm4che2.data.UID;
+import org.dcm4che2.io.DicomInputStream;
+import org.dcm4che2.io.StopTagInputHandler;
 import org.dcm4che2.net.Association;
 import org.dcm4che2.net.CommandUtils;
 import org.dcm4che2.net.Device;
@@ -49,6 +60,8 @@ import org.dcm4che2.net.service.VerificationService;
 import pt.ua.dicoogle.plugins.PluginController;
 import pt.ua.dicoogle.sdk.StorageInterface;
 import pt.ua.dicoogle.sdk.settings.server.ServerSettings;
+import pt.ua.dicoogle.server.web.utils.ImagePrerenderer;
+import pt.ua.dicoogle.taskManager.VirtualThreads;
 
 
 /**
@@ -62,10 +75,19 @@ public class DicomStorage extends StorageService {
 
     private static final Logger LOG = LoggerFactory.getLogger(DicomStorage.class);
 
+    /** Whether to stream received data sets to a storage plugin instead of reading them into memory */
+    private static final boolean STREAMING_STORE =
+            Boolean.valueOf(System.getProperty("dicoogle.cstore.streaming", "false"));
+
+    /** Number of leading bytes of a streamed data set kept to read its attributes */
+    private static final int HEADER_CAPTURE_SIZE = 64 * 1024;
+
     private SOPList list;
     private ServerSettings settings;
 
-    private Executor executor = new LoggingExecutor(new NewThreadExecutor("DicoogleStorage"), LOG);
+    private Executor executor = new LoggingExecutor(VirtualThreads.isEnabled()
+            ? VirtualThreads.newThreadPerTaskExecutor("DicoogleStorage") : new NewThreadExecutor("DicoogleStorage"),
+            LOG);
     private Device device = new Device("DicoogleStorage");
     private NetworkApplicationEntity nae = new NetworkApplicationEntity();
     private NetworkConnection nc = new NetworkConnection();
@@ -272,27 +294,225 @@ public class DicomStorage extends StorageService {
             String cuid = rq.getString(Tag.AffectedSOPClassUID);
             String iuid = rq.getString(Tag.AffectedSOPInstanceUID);
 
-            DicomObject d = dataStream.readDataset();
-
-            d.initFileMetaInformation(cuid, iuid, tsuid);
+            // apply backpressure if the indexer is falling behind
+            if (!IndexQueueWorker.getInstance().awaitCapacity()) {
+                throw new DicomServiceException(rq, Status.OutOfResources, "Index queue is full");
+            }
 
             Iterable<StorageInterface> plugins = PluginController.getInstance().getStoragePlugins(true);
-
-            for (StorageInterface storage : plugins) {
-                URI uri = storage.store(d);
-                if (uri != null) {
-                    // enqueue to index
-                    ImageElement element = new ImageElement(uri, as.getCallingAET(), seqNum.getAndIncrement());
-                    IndexQueueWorker.getInstance().addElement(element);
+            IndexQueueWorker worker = IndexQueueWorker.getInstance();
+
+            boolean stored = false;
+            if (STREAMING_STORE && hasStreamingStorage(plugins)) {
+                // spool the data set straight to the storages,
+                // without holding it in memory
+                DicomObject fmi = new BasicDicomObject();
+                fmi.initFileMetaInformation(cuid, iuid, tsuid);
+                HeaderCapture capture = new HeaderCapture(dataStream, HEADER_CAPTURE_SIZE);
+                for (URI uri : storeStreamed(plugins, fmi, capture)) {
+                    if (!stored) {
+                        InstanceLocationCache.getInstance().put(iuid, uri);
+                        if (ImagePrerenderer.isEnabled()) {
+                            DicomObject header = capture.header(tsuid);
+                            ImagePrerenderer.getInstance().submit(uri, as.getCallingAET(),
+                                    header.getString(Tag.Modality, ""), header.getString(Tag.SeriesInstanceUID),
+                                    header.getInt(Tag.InstanceNumber, -1));
+                        }
+                    }
+                    enqueue(worker, uri, as.getCallingAET());
+                    stored = true;
                 }
+            } else {
+                DicomObject d = dataStream.readDataset();
+
+                d.initFileMetaInformation(cuid, iuid, tsuid);
+
+                for (StorageInterface storage : plugins) {
+                    URI uri = storage.store(d);
+                    if (uri != null) {
+                        if (!stored) {
+                            InstanceLocationCache.getInstance().put(iuid, uri);
+                            if (ImagePrerenderer.isEnabled()) {
+                                ImagePrerenderer.getInstance().submit(uri, as.getCallingAET(),
+                                        d.getString(Tag.Modality, ""), d.getString(Tag.SeriesInstanceUID),
+                                        d.getInt(Tag.InstanceNumber, -1));
+                            }
+                        }
+                        enqueue(worker, uri, as.getCallingAET());
+                        stored = true;
+                    }
+                }
+            }
+            if (stored) {
+                // make sure the pending entries are on disk before acknowledging
+                worker.syncJournal();
             }
 
+        } catch (DicomServiceException e) {
+            throw e;
         } catch (Exception e) {
             LOG.error("DICOM storage service failure:", e);
             throw new DicomServiceException(rq, Status.ProcessingFailure, e.getMessage());
         }
     }
 
+    /** Push a stored object to the index queue. */
+    private void enqueue(IndexQueueWorker worker, URI uri, String callingAET) {
+        long journalId = worker.journal(uri, callingAET);
+        worker.addElement(new ImageElement(uri, callingAET, seqNum.getAndIncrement(), journalId));
+    }
+
+    /** Check whether any of the given storage plugins supports streaming stores.
+     *
+     * @param plugins the enabled storage plugins
+     * @return whether received data sets can be streamed to a storage
+     */
+    static boolean hasStreamingStorage(Iterable<StorageInterface> plugins) {
+        for (StorageInterface storage : plugins) {
+            if (storage.supportsStreamingStore()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Store a received data set in every enabled storage.
+     *
+     * With a single storage, which supports streaming stores, the data set is streamed to it directly.
+     * Otherwise, it is first spooled to a temporary file, which is then streamed to each storage
+     * supporting streaming stores. For the other storages, the data set is read back from the spool file
+     * once and stored as a whole.
+     *
+     * @param plugins the enabled storage plugins
+     * @param fmi the file meta information of the received object
+     * @param dataSet the data set stream
+     * @return the URIs of the stored objects, in storage order
+     * @throws IOException if the data set could not be read or spooled
+     */
+    static List<URI> storeStreamed(Iterable<StorageInterface> plugins, DicomObject fmi, InputStream dataSet)
+            throws IOException {
+        List<StorageInterface> targets = new ArrayList<>();
+        for (StorageInterface storage : plugins) {
+            targets.add(storage);
+        }
+
+        List<URI> uris = new ArrayList<>(targets.size());
+        if (targets.size() == 1 && targets.get(0).supportsStreamingStore()) {
+            URI uri = targets.get(0).storeStream(fmi, dataSet);
+            if (uri != null) {
+                uris.add(uri);
+            }
+            return uris;
+        }
+
+        Path spool = Files.createTempFile("dicoogle-cstore", ".dcm");
+        try {
+            Files.copy(dataSet, spool, StandardCopyOption.REPLACE_EXISTING);
+            DicomObject dataSetObject = null;
+            for (StorageInterface storage : targets) {
+                URI uri;
+                if (storage.supportsStreamingStore()) {
+                    try (InputStream in = new BufferedInputStream(Files.newInputStream(spool))) {
+                        uri = storage.storeStream(fmi, in);
+                    }
+                } else {
+                    if (dataSetObject == null) {
+                        dataSetObject = readSpool(spool, fmi);
+                    }
+                    uri = storage.store(dataSetObject);
+                }
+                if (uri != null) {
+                    uris.add(uri);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(spool);
+        }
+        return uris;
+    }
+
+    /** Read a spooled data set, with the given file meta information. */
+    private static DicomObject readSpool(Path spool, DicomObject fmi) throws IOException {
+        String tsuid = fmi.getString(Tag.TransferSyntaxUID);
+        try (DicomInputStream dis =
+                new DicomInputStream(new BufferedInputStream(Files.newInputStream(spool)), tsuid)) {
+            DicomObject dataSet = dis.readDicomObject();
+            dataSet.initFileMetaInformation(fmi.getString(Tag.MediaStorageSOPClassUID),
+                    fmi.getString(Tag.MediaStorageSOPInstanceUID), tsuid);
+            return dataSet;
+        }
+    }
+
+    /** A data set stream which keeps a copy of its first bytes,
+     * so that the attributes before the pixel data can be read once the data set was stored.
+     */
+    static final class HeaderCapture extends FilterInputStream {
+        private final byte[] prefix;
+        private int length = 0;
+
+        HeaderCapture(InputStream in, int size) {
+            super(in);
+            this.prefix = new byte[size];
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0 && length < prefix.length) {
+                prefix[length++] = (byte) b;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0 && length < prefix.length) {
+                int k = Math.min(n, prefix.length - length);
+                System.arraycopy(b, off, prefix, length, k);
+                length += k;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped bytes must be captured as well
+            byte[] buf = new byte[(int) Math.min(n, 8192)];
+            long skipped = 0;
+            while (skipped < n) {
+                int k = read(buf, 0, (int) Math.min(buf.length, n - skipped));
+                if (k < 0) {
+                    break;
+                }
+                skipped += k;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /** Read the captured attributes of the data set, as far as they were captured.
+         *
+         * @param tsuid the transfer syntax of the data set
+         * @return the attributes before the pixel data, possibly incomplete
+         */
+        DicomObject header(String tsuid) {
+            DicomObject header = new BasicDicomObject();
+            try (DicomInputStream dis = new DicomInputStream(new ByteArrayInputStream(prefix, 0, length), tsuid)) {
+                dis.setHandler(new StopTagInputHandler(Tag.PixelData));
+                dis.readDicomObject(header, -1);
+            } catch (IOException ex) {
+                // the capture ended within the header, keep what was read
+                LOG.debug("Header of streamed data set was cut short", ex);
+            }
+            return header;
+        }
+    }
+
     /**
      * A C-STORE entry.
      * For Each C-STORE RQ, an ImageElement is created
@@ -308,13 +528,15 @@ public class DicomStorage extends StorageService {
         private final URI uri;
         private final String callingAET;
         private final long seqNumber;
+        private final long journalId;
 
-        ImageElement(URI uri, String callingAET, long seqNumber) {
+        ImageElement(URI uri, String callingAET, long seqNumber, long journalId) {
             Objects.requireNonNull(uri);
             Objects.requireNonNull(callingAET);
             this.uri = uri;
             this.callingAET = callingAET;
             this.seqNumber = seqNumber;
+            this.journalId = journalId;
         }
 
         public URI getUri() {
@@ -329,6 +551,11 @@ public class DicomStorage extends StorageService {
             return seqNumber;
         }
 
+        /** @return the ID of this element in the index queue journal, or -1 if not journaled */
+        public long getJournalId() {
+            return journalId;
+        }
+
         @Override
         public int compareTo(ImageElement other) {
             return compareElementsImpl(DicomStorage.this.priorityAETs, this.callingAET, this.seqNumber,
@@ -368,8 +595,23 @@ public class DicomStorage extends StorageService {
      * @throws java.io.IOException
      */
     public void start() throws IOException {
+        if (STREAMING_STORE && !hasStreamingStorage(PluginController.getInstance().getStoragePlugins(true))) {
+            LOG.warn("dicoogle.cstore.streaming is enabled, but no storage plugin supports streaming stores; "
+                    + "received objects will be read into memory");
+        }
         device.startListening(executor);
-        IndexQueueWorker.getInstance().start();
+        IndexQueueWorker worker = IndexQueueWorker.getInstance();
+        worker.start();
+
+        // re-enqueue objects which were stored but not indexed in a previous run
+        List<IndexQueueJournal.Entry> recovered = worker.takeRecoveredEntries();
+        if (!recovered.isEmpty()) {
+            LOG.info("Re-enqueuing {} stored objects pending indexing", recovered.size());
+            for (IndexQueueJournal.Entry entry : recovered) {
+                worker.addElement(new ImageElement(entry.getUri(), entry.getCallingAET(), seqNum.getAndIncrement(),
+                        entry.getId()));
+            }
+        }
     }
 
     /**
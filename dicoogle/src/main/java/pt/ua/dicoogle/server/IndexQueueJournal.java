@@ -0,0 +1,320 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Write-ahead journal of the DICOM objects pending indexing.
+ *
+ * Each stored object is appended to the journal before it is acknowledged,
+ * and marked as complete once all indexing tasks on it have finished.
+ * Entries still pending when Dicoogle starts are replayed into the index queue,
+ * so that objects stored right before a crash still become searchable.
+ *
+ * Appends are only buffered in memory: {@link #sync()} flushes them to disk,
+ * and concurrent callers share the same flush (group commit).
+ * The journal is rewritten with only the pending entries
+ * once enough entries have been completed.
+ *
+ * @see IndexQueueWorker
+ */
+public final class IndexQueueJournal implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IndexQueueJournal.class);
+
+    private static final char ADD = 'A';
+    private static final char DONE = 'D';
+
+    /** An entry pending indexing. */
+    public static final class Entry {
+        private final long id;
+        private final URI uri;
+        private final String callingAET;
+
+        Entry(long id, URI uri, String callingAET) {
+            this.id = id;
+            this.uri = uri;
+            this.callingAET = callingAET;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public URI getUri() {
+            return uri;
+        }
+
+        public String getCallingAET() {
+            return callingAET;
+        }
+    }
+
+    private final Path path;
+    private final int compactThreshold;
+
+    /** pending entries, by ID */
+    private final Map<Long, Entry> live = new ConcurrentSkipListMap<>();
+    /** entries replayed from a previous run */
+    private final List<Entry> recovered;
+
+    // guarded by writeLock
+    private final Object writeLock = new Object();
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(4096);
+    private long nextId;
+    private long appended = 0;
+    private int completedSinceCompaction = 0;
+
+    // guarded by syncLock
+    private final Object syncLock = new Object();
+    private FileChannel channel;
+    private long synced = 0;
+
+    private IndexQueueJournal(Path path, int compactThreshold) throws IOException {
+        this.path = path;
+        this.compactThreshold = Math.max(1, compactThreshold);
+        this.nextId = replay();
+        this.recovered = new ArrayList<>(live.values());
+        if (!recovered.isEmpty()) {
+            LOG.info("Recovered {} entries pending indexing from journal {}", recovered.size(), path);
+        }
+        compact();
+    }
+
+    /** Open the journal at the given path, replaying any entries which were left pending.
+     *
+     * @param path the path to the journal file, created if it does not exist
+     * @param compactThreshold the number of completed entries after which the journal is compacted,
+     *        at least 1
+     * @return the journal
+     * @throws IOException if the journal could not be read or created
+     */
+    public static IndexQueueJournal open(Path path, int compactThreshold) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        return new IndexQueueJournal(path, compactThreshold);
+    }
+
+    /** Read the journal file into the live entry map.
+     * @return the next entry ID
+     */
+    private long replay() throws IOException {
+        long maxId = -1;
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t");
+                try {
+                    if (parts.length == 4 && parts[0].length() == 1 && parts[0].charAt(0) == ADD) {
+                        long id = Long.parseLong(parts[1]);
+                        live.put(id, new Entry(id, new URI(parts[3]), parts[2]));
+                        maxId = Math.max(maxId, id);
+                    } else if (parts.length == 2 && parts[0].length() == 1 && parts[0].charAt(0) == DONE) {
+                        long id = Long.parseLong(parts[1]);
+                        live.remove(id);
+                        maxId = Math.max(maxId, id);
+                    } else {
+                        // most likely a partially written record
+                        LOG.warn("Ignoring malformed index journal record: {}", line);
+                    }
+                } catch (Exception ex) {
+                    LOG.warn("Ignoring malformed index journal record: {}", line);
+                }
+            }
+        }
+        return maxId + 1;
+    }
+
+    /** Obtain the entries which were pending when the journal was opened.
+     * This list is only provided once.
+     *
+     * @return the recovered entries in their original order
+     */
+    public synchronized List<Entry> takeRecovered() {
+        List<Entry> out = new ArrayList<>(recovered);
+        recovered.clear();
+        return out;
+    }
+
+    /** Append a new pending entry.
+     * The entry is only guaranteed to be on disk after a subsequent call to {@link #sync()}.
+     *
+     * @param uri the URI of the stored object
+     * @param callingAET the calling AE title of the association which sent the object
+     * @return the ID of the new entry
+     */
+    public long append(URI uri, String callingAET) {
+        synchronized (writeLock) {
+            long id = nextId++;
+            live.put(id, new Entry(id, uri, callingAET));
+            writeRecord(ADD + "\t" + id + "\t" + callingAET + "\t" + uri.toString() + "\n");
+            return id;
+        }
+    }
+
+    /** Mark the given entries as complete.
+     *
+     * @param ids the IDs of the entries
+     */
+    public void complete(Collection<Long> ids) {
+        boolean shouldCompact;
+        synchronized (writeLock) {
+            for (Long id : ids) {
+                if (live.remove(id) != null) {
+                    writeRecord(DONE + "\t" + id + "\n");
+                    completedSinceCompaction++;
+                }
+            }
+            shouldCompact = completedSinceCompaction >= compactThreshold;
+        }
+        // completion records do not need to be flushed right away,
+        // at worst the entries are indexed again after a crash
+        if (shouldCompact) {
+            try {
+                compact();
+            } catch (IOException ex) {
+                LOG.warn("Failed to compact index journal", ex);
+            }
+        }
+    }
+
+    private void writeRecord(String record) {
+        byte[] bytes = record.getBytes(StandardCharsets.UTF_8);
+        buffer.write(bytes, 0, bytes.length);
+        appended++;
+    }
+
+    /** Ensure that all entries appended so far are written to disk.
+     *
+     * @throws IOException if the journal could not be written
+     */
+    public void sync() throws IOException {
+        long target;
+        synchronized (writeLock) {
+            target = appended;
+        }
+        synchronized (syncLock) {
+            if (synced >= target) {
+                // another thread already flushed our records
+                return;
+            }
+            byte[] bytes;
+            long upTo;
+            synchronized (writeLock) {
+                bytes = buffer.toByteArray();
+                buffer.reset();
+                upTo = appended;
+            }
+            ByteBuffer bb = ByteBuffer.wrap(bytes);
+            while (bb.hasRemaining()) {
+                channel.write(bb);
+            }
+            channel.force(false);
+            synced = upTo;
+        }
+    }
+
+    /** Rewrite the journal with only the pending entries.
+     *
+     * Appending is only blocked while the pending entries are copied,
+     * not while the new journal is written to disk.
+     *
+     * @throws IOException if the journal could not be rewritten
+     */
+    public void compact() throws IOException {
+        synchronized (syncLock) {
+            List<Entry> snapshot;
+            long snapshotAppended;
+            synchronized (writeLock) {
+                snapshot = new ArrayList<>(live.values());
+                // everything buffered so far is represented in the snapshot,
+                // records appended from now on stay in the buffer for the next sync
+                buffer.reset();
+                snapshotAppended = appended;
+                completedSinceCompaction = 0;
+            }
+
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                StringBuilder sb = new StringBuilder();
+                for (Entry e : snapshot) {
+                    sb.append(ADD).append('\t').append(e.getId()).append('\t').append(e.getCallingAET())
+                            .append('\t').append(e.getUri()).append('\n');
+                }
+                ByteBuffer bb = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+                while (bb.hasRemaining()) {
+                    out.write(bb);
+                }
+                out.force(false);
+            }
+
+            if (channel != null) {
+                channel.close();
+            }
+            try {
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            synced = snapshotAppended;
+        }
+        LOG.debug("Compacted index journal {} ({} pending entries)", path, live.size());
+    }
+
+    /** @return the number of entries pending indexing */
+    public int getPendingCount() {
+        return live.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        sync();
+        synchronized (syncLock) {
+            channel.close();
+        }
+    }
+}
@@ -18,12 +18,24 @@
  */
 package pt.ua.dicoogle.server;
 
+import java.io.IOException;
 import java.net.URI;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import pt.ua.dicoogle.plugins.PluginController;
+import pt.ua.dicoogle.sdk.datastructs.Report;
+import pt.ua.dicoogle.sdk.task.Task;
 import pt.ua.dicoogle.server.DicomStorage.ImageElement;
 
 /** Index worker actor.
@@ -31,11 +43,42 @@ import pt.ua.dicoogle.server.DicomStorage.ImageElement;
  * This singleton actor module is responsible for
  * dispatching indexing tasks for the DICOM files received via C-STORE.
  * 
+ * Queued elements are taken in priority order by a pool of workers,
+ * which coalesce them into batches (up to a maximum size or a maximum linger time)
+ * before handing them over to the indexers.
+ * The queue is bounded: once the capacity is reached by the elements waiting in the queue
+ * and those whose indexing tasks are still running,
+ * the storage service waits for room before receiving more instances.
+ * 
+ * Optionally, pending elements are also recorded in an {@link IndexQueueJournal},
+ * so that they can be recovered if Dicoogle stops before they are indexed.
+ * 
  * @see DicomStorage
  */
 public final class IndexQueueWorker {
 
     private static final boolean ASYNC_INDEX = Boolean.valueOf(System.getProperty("dicoogle.index.async", "true"));
+    /** Number of worker threads draining the queue */
+    private static final int N_WORKERS =
+            Math.max(1, Integer.parseInt(System.getProperty("dicoogle.index.queue.workers", "1")));
+    /** Maximum number of elements per indexing batch */
+    private static final int BATCH_SIZE =
+            Math.max(1, Integer.parseInt(System.getProperty("dicoogle.index.queue.batchSize", "64")));
+    /** Maximum time (in milliseconds) to wait for a batch to fill up */
+    private static final long BATCH_LINGER_MS =
+            Math.max(0, Long.parseLong(System.getProperty("dicoogle.index.queue.lingerMs", "250")));
+    /** Maximum number of pending elements, queued or being indexed (0 for unbounded) */
+    private static final int CAPACITY =
+            Math.max(0, Integer.parseInt(System.getProperty("dicoogle.index.queue.capacity", "20000")));
+    /** Maximum time (in milliseconds) to wait for room in the queue */
+    private static final long OFFER_TIMEOUT_MS =
+            Math.max(0, Long.parseLong(System.getProperty("dicoogle.index.queue.offerTimeoutMs", "60000")));
+
+    /** Path to the index queue journal (journaling is disabled if empty) */
+    private static final String JOURNAL_PATH = System.getProperty("dicoogle.index.journal", "");
+    /** Number of completed journal entries before the journal is compacted */
+    private static final int JOURNAL_COMPACT_THRESHOLD =
+            Integer.parseInt(System.getProperty("dicoogle.index.journal.compactThreshold", "10000"));
 
     private static final org.slf4j.Logger LOG = org.slf4j.LoggerFactory.getLogger(IndexQueueWorker.class);
 
@@ -48,20 +91,66 @@ public final class IndexQueueWorker {
         return instance;
     }
 
-    private IndexQueueWorker() {}
+    private IndexQueueWorker() {
+        this(CAPACITY, OFFER_TIMEOUT_MS);
+    }
+
+    IndexQueueWorker(int capacity, long offerTimeoutMs) {
+        this.capacity = capacity;
+        this.offerTimeoutMs = offerTimeoutMs;
+    }
 
+    private final int capacity;
+    private final long offerTimeoutMs;
     private final BlockingQueue<ImageElement> queue = new PriorityBlockingQueue<>();
-    private Thread thread;
+    /** number of elements handed over to the indexers whose tasks did not finish yet */
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final ReentrantLock capacityLock = new ReentrantLock();
+    private final Condition notFull = capacityLock.newCondition();
+    private final Thread[] threads = new Thread[N_WORKERS];
+    private volatile IndexQueueJournal journal;
+    private boolean journalOpened = false;
 
     public synchronized void start() {
-        if (thread == null || !thread.isAlive()) {
-            thread = new Thread(WORKER_RUN, "indexer-queue-worker");
-            thread.start();
-            thread.setUncaughtExceptionHandler((Thread t, Throwable e) -> {
-                LOG.error("Fatal error in indexer queue worker", e);
-                ControlServices.getInstance().stopStorage();
-                LOG.warn("DICOM storage service was taken down to prevent further errors");
-            });
+        if (!journalOpened) {
+            journalOpened = true;
+            if (!JOURNAL_PATH.isEmpty()) {
+                try {
+                    journal = IndexQueueJournal.open(Paths.get(JOURNAL_PATH), JOURNAL_COMPACT_THRESHOLD);
+                } catch (IOException ex) {
+                    LOG.error("Could not open index queue journal, continuing without it", ex);
+                }
+            }
+        }
+        for (int i = 0; i < threads.length; i++) {
+            Thread thread = threads[i];
+            if (thread == null || !thread.isAlive()) {
+                thread = new Thread(WORKER_RUN, "indexer-queue-worker-" + i);
+                thread.setUncaughtExceptionHandler((Thread t, Throwable e) -> {
+                    LOG.error("Fatal error in indexer queue worker", e);
+                    ControlServices.getInstance().stopStorage();
+                    LOG.warn("DICOM storage service was taken down to prevent further errors");
+                });
+                thread.start();
+                threads[i] = thread;
+            }
+        }
+    }
+
+    /** Flush and close the journal, if journaling is enabled.
+     * Elements still pending are recovered on the next start.
+     */
+    public synchronized void shutdown() {
+        IndexQueueJournal j = this.journal;
+        if (j == null) {
+            return;
+        }
+        this.journal = null;
+        try {
+            j.close();
+            LOG.debug("Index queue journal closed with {} pending entries", j.getPendingCount());
+        } catch (IOException ex) {
+            LOG.warn("Failed to close index queue journal", ex);
         }
     }
 
@@ -70,17 +159,253 @@ public final class IndexQueueWorker {
         queue.add(element);
     }
 
+    /** Record a stored object in the journal, if journaling is enabled.
+     *
+     * @param uri the URI of the stored object
+     * @param callingAET the calling AE title
+     * @return the ID of the journal entry, or -1 if journaling is disabled
+     */
+    public long journal(URI uri, String callingAET) {
+        IndexQueueJournal j = this.journal;
+        if (j == null) {
+            return -1;
+        }
+        return j.append(uri, callingAET);
+    }
+
+    /** Ensure that all journal entries recorded so far are on disk.
+     * Does nothing if journaling is disabled.
+     *
+     * @throws IOException if the journal could not be written
+     */
+    public void syncJournal() throws IOException {
+        IndexQueueJournal j = this.journal;
+        if (j != null) {
+            j.sync();
+        }
+    }
+
+    /** Obtain the journal entries which were left pending by a previous run.
+     * These are only provided once.
+     *
+     * @return the pending entries, empty if journaling is disabled
+     */
+    public synchronized List<IndexQueueJournal.Entry> takeRecoveredEntries() {
+        if (journal == null) {
+            return Collections.emptyList();
+        }
+        return journal.takeRecovered();
+    }
+
+    /** Wait until the queue has room for more elements,
+     * counting the elements which are still being indexed.
+     *
+     * This is a soft bound: callers which see available room
+     * may still push a few elements past the configured capacity.
+     *
+     * @return true if there is room in the queue,
+     * false if the queue remained full for longer than the configured timeout
+     * @throws InterruptedException if the calling thread was interrupted while waiting
+     */
+    public boolean awaitCapacity() throws InterruptedException {
+        if (capacity == 0 || getPendingCount() < capacity) {
+            return true;
+        }
+        long nanos = TimeUnit.MILLISECONDS.toNanos(offerTimeoutMs);
+        capacityLock.lock();
+        try {
+            while (getPendingCount() >= capacity) {
+                if (nanos <= 0) {
+                    LOG.warn("Index queue is full ({} queued and {} indexing elements)", queue.size(),
+                            inFlight.get());
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            capacityLock.unlock();
+        }
+    }
+
+    /** @return the number of elements waiting to be indexed */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /** @return the number of elements waiting in the queue or being indexed */
+    public int getPendingCount() {
+        return queue.size() + inFlight.get();
+    }
+
+    private void signalNotFull() {
+        capacityLock.lock();
+        try {
+            notFull.signalAll();
+        } finally {
+            capacityLock.unlock();
+        }
+    }
+
+    /** Take a batch of elements from the queue, in priority order.
+     *
+     * Blocks until at least one element is available,
+     * then keeps collecting elements until the batch is full
+     * or the linger time has elapsed.
+     *
+     * @param queue the queue to take elements from
+     * @param maxSize the maximum number of elements in the batch
+     * @param lingerMs the maximum time to wait for more elements after the first one, in milliseconds
+     * @return a non-empty list of elements
+     * @throws InterruptedException if the thread was interrupted while waiting for the first element
+     */
+    static <T> List<T> takeBatch(BlockingQueue<T> queue, int maxSize, long lingerMs) throws InterruptedException {
+        List<T> batch = new ArrayList<>(Math.min(maxSize, 64));
+        batch.add(queue.take());
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMs);
+        while (batch.size() < maxSize) {
+            // grab whatever is readily available first
+            queue.drainTo(batch, maxSize - batch.size());
+            if (batch.size() >= maxSize) {
+                break;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            T e;
+            try {
+                e = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException ex) {
+                // do not lose what was already taken
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (e == null) {
+                break;
+            }
+            batch.add(e);
+        }
+        return batch;
+    }
+
+    private void dispatch(List<ImageElement> batch) {
+        PluginController pc = PluginController.getInstance();
+        List<Task<Report>> tasks;
+        if (batch.size() == 1) {
+            tasks = pc.index(batch.get(0).getUri());
+        } else {
+            List<URI> exams = new ArrayList<>(batch.size());
+            for (ImageElement element : batch) {
+                exams.add(element.getUri());
+            }
+            LOG.debug("Dispatching batch of {} elements to index", exams.size());
+            tasks = pc.index(exams);
+        }
+        track(batch.size(), tasks);
+        if (!ASYNC_INDEX) {
+            awaitAll(tasks);
+        }
+        completeOnFinish(batch, tasks);
+    }
+
+    /** Count the given number of elements against the capacity of the queue
+     * until all of the given indexing tasks finish.
+     */
+    void track(int elements, List<Task<Report>> tasks) {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        inFlight.addAndGet(elements);
+        AtomicInteger remaining = new AtomicInteger(tasks.size());
+        for (Task<Report> task : tasks) {
+            task.onCompletion(() -> {
+                if (remaining.decrementAndGet() == 0) {
+                    inFlight.addAndGet(-elements);
+                    signalNotFull();
+                }
+            });
+        }
+    }
+
+    /** Wait for the given tasks on the calling thread, as in {@link PluginController#indexBlocking(URI)}. */
+    private static void awaitAll(List<Task<Report>> tasks) {
+        for (Task<Report> t : tasks) {
+            try {
+                t.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException ex) {
+                LOG.error(ex.getMessage(), ex);
+            }
+        }
+    }
+
+    /** @return whether the task completed without failing or being cancelled */
+    private static boolean succeeded(Task<Report> task) {
+        if (task.isCancelled()) {
+            return false;
+        }
+        try {
+            task.get();
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException ex) {
+            return false;
+        }
+    }
+
+    /** Mark the journal entries of the batch as complete once all of the given tasks finish.
+     * If any of the tasks fails, the entries are kept pending, so that they are indexed again on restart.
+     */
+    private void completeOnFinish(List<ImageElement> batch, List<Task<Report>> tasks) {
+        IndexQueueJournal j = this.journal;
+        if (j == null) {
+            return;
+        }
+        List<Long> ids = new ArrayList<>(batch.size());
+        for (ImageElement element : batch) {
+            if (element.getJournalId() >= 0) {
+                ids.add(element.getJournalId());
+            }
+        }
+        if (ids.isEmpty()) {
+            return;
+        }
+        if (tasks.isEmpty()) {
+            j.complete(ids);
+            return;
+        }
+        AtomicInteger remaining = new AtomicInteger(tasks.size());
+        AtomicBoolean failed = new AtomicBoolean();
+        for (Task<Report> task : tasks) {
+            task.onCompletion(() -> {
+                if (!succeeded(task)) {
+                    failed.set(true);
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    if (failed.get()) {
+                        LOG.warn("Indexing failed on a batch of {} elements, keeping them pending in the journal",
+                                ids.size());
+                    } else {
+                        j.complete(ids);
+                    }
+                }
+            });
+        }
+    }
+
     private final Runnable WORKER_RUN = () -> {
         while (true) {
             try {
-                // Fetch an element from the priority queue
-                ImageElement element = queue.take();
-                URI exam = element.getUri();
-                if (ASYNC_INDEX) {
-                    PluginController.getInstance().index(exam);
-                } else {
-                    PluginController.getInstance().indexBlocking(exam);
-                }
+                // Fetch a batch of elements from the priority queue
+                List<ImageElement> batch = takeBatch(queue, BATCH_SIZE, BATCH_LINGER_MS);
+                signalNotFull();
+                dispatch(batch);
             } catch (InterruptedException ex) {
                 LOG.warn("Indexer queue worker thread interrupted", ex);
             } catch (Exception ex) {
@@ -24,58 +24,74 @@
  */
 package pt.ua.dicoogle.server;
 
-import pt.ua.dicoogle.sdk.datastructs.dim.*;
-import pt.ua.dicoogle.sdk.datastructs.dim.Series;
 
-import java.io.*;
+import pt.ua.dicoogle.sdk.datastructs.dim.ConcatTags;
 
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.lang3.StringUtils;
 import org.dcm4che2.data.*;
 import org.slf4j.Logger;
-import pt.ua.dicoogle.core.settings.ServerSettingsManager;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 import org.slf4j.LoggerFactory;
 
-import org.dcm4che2.io.DicomInputStream;
-
-
+import pt.ua.dicoogle.core.InstanceLocationCache;
 import pt.ua.dicoogle.plugins.PluginController;
+import pt.ua.dicoogle.sdk.datastructs.QueryExpression;
 import pt.ua.dicoogle.sdk.datastructs.SearchResult;
 import pt.ua.dicoogle.sdk.task.JointQueryTask;
 import pt.ua.dicoogle.sdk.task.Task;
 
 /**
+ * Results of a DICOM query, built from the index data of the query providers.
+ *
+ * Results are consumed as the providers deliver them. At the image level, each search result yields one
+ * object right away. At the study and series levels, search results are aggregated incrementally by UID:
+ * in streaming mode, each study or series is produced as soon as it is first seen;
+ * in aggregate mode, they are only produced once all results were seen,
+ * so that the number of related series and instances, and the modalities in each study, are complete.
+ * In streaming mode, ModalitiesInStudy only holds the modality of the first instance seen.
  *
  * @author Luís A. Bastião Silva <bastiao@ua.pt>
  * @since 17 Fev 2009
  */
-public class SearchDicomResult implements Iterator<DicomObject> {
+public class SearchDicomResult implements Iterator<DicomObject>, Closeable {
 
     public enum QUERYLEVEL {
         PATIENT, STUDY, SERIE, IMAGE
     }
 
     private final QUERYLEVEL queryLevel;
+    private final boolean aggregate;
 
+    private final JointQueryTask holder;
+    private final Stream<SearchResult> stream;
+    private final Iterator<SearchResult> results;
 
-    /**
-    * Get IndexCore
-    */
-
-    Collection<SearchResult> list = null;
-    List<Patient> patientList = new ArrayList<>();
-    List<Study> studyList = new ArrayList<>();
-    List<Series> seriesList = new ArrayList<>();
-    Iterator it = null;
-
-    String currentFile;
-
+    /** UIDs of the studies or series already produced, in streaming mode */
+    private final Set<String> produced = new HashSet<>();
+    /** studies or series by UID, in aggregate mode */
+    private final Map<String, Record> records = new LinkedHashMap<>();
+    private Iterator<Record> aggregated = null;
 
+    private DicomObject nextObject = null;
+    private SearchResult nextResult;
+    private SearchResult currentResult;
+    private String nextFile;
+    private String currentFile;
 
     private static ConcatTags concatTags = null;
     private static boolean concatTagsCheck = true;
@@ -84,12 +100,39 @@ public class SearchDicomResult implements Iterator<DicomObject> {
     private static final Logger logger = LoggerFactory.getLogger(SearchDicomResult.class);
 
     public SearchDicomResult(String searchQuery, boolean isNetwork, ArrayList<String> extrafields, QUERYLEVEL level) {
+        this(searchQuery, isNetwork, extrafields, level, true);
+    }
 
-        queryLevel = level;
+    /**
+     * Start a DICOM query on all active DICOM query providers.
+     *
+     * @param searchQuery the query text
+     * @param isNetwork whether the query comes from a DICOM network service
+     * @param extrafields the index fields to retrieve
+     * @param level the query/retrieve level
+     * @param aggregate whether study and series records should wait for all results,
+     *        so that their related series and instance counts and modalities are complete
+     */
+    public SearchDicomResult(String searchQuery, boolean isNetwork, List<String> extrafields, QUERYLEVEL level,
+            boolean aggregate) {
+        this(QueryExpression.raw(searchQuery), isNetwork, extrafields, level, aggregate);
+    }
+
+    /**
+     * Start a DICOM query on all active DICOM query providers.
+     *
+     * @param searchQuery the query expression
+     * @param isNetwork whether the query comes from a DICOM network service
+     * @param extrafields the index fields to retrieve
+     * @param level the query/retrieve level
+     * @param aggregate whether study and series records should wait for all results,
+     *        so that their related series and instance counts and modalities are complete
+     */
+    public SearchDicomResult(QueryExpression searchQuery, boolean isNetwork, List<String> extrafields,
+            QUERYLEVEL level, boolean aggregate) {
 
-        /**
-         * Get the array list of resulst match searchQuery
-         */
+        queryLevel = level;
+        this.aggregate = aggregate;
 
         logger.info("QUERY: " + searchQuery);
         logger.info("QUERYLEVEL: " + queryLevel);
@@ -110,285 +153,334 @@ public class SearchDicomResult implements Iterator<DicomObject> {
             extraFields.put(s, s);
         }
 
-        JointQueryTask holder = new JointQueryTask() {
+        holder = new JointQueryTask() {
 
             @Override
-            public void onReceive(Task<Iterable<SearchResult>> e) {
-                // TODO Auto-generated method stub
-
-            }
+            public void onReceive(Task<Iterable<SearchResult>> e) {}
 
             @Override
-            public void onCompletion() {
-                // TODO Auto-generated method stub
-
-            }
+            public void onCompletion() {}
         };
 
         // The method will retrieve all DICOM active query plugins (with empty list at argument)
         List<String> dicomQueryProviders = PluginController.getInstance().filterDicomQueryProviders(new ArrayList<>());
-        holder = PluginController.getInstance().query(holder, dicomQueryProviders, searchQuery, extraFields);
-
-        try {
-            it = holder.get().iterator();
-
-            list = new ArrayList<SearchResult>();
-            while (it.hasNext()) {
-                list.add((SearchResult) it.next());
-            }
-        } catch (InterruptedException | ExecutionException e1) {
-            // TODO Auto-generated catch block
-            e1.printStackTrace();
-        }
-
-        if (list != null)
-            it = list.iterator();
-
-        if (level == QUERYLEVEL.PATIENT || level == QUERYLEVEL.STUDY) {
-            DIMGeneric dimModel = null;
-            try {
-                if (concatTags == null)
-                    dimModel = new DIMGeneric(list);
-                else
-                    dimModel = new DIMGeneric(concatTags, list);
-
-            } catch (Exception ex) {
-                ex.printStackTrace();
-            }
-
-            ArrayList<Patient> listPatients = dimModel.getPatients();
-
-            for (Patient p : listPatients) {
-                studyList.addAll(p.getStudies());
-            }
-
-            it = studyList.iterator();
-
-        } else if (level == QUERYLEVEL.SERIE) {
-
-            DIMGeneric dimModel = null;
-            try {
-                if (concatTags == null)
-                    dimModel = new DIMGeneric(list);
-                else
-                    dimModel = new DIMGeneric(concatTags, list);
-            } catch (Exception ex) {}
-
-
-            ArrayList<Patient> listPatients = dimModel.getPatients();
-            for (Patient p : listPatients) {
-                studyList.addAll(p.getStudies());
-                for (Study s : p.getStudies()) {
-                    seriesList.addAll(s.getSeries());
-                }
-            }
-            it = seriesList.iterator();
-
-        }
+        PluginController.getInstance().query(holder, dicomQueryProviders, searchQuery, extraFields);
 
+        stream = holder.stream(PluginController.QUERY_PROVIDER_TIMEOUT, TimeUnit.MILLISECONDS);
+        results = stream.iterator();
     }
 
     @Override
     public boolean hasNext() {
-        if (it != null) {
-            return it.hasNext();
-        } else {
-            return false;
+        if (nextObject == null) {
+            nextObject = advance();
         }
+        return nextObject != null;
     }
 
     public String getCurrentFile() {
         return this.currentFile;
     }
 
+    /** @return the search result behind the last object returned, at the image level, or null */
+    public SearchResult getCurrentResult() {
+        return this.currentResult;
+    }
+
     @Override
     public DicomObject next() {
+        if (!hasNext()) {
+            return null;
+        }
+        DicomObject result = nextObject;
+        nextObject = null;
+        currentFile = nextFile;
+        currentResult = nextResult;
+        return result;
+    }
 
-        // TODO: this code need to be refactored
-        // C-FIND RSP should be builded based on Search Result,
-        // instead opening the file to build DicomObject.
-
-        /** 
-         * Get the fullpath of images 
-         */
-        String path = ServerSettingsManager.getSettings().getArchiveSettings().getMainDirectory();
-
-        // DebugManager.getSettings().debug("Path of DICOM: "+path);
-
-
-        if (it != null && it.hasNext()) {
-            Object next = it.next();
-            if (queryLevel == QUERYLEVEL.IMAGE) {
-
-                SearchResult sR = (SearchResult) next;
-
-                path = sR.getURI().toString();
-                currentFile = path;
-                // DebugManager.getSettings().debug("-> Next::: " + next.toString());
-                DicomInputStream din = null;
-                /*try
-                {
-                    if (path.endsWith(".gz"))
-                        din = new DicomInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(new File(path)), 256)));
-                    else
-                        din = new DicomInputStream(new File(path));
-                   
-                    
-                    URI uri = new URI(path);
-                    //System.out.println("Trying to find Plugin for: "+uri.toString());
-                    StorageInterface plug = PluginController.getSettings().getStorageForSchema(uri);
-                    
-                    if(plug != null){
-                        //System.out.println("Found Plugin For: "+uri.toString());
-                        
-                        Iterable<StorageInputStream> stream = plug.at(uri);
-                        for(StorageInputStream str : stream)
-                            
-                            try {
-                                din = new DicomInputStream(str.getInputStream());
-                            } catch (IOException ex) {
-                                LoggerFactory.getLogger(SearchDicomResult.class).error(ex.getMessage(), ex);
-                            }
-                    }
-                    
-                    //DebugManager.getSettings().debug("Imagem: "+path+"..."+next);
-                } catch (URISyntaxException ex) {
-                    LoggerFactory.getLogger(SearchDicomResult.class).error(ex.getMessage(), ex);
-                }
-                */
-
-                /** This code is refactored in a experimental branch
-                 * Building a BasicDicomObject based on Indexing
-                 * It will increase the performace
-                 */
-                BasicDicomObject result = new BasicDicomObject();
-
-                // Fill fields of study now
-
-
-                // System.out.println("Series : "+ serieTmp);
-                result.putString(Tag.InstitutionName, VR.CS, (String) sR.get("InstitutionName"));
-
-                result.putString(Tag.StudyInstanceUID, VR.UI, (String) sR.get("StudyInstanceUID"));
-                result.putString(Tag.SeriesInstanceUID, VR.UI, (String) sR.get("SeriesInstanceUID"));
-                result.putString(Tag.SOPInstanceUID, VR.UI, (String) sR.get("SOPInstanceUID"));
-                result.putString(Tag.SeriesDescription, VR.LO, (String) sR.get("SeriesDescription"));
-                result.putString(Tag.SeriesDate, VR.TM, (String) sR.get("SeriesDate"));
-                result.putString(Tag.SeriesTime, VR.TM, (String) sR.get("SeriesTime"));
-                result.putString(Tag.QueryRetrieveLevel, VR.LO, "IMAGE");
+    /** Cancel the query providers which are still running.
+     * This may be called from another thread, in which case iteration ends promptly.
+     */
+    @Override
+    public void close() {
+        holder.cancel(true);
+        stream.close();
+    }
 
-                result.putString(Tag.Modality, VR.CS, (String) sR.get("Modality"));
+    /** Obtain the next object from the search results, possibly waiting for more of them.
+     *
+     * @return the next DICOM object, or null if there are no more results
+     */
+    private DicomObject advance() {
+        if (queryLevel == QUERYLEVEL.IMAGE) {
+            if (!results.hasNext()) {
+                return null;
+            }
+            SearchResult sR = results.next();
+            nextResult = sR;
+            InstanceLocationCache.getInstance().put(sR);
+            nextFile = sR.getURI().toString();
+            return toImageObject(sR);
+        }
 
-                String seriesNumber = String.valueOf(sR.get("SeriesNumber"));
-                if (seriesNumber.endsWith(".0")) {
-                    seriesNumber = seriesNumber.substring(0, seriesNumber.length() - 2);
+        String uidField = queryLevel == QUERYLEVEL.SERIE ? "SeriesInstanceUID" : "StudyInstanceUID";
+        if (!aggregate) {
+            while (results.hasNext()) {
+                SearchResult r = results.next();
+                String uid = trimmed(r.get(uidField));
+                if (produced.add(uid)) {
+                    return newRecord(r).toDicomObject();
                 }
-                result.putString(Tag.SeriesNumber, VR.IS, seriesNumber);
-
+            }
+            return null;
+        }
 
-                return result;
+        if (aggregated == null) {
+            while (results.hasNext()) {
+                SearchResult r = results.next();
+                String uid = trimmed(r.get(uidField));
+                Record record = records.get(uid);
+                if (record == null) {
+                    records.put(uid, newRecord(r));
+                } else {
+                    record.merge(r);
+                }
+            }
+            aggregated = records.values().iterator();
+        }
+        return aggregated.hasNext() ? aggregated.next().toDicomObject() : null;
+    }
 
-            } else if (queryLevel == QUERYLEVEL.STUDY || queryLevel == QUERYLEVEL.PATIENT) {
+    private Record newRecord(SearchResult r) {
+        return queryLevel == QUERYLEVEL.SERIE ? new SeriesRecord(r) : new StudyRecord(r);
+    }
 
-                Study studyTmp = (Study) next;
-                BasicDicomObject result = new BasicDicomObject();
-                String patientName = studyTmp.getParent().getPatientName();
+    private static DicomObject toImageObject(SearchResult sR) {
+        BasicDicomObject result = new BasicDicomObject();
 
-                try {
-                    patientName =
-                            new String(studyTmp.getParent().getPatientName().getBytes("ISO-8859-1"), "ISO-8859-1");
-                } catch (Exception ex) {
-                    LoggerFactory.getLogger(SearchDicomResult.class).error(ex.getMessage(), ex);
-                }
-                try {
-                    result.putBytes(Tag.PatientName, VR.PN, patientName.getBytes("ISO-8859-1"));
-                } catch (Exception ex) {
-                    LoggerFactory.getLogger(SearchDicomResult.class).error(ex.getMessage(), ex);
-                }
+        result.putString(Tag.InstitutionName, VR.CS, string(sR.get("InstitutionName")));
 
-                // System.out.println("PatientName:"+patientName);
-                result.putString(Tag.SpecificCharacterSet, VR.CS, "ISO_IR 100");
-                result.putString(Tag.PatientSex, VR.LO, studyTmp.getParent().getPatientSex());
-                result.putString(Tag.PatientID, VR.LO, studyTmp.getParent().getPatientID());
-                result.putString(Tag.PatientBirthDate, VR.DA, studyTmp.getParent().getPatientBirthDate());
-                result.putString(Tag.StudyDate, VR.DA, studyTmp.getStudyData());
-                result.putString(Tag.StudyID, VR.SH, studyTmp.getStudyID());
-                result.putString(Tag.StudyTime, VR.TM, studyTmp.getStudyTime());
-                result.putString(Tag.AccessionNumber, VR.SH, studyTmp.getAccessionNumber());
-                result.putString(Tag.StudyInstanceUID, VR.UI, studyTmp.getStudyInstanceUID());
-                result.putString(Tag.StudyDescription, VR.LO, studyTmp.getStudyDescription());
-                String modality = studyTmp.getSeries().get(0).getModality(); // Point of Failure, fix me
-                result.putString(Tag.ModalitiesInStudy, VR.CS, modality);
-                result.putString(Tag.Modality, VR.CS, modality);
-                result.putString(Tag.InstitutionName, VR.CS, studyTmp.getInstitutuionName());
-
-                int instances = 0;
-                for (Series seriesTmp : studyTmp.getSeries()) {
-                    instances += seriesTmp.getImageList().size();
-                }
+        result.putString(Tag.StudyInstanceUID, VR.UI, string(sR.get("StudyInstanceUID")));
+        result.putString(Tag.SeriesInstanceUID, VR.UI, string(sR.get("SeriesInstanceUID")));
+        result.putString(Tag.SOPInstanceUID, VR.UI, string(sR.get("SOPInstanceUID")));
+        result.putString(Tag.SeriesDescription, VR.LO, string(sR.get("SeriesDescription")));
+        result.putString(Tag.SeriesDate, VR.TM, string(sR.get("SeriesDate")));
+        result.putString(Tag.SeriesTime, VR.TM, string(sR.get("SeriesTime")));
+        result.putString(Tag.QueryRetrieveLevel, VR.LO, "IMAGE");
 
-                result.putString(Tag.NumberOfStudyRelatedInstances, VR.IS, "" + instances);
-                result.putString(Tag.NumberOfSeriesRelatedInstances, VR.IS, "" + studyTmp.getSeries().size());
+        result.putString(Tag.Modality, VR.CS, string(sR.get("Modality")));
 
+        String seriesNumber = String.valueOf(sR.get("SeriesNumber"));
+        if (seriesNumber.endsWith(".0")) {
+            seriesNumber = seriesNumber.substring(0, seriesNumber.length() - 2);
+        }
+        result.putString(Tag.SeriesNumber, VR.IS, seriesNumber);
 
-                return result;
+        return result;
+    }
 
-            } else if (queryLevel == QUERYLEVEL.SERIE) {
-                // Series
+    private static String string(Object o) {
+        return o != null ? o.toString() : null;
+    }
 
-                Series seriesTmp = (Series) next;
-                BasicDicomObject result = new BasicDicomObject();
-                // System.out.println("Series : "+ seriesTmp);
-                result.putString(Tag.InstitutionName, VR.CS, seriesTmp.getParent().getInstitutuionName());
+    private static String trimmed(Object o) {
+        return o != null ? StringUtils.trimToEmpty(o.toString()) : "";
+    }
 
-                result.putString(Tag.StudyInstanceUID, VR.UI, seriesTmp.getParent().getStudyInstanceUID());
-                result.putString(Tag.SeriesInstanceUID, VR.UI, seriesTmp.getSeriesInstanceUID());
-                result.putString(Tag.SeriesDescription, VR.LO, seriesTmp.getSeriesDescription());
-                result.putString(Tag.SeriesDate, VR.TM, seriesTmp.getSeriesDate());
-                result.putString(Tag.QueryRetrieveLevel, VR.LO, "SERIES");
-                String modality = seriesTmp.getModality(); // Point of Failure, fix me
-                result.putString(Tag.Modality, VR.CS, modality);
+    private static String trimmedOrNull(Object o) {
+        return o != null ? StringUtils.trimToNull(o.toString()) : null;
+    }
 
-                result.putString(Tag.SeriesNumber, VR.IS, "" + seriesTmp.getSeriesNumber());
+    /** Obtain the study description of a search result,
+     * concatenating other attributes when so configured in {@link ConcatTags#FILENAME}.
+     */
+    private static String studyDescription(SearchResult r, String modality) {
+        String description = trimmed(r.get("StudyDescription"));
+        ConcatTags tags = concatTags;
+        if (tags == null || !(description.isEmpty() || description.toLowerCase().contains("fuji"))) {
+            return description;
+        }
+        StringBuilder concatenated = new StringBuilder();
+        for (ConcatTags.Rule rule : tags.getRules()) {
+            if (modality.equals(rule.getModality())) {
+                Object valueTagToReplace = r.get(rule.getTagToReplace());
+                if (valueTagToReplace != null) {
+                    concatenated.append(
+                            valueTagToReplace.toString().trim().replaceAll("[^a-zA-Z0-9\\. ÉéàÀÃ;,]+", ""));
+                    concatenated.append("; ");
+                }
+            }
+        }
+        return concatenated.toString();
+    }
 
+    /** A study or series record, aggregated from the search results of its instances. */
+    private abstract static class Record {
+        int instances = 1;
 
-                result.putString(Tag.Modality, VR.CS, modality);
-                if (seriesTmp.getModality().equals("MG") || seriesTmp.getModality().equals("CR")) {
+        void merge(SearchResult r) {
+            instances++;
+        }
 
-                    result.putString(Tag.ViewPosition, null, seriesTmp.getViewPosition());
-                    result.putString(Tag.ImageLaterality, null, seriesTmp.getImageLaterality());
-                    result.putString(Tag.AcquisitionDeviceProcessingDescription, VR.AE,
-                            seriesTmp.getAcquisitionDeviceProcessingDescription());
-                    DicomElement viewCodeSequence = result.putSequence(Tag.ViewCodeSequence);
-                    DicomObject viewCodeSequenceObj = new BasicDicomObject();
-                    viewCodeSequenceObj.setParent(result);
-                    viewCodeSequenceObj.putString(Tag.CodeValue, null, seriesTmp.getViewCodeSequence_CodeValue());
-                    viewCodeSequenceObj.putString(Tag.CodingSchemeDesignator, null,
-                            seriesTmp.getViewCodeSequence_CodingSchemeDesignator());
-                    viewCodeSequenceObj.putString(Tag.CodingSchemeVersion, null,
-                            seriesTmp.getViewCodeSequence_CodingSchemeVersion());
-                    viewCodeSequenceObj.putString(Tag.CodeMeaning, null, seriesTmp.getViewCodeSequence_CodeMeaning());
+        abstract DicomObject toDicomObject();
+    }
 
-                    viewCodeSequence.addDicomObject(viewCodeSequenceObj);
-                    result.putNestedDicomObject(Tag.ViewCodeSequence, viewCodeSequenceObj);
-                }
-                result.putString(Tag.NumberOfSeriesRelatedInstances, VR.IS, "" + seriesTmp.getImageList().size());
+    private static final class StudyRecord extends Record {
+        final String patientName;
+        final String patientSex;
+        final String patientID;
+        final String patientBirthDate;
+        final String studyInstanceUID;
+        final String studyDate;
+        final String studyID;
+        final String studyTime;
+        final String accessionNumber;
+        final String institutionName;
+        final String modality;
+        String studyDescription;
+        final Set<String> modalities = new LinkedHashSet<>(2);
+        final Set<String> seriesInstanceUIDs = new HashSet<>();
+
+        StudyRecord(SearchResult r) {
+            patientName = trimmed(r.get("PatientName"));
+            patientSex = trimmed(r.get("PatientSex"));
+            patientID = trimmed(r.get("PatientID"));
+            patientBirthDate = trimmed(r.get("PatientBirthDate"));
+            studyInstanceUID = trimmed(r.get("StudyInstanceUID"));
+            studyDate = trimmed(r.get("StudyDate"));
+            studyID = trimmed(r.get("StudyID"));
+            studyTime = trimmedOrNull(r.get("StudyTime"));
+            accessionNumber = trimmed(r.get("AccessionNumber"));
+            institutionName = trimmed(r.get("InstitutionName"));
+            modality = trimmed(r.get("Modality"));
+            studyDescription = studyDescription(r, modality);
+            modalities.add(modality);
+            seriesInstanceUIDs.add(trimmed(r.get("SeriesInstanceUID")));
+        }
 
+        @Override
+        void merge(SearchResult r) {
+            super.merge(r);
+            String seriesModality = trimmed(r.get("Modality"));
+            // the latest description prevails
+            studyDescription = studyDescription(r, seriesModality);
+            modalities.add(seriesModality);
+            seriesInstanceUIDs.add(trimmed(r.get("SeriesInstanceUID")));
+        }
 
-                result.putString(Tag.SeriesNumber, VR.IS, "" + seriesTmp.getSeriesNumber());
-                result.putString(Tag.ProtocolName, VR.LO, "" + seriesTmp.getProtocolName());
-                result.putString(Tag.BodyPartThickness, VR.LO, "" + seriesTmp.getBodyPartThickness());
+        @Override
+        DicomObject toDicomObject() {
+            BasicDicomObject result = new BasicDicomObject();
+            result.putBytes(Tag.PatientName, VR.PN, patientName.getBytes(StandardCharsets.ISO_8859_1));
+
+            result.putString(Tag.SpecificCharacterSet, VR.CS, "ISO_IR 100");
+            result.putString(Tag.PatientSex, VR.LO, patientSex);
+            result.putString(Tag.PatientID, VR.LO, patientID);
+            result.putString(Tag.PatientBirthDate, VR.DA, patientBirthDate);
+            result.putString(Tag.StudyDate, VR.DA, studyDate);
+            result.putString(Tag.StudyID, VR.SH, studyID);
+            result.putString(Tag.StudyTime, VR.TM, studyTime);
+            result.putString(Tag.AccessionNumber, VR.SH, accessionNumber);
+            result.putString(Tag.StudyInstanceUID, VR.UI, studyInstanceUID);
+            result.putString(Tag.StudyDescription, VR.LO, studyDescription);
+            result.putStrings(Tag.ModalitiesInStudy, VR.CS, modalities.toArray(new String[modalities.size()]));
+            result.putString(Tag.Modality, VR.CS, modality);
+            result.putString(Tag.InstitutionName, VR.CS, institutionName);
+
+            result.putString(Tag.NumberOfStudyRelatedInstances, VR.IS, "" + instances);
+            result.putString(Tag.NumberOfStudyRelatedSeries, VR.IS, "" + seriesInstanceUIDs.size());
+            // kept for compatibility with former responses
+            result.putString(Tag.NumberOfSeriesRelatedInstances, VR.IS, "" + seriesInstanceUIDs.size());
+
+            return result;
+        }
+    }
 
+    private static final class SeriesRecord extends Record {
+        final String institutionName;
+        final String studyInstanceUID;
+        final String seriesInstanceUID;
+        final String seriesDescription;
+        final String seriesDate;
+        final String modality;
+        final int seriesNumber;
+        final String protocolName;
+        final String bodyPartThickness;
+        final String viewPosition;
+        final String imageLaterality;
+        final String acquisitionDeviceProcessingDescription;
+        final String viewCodeValue;
+        final String viewCodingSchemeDesignator;
+        final String viewCodingSchemeVersion;
+        final String viewCodeMeaning;
+
+        SeriesRecord(SearchResult r) {
+            institutionName = trimmed(r.get("InstitutionName"));
+            studyInstanceUID = trimmed(r.get("StudyInstanceUID"));
+            seriesInstanceUID = trimmed(r.get("SeriesInstanceUID"));
+            seriesDescription = trimmed(r.get("SeriesDescription"));
+            seriesDate = trimmed(r.get("SeriesDate"));
+            modality = trimmed(r.get("Modality"));
+            seriesNumber = parseSeriesNumber(trimmedOrNull(r.get("SeriesNumber")));
+            protocolName = trimmed(r.get("ProtocolName"));
+            bodyPartThickness = trimmedOrNull(r.get("BodyPartThickness"));
+            viewPosition = trimmed(r.get("ViewPosition"));
+            imageLaterality = trimmed(r.get("ImageLaterality"));
+            acquisitionDeviceProcessingDescription = trimmed(r.get("AcquisitionDeviceProcessingDescription"));
+            viewCodeValue = trimmed(r.get("ViewCodeSequence_CodeValue"));
+            viewCodingSchemeDesignator = trimmed(r.get("ViewCodeSequence_CodingSchemeDesignator"));
+            viewCodingSchemeVersion = trimmed(r.get("ViewCodeSequence_CodingSchemeVersion"));
+            viewCodeMeaning = trimmed(r.get("ViewCodeSequence_CodeMeaning"));
+        }
 
-                return result;
+        private static int parseSeriesNumber(String seriesNumber) {
+            if (seriesNumber == null) {
+                return 0;
+            }
+            try {
+                return (int) Float.parseFloat(seriesNumber);
+            } catch (NumberFormatException ex) {
+                return 0;
+            }
+        }
 
-            } else {
-                System.err.println("ERROR: WRONG QUERY LEVEL!");
+        @Override
+        DicomObject toDicomObject() {
+            BasicDicomObject result = new BasicDicomObject();
+            result.putString(Tag.InstitutionName, VR.CS, institutionName);
+
+            result.putString(Tag.StudyInstanceUID, VR.UI, studyInstanceUID);
+            result.putString(Tag.SeriesInstanceUID, VR.UI, seriesInstanceUID);
+            result.putString(Tag.SeriesDescription, VR.LO, seriesDescription);
+            result.putString(Tag.SeriesDate, VR.TM, seriesDate);
+            result.putString(Tag.QueryRetrieveLevel, VR.LO, "SERIES");
+            result.putString(Tag.Modality, VR.CS, modality);
+            result.putString(Tag.SeriesNumber, VR.IS, "" + seriesNumber);
+
+            if (modality.equals("MG") || modality.equals("CR")) {
+                result.putString(Tag.ViewPosition, null, viewPosition);
+                result.putString(Tag.ImageLaterality, null, imageLaterality);
+                result.putString(Tag.AcquisitionDeviceProcessingDescription, VR.AE,
+                        acquisitionDeviceProcessingDescription);
+                DicomElement viewCodeSequence = result.putSequence(Tag.ViewCodeSequence);
+                DicomObject viewCodeSequenceObj = new BasicDicomObject();
+                viewCodeSequenceObj.setParent(result);
+                viewCodeSequenceObj.putString(Tag.CodeValue, null, viewCodeValue);
+                viewCodeSequenceObj.putString(Tag.CodingSchemeDesignator, null, viewCodingSchemeDesignator);
+                viewCodeSequenceObj.putString(Tag.CodingSchemeVersion, null, viewCodingSchemeVersion);
+                viewCodeSequenceObj.putString(Tag.CodeMeaning, null, viewCodeMeaning);
+
+                viewCodeSequence.addDicomObject(viewCodeSequenceObj);
+                result.putNestedDicomObject(Tag.ViewCodeSequence, viewCodeSequenceObj);
             }
+            result.putString(Tag.NumberOfSeriesRelatedInstances, VR.IS, "" + instances);
 
+            result.putString(Tag.ProtocolName, VR.LO, protocolName);
+            result.putString(Tag.BodyPartThickness, VR.LO, bodyPartThickness);
 
+            return result;
         }
-        return null;
     }
 
     @Override
@@ -18,19 +18,20 @@
  */
 package pt.ua.dicoogle.server.queryretrieve;
 
-import java.text.Format;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-
-import pt.ua.dicoogle.core.exceptions.CFindNotSupportedException;
-
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 import org.dcm4che2.data.DicomElement;
 import org.dcm4che2.data.DicomObject;
 import org.dcm4che2.data.Tag;
 
+import pt.ua.dicoogle.core.exceptions.CFindNotSupportedException;
+import pt.ua.dicoogle.core.query.QueryPlanCache;
 import pt.ua.dicoogle.core.settings.ServerSettingsManager;
+import pt.ua.dicoogle.sdk.datastructs.QueryExpression;
 import pt.ua.dicoogle.sdk.utils.TagValue;
 import pt.ua.dicoogle.sdk.utils.TagsStruct;
 
@@ -42,16 +43,45 @@ import pt.ua.dicoogle.sdk.utils.TagsStruct;
  *   NOT SUPPORTED: @depracated
  *   Patient-Study Root Q/R Find (Retired) - 1.2.840.10008.5.1.4.1.2.3.1
  *
- *
+ * The identifier is translated into a query expression.
+ * Which keys map to which DIM fields only depends on the keys present in the identifier,
+ * so this mapping is kept in the {@link QueryPlanCache} and reused by identifiers with the same keys.
  *
  * @author Luís A. Bastião Silva <bastiao@ua.pt>
  */
 public class CFindBuilder {
 
+    private static final String PLAN_KIND = "cfind";
+
+    /** How a key is translated into a query expression */
+    private enum KeyKind {
+        /** matched as is */
+        VALUE,
+        /** a list of modalities, any of which may match */
+        MODALITIES,
+        /** a date, or a range of dates */
+        DATE,
+        /** a time, or a range of times */
+        TIME
+    }
+
+    /** The translation of a key of the identifier into a DIM field */
+    private static final class Step {
+        final int tag;
+        final String alias;
+        final KeyKind kind;
+
+        Step(int tag, String alias, KeyKind kind) {
+            this.tag = tag;
+            this.alias = alias;
+            this.kind = kind;
+        }
+    }
+
     private boolean patientRoot = false;
     private boolean studyRoot = false;
 
-    private String query = "";
+    private QueryExpression expression;
 
 
     public CFindBuilder(DicomObject key, DicomObject rsp) throws CFindNotSupportedException {
@@ -77,153 +107,93 @@ public class CFindBuilder {
         (0020,1208) IS #0 [] Number of Study Related Instances
          */
 
-        /** Search by required fields
-        
-         *
-         *
-        */
-
-        // Get Affected SOP Classs UID
-        DicomElement elem = rsp.get(Integer.parseInt("00000002", 16));
-        String affectedSOP = new String(elem.getBytes());
+        // the shape of the identifier is the list of keys with a value
+        StringBuilder shape = new StringBuilder();
+        Iterator<DicomElement> it = key.iterator();
+        while (it.hasNext()) {
+            DicomElement e = it.next();
+            if (!e.hasItems() && e.length() > 0) {
+                shape.append(Integer.toHexString(e.tag())).append(',');
+            }
+        }
+        List<Step> plan = QueryPlanCache.getInstance().get(PLAN_KIND, shape.toString(), () -> plan(key));
 
-        TagsStruct tagstruct = TagsStruct.getInstance();
+        List<QueryExpression> operands = new ArrayList<>(plan.size());
+        for (Step step : plan) {
+            String value = new String(key.get(step.tag).getBytes()).trim();
+            if (!value.isEmpty()) {
+                bind(step, value, operands);
+            }
+        }
+        this.expression = QueryExpression.and(operands);
+    }
 
-        // TagsStruct.getSettings().toStringNew();
-        boolean all = false;
-        String append = "";
-        query = "";
-        System.out.println(tagstruct.getDIMFields().size());
-        Iterator<TagValue> it = tagstruct.getDIMFields().iterator();
-        while (it.hasNext()) {
-            /** Verify if this tags exists
-            */
-            TagValue tag = it.next();
+    /** Map the keys with a value to the DIM fields. */
+    private static List<Step> plan(DicomObject key) {
+        List<Step> steps = new ArrayList<>();
+        for (TagValue tag : TagsStruct.getInstance().getDIMFields()) {
             int k = tag.getTagNumber();
             DicomElement e = key.get(k);
-            // DebugManager.getSettings().debug("get key::"+ k );
-            if (e != null) {
-                String value = new String(e.getBytes());
-                // DebugManager.getSettings().debug("Value getted in CFIND RP:<"+t.get(k).getAlias() + "> "+ value +".");
-                if (value.equals("")) {
-                    continue;
-
-                } else {
-                    value = value.trim();
-                    boolean modified = false;
-                    // TODO :: Study Date need to be rewritted
-                    // and others weird tags like // should be mapped to lucene!
-                    if (k == Tag.ModalitiesInStudy) {
-                        String[] modality = value.split("\\\\");
-                        int i = 0;
-                        String modalityQuery = "";
-                        for (String mod : modality) {
-
-                            // DebugManager.getSettings().debug(mod);
-
-                            if (modified) {
-                                // There is already exist a modality
-                                modalityQuery += " OR ";
-                            }
-
-                            i++;
-                            modified = true;
-                            modalityQuery += "Modality" + ":" + mod;
-                        }
-                        if (!modalityQuery.equals("")) {
-                            System.err.println(modalityQuery);
-                            query = query + append + " (" + modalityQuery + ")";
-                        }
-
-                    }
-
-                    else if (k == Tag.StudyDate) {
-                        System.out.println("Value :@" + value + ".");
-
-                        String[] date = value.split("-");
-                        int i = 0;
-                        if (date.length == 1) {
-
-                            if (!value.contains("-")) {
-                                query = query + append + tag.getAlias() + ":[" + date[0] + " TO " + date[0] + "]";
-                            } else {
-
-                                String s;
-                                Format formatter;
-                                Date date2 = new Date();
-
-                                // 01/09/02
-                                formatter = new SimpleDateFormat("YYYYMMdd");
-                                s = formatter.format(date2);
-
-                                query = query + append + tag.getAlias() + ":[" + date[0] + " TO " + s + "]";
-                            }
-
-
-                            // query = query +append + t.get(k).getAlias() + ":[" + date[0] + " TO " +
-                            // date[0] + "]" ;
-                        } else if (date.length == 2) {
-                            query = query + append + tag.getAlias() + ":[" + date[0] + " TO " + date[1] + "]";
-                        }
-                        modified = true;
-                    }
-
-
-                    else if (k == Tag.StudyTime) {
-                        String[] date = value.split("-");
-                        int i = 0;
-                        if (date.length == 1) {
-                            query = query + append + tag.getAlias() + ":[" + date[0] + " TO " + date[0] + "]";
-                            /*if (!value.contains("-"))
-                            {
-                                query = query + append +t.get(k).getAlias() + ":[" + date[0] + " TO " +
-                                date[0] + "]" ;
-                            }
-                            else
-                            {
-                                
-                                 String s;
-                                 Format formatter;
-                                 Date date2 = new Date();
-                            
-                                 // 01/09/02
-                                 formatter = new SimpleDateFormat("YYYYMMdd");
-                                 s = formatter.format(date2);
-                            
-                                 query = query + append +t.get(k).getAlias() + ":[" + date[0] + " TO " +
-                                 s + "]" ;
-                            }*/
-                        } else if (date.length == 2) {
-                            query = query + append + tag.getAlias() + ":[" + date[0] + " TO " + date[1] + "]";
-                        }
-                        modified = true;
-                    }
-
-
+            if (e == null || e.hasItems() || e.length() <= 0) {
+                continue;
+            }
+            KeyKind kind;
+            if (k == Tag.ModalitiesInStudy) {
+                kind = KeyKind.MODALITIES;
+            } else if (k == Tag.StudyDate) {
+                kind = KeyKind.DATE;
+            } else if (k == Tag.StudyTime) {
+                kind = KeyKind.TIME;
+            } else {
+                kind = KeyKind.VALUE;
+            }
+            steps.add(new Step(k, tag.getAlias(), kind));
+        }
+        return steps;
+    }
 
-                    else {
-                        modified = true;
-                        query += append + tag.getAlias() + ":" + value;
+    /** Translate the value of a key into query expressions. */
+    private static void bind(Step step, String value, List<QueryExpression> out) {
+        switch (step.kind) {
+            case MODALITIES:
+                List<QueryExpression> modalities = new ArrayList<>();
+                for (String mod : value.split("\\\\")) {
+                    if (!mod.isEmpty()) {
+                        modalities.add(QueryExpression.term("Modality", mod));
                     }
-
-                    if (modified && it.hasNext()) {
-                        append = " AND ";
+                }
+                if (!modalities.isEmpty()) {
+                    out.add(QueryExpression.or(modalities));
+                }
+                break;
+            case DATE:
+            case TIME:
+                String[] range = value.split("-");
+                if (range.length == 1) {
+                    String upper = range[0];
+                    if (step.kind == KeyKind.DATE && value.contains("-")) {
+                        // open range, up to today
+                        upper = LocalDate.now().format(DateTimeFormatter.BASIC_ISO_DATE);
                     }
-
+                    out.add(QueryExpression.range(step.alias, range[0], upper));
+                } else if (range.length == 2) {
+                    out.add(QueryExpression.range(step.alias, range[0], range[1]));
                 }
-
-            }
+                break;
+            default:
+                out.add(QueryExpression.term(step.alias, value));
         }
+    }
 
-        if (query.equals(""))
-            query = "*:*";
-        // DebugManager.getSettings().debug(">> Query String DICOM: "+ query);
-
-
+    /**
+     * @return the query expression of the identifier
+     */
+    public QueryExpression getQueryExpression() {
+        return expression;
     }
 
     public String getQueryString() {
-        return this.query;
+        return expression.toQueryString();
     }
 
     private synchronized boolean setRoot(DicomObject rsp) {
@@ -305,14 +275,14 @@ public class CFindBuilder {
      * @return the query
      */
     public String getQuery() {
-        return query;
+        return expression.toQueryString();
     }
 
     /**
      * @param query the query to set
      */
     public void setQuery(String query) {
-        this.query = query;
+        this.expression = QueryExpression.raw(query);
     }
 
 
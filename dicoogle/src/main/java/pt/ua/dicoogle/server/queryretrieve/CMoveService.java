@@ -29,12 +29,15 @@ import org.dcm4che2.net.CommandUtils;
 import org.dcm4che2.net.DimseRSP;
 import org.dcm4che2.net.SingleDimseRSP;
 import org.dcm4che2.net.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  *
  * @author Luís A. Bastião Silva <bastiao@ua.pt>
  */
 public class CMoveService extends DicomService implements CMoveSCP {
+    private static final Logger logger = LoggerFactory.getLogger(CMoveService.class);
 
 
     private final Executor executor;
@@ -65,12 +68,45 @@ public class CMoveService extends DicomService implements CMoveSCP {
         cmdrsp = rsp.getCommand();
         if (CommandUtils.isPending(cmdrsp)) {
             as.registerCancelRQHandler(rq, rsp);
-            // executor.execute(new WriteMultiDimseRsp(as, pcid, rsp));
+            executor.execute(new WriteMultiDimseRsp(as, pcid, rq, rsp));
         } else {
             as.writeDimseRSP(pcid, cmdrsp, rsp.getDataset());
         }
     }
 
+    /** Writes the remaining responses of a C-MOVE request, as long as they are pending. */
+    private static class WriteMultiDimseRsp implements Runnable {
+        private final Association as;
+        private final int pcid;
+        private final DicomObject rq;
+        private final DimseRSP rsp;
+
+        WriteMultiDimseRsp(Association as, int pcid, DicomObject rq, DimseRSP rsp) {
+            this.as = as;
+            this.pcid = pcid;
+            this.rq = rq;
+            this.rsp = rsp;
+        }
+
+        @Override
+        public void run() {
+            try {
+                DicomObject cmd;
+                do {
+                    cmd = rsp.getCommand();
+                    as.writeDimseRSP(pcid, cmd, rsp.getDataset());
+                } while (CommandUtils.isPending(cmd) && rsp.next());
+            } catch (IOException e) {
+                logger.error("Failed to write C-MOVE response", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.warn("Interrupted while writing C-MOVE responses");
+            } finally {
+                as.unregisterCancelRQHandler(rq);
+            }
+        }
+    }
+
     protected DimseRSP doCMove(Association as, int pcid, DicomObject cmd, DicomObject data, DicomObject rsp)
             throws DicomServiceException {
         return new SingleDimseRSP(rsp);
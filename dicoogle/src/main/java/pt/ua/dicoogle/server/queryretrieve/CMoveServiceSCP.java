@@ -18,7 +18,6 @@
  */
 package pt.ua.dicoogle.server.queryretrieve;
 
-import java.io.IOException;
 import java.net.InetAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -27,7 +26,6 @@ import java.util.List;
 import java.util.concurrent.Executor;
 
 import org.dcm4che2.data.Tag;
-import org.dcm4che2.data.VR;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,7 +33,6 @@ import javax.xml.transform.TransformerConfigurationException;
 import org.dcm4che2.data.DicomElement;
 import org.dcm4che2.data.DicomObject;
 import org.dcm4che2.net.Association;
-import org.dcm4che2.net.ConfigurationException;
 import org.dcm4che2.net.DicomServiceException;
 import org.dcm4che2.net.DimseRSP;
 import org.dcm4che2.net.Status;
@@ -45,10 +42,9 @@ import pt.ua.dicoogle.DicomLog.LogDICOM;
 import pt.ua.dicoogle.DicomLog.LogLine;
 import pt.ua.dicoogle.DicomLog.LogXML;
 import pt.ua.dicoogle.core.settings.ServerSettingsManager;
-import pt.ua.dicoogle.plugins.PluginController;
-import pt.ua.dicoogle.sdk.StorageInputStream;
-import pt.ua.dicoogle.sdk.StorageInterface;
 import pt.ua.dicoogle.sdk.datastructs.MoveDestination;
+import pt.ua.dicoogle.sdk.datastructs.QueryExpression;
+import pt.ua.dicoogle.sdk.datastructs.SearchResult;
 import pt.ua.dicoogle.sdk.settings.server.ServerSettings;
 import pt.ua.dicoogle.server.DicomNetwork;
 import pt.ua.dicoogle.server.SearchDicomResult;
@@ -149,12 +145,17 @@ public class CMoveServiceSCP extends CMoveService {
         } catch (CFindNotSupportedException ex) {
             ex.printStackTrace();
         }
-        String query = cfind.getQueryString();
+        QueryExpression query = cfind.getQueryExpression();
 
-        SearchDicomResult search = new SearchDicomResult(query, true, extrafields, SearchDicomResult.QUERYLEVEL.IMAGE);
-        ArrayList<URI> files = new ArrayList<URI>();
+        extrafields.add("SOPClassUID");
+        extrafields.add("SOPInstanceUID");
+        extrafields.add("TransferSyntaxUID");
 
-        if (search != null) {
+        SearchDicomResult search =
+                new SearchDicomResult(query, true, extrafields, SearchDicomResult.QUERYLEVEL.IMAGE, true);
+        List<MoveSubOperations.Item> files = new ArrayList<>();
+
+        try {
             while (search.hasNext()) {
                 DicomObject obj = search.next();
                 DicomElement e = obj.get(Integer.parseInt("0020000D", 16));
@@ -163,19 +164,21 @@ public class CMoveServiceSCP extends CMoveService {
                     tmp = new String(e.getBytes());
                 }
                 if (SOPUID != null && tmp != null) {
-                    // files.add(new File(search.getCurrentFile()));
                     String uriString = search.getCurrentFile();
 
                     try {
                         URI nURI = new URI(uriString);
-
-                        files.add(nURI);
+                        SearchResult r = search.getCurrentResult();
+                        files.add(new MoveSubOperations.Item(nURI, uid(r.get("SOPClassUID")),
+                                uid(r.get("SOPInstanceUID")), uid(r.get("TransferSyntaxUID"))));
                     } catch (URISyntaxException ex) {
                         LoggerFactory.getLogger(CMoveServiceSCP.class).error(ex.getMessage(), ex);
                     }
                 }
 
             }
+        } finally {
+            search.close();
         }
 
         if (files.size() != 0) {
@@ -185,11 +188,13 @@ public class CMoveServiceSCP extends CMoveService {
              *
              */
             String hostDest = ip.getHostAddress();
+            int associations = DEFAULT_ASSOCIATIONS;
             ServerSettings.DicomServices ob = ServerSettingsManager.getSettings().getDicomServicesSettings();
             for (MoveDestination m : ob.getMoveDestinations()) {
                 if (m.getAETitle().equals(destination)) {
                     hostDest = m.getIpAddrs();
                     portAddr = m.getPort();
+                    associations = m.getAssociations();
                 }
             }
 
@@ -214,43 +219,21 @@ public class CMoveServiceSCP extends CMoveService {
                 logger.warn("No originator message ID, aborting");
                 return null;
             }
-            try {
-                logger.debug("Destination: {}", destination);
-                SendReport report = callDCMSend(files, portAddr, hostDest, destination, CMoveID);
-
-                // fill in properties about sub-operations
-                rsp.putInt(Tag.NumberOfCompletedSuboperations, VR.US, report.filesSent);
-                int remaining = report.filesToSend - report.filesSent - report.filesFailed;
-                if (remaining > 0) {
-                    rsp.putInt(Tag.NumberOfRemainingSuboperations, VR.US, remaining);
-                }
-                int totalErrors = report.filesFailed + report.filesSkipped;
-                if (totalErrors > 0) {
-                    rsp.putInt(Tag.NumberOfFailedSuboperations, VR.US, totalErrors);
-                }
-                if (report.errorID == 0) {
-                    // report warning if there is at least one file failure
-                    int code = totalErrors > 0 ? 0xB000 : Status.Success;
-                    rsp.putInt(Tag.Status, VR.US, code);
-                } else {
-                    rsp.putInt(Tag.Status, VR.US, 0xC000 | Status.ProcessingFailure);
-                    rsp.putInt(Tag.ErrorID, VR.US, ERROR_ID_FILE_TRANSMISSION);
-                    rsp.putString(Tag.ErrorComment, VR.LO, "DICOM file transmission failed");
-                }
-
-            } catch (Exception ex) {
-                logger.error("Failed to send files to DICOM node {}", destination, ex);
-                rsp.putInt(Tag.Status, VR.US, 0xC000 | Status.ProcessingFailure);
-                rsp.putInt(Tag.ErrorID, VR.US, ERROR_ID_GENERAL_FAILURE);
-                rsp.putString(Tag.ErrorComment, VR.LO, ex.getMessage());
-            }
+            logger.debug("Destination: {}", destination);
+            MoveSubOperations ops =
+                    new MoveSubOperations(files, hostDest, portAddr, destination, CMoveID, associations);
+            ops.start();
+            return new MoveRSP(data, rsp, ops);
         }
 
         return new MoveRSP(data, rsp);
     }
 
-    private static final int ERROR_ID_FILE_TRANSMISSION = 1;
-    private static final int ERROR_ID_GENERAL_FAILURE = 10;
+    static final int ERROR_ID_FILE_TRANSMISSION = 1;
+    static final int ERROR_ID_GENERAL_FAILURE = 10;
+
+    /** Number of parallel associations to use for move destinations which do not specify it */
+    private static final int DEFAULT_ASSOCIATIONS = Integer.getInteger("dicoogle.cmove.associations", 1);
 
     /**
      * @return the service
@@ -266,64 +249,11 @@ public class CMoveServiceSCP extends CMoveService {
         this.service = service;
     }
 
-    private static class SendReport {
-        final int errorID;
-        final int filesSent;
-        final int filesToSend;
-        final int filesFailed;
-        final int filesSkipped;
-
-        public SendReport(int errorID, int filesSent, int filesToSend, int filesFailed, int filesSkipped) {
-            this.errorID = errorID;
-            this.filesSent = filesSent;
-            this.filesToSend = filesToSend;
-            this.filesFailed = filesFailed;
-            this.filesSkipped = filesSkipped;
+    private static String uid(Object o) {
+        if (o == null) {
+            return null;
         }
-    }
-
-    private static SendReport callDCMSend(List<URI> files, int port, String hostname, String AETitle, String cmoveID)
-            throws IOException, ConfigurationException, InterruptedException {
-
-        DicoogleDcmSend dcmsnd = new DicoogleDcmSend();
-
-        dcmsnd.setRemoteHost(hostname);
-        dcmsnd.setRemotePort(port);
-
-        for (URI uri : files) {
-            StorageInterface plugin = PluginController.getInstance().getStorageForSchema(uri);
-            logger.debug("uri: {}", uri);
-
-            if (plugin != null) {
-                logger.debug("Retrieving {}", uri);
-                Iterable<StorageInputStream> it = plugin.at(uri);
-
-                for (StorageInputStream file : it) {
-                    dcmsnd.addFile(file);
-                    logger.debug("Added file to DcmSend: {}", uri);
-                }
-            }
-
-        }
-        dcmsnd.setCalledAET(AETitle);
-
-        dcmsnd.configureTransferCapability();
-
-        dcmsnd.setMoveOriginatorMessageID(cmoveID);
-        dcmsnd.start();
-        dcmsnd.open();
-        int errorID;
-        try {
-            dcmsnd.send();
-            errorID = 0;
-        } catch (IOException ex) {
-            // assume that there was a fatal error in the transmission
-            errorID = ERROR_ID_FILE_TRANSMISSION;
-        } finally {
-            dcmsnd.close();
-        }
-
-        return new SendReport(errorID, dcmsnd.getNumberOfFilesSent(), dcmsnd.getNumberOfFilesToSend(),
-                dcmsnd.getNumberOfFilesFailed(), dcmsnd.getNumberOfFilesSkipped());
+        String uid = o.toString().trim();
+        return uid.isEmpty() ? null : uid;
     }
 }
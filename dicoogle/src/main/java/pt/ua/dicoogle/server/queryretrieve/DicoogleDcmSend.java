@@ -32,6 +32,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Executor;
+import java.util.function.Supplier;
 
 
 import com.google.common.io.ByteStreams;
@@ -59,7 +60,6 @@ import org.dcm4che2.net.PDVOutputStream;
 import org.dcm4che2.net.TransferCapability;
 import org.dcm4che2.net.UserIdentity;
 import org.dcm4che2.net.service.StorageCommitmentService;
-import org.dcm4che2.util.CloseUtils;
 import org.dcm4che2.util.StringUtils;
 import org.dcm4che2.util.UIDUtils;
 import org.slf4j.Logger;
@@ -67,6 +67,7 @@ import org.slf4j.LoggerFactory;
 
 import pt.ua.dicoogle.core.settings.ServerSettingsManager;
 import pt.ua.dicoogle.sdk.StorageInputStream;
+import pt.ua.dicoogle.taskManager.VirtualThreads;
 
 /** A DICOM object sender for Dicoogle.
  * 
@@ -103,7 +104,11 @@ public class DicoogleDcmSend extends StorageCommitmentService {
     private static final boolean FILE_READ_GUARD =
             System.getProperty("dicoogle.store.fileReadGuard", "").equalsIgnoreCase("true");
 
-    private Executor executor = new NewThreadExecutor("DCMSND");
+    /** Shared executor for associations in the virtual thread execution mode */
+    private static final Executor VIRTUAL_EXECUTOR =
+            VirtualThreads.isEnabled() ? VirtualThreads.newThreadPerTaskExecutor("DCMSND") : null;
+
+    private Executor executor = VirtualThreads.isEnabled() ? VIRTUAL_EXECUTOR : new NewThreadExecutor("DCMSND");
 
     private NetworkApplicationEntity remoteAE = new NetworkApplicationEntity();
 
@@ -129,16 +134,23 @@ public class DicoogleDcmSend extends StorageCommitmentService {
 
     private int transcoderBufferSize = 1024;
 
-    /** Number of files sent successfully */
-    private int filesSent = 0;
+    /** Number of files sent successfully, including those with a warning status */
+    private volatile int filesSent = 0;
+
+    /** Number of files sent with a warning status */
+    private volatile int filesWarned = 0;
 
     /** Number of files skipped upon addition due to storage problems of the DICOM file
      */
-    private int filesSkipped = 0;
+    private volatile int filesSkipped = 0;
 
     /** Number of files which failed to be sent due to presentation context negotation issues
+     * or a failure status from the destination
      */
-    private int filesFailed = 0;
+    private volatile int filesFailed = 0;
+
+    /** Whether sending further files was cancelled */
+    private volatile boolean cancelled = false;
 
     private long totalSize = 0L;
 
@@ -345,7 +357,7 @@ public class DicoogleDcmSend extends StorageCommitmentService {
         this.transcoderBufferSize = transcoderBufferSize;
     }
 
-    public final int getNumberOfFilesToSend() {
+    public final synchronized int getNumberOfFilesToSend() {
         return files.size();
     }
 
@@ -353,6 +365,10 @@ public class DicoogleDcmSend extends StorageCommitmentService {
         return filesSent;
     }
 
+    public final int getNumberOfFilesWarned() {
+        return filesWarned;
+    }
+
     public final int getNumberOfFilesSkipped() {
         return filesSkipped;
     }
@@ -371,41 +387,14 @@ public class DicoogleDcmSend extends StorageCommitmentService {
 
     public synchronized void addFile(StorageInputStream item) {
         final FileInfo info;
-        final InputStream inStream;
         try {
             info = new FileInfo(item);
-            inStream = info.getInputStream();
         } catch (IOException e) {
             LOGGER.error("Failed to fetch file {} - skipped.", item.getURI(), e);
             this.filesSkipped += 1;
             return;
         }
-        DicomObject dcmObj = new BasicDicomObject();
-        DicomInputStream in = null;
-        try {
-            in = new DicomInputStream(inStream);
-            in.setHandler(new StopTagInputHandler(Tag.StudyDate));
-            in.readDicomObject(dcmObj, PEEK_LEN);
-            info.tsuid = in.getTransferSyntax().uid();
-            info.fmiEndPos = in.getEndOfFileMetaInfoPosition();
-        } catch (IOException e) {
-            LOGGER.warn("Failed to parse file {} - skipped.", item.getURI(), e);
-            this.filesSkipped += 1;
-            return;
-        } finally {
-            CloseUtils.safeClose(in);
-        }
-
-        info.cuid = dcmObj.getString(Tag.SOPClassUID);
-        if (info.cuid == null) {
-            LOGGER.warn("Missing SOP Class UID in {} - skipped.", item.getURI());
-            this.filesSkipped += 1;
-            return;
-        }
-        info.iuid = dcmObj.getString(Tag.SOPInstanceUID);
-        if (info.iuid == null) {
-            LOGGER.warn("Missing SOP Instance UID in {} - skipped.", item.getURI());
-            this.filesSkipped += 1;
+        if (!readHeader(info)) {
             return;
         }
 
@@ -413,6 +402,27 @@ public class DicoogleDcmSend extends StorageCommitmentService {
         files.add(info);
     }
 
+    /** Read the header of a file to be sent, if it was not read yet.
+     *
+     * @param info the file descriptor
+     * @return whether the file can be sent, otherwise it is counted as skipped
+     */
+    private boolean readHeader(FileInfo info) {
+        if (info.headerRead) {
+            return true;
+        }
+        try {
+            info.readHeader();
+            return true;
+        } catch (IOException e) {
+            LOGGER.warn("Failed to parse file {} - skipped.", info.item.getURI(), e);
+            synchronized (this) {
+                this.filesSkipped += 1;
+            }
+            return false;
+        }
+    }
+
     public void addTransferCapability(String cuid, String tsuid) {
         Set<String> ts = as2ts.get(cuid);
         if (fileref) {
@@ -476,70 +486,109 @@ public class DicoogleDcmSend extends StorageCommitmentService {
     }
 
     public void send() throws IOException {
-        for (int i = 0, n = files.size(); i < n; ++i) {
-            FileInfo info = files.get(i);
-            TransferCapability tc = assoc.getTransferCapabilityAsSCU(info.cuid);
-            if (tc == null) {
-                LOGGER.warn("{} not supported by {}, skip file {}", UIDDictionary.getDictionary().prompt(info.cuid),
-                        remoteAE.getAETitle(), info.item.getURI());
-                continue;
+        for (int i = 0, n = files.size(); i < n && !cancelled; ++i) {
+            sendFile(files.get(i));
+        }
+        waitForDimseRSP();
+    }
+
+    /** Send the files obtained from the given source, one at a time,
+     * until the source is exhausted or sending is cancelled.
+     * The header of each file is read right before it is sent,
+     * so the source may be shared by multiple senders.
+     *
+     * @param source a supplier of files to send, yielding null when there are no more files
+     * @throws IOException on a fatal transmission error, after which the association is aborted
+     */
+    public void send(Supplier<FileInfo> source) throws IOException {
+        FileInfo info;
+        while (!cancelled && (info = source.get()) != null) {
+            synchronized (this) {
+                files.add(info);
             }
+            sendFile(info);
+        }
+        waitForDimseRSP();
+    }
 
+    /** Stop sending further files. Transfers in progress are not interrupted. */
+    public void cancel() {
+        cancelled = true;
+    }
 
-            String tsuid =
-                    selectTransferSyntax(tc.getTransferSyntax(), fileref ? DCM4CHEE_URI_REFERENCED_TS_UID : info.tsuid);
-            if (tsuid == null) {
-                LOGGER.warn("{} with {} not supported by {}, skip file {}",
-                        UIDDictionary.getDictionary().prompt(info.cuid),
-                        UIDDictionary.getDictionary().prompt(fileref ? DCM4CHEE_URI_REFERENCED_TS_UID : info.tsuid),
-                        remoteAE.getAETitle(), info.item.getURI());
-                continue;
-            }
+    private void waitForDimseRSP() {
+        try {
+            assoc.waitForDimseRSP();
+        } catch (InterruptedException e) {
+            // should not happen
+            throw new RuntimeException(e);
+        }
+    }
 
-            try {
-                DimseRSPHandler rspHandler = new DimseRSPHandler() {
-                    @Override
-                    public void onDimseRSP(Association as, DicomObject cmd, DicomObject data) {
-                        DicoogleDcmSend.this.onDimseRSP(cmd);
-                    }
-                };
-
-                if (MoveOriginatorMessageID != null) {
-                    int messageID = Integer.parseInt(MoveOriginatorMessageID);
-                    assoc.cstore(info.cuid, info.iuid, priority, assoc.getCallingAET(), messageID, new DataWriter(info),
-                            tsuid, rspHandler);
-                } else {
-                    assoc.cstore(info.cuid, info.iuid, priority, new DataWriter(info), tsuid, rspHandler);
-                }
+    private void sendFile(final FileInfo info) throws IOException {
+        if (!readHeader(info)) {
+            return;
+        }
+        TransferCapability tc = assoc.getTransferCapabilityAsSCU(info.cuid);
+        if (tc == null) {
+            LOGGER.warn("{} not supported by {}, skip file {}", UIDDictionary.getDictionary().prompt(info.cuid),
+                    remoteAE.getAETitle(), info.item.getURI());
+            onFailure();
+            return;
+        }
 
-            } catch (NoPresentationContextException e) {
-                LOGGER.warn("Cannot send {}: {}", info.item.getURI(), e.getMessage());
-                filesFailed += 1;
-            } catch (IOException e) {
-                LOGGER.error("Fatal I/O error while sending {}", info.item.getURI(), e);
-                // since this exception can be thrown mid-transfer,
-                // the sending process cannot be recovered.
-                // Try to abort the association and propagate exception
-                try {
-                    assoc.abort();
-                } catch (Exception ex) {
-                    // ignore
-                    LOGGER.warn("Association could not be aborted: {}", ex.getMessage());
-                }
-                throw e;
-            } catch (InterruptedException e) {
-                // should not happen
-                throw new RuntimeException(e);
-            }
+
+        String tsuid =
+                selectTransferSyntax(tc.getTransferSyntax(), fileref ? DCM4CHEE_URI_REFERENCED_TS_UID : info.tsuid);
+        if (tsuid == null) {
+            LOGGER.warn("{} with {} not supported by {}, skip file {}", UIDDictionary.getDictionary().prompt(info.cuid),
+                    UIDDictionary.getDictionary().prompt(fileref ? DCM4CHEE_URI_REFERENCED_TS_UID : info.tsuid),
+                    remoteAE.getAETitle(), info.item.getURI());
+            onFailure();
+            return;
         }
+
         try {
-            assoc.waitForDimseRSP();
+            DimseRSPHandler rspHandler = new DimseRSPHandler() {
+                @Override
+                public void onDimseRSP(Association as, DicomObject cmd, DicomObject data) {
+                    DicoogleDcmSend.this.onDimseRSP(info, cmd);
+                }
+            };
+
+            if (MoveOriginatorMessageID != null) {
+                int messageID = Integer.parseInt(MoveOriginatorMessageID);
+                assoc.cstore(info.cuid, info.iuid, priority, assoc.getCallingAET(), messageID, new DataWriter(info),
+                        tsuid, rspHandler);
+            } else {
+                assoc.cstore(info.cuid, info.iuid, priority, new DataWriter(info), tsuid, rspHandler);
+            }
+
+        } catch (NoPresentationContextException e) {
+            LOGGER.warn("Cannot send {}: {}", info.item.getURI(), e.getMessage());
+            onFailure();
+        } catch (IOException e) {
+            LOGGER.error("Fatal I/O error while sending {}", info.item.getURI(), e);
+            // since this exception can be thrown mid-transfer,
+            // the sending process cannot be recovered.
+            // Try to abort the association and propagate exception
+            try {
+                assoc.abort();
+            } catch (Exception ex) {
+                // ignore
+                LOGGER.warn("Association could not be aborted: {}", ex.getMessage());
+            }
+            throw e;
         } catch (InterruptedException e) {
             // should not happen
             throw new RuntimeException(e);
         }
     }
 
+    private synchronized void onFailure() {
+        filesFailed += 1;
+    }
+
     public boolean commit() {
         DicomObject actionInfo = new BasicDicomObject();
         actionInfo.putString(Tag.TransactionUID, VR.UI, UIDUtils.createUID());
@@ -636,6 +685,8 @@ public class DicoogleDcmSend extends StorageCommitmentService {
 
         long length;
 
+        boolean headerRead;
+
         boolean transferred;
 
         int status;
@@ -645,6 +696,45 @@ public class DicoogleDcmSend extends StorageCommitmentService {
             this.length = item.getSize();
         }
 
+        /** Create a descriptor of a DICOM object whose header is only read when it is about to be sent.
+         *
+         * @param item the DICOM object's storage item
+         * @param cuid the SOP class UID, as known beforehand
+         * @param iuid the SOP instance UID, as known beforehand, may be null
+         * @param tsuid the transfer syntax UID, as known beforehand, may be null
+         * @throws IOException if the size of the item could not be obtained
+         */
+        public FileInfo(StorageInputStream item, String cuid, String iuid, String tsuid) throws IOException {
+            this(item);
+            this.cuid = cuid;
+            this.iuid = iuid;
+            this.tsuid = tsuid;
+        }
+
+        /** Read the header of the DICOM object, up to the study date.
+         *
+         * @throws IOException if the file could not be read or lacks the SOP class or instance UID
+         */
+        void readHeader() throws IOException {
+            DicomObject dcmObj = new BasicDicomObject();
+            try (DicomInputStream in = new DicomInputStream(getInputStream())) {
+                in.setHandler(new StopTagInputHandler(Tag.StudyDate));
+                in.readDicomObject(dcmObj, PEEK_LEN);
+                this.tsuid = in.getTransferSyntax().uid();
+                this.fmiEndPos = in.getEndOfFileMetaInfoPosition();
+            }
+
+            this.cuid = dcmObj.getString(Tag.SOPClassUID);
+            if (this.cuid == null) {
+                throw new IOException("Missing SOP Class UID");
+            }
+            this.iuid = dcmObj.getString(Tag.SOPInstanceUID);
+            if (this.iuid == null) {
+                throw new IOException("Missing SOP Instance UID");
+            }
+            this.headerRead = true;
+        }
+
         public InputStream getInputStream() throws IOException {
             InputStream iStream = this.item.getInputStream();
 
@@ -725,10 +815,8 @@ public class DicoogleDcmSend extends StorageCommitmentService {
                 info.item.getURI(), info.cuid, info.tsuid, cmd);
     }
 
-    private void onDimseRSP(DicomObject cmd) {
+    private synchronized void onDimseRSP(FileInfo info, DicomObject cmd) {
         int status = cmd.getInt(Tag.Status);
-        int msgId = cmd.getInt(Tag.MessageIDBeingRespondedTo);
-        FileInfo info = files.get(msgId - 1);
         info.status = status;
         switch (status) {
             case 0:
@@ -742,9 +830,11 @@ public class DicoogleDcmSend extends StorageCommitmentService {
                 info.transferred = true;
                 totalSize += info.length;
                 ++filesSent;
+                ++filesWarned;
                 promptWarnRSP("Received RSP with Status ", status, info, cmd);
                 break;
             default:
+                ++filesFailed;
                 promptErrRSP("Received RSP with Status ", status, info, cmd);
         }
     }
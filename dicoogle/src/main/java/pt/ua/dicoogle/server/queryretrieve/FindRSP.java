@@ -39,6 +39,7 @@ import org.dcm4che2.net.Status;
 
 
 import pt.ua.dicoogle.core.exceptions.CFindNotSupportedException;
+import pt.ua.dicoogle.sdk.datastructs.QueryExpression;
 import pt.ua.dicoogle.server.SearchDicomResult;
 
 /**
@@ -57,7 +58,12 @@ public class FindRSP implements DimseRSP {
      */
     private DicomObject mwl = null;
 
-    SearchDicomResult search = null;
+    volatile SearchDicomResult search = null;
+
+    /** Set when the requester sent a C-CANCEL */
+    private volatile boolean cancelled = false;
+    /** Set once the final response was produced */
+    private boolean done = false;
 
     private String callingAET;
 
@@ -114,7 +120,7 @@ public class FindRSP implements DimseRSP {
 
         extrafields.add("SOPInstanceUID");
 
-        String query = getQueryString(keys, rsp);
+        QueryExpression query = getQueryExpression(keys, rsp);
         // System.out.println("OLD Query: "+query);
         query = applyQueryFilter(query);
 
@@ -134,9 +140,16 @@ public class FindRSP implements DimseRSP {
             this.rsp.putInt(Tag.Status, VR.US, 0xA900);
             this.rsp.putInt(Tag.OffendingElement, VR.AT, Tag.QueryRetrieveLevel);
             this.rsp.putString(Tag.ErrorComment, VR.LO, "Query/Retrieve Level invalid or missing");
+            this.done = true;
             return;
         }
-        search = new SearchDicomResult(query, true, extrafields, level);
+        // related series and instance counts, and the modalities in a study,
+        // are only complete once all results were seen,
+        // otherwise each study or series is sent as soon as it is found
+        boolean aggregate = keys.contains(Tag.NumberOfStudyRelatedInstances)
+                || keys.contains(Tag.NumberOfStudyRelatedSeries) || keys.contains(Tag.NumberOfSeriesRelatedInstances)
+                || (level == SearchDicomResult.QUERYLEVEL.STUDY && keys.contains(Tag.ModalitiesInStudy));
+        search = new SearchDicomResult(query, true, extrafields, level, aggregate);
 
         // always return Specific Character Set
         if (!keys.contains(Tag.SpecificCharacterSet)) {
@@ -149,11 +162,11 @@ public class FindRSP implements DimseRSP {
 
 
 
-    private String getQueryString(DicomObject keys, DicomObject rsp) {
-        String result = "";
+    private QueryExpression getQueryExpression(DicomObject keys, DicomObject rsp) {
+        QueryExpression result = QueryExpression.raw("");
         try {
             CFindBuilder c = new CFindBuilder(keys, rsp);
-            result = c.getQueryString();
+            result = c.getQueryExpression();
         } catch (CFindNotSupportedException ex) {
             LoggerFactory.getLogger(FindRSP.class).error(ex.getMessage(), ex);
         }
@@ -161,7 +174,7 @@ public class FindRSP implements DimseRSP {
         return result;
     }
 
-    private String applyQueryFilter(String normalQuery) {
+    private QueryExpression applyQueryFilter(QueryExpression normalQuery) {
         return normalQuery;
     }
 
@@ -181,32 +194,28 @@ public class FindRSP implements DimseRSP {
 
     @Override
     public boolean next() throws IOException, InterruptedException {
-        if (search != null) {
-            if (search.hasNext()) {
-                // DebugManager.getSettings().debug("We have next, so get it");
-                mwl = search.next();
-                // if (mwl.matches(this.keys, true))
-                // {
-
-                // always return Specific Character Set
-                if (!this.mwl.contains(Tag.SpecificCharacterSet))
-                    this.mwl.putNull(Tag.SpecificCharacterSet, VR.CS);
-                this.rsp.putInt(Tag.Status, VR.US, mwl.containsAll(keys) ? Status.Pending : Status.PendingWarning);
-                return true;
-                // }
-            }
-
-            /** Sucess */
-            this.rsp.putInt(Tag.Status, VR.US, Status.Success);
-            /** Clean pointers */
-            this.mwl = null;
-            this.search = null;
+        if (done) {
+            return false;
+        }
+        if (!cancelled && search.hasNext()) {
+            // DebugManager.getSettings().debug("We have next, so get it");
+            mwl = search.next();
+
+            // always return Specific Character Set
+            if (!this.mwl.contains(Tag.SpecificCharacterSet))
+                this.mwl.putNull(Tag.SpecificCharacterSet, VR.CS);
+            this.rsp.putInt(Tag.Status, VR.US, mwl.containsAll(keys) ? Status.Pending : Status.PendingWarning);
             return true;
-
-        } else {
-            this.rsp.putInt(Tag.Status, VR.US, Status.Cancel);
         }
-        return false;
+
+        /** Sucess, or cancelled by the requester */
+        this.rsp.putInt(Tag.Status, VR.US, cancelled ? Status.Cancel : Status.Success);
+        /** Clean pointers */
+        this.mwl = null;
+        this.search.close();
+        this.search = null;
+        this.done = true;
+        return true;
     }
 
     /**
@@ -229,15 +238,16 @@ public class FindRSP implements DimseRSP {
         return this.mwl != null ? this.mwl.subSet(this.keys) : null;
     }
 
+    /**
+     * Handle a C-CANCEL from the requester. The underlying query providers are cancelled right away,
+     * and the next response is the final one, with a Cancel status.
+     */
     @Override
     public void cancel(Association arg0) throws IOException {
-
-        search = null;
-        try {
-            arg0.release(true);
-
-        } catch (InterruptedException ex) {
-            LoggerFactory.getLogger(FindRSP.class).error(ex.getMessage(), ex);
+        cancelled = true;
+        SearchDicomResult s = search;
+        if (s != null) {
+            s.close();
         }
     }
 
@@ -23,6 +23,7 @@
 package pt.ua.dicoogle.server.queryretrieve;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 import org.dcm4che2.data.DicomObject;
 import org.dcm4che2.data.Tag;
@@ -34,6 +35,10 @@ import org.dcm4che2.net.Status;
 import pt.ua.dicoogle.server.SearchDicomResult;
 
 /** Custom C-MOVE response for {@linkplain CMoveServiceSCP}
+ *
+ * When built over {@linkplain MoveSubOperations}, pending responses with the number of
+ * completed, failed and remaining sub-operations are produced while the files are sent,
+ * followed by a final response once all of them are done.
  *
  * @author Luís A. Bastião Silva <bastiao@ua.pt>
  */
@@ -44,20 +49,42 @@ public class MoveRSP implements DimseRSP {
     DicomObject current = null;
     SearchDicomResult search = null;
 
+    /** How long to wait for the sub-operations before sending another pending response, in milliseconds */
+    private static final long PENDING_INTERVAL = Long.getLong("dicoogle.cmove.pendingInterval", 1000);
+
+    private final MoveSubOperations ops;
+    private boolean first = true;
+    private boolean done = false;
 
     public MoveRSP(DicomObject keys, DicomObject rsp) {
         /* Save args */
         this.rsp = rsp;
         this.keys = keys;
         this.current = rsp;
+        this.ops = null;
 
         if (!this.rsp.contains(Tag.Status)) {
             this.rsp.putInt(Tag.Status, VR.US, Status.Success);
         }
     }
 
+    /** Create a C-MOVE response reporting on the progress of the given sub-operations.
+     *
+     * @param keys the identifier of the C-MOVE request
+     * @param rsp the response command, updated on each call to {@link #next()}
+     * @param ops the sub-operations, already started
+     */
+    public MoveRSP(DicomObject keys, DicomObject rsp, MoveSubOperations ops) {
+        this.rsp = rsp;
+        this.keys = keys;
+        this.ops = ops;
+    }
+
     @Override
     public boolean next() throws IOException, InterruptedException {
+        if (this.ops != null) {
+            return nextProgress();
+        }
         if (this.current == null) {
             return false;
         }
@@ -67,6 +94,51 @@ public class MoveRSP implements DimseRSP {
 
     }
 
+    private boolean nextProgress() throws InterruptedException {
+        if (this.done) {
+            return false;
+        }
+        if (!this.first) {
+            this.ops.await(PENDING_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        this.first = false;
+
+        if (!this.ops.isDone()) {
+            this.rsp.putInt(Tag.Status, VR.US, Status.Pending);
+            putCounts(true);
+            return true;
+        }
+
+        this.done = true;
+        putCounts(false);
+        int errorID = this.ops.getErrorID();
+        if (errorID != 0) {
+            this.rsp.putInt(Tag.Status, VR.US, 0xC000 | Status.ProcessingFailure);
+            this.rsp.putInt(Tag.ErrorID, VR.US, errorID);
+            this.rsp.putString(Tag.ErrorComment, VR.LO, "DICOM file transmission failed");
+        } else if (this.ops.isCancelled()) {
+            this.rsp.putInt(Tag.Status, VR.US, Status.Cancel);
+        } else if (this.ops.getFailed() > 0 || this.ops.getWarnings() > 0) {
+            // report warning if there is at least one file failure
+            this.rsp.putInt(Tag.Status, VR.US, 0xB000);
+        } else {
+            this.rsp.putInt(Tag.Status, VR.US, Status.Success);
+        }
+        return true;
+    }
+
+    private void putCounts(boolean pending) {
+        this.rsp.putInt(Tag.NumberOfCompletedSuboperations, VR.US, this.ops.getCompleted());
+        this.rsp.putInt(Tag.NumberOfWarningSuboperations, VR.US, this.ops.getWarnings());
+        this.rsp.putInt(Tag.NumberOfFailedSuboperations, VR.US, this.ops.getFailed());
+        int remaining = this.ops.getRemaining();
+        if (pending || remaining > 0) {
+            this.rsp.putInt(Tag.NumberOfRemainingSuboperations, VR.US, remaining);
+        } else {
+            this.rsp.remove(Tag.NumberOfRemainingSuboperations);
+        }
+    }
+
     @Override
     public DicomObject getCommand() {
         return this.rsp;
@@ -79,7 +151,9 @@ public class MoveRSP implements DimseRSP {
 
     @Override
     public void cancel(Association arg0) throws IOException {
-        // TODO
+        if (this.ops != null) {
+            this.ops.cancel();
+        }
     }
 
 }
@@ -0,0 +1,331 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.queryretrieve;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dcm4che2.net.ConfigurationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import pt.ua.dicoogle.plugins.PluginController;
+import pt.ua.dicoogle.sdk.StorageInputStream;
+import pt.ua.dicoogle.sdk.StorageInterface;
+import pt.ua.dicoogle.taskManager.VirtualThreads;
+
+/** The C-STORE sub-operations of a C-MOVE request,
+ * sent to the move destination over one or more parallel associations.
+ *
+ * All associations take files from a shared queue, and each file is only opened and its header read
+ * by the association which is about to send it, so the first files are sent right away
+ * instead of after every file was read.
+ * The SOP class and transfer syntax of each file, needed to negotiate the associations,
+ * are taken from the index whenever available.
+ * Files for which either of them is missing from the index have their header read in advance.
+ *
+ * @see DicoogleDcmSend
+ */
+public class MoveSubOperations {
+    private static final Logger logger = LoggerFactory.getLogger(MoveSubOperations.class);
+
+    private static final ExecutorService EXECUTOR = VirtualThreads.newThreadPerTaskExecutor("CMOVE");
+
+    /** A DICOM object to move, with the attributes known from the index. */
+    public static final class Item {
+        final URI uri;
+        final String cuid;
+        final String iuid;
+        final String tsuid;
+        /** the file descriptor, if it had to be read in advance */
+        DicoogleDcmSend.FileInfo info;
+
+        /**
+         * @param uri the location of the DICOM object
+         * @param cuid the SOP class UID, or null if unknown
+         * @param iuid the SOP instance UID, or null if unknown
+         * @param tsuid the transfer syntax UID, or null if unknown
+         */
+        public Item(URI uri, String cuid, String iuid, String tsuid) {
+            this.uri = uri;
+            this.cuid = cuid;
+            this.iuid = iuid;
+            this.tsuid = tsuid;
+        }
+    }
+
+    private final List<Item> items;
+    private final int total;
+    private final Queue<Item> pending;
+    private final String hostname;
+    private final int port;
+    private final String calledAET;
+    private final String moveOriginatorMessageID;
+    private final int associations;
+
+    private final List<DicoogleDcmSend> senders = new CopyOnWriteArrayList<>();
+    /** files which could not be retrieved from storage */
+    private final AtomicInteger skipped = new AtomicInteger();
+    private volatile CountDownLatch finished = new CountDownLatch(0);
+    private volatile int errorID = 0;
+    private volatile boolean cancelled = false;
+    /** the transfer syntaxes to propose for each SOP class */
+    private volatile Map<String, Set<String>> capabilities = Collections.emptyMap();
+
+    /**
+     * @param items the DICOM objects to move
+     * @param hostname the host name of the move destination
+     * @param port the port of the move destination
+     * @param calledAET the AE title of the move destination
+     * @param moveOriginatorMessageID the message ID of the C-MOVE request
+     * @param associations the maximum number of parallel associations
+     */
+    public MoveSubOperations(List<Item> items, String hostname, int port, String calledAET,
+            String moveOriginatorMessageID, int associations) {
+        this.items = new ArrayList<>(items);
+        this.total = items.size();
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.hostname = hostname;
+        this.port = port;
+        this.calledAET = calledAET;
+        this.moveOriginatorMessageID = moveOriginatorMessageID;
+        this.associations = Math.max(1, associations);
+    }
+
+    /** Start sending the files in the background.
+     * Files whose SOP class or transfer syntax is not known from the index are read here,
+     * since they are needed to negotiate the associations.
+     */
+    public synchronized void start() {
+        for (Iterator<Item> it = items.iterator(); it.hasNext();) {
+            Item item = it.next();
+            if (needsHeader(item) && !readInAdvance(item)) {
+                it.remove();
+            }
+        }
+        pending.addAll(items);
+        capabilities = transferCapabilities(items);
+
+        int n = Math.min(associations, items.size());
+        finished = new CountDownLatch(n);
+        for (int i = 0; i < n; i++) {
+            EXECUTOR.execute(this::runAssociation);
+        }
+    }
+
+    /** Check whether the header of an item must be read before negotiating the associations,
+     * because its SOP class or transfer syntax is not known from the index.
+     * Guessing the transfer syntax is not an option,
+     * as objects in an encapsulated (compressed) transfer syntax could not be sent.
+     *
+     * @param item the item
+     * @return whether the header of the item must be read in advance
+     */
+    static boolean needsHeader(Item item) {
+        return item.info == null && (item.cuid == null || item.tsuid == null);
+    }
+
+    /** Collect the transfer syntaxes to propose for each SOP class of the given items.
+     *
+     * @param items the items to send, with their SOP class and transfer syntax known
+     * @return the transfer syntaxes by SOP class UID
+     */
+    static Map<String, Set<String>> transferCapabilities(List<Item> items) {
+        Map<String, Set<String>> as2ts = new LinkedHashMap<>();
+        for (Item item : items) {
+            String cuid = item.info != null ? item.info.cuid : item.cuid;
+            String tsuid = item.info != null ? item.info.tsuid : item.tsuid;
+            as2ts.computeIfAbsent(cuid, k -> new LinkedHashSet<>()).add(tsuid);
+        }
+        return as2ts;
+    }
+
+    private boolean readInAdvance(Item item) {
+        StorageInputStream stream = resolve(item.uri);
+        if (stream == null) {
+            skipped.incrementAndGet();
+            return false;
+        }
+        try {
+            DicoogleDcmSend.FileInfo info = new DicoogleDcmSend.FileInfo(stream);
+            info.readHeader();
+            item.info = info;
+            return true;
+        } catch (IOException ex) {
+            logger.warn("Failed to read file {} - skipped.", item.uri, ex);
+            skipped.incrementAndGet();
+            return false;
+        }
+    }
+
+    private void runAssociation() {
+        DicoogleDcmSend dcmsnd = new DicoogleDcmSend();
+        try {
+            dcmsnd.setRemoteHost(hostname);
+            dcmsnd.setRemotePort(port);
+            for (Map.Entry<String, Set<String>> e : capabilities.entrySet()) {
+                for (String tsuid : e.getValue()) {
+                    dcmsnd.addTransferCapability(e.getKey(), tsuid);
+                }
+            }
+            dcmsnd.setCalledAET(calledAET);
+            dcmsnd.configureTransferCapability();
+            dcmsnd.setMoveOriginatorMessageID(moveOriginatorMessageID);
+            senders.add(dcmsnd);
+            if (cancelled) {
+                return;
+            }
+            dcmsnd.start();
+            dcmsnd.open();
+            try {
+                dcmsnd.send(this::nextFile);
+            } finally {
+                dcmsnd.close();
+            }
+        } catch (IOException ex) {
+            logger.error("Failed to send files to DICOM node {}", calledAET, ex);
+            errorID = CMoveServiceSCP.ERROR_ID_FILE_TRANSMISSION;
+        } catch (ConfigurationException | InterruptedException | RuntimeException ex) {
+            logger.error("Failed to send files to DICOM node {}", calledAET, ex);
+            errorID = CMoveServiceSCP.ERROR_ID_GENERAL_FAILURE;
+        } finally {
+            finished.countDown();
+        }
+    }
+
+    /** Obtain the next file to send, opening it only now. */
+    private DicoogleDcmSend.FileInfo nextFile() {
+        Item item;
+        while (!cancelled && (item = pending.poll()) != null) {
+            if (item.info != null) {
+                return item.info;
+            }
+            StorageInputStream stream = resolve(item.uri);
+            if (stream == null) {
+                skipped.incrementAndGet();
+                continue;
+            }
+            try {
+                return new DicoogleDcmSend.FileInfo(stream, item.cuid, item.iuid, item.tsuid);
+            } catch (IOException ex) {
+                logger.warn("Failed to fetch file {} - skipped.", item.uri, ex);
+                skipped.incrementAndGet();
+            }
+        }
+        return null;
+    }
+
+    private static StorageInputStream resolve(URI uri) {
+        StorageInterface plugin = PluginController.getInstance().getStorageForSchema(uri);
+        if (plugin == null) {
+            logger.warn("No storage for {} - skipped.", uri);
+            return null;
+        }
+        Iterator<StorageInputStream> it = plugin.at(uri).iterator();
+        if (!it.hasNext()) {
+            logger.warn("File {} not found in storage - skipped.", uri);
+            return null;
+        }
+        return it.next();
+    }
+
+    /** Stop sending further files. Transfers in progress are not interrupted. */
+    public void cancel() {
+        cancelled = true;
+        for (DicoogleDcmSend s : senders) {
+            s.cancel();
+        }
+    }
+
+    /** Wait until all files were sent, or the given time elapses.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return whether all associations have finished
+     * @throws InterruptedException if the waiting thread was interrupted
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return finished.await(timeout, unit);
+    }
+
+    public boolean isDone() {
+        return finished.getCount() == 0;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /** @return the error ID of a failure in the transmission, or 0 if there was none */
+    public int getErrorID() {
+        return errorID;
+    }
+
+    /** @return the number of sub-operations */
+    public int getTotal() {
+        return total;
+    }
+
+    /** @return the number of sub-operations which completed successfully */
+    public int getCompleted() {
+        int n = 0;
+        for (DicoogleDcmSend s : senders) {
+            n += s.getNumberOfFilesSent() - s.getNumberOfFilesWarned();
+        }
+        return n;
+    }
+
+    /** @return the number of sub-operations which completed with a warning */
+    public int getWarnings() {
+        int n = 0;
+        for (DicoogleDcmSend s : senders) {
+            n += s.getNumberOfFilesWarned();
+        }
+        return n;
+    }
+
+    /** @return the number of sub-operations which failed */
+    public int getFailed() {
+        int n = skipped.get();
+        for (DicoogleDcmSend s : senders) {
+            n += s.getNumberOfFilesFailed() + s.getNumberOfFilesSkipped();
+        }
+        return n;
+    }
+
+    /** @return the number of sub-operations not yet completed */
+    public int getRemaining() {
+        return Math.max(0, getTotal() - getCompleted() - getWarnings() - getFailed());
+    }
+}
@@ -34,13 +34,20 @@ public class User implements UserRoleManager {
     private final String username;
     private String hash; // stores the Hash of this user (username + admin + passwordHash)
     private final boolean admin;
+    /** changes whenever the user's session tokens are revoked, see {@link #revokeTokens()} */
+    private volatile long tokenEpoch;
 
     private List<Role> roles = new ArrayList<>();
 
     public User(String username, String hash, boolean admin) {
+        this(username, hash, admin, 0);
+    }
+
+    public User(String username, String hash, boolean admin, long tokenEpoch) {
         this.username = username;
         this.admin = admin;
         this.hash = hash;
+        this.tokenEpoch = tokenEpoch;
     }
 
     public static User create(String username, boolean admin, char[] password) {
@@ -101,6 +108,19 @@ public class User implements UserRoleManager {
         return hash;
     }
 
+    /** @return the token epoch of this user, which signed session tokens must carry to be valid */
+    public long getTokenEpoch() {
+        return tokenEpoch;
+    }
+
+    /** Invalidate the signed session tokens issued to this user so far,
+     * by moving the user to a new token epoch.
+     * This happens on logout and whenever the password changes.
+     */
+    public synchronized void revokeTokens() {
+        tokenEpoch++;
+    }
+
     /** Verify the current password and assign a new password to this user.
      * @param oldPassword the current password as plain text, automatically
      * cleared
@@ -121,6 +141,7 @@ public class User implements UserRoleManager {
             return false;
 
         this.hash = HashService.hashPassword(password);
+        revokeTokens();
         return true;
     }
 
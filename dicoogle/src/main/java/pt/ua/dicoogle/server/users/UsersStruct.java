@@ -129,6 +129,29 @@ public class UsersStruct {
         return true;
     }
 
+    /**
+     * Revokes the session tokens issued to a user so far, persisting the user's new token epoch
+     *
+     * @param username
+     * @return true - if succeeded. false - if the user does not exist
+     */
+    public boolean revokeTokens(String username) {
+        User user = users.get(username);
+        if (user == null)
+            return false;
+
+        user.revokeTokens();
+        save();
+        return true;
+    }
+
+    /**
+     * Writes the users to the users file, such as after a password change
+     */
+    public synchronized void save() {
+        usersXML.printXML(users.values());
+    }
+
     public Collection<User> getUsers() {
         return users.values();
     }
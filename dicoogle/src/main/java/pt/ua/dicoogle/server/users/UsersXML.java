@@ -60,6 +60,7 @@ public class UsersXML extends DefaultHandler {
     private String Hash;
     private boolean admin;
     private String roles;
+    private long tokenEpoch;
 
 
     public UsersXML() {
@@ -86,6 +87,12 @@ public class UsersXML extends DefaultHandler {
             else
                 this.admin = false;
             this.roles = this.resolveAttrib("roles", attribs, "xp");
+            try {
+                this.tokenEpoch = Long.parseLong(this.resolveAttrib("tokenEpoch", attribs, "0"));
+            } catch (NumberFormatException ex) {
+                logger.warn("Bad token epoch of user {}, revoking the user's tokens", username);
+                this.tokenEpoch = System.currentTimeMillis();
+            }
         }
     }
 
@@ -95,7 +102,7 @@ public class UsersXML extends DefaultHandler {
         if (localName.equals("Users")) {
             isUsers = false;
         } else if (localName.equals("user")) {
-            User u = new User(username, Hash, admin);
+            User u = new User(username, Hash, admin, tokenEpoch);
             users.add(u);
             if (roles != null) {
                 String[] rolesTmp = roles.split(",");
@@ -187,6 +194,7 @@ public class UsersXML extends DefaultHandler {
                 }
 
                 atts.addAttribute("", "", "admin", "", temp);
+                atts.addAttribute("", "", "tokenEpoch", "", String.valueOf(user.getTokenEpoch()));
 
                 hd.startElement("", "", "user", atts);
                 atts.clear();
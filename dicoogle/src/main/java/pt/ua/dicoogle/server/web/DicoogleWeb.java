@@ -43,6 +43,8 @@ import pt.ua.dicoogle.server.web.servlets.management.RemoveServlet;
 import pt.ua.dicoogle.server.web.servlets.management.RunningTasksServlet;
 import pt.ua.dicoogle.server.web.servlets.management.ServerStorageServlet;
 import pt.ua.dicoogle.server.web.servlets.management.ServicesServlet;
+import pt.ua.dicoogle.server.web.servlets.management.TaskManagerMetricsServlet;
+import pt.ua.dicoogle.server.web.servlets.management.CacheMetricsServlet;
 import pt.ua.dicoogle.server.web.servlets.management.TransferOptionsServlet;
 
 import pt.ua.dicoogle.server.web.servlets.mlprovider.*;
@@ -84,6 +86,7 @@ import pt.ua.dicoogle.server.web.servlets.search.DumpServlet;
 import pt.ua.dicoogle.server.web.servlets.management.UnindexServlet;
 import pt.ua.dicoogle.server.web.servlets.webui.WebUIModuleServlet;
 import pt.ua.dicoogle.server.web.servlets.webui.WebUIServlet;
+import pt.ua.dicoogle.server.web.utils.ImagePrerenderer;
 import pt.ua.dicoogle.server.web.utils.LocalImageCache;
 import pt.ua.dicoogle.server.PluginRestletApplication;
 import pt.ua.dicoogle.server.web.utils.SimpleImageRetriever;
@@ -134,6 +137,7 @@ public class DicoogleWeb {
         cache = new LocalImageCache("dic2png", 300, 900, new SimpleImageRetriever()); // pooling rate of 12/hr and max un-used cache age of 15 minutes
         final ServletContextHandler dic2png = createServletHandler(new ImageServlet(cache), "/dic2png");
         cache.start(); // start the caching system
+        ImagePrerenderer.getInstance().setCache(cache); // and render newly stored images into it
 
         // setup the ROI extractor
         final ServletContextHandler roiExtractor = createServletHandler(new ROIServlet(), "/roi");
@@ -207,6 +211,8 @@ public class DicoogleWeb {
                 createServletHandler(new ForceIndexing(), "/management/tasks/index"),
                 createServletHandler(new UnindexServlet(), "/management/tasks/unindex"),
                 createServletHandler(new RemoveServlet(), "/management/tasks/remove"),
+                createServletHandler(new TaskManagerMetricsServlet(), "/management/tasks/executors"),
+                createServletHandler(new CacheMetricsServlet(cache), "/management/caches"),
                 createServletHandler(new ServicesServlet(ServicesServlet.ServiceType.STORAGE),
                         "/management/dicom/storage"),
                 createServletHandler(new ServicesServlet(ServicesServlet.ServiceType.QUERY), "/management/dicom/query"),
@@ -377,6 +383,7 @@ public class DicoogleWeb {
 
             // and remove the local cache, if any
             if (cache != null) {
+                ImagePrerenderer.getInstance().setCache(null);
                 cache.terminate();
                 cache = null;
             }
@@ -20,21 +20,60 @@ package pt.ua.dicoogle.server.web.auth;
 
 import pt.ua.dicoogle.server.users.*;
 
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Provides login routines for users.
  *
+ * Logged in users are given a session token, which expires after a period without use.
+ * If a token secret is configured, users are given stateless tokens signed with the secret instead,
+ * which are checked without looking up any session and expire after a fixed period.
+ * Signed tokens carry the token epoch of the user, so logging out or changing the password
+ * revokes all signed tokens issued to the user before.
+ *
  * @author António Novo <antonio.novo@ua.pt>
  */
 public class Authentication {
+    private static final Logger logger = LoggerFactory.getLogger(Authentication.class);
+
+    /** Time without use after which a session token expires, in seconds, 0 for never */
+    private static final long TOKEN_TTL = Long.getLong("dicoogle.web.tokenTTL", 12 * 60 * 60);
+    /** Secret for signing stateless tokens, which are only issued if it is defined */
+    private static final String TOKEN_SECRET = System.getProperty("dicoogle.web.tokenSecret");
+    /** Lifetime of stateless tokens, in seconds */
+    private static final long SIGNED_TOKEN_TTL = Long.getLong("dicoogle.web.signedTokenTTL", 60 * 60);
+    /** Minimum interval between sweeps of the expired tokens */
+    private static final long SWEEP_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
     private static Authentication instance = null;
     private final UsersStruct users;
 
-    private final Map<String, String> usersToken = new HashMap<>();
-    private final Map<String, String> tokenUsers = new HashMap<>();
+    /** A session token issued to a user */
+    private static final class TokenEntry {
+        final String username;
+        volatile long lastAccess;
+
+        TokenEntry(String username, long lastAccess) {
+            this.username = username;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    private final Map<String, String> usersToken = new ConcurrentHashMap<>();
+    private final Map<String, TokenEntry> tokenUsers = new ConcurrentHashMap<>();
+
+    /** Signer of stateless tokens, null if they are not enabled */
+    private final SignedTokens signedTokens;
+    private final AtomicLong lastSweep = new AtomicLong();
 
     private Authentication() {
         RolesXML rolesXML = new RolesXML();
@@ -43,6 +82,16 @@ public class Authentication {
 
         // gets the instance of the user list
         users = UsersStruct.getInstance();
+
+        if (TOKEN_SECRET != null && !TOKEN_SECRET.isEmpty()) {
+            if (TOKEN_SECRET.length() < 32) {
+                logger.warn("The token secret is too short, please use at least 32 characters");
+            }
+            signedTokens = new SignedTokens(TOKEN_SECRET.getBytes(StandardCharsets.UTF_8));
+            logger.info("Issuing signed session tokens");
+        } else {
+            signedTokens = null;
+        }
     }
 
     /**
@@ -58,20 +107,47 @@ public class Authentication {
     }
 
 
+    /**
+     * Obtains the user owning a session token, renewing the token if it is a session token.
+     *
+     * @param token the session token, can be null
+     * @return the user, or null if the token is not valid
+     */
     public User getUsername(String token) {
-        String user = tokenUsers.get(token);
+        String user = resolve(token, System.currentTimeMillis());
         if (user == null)
             return null;
         return UsersStruct.getInstance().getUser(user);
 
     }
 
-    public void logout(String token) {
-        String user = tokenUsers.get(token);
-        String ntoken = usersToken.get(user);
-        tokenUsers.remove(ntoken);
-        usersToken.remove(user);
+    /**
+     * Obtains the login information of a session token, renewing the token if it is a session token.
+     *
+     * @param token the session token, can be null
+     * @return a LoggedIn object if the token is valid, null otherwise.
+     */
+    public LoggedIn getLoggedIn(String token) {
+        User user = getUsername(token);
+        if (user == null)
+            return null;
+        LoggedIn in = new LoggedIn(user.getUsername(), user.isAdmin());
+        in.setToken(token);
+        return in;
+    }
 
+    public void logout(String token) {
+        if (token == null)
+            return;
+        TokenEntry entry = tokenUsers.remove(token);
+        if (entry != null) {
+            usersToken.remove(entry.username, token);
+        } else if (signedTokens != null) {
+            String username = resolve(token, System.currentTimeMillis());
+            if (username != null) {
+                users.revokeTokens(username);
+            }
+        }
     }
 
     /**
@@ -94,16 +170,71 @@ public class Authentication {
         if (!user.verifyPassword(password))
             return null;
         LoggedIn in = new LoggedIn(username, user.isAdmin());
-        if (usersToken.containsKey(username))
-            in.setToken(usersToken.get(username));
-
-        else {
-            String token = UUID.randomUUID().toString();
-            usersToken.put(username, token);
-            tokenUsers.put(token, username);
-            in.setToken(usersToken.get(username));
+        long now = System.currentTimeMillis();
+        sweep(now);
+        if (signedTokens != null) {
+            in.setToken(signedTokens.sign(username, user.getTokenEpoch(),
+                    now + TimeUnit.SECONDS.toMillis(SIGNED_TOKEN_TTL)));
+        } else {
+            // reuse the user's token if it is still valid
+            in.setToken(usersToken.compute(username, (u, token) -> {
+                TokenEntry entry = token != null ? tokenUsers.get(token) : null;
+                if (entry != null && !isExpired(entry, now)) {
+                    entry.lastAccess = now;
+                    return token;
+                }
+                if (token != null)
+                    tokenUsers.remove(token);
+                String newToken = UUID.randomUUID().toString();
+                tokenUsers.put(newToken, new TokenEntry(u, now));
+                return newToken;
+            }));
         }
         // return a successfull login object
         return in;
     }
+
+    /** Obtain the user name of a valid token, renewing it if it is a session token. */
+    private String resolve(String token, long now) {
+        if (token == null)
+            return null;
+        TokenEntry entry = tokenUsers.get(token);
+        if (entry != null) {
+            if (isExpired(entry, now)) {
+                if (tokenUsers.remove(token, entry))
+                    usersToken.remove(entry.username, token);
+                return null;
+            }
+            entry.lastAccess = now;
+            return entry.username;
+        }
+        if (signedTokens != null && SignedTokens.isSigned(token)) {
+            String username = signedTokens.verify(token, now);
+            if (username == null)
+                return null;
+            User user = users.getUser(username);
+            if (user == null || user.getTokenEpoch() != SignedTokens.epochOf(token))
+                return null;
+            return username;
+        }
+        return null;
+    }
+
+    private static boolean isExpired(TokenEntry entry, long now) {
+        return TOKEN_TTL > 0 && now - entry.lastAccess > TimeUnit.SECONDS.toMillis(TOKEN_TTL);
+    }
+
+    /** Forget expired tokens, at most once per sweep interval. */
+    private void sweep(long now) {
+        long last = lastSweep.get();
+        if (now - last < SWEEP_INTERVAL || !lastSweep.compareAndSet(last, now))
+            return;
+        for (Iterator<Map.Entry<String, TokenEntry>> it = tokenUsers.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, TokenEntry> e = it.next();
+            if (isExpired(e.getValue(), now)) {
+                it.remove();
+                usersToken.remove(e.getValue().username, e.getKey());
+            }
+        }
+    }
 }
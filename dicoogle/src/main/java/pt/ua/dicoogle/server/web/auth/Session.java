@@ -142,7 +142,8 @@ public class Session {
      * <br>
      * This is done by first checking if the request has a valid
      * (with valid login information) session (like an AJAX request from a
-     * cookies enabled browser), if not checks if the request parameters
+     * cookies enabled browser), if not checks if the request carries a
+     * session token in the Authorization header or if the request parameters
      * have valid login information (like made a REST[less] stand-alone
      * application), and if none of the above situations happened send an
      * adequate response to the client.
@@ -169,10 +170,15 @@ public class Session {
                 return login;
         }
 
-        // since the above failed, check if there is valid login information on the request parameters
-        String username = request.getParameter("username");
-        String password = request.getParameter("password");
-        login = getSuccessfulLogin(username, password);
+        // since the above failed, check if the request carries a token from a previous login,
+        // which is much cheaper to verify than a password
+        login = Authentication.getInstance().getLoggedIn(request.getHeader("Authorization"));
+        if (login == null) {
+            // check if there is valid login information on the request parameters
+            String username = request.getParameter("username");
+            String password = request.getParameter("password");
+            login = getSuccessfulLogin(username, password);
+        }
         if (login != null) {
             // check if this request needs admin rights and the user has them
             if (requiresAdminRights) {
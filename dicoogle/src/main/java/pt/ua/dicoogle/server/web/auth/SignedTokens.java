@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.web.auth;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Stateless session tokens, which carry the user name, token epoch and expiry time of a login
+ * and are signed with HMAC-SHA256, so that they can be checked without any shared state.
+ * The token epoch of a user changes whenever the user's tokens are revoked,
+ * which invalidates all tokens issued before.
+ *
+ * Tokens have the form {@code dt2.<user name>.<token epoch>.<expiry time>.<signature>},
+ * with the user name and signature encoded in URL-safe Base64
+ * and the expiry time in milliseconds since the epoch.
+ */
+final class SignedTokens {
+    private static final String PREFIX = "dt2.";
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private final SecretKeySpec key;
+    private final ThreadLocal<Mac> macs;
+
+    SignedTokens(byte[] secret) {
+        this.key = new SecretKeySpec(secret, ALGORITHM);
+        this.macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException ex) {
+                throw new IllegalStateException("HMAC-SHA256 is not available", ex);
+            }
+        });
+        // fail early on a bad key
+        macs.get();
+    }
+
+    /** Check whether a token has the form of a signed token, without verifying it. */
+    static boolean isSigned(String token) {
+        return token.startsWith(PREFIX);
+    }
+
+    /** Issue a signed token.
+     *
+     * @param username the user name
+     * @param epoch the current token epoch of the user
+     * @param expiresAt the expiry time of the token, in milliseconds since the epoch
+     * @return the token
+     */
+    String sign(String username, long epoch, long expiresAt) {
+        String payload = PREFIX + Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(username.getBytes(StandardCharsets.UTF_8)) + '.' + epoch + '.' + expiresAt;
+        return payload + '.' + Base64.getUrlEncoder().withoutPadding().encodeToString(mac(payload));
+    }
+
+    /** Verify a signed token.
+     *
+     * @param token the token
+     * @param now the current time, in milliseconds since the epoch
+     * @return the user name in the token, or null if the token is malformed, forged or expired
+     */
+    String verify(String token, long now) {
+        if (!isSigned(token)) {
+            return null;
+        }
+        int sigStart = token.lastIndexOf('.');
+        int expiryStart = token.lastIndexOf('.', sigStart - 1);
+        int epochStart = token.lastIndexOf('.', expiryStart - 1);
+        if (epochStart < PREFIX.length()) {
+            return null;
+        }
+        try {
+            String payload = token.substring(0, sigStart);
+            byte[] signature = Base64.getUrlDecoder().decode(token.substring(sigStart + 1));
+            if (!MessageDigest.isEqual(mac(payload), signature)) {
+                return null;
+            }
+            Long.parseLong(token.substring(epochStart + 1, expiryStart));
+            long expiresAt = Long.parseLong(token.substring(expiryStart + 1, sigStart));
+            if (expiresAt <= now) {
+                return null;
+            }
+            return new String(Base64.getUrlDecoder().decode(token.substring(PREFIX.length(), epochStart)),
+                    StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException ex) {
+            // bad Base64 or number
+            return null;
+        }
+    }
+
+    /** Obtain the expiry time of a token, which must have been verified beforehand. */
+    static long expiryOf(String token) {
+        int sigStart = token.lastIndexOf('.');
+        return Long.parseLong(token.substring(token.lastIndexOf('.', sigStart - 1) + 1, sigStart));
+    }
+
+    /** Obtain the token epoch of a token, which must have been verified beforehand. */
+    static long epochOf(String token) {
+        int expiryStart = token.lastIndexOf('.', token.lastIndexOf('.') - 1);
+        return Long.parseLong(token.substring(token.lastIndexOf('.', expiryStart - 1) + 1, expiryStart));
+    }
+
+    private byte[] mac(String payload) {
+        return macs.get().doFinal(payload.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -18,6 +18,7 @@
  */
 package pt.ua.dicoogle.server.web.dicom;
 
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
 import javax.imageio.ImageWriter;
@@ -29,19 +30,24 @@ import org.dcm4che2.imageio.plugins.dcm.DicomImageReadParam;
 
 import pt.ua.dicoogle.sdk.StorageInputStream;
 
+import java.awt.Graphics2D;
 import java.awt.Image;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Iterator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import pt.ua.dicoogle.server.web.utils.ImageFormat;
 import pt.ua.dicoogle.server.web.utils.ImageLoader;
+import pt.ua.dicoogle.server.web.utils.PNGEncoder;
 
 /**
  * Handles conversion between the images (formats) found inside a DICOM file
  * and the PNG image format, for proper lossless web view.
+ * Frames can also be encoded in lossy formats (see {@link ImageFormat}), for faster previews.
  *
  * @author António Novo <antonio.novo@ua.pt>
  * @author Eduardo Pinho <eduardopinho@ua.pt>
@@ -49,6 +55,15 @@ import pt.ua.dicoogle.server.web.utils.ImageLoader;
 public class Convert2PNG {
     private static final Logger logger = LoggerFactory.getLogger(Convert2PNG.class);
 
+    /** The compression quality of lossy formats, from 0 (smallest) to 1 (best) */
+    private static final float LOSSY_QUALITY =
+            Float.parseFloat(System.getProperty("dicoogle.image.lossyQuality", "0.85"));
+
+    /** @return the compression quality of lossy formats, from 0 (smallest) to 1 (best) */
+    public static float getLossyQuality() {
+        return LOSSY_QUALITY;
+    }
+
     private synchronized static ImageReader createDICOMImageReader() {
         Iterator<ImageReader> it = ImageIO.getImageReadersByFormatName("DICOM"); // gets the first registered ImageReader that can read DICOM data
 
@@ -179,7 +194,7 @@ public class Convert2PNG {
      */
     public static ByteArrayOutputStream DICOM2PNGStream(StorageInputStream dcmStream, int frameIndex)
             throws IOException {
-        return DICOM2PNGStream(dcmStream.getInputStream(), frameIndex);
+        return DICOM2Stream(dcmStream, frameIndex, ImageFormat.PNG);
     }
 
     /**
@@ -191,23 +206,117 @@ public class Convert2PNG {
      * @throws IOException if the I/O operations on the images fail
      */
     public static ByteArrayOutputStream DICOM2PNGStream(InputStream iStream, int frameIndex) throws IOException {
-        // setup the PNG writer
-        ImageWriter writer = createPNGImageWriter();
-
-        ImageWriteParam writeParams = writer.getDefaultWriteParam(); // and set the default params for it (height, weight, alpha)
-        writeParams.setProgressiveMode(ImageWriteParam.MODE_DEFAULT); // activate progressive mode (adam7), best for low bandwidth connections
+        return toPNGStream(ImageLoader.loadImage(iStream, frameIndex));
+    }
 
-        BufferedImage image = ImageLoader.loadImage(iStream);
+    /**
+     * Reads an input DICOM file and returns the desired frame encoded in the given format.
+     *
+     * @param dcmStream The Dicoogle storage input Stream for the DICOM File.
+     * @param frameIndex the index of the frame wanted (starting with #0).
+     * @param format the output image format
+     * @return the frame encoded in a memory stream.
+     * @throws IOException if the I/O operations on the images fail
+     */
+    public static ByteArrayOutputStream DICOM2Stream(StorageInputStream dcmStream, int frameIndex, ImageFormat format)
+            throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        encode(ImageLoader.loadImage(dcmStream, frameIndex), format, result);
+        return result;
+    }
 
-        // mount the resulting memory stream
+    /**
+     * Reads an input DICOM file, scales it to fit in the given dimensions and returns the
+     * desired frame encoded in the given format. The frame is subsampled while decoding,
+     * so that the full resolution image does not have to be built for a thumbnail.
+     *
+     * @param dcmStream The Dicoogle storage input Stream for the DICOM File.
+     * @param frameIndex the index of the frame wanted (starting with #0).
+     * @param width the maximum width of the resulting image
+     * @param height the maximum height of the resulting image
+     * @param format the output image format
+     * @return the frame encoded in a memory stream.
+     * @throws IOException if the I/O operations on the images fail
+     */
+    public static ByteArrayOutputStream DICOM2ScaledStream(StorageInputStream dcmStream, int frameIndex, int width,
+            int height, ImageFormat format) throws IOException {
+        if (dcmStream == null) {
+            throw new NullPointerException("dcmStream");
+        }
+        if (frameIndex < 0) {
+            throw new IllegalArgumentException("bad frameIndex");
+        }
+        if (width <= 0) {
+            throw new IllegalArgumentException("bad width");
+        }
+        if (height <= 0) {
+            throw new IllegalArgumentException("bad height");
+        }
+        BufferedImage image = ImageLoader.loadSubsampledImage(dcmStream, frameIndex, width, height);
         ByteArrayOutputStream result = new ByteArrayOutputStream();
+        encode(scaleImage(image, width, height), format, result);
+        return result;
+    }
 
-        // write the specified frame to the resulting stream
-        try (ImageOutputStream outStream = ImageIO.createImageOutputStream(result)) {
+    /**
+     * Encode an image in the given format. PNG images are written with a fast deflate level
+     * (see {@link PNGEncoder}), lossy formats with the quality in <tt>dicoogle.image.lossyQuality</tt>.
+     *
+     * @param image the image to encode
+     * @param format the output image format
+     * @param out the output stream to write to, which is not closed
+     * @throws IOException if the format is not available or the I/O operations on the image fail
+     */
+    public static void encode(BufferedImage image, ImageFormat format, OutputStream out) throws IOException {
+        if (format == ImageFormat.PNG) {
+            PNGEncoder.write(image, out);
+            return;
+        }
+        Iterator<ImageWriter> it = ImageIO.getImageWritersByFormatName(format.getFormatName());
+        if (!it.hasNext()) {
+            throw new IOException("No image writer available for " + format.getMimeType());
+        }
+        ImageWriter writer = it.next();
+        try (ImageOutputStream outStream = ImageIO.createImageOutputStream(out)) {
+            ImageWriteParam writeParams = writer.getDefaultWriteParam();
+            if (writeParams.canWriteCompressed()) {
+                writeParams.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                if (writeParams.getCompressionType() == null) {
+                    writeParams.setCompressionType(writeParams.getCompressionTypes()[0]);
+                }
+                writeParams.setCompressionQuality(LOSSY_QUALITY);
+            }
             writer.setOutput(outStream);
-            writer.write(image);
+            writer.write(null, new IIOImage(toOpaque8Bit(image), null, null), writeParams);
+        } finally {
+            writer.dispose();
         }
+    }
 
+    /** Lossy encoders only take 8-bit images without transparency, convert any other image to RGB. */
+    private static BufferedImage toOpaque8Bit(BufferedImage image) {
+        switch (image.getType()) {
+            case BufferedImage.TYPE_BYTE_GRAY:
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_3BYTE_BGR:
+                return image;
+            default:
+                BufferedImage result =
+                        new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+                Graphics2D g = result.createGraphics();
+                try {
+                    g.drawImage(image, 0, 0, null);
+                } finally {
+                    g.dispose();
+                }
+                return result;
+        }
+    }
+
+    /** Encode an image in a PNG memory stream. */
+    private static ByteArrayOutputStream toPNGStream(BufferedImage image) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        PNGEncoder.write(image, result);
         return result;
     }
 
@@ -237,24 +346,13 @@ public class Convert2PNG {
             throw new IllegalArgumentException("bad height");
         }
 
-        // setup the PNG writer
-        BufferedImage image = ImageLoader.loadImage(inStream);
-
-        image = scaleImage(image, width, height);
-
-        // mount the resulting memory stream
-        ByteArrayOutputStream result = new ByteArrayOutputStream();
-
-        // write the specified frame to the resulting stream
-        try (ImageOutputStream outStream = ImageIO.createImageOutputStream(result)) {
-            ImageWriter writer = createPNGImageWriter();
-            ImageWriteParam writeParams = writer.getDefaultWriteParam(); // and set the default params for it
-            writeParams.setProgressiveMode(ImageWriteParam.MODE_DEFAULT); // activate progressive mode (adam7), best for low bandwidth connections
-            writer.setOutput(outStream);
-            writer.write(image);
-        }
+        return toScaledPNGStream(ImageLoader.loadImage(inStream, frameIndex), width, height);
+    }
 
-        return result;
+    /** Scale an image to fit in the given dimensions and encode it in a PNG memory stream. */
+    private static ByteArrayOutputStream toScaledPNGStream(BufferedImage image, int width, int height)
+            throws IOException {
+        return toPNGStream(scaleImage(image, width, height));
     }
 
     /**
@@ -270,7 +368,7 @@ public class Convert2PNG {
      */
     public static ByteArrayOutputStream DICOM2ScaledPNGStream(StorageInputStream dcmStream, int frameIndex, int width,
             int height) throws IOException {
-        return DICOM2ScaledPNGStream(dcmStream.getInputStream(), frameIndex, width, height);
+        return DICOM2ScaledStream(dcmStream, frameIndex, width, height, ImageFormat.PNG);
     }
 
     /**
@@ -284,7 +382,7 @@ public class Convert2PNG {
         // setup the DICOM reader
         ImageReader reader = createDICOMImageReader();
 
-        try (ImageInputStream inStream = ImageIO.createImageInputStream(dcmFile.getInputStream())) {
+        try (ImageInputStream inStream = ImageLoader.openImageInputStream(dcmFile)) {
 
             reader.setInput(inStream);
 
@@ -20,10 +20,8 @@ package pt.ua.dicoogle.server.web.dicom;
 
 import java.io.IOException;
 import java.io.StringWriter;
-import java.net.URI;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 
 import org.jdom2.Document;
@@ -34,9 +32,9 @@ import org.jdom2.output.XMLOutputter;
 import com.google.common.base.CharMatcher;
 import java.util.List;
 
+import pt.ua.dicoogle.core.InstanceLocationCache;
 import pt.ua.dicoogle.plugins.PluginController;
 import pt.ua.dicoogle.sdk.StorageInputStream;
-import pt.ua.dicoogle.sdk.StorageInterface;
 import pt.ua.dicoogle.sdk.utils.DictionaryAccess;
 import pt.ua.dicoogle.sdk.datastructs.SearchResult;
 import pt.ua.dicoogle.sdk.task.JointQueryTask;
@@ -69,88 +67,10 @@ public class Information {
      * @return a File handler for the respective .dcm file if the SOP Instance UID is valid and indexed, null otherwise.
      */
     public static StorageInputStream getFileFromSOPInstanceUID(String sopInstanceUID, List<String> providers) {
-        System.err.printf("getFileFromSOPInstanceUID(%s, %s)\n", sopInstanceUID, providers);
         if (sopInstanceUID == null)
             return null;
 
-        if (providers == null) {
-            providers = PluginController.getInstance().getQueryProvidersName(true);
-        }
-
-        String query = "SOPInstanceUID:" + sopInstanceUID;
-
-        CountDownLatch latch = new CountDownLatch(1);
-        MyHolder holder = new MyHolder(latch);
-        PluginController.getInstance().query(holder, providers, query, new HashMap<String, String>());
-
-        try {
-            latch.await();
-        } catch (InterruptedException e1) {
-            // TODO Auto-generated catch block
-            e1.printStackTrace();
-        }
-
-        try {
-            latch.await();
-        } catch (InterruptedException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
-
-        return holder.getRet();
-    }
-
-    private static class MyHolder extends JointQueryTask {
-        private StorageInputStream ret = null;
-        private CountDownLatch latch;
-
-        @Override
-        public void onReceive(Task<Iterable<SearchResult>> e) {
-            try {
-                URI uri = null;
-                Iterable<SearchResult> itResults = e.get();
-
-                for (SearchResult r : itResults) {
-                    if (uri == null)
-                        uri = r.getURI();
-                }
-
-                if (uri != null) {
-                    StorageInterface str = PluginController.getInstance().getStorageForSchema(uri);
-                    if (str != null) {
-                        StorageInputStream r = str.get(uri);
-                        if (r != null) {
-                            ret = r;
-
-                            stopAllTaks();
-                            latch.countDown();
-                            return;
-                        }
-                    }
-                }
-            } catch (InterruptedException | ExecutionException e1) {
-                // TODO Auto-generated catch block
-                e1.printStackTrace();
-            }
-        }
-
-        public MyHolder(CountDownLatch latch) {
-            super();
-            this.latch = latch;
-        }
-
-        private void stopAllTaks() {
-            this.cancel(true);
-        }
-
-        @Override
-        public void onCompletion() {
-            latch.countDown();
-        }
-
-        public StorageInputStream getRet() {
-            return ret;
-        }
+        return InstanceLocationCache.getInstance().open(sopInstanceUID, providers);
     }
 
     /**
@@ -237,6 +157,7 @@ public class Information {
         HashMap<String, Object> ret = new HashMap<>();
         // return the first result (which should be the only one, by the way) extra fields (which contains all the tags and their values for this file)
         for (SearchResult r : itResults) {
+            InstanceLocationCache.getInstance().put(sopInstanceUID, r.getURI());
             ret.putAll(r.getExtraData());
         }
         return ret;// no results
@@ -18,6 +18,7 @@
  */
 package pt.ua.dicoogle.server.web.dicom;
 
+import org.dcm4che3.data.Tag;
 import org.dcm4che3.imageio.plugins.dcm.DicomImageReadParam;
 import org.dcm4che3.imageio.plugins.dcm.DicomImageReader;
 import org.dcm4che3.imageio.plugins.dcm.DicomMetaData;
@@ -27,6 +28,7 @@ import pt.ua.dicoogle.sdk.datastructs.dim.BulkAnnotation;
 import pt.ua.dicoogle.sdk.datastructs.dim.Point2D;
 import pt.ua.dicoogle.sdk.datastructs.wsi.WSIFrame;
 import pt.ua.dicoogle.server.web.utils.cache.WSICache;
+import pt.ua.dicoogle.server.web.utils.cache.WSITileCache;
 import sun.reflect.annotation.AnnotationType;
 
 import javax.imageio.ImageIO;
@@ -87,9 +89,10 @@ public class ROIExtractor {
 
         WSISopDescriptor descriptor = new WSISopDescriptor();
         descriptor.extractData(dicomMetaData.getAttributes());
+        String sopInstanceUID = dicomMetaData.getAttributes().getString(Tag.SOPInstanceUID);
 
         try {
-            return getROIFromAnnotation(type, annotation, descriptor, imageReader, param);
+            return getROIFromAnnotation(type, annotation, descriptor, sopInstanceUID, imageReader, param);
         } catch (IllegalArgumentException e) {
             logger.error("Error writing ROI", e);
         }
@@ -113,13 +116,14 @@ public class ROIExtractor {
      * @param type the annotation type
      * @param annotation a list of points defining the annotation to extract
      * @param descriptor descriptor of the WSI pyramid, contains information about the dimensions of the image.
+     * @param sopInstanceUID the SOP Instance UID of the image, used to fetch its tiles directly when possible
      * @param imageReader
      * @param param
      * @return the intersection of the annotation on the image.
      * @throws IllegalArgumentException when the annotation is not one of the supported types.
      */
     private BufferedImage getROIFromAnnotation(BulkAnnotation.AnnotationType type, List<Point2D> annotation,
-            WSISopDescriptor descriptor, ImageReader imageReader, DicomImageReadParam param)
+            WSISopDescriptor descriptor, String sopInstanceUID, ImageReader imageReader, DicomImageReadParam param)
             throws IllegalArgumentException {
         if (notSupportedTypes.contains(type)) {
             throw new IllegalArgumentException("Trying to build a ROI with an unsupported annotation type");
@@ -137,6 +141,7 @@ public class ROIExtractor {
         int annotationHeight = (int) constructionPoints.get(0).distance(constructionPoints.get(2)) - clipY;
 
         List<List<WSIFrame>> frameMatrix = getFrameMatrixFromAnnotation(descriptor, constructionPoints);
+        Map<Integer, BufferedImage> tiles = readTiles(sopInstanceUID, frameMatrix);
         BufferedImage combined = new BufferedImage(annotationWidth, annotationHeight, BufferedImage.TYPE_INT_RGB);
         Graphics g = combined.getGraphics();
 
@@ -150,12 +155,17 @@ public class ROIExtractor {
 
         for (List<WSIFrame> matrix : frameMatrix) {
             for (WSIFrame frame : matrix) {
-                BufferedImage bb;
-                try {
-                    bb = imageReader.read(frame.getFrameIndex(), param);
-                } catch (IOException e) {
-                    logger.error("Error building ROI, skipping entry", e);
-                    continue;
+                BufferedImage bb = tiles.get(frame.getFrameIndex());
+                if (bb == null) {
+                    try {
+                        bb = imageReader.read(frame.getFrameIndex(), param);
+                        if (sopInstanceUID != null) {
+                            WSITileCache.getInstance().put(sopInstanceUID, frame.getFrameIndex(), bb);
+                        }
+                    } catch (IOException e) {
+                        logger.error("Error building ROI, skipping entry", e);
+                        continue;
+                    }
                 }
 
                 // Calculate intersections between ROI and frame
@@ -207,6 +217,32 @@ public class ROIExtractor {
         return combined;
     }
 
+    /**
+     * Obtain the tiles of the given frames from the tile cache,
+     * decoding the missing ones in parallel directly from the stored file.
+     * Tiles which cannot be fetched this way are left out, to be read through the DICOM image reader.
+     * @param sopInstanceUID the SOP Instance UID of the image
+     * @param frameMatrix the frames to fetch
+     * @return the decoded tiles by frame index
+     */
+    private static Map<Integer, BufferedImage> readTiles(String sopInstanceUID, List<List<WSIFrame>> frameMatrix) {
+        if (sopInstanceUID == null) {
+            return Collections.emptyMap();
+        }
+        List<Integer> frames = new ArrayList<>();
+        for (List<WSIFrame> row : frameMatrix) {
+            for (WSIFrame frame : row) {
+                frames.add(frame.getFrameIndex());
+            }
+        }
+        try {
+            return WSITileCache.getInstance().getAll(sopInstanceUID, frames);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Collections.emptyMap();
+        }
+    }
+
     /**
      * Given an annotation, get it as a Shape to apply as a clipping shape for the ROIs.
      * The points of this shape are normalized according to the starting point.
@@ -0,0 +1,564 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.web.dicom;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.io.DicomInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import pt.ua.dicoogle.core.InstanceLocationCache;
+import pt.ua.dicoogle.sdk.task.Task;
+import pt.ua.dicoogle.taskManager.TaskManager;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Random access to the frames (tiles) of whole slide images stored in local files.
+ *
+ * The stored file is memory-mapped, and the position of each frame is indexed once per SOP instance,
+ * so that a tile can be fetched as a slice of the mapping without reading the rest of the file.
+ * Several tiles can be decoded in parallel.
+ *
+ * Only little endian files with native 8-bit pixel data, or with JPEG or JPEG 2000 encapsulated frames,
+ * are supported. Monochrome images with a VOI LUT or window are not supported either,
+ * since their frames would be shown without it.
+ * For other files, and for files which are not in the local file system,
+ * {@link #readTile(String, int)} returns null and the caller should read the frame through the DICOM image reader.
+ */
+public class WSITileReader {
+    private static final Logger logger = LoggerFactory.getLogger(WSITileReader.class);
+
+    /** Maximum number of memory-mapped files to keep indexed */
+    private static final int MAXIMUM_FILES = Integer.getInteger("dicoogle.wsi.mappedFiles", 32);
+    /** Number of threads decoding tiles, in the "wsi" task manager */
+    private static final int DECODE_THREADS =
+            Integer.getInteger("dicoogle.wsi.decodeThreads", Runtime.getRuntime().availableProcessors());
+    /** Size of each mapped segment of a file; frames crossing a segment boundary are read instead */
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    private static final int ITEM = 0xFFFEE000;
+    private static final int SEQUENCE_DELIMITER = 0xFFFEE0DD;
+
+    private static WSITileReader instance = null;
+
+    private final LoadingCache<String, FrameIndex> indices;
+    private final Function<String, URI> locator;
+
+    private WSITileReader() {
+        this(sopInstanceUID -> InstanceLocationCache.getInstance().locate(sopInstanceUID, null));
+    }
+
+    /**
+     * @param locator the function giving the location of a SOP instance, or null if it is not known
+     */
+    WSITileReader(Function<String, URI> locator) {
+        this.locator = locator;
+        // mappings are released once their index is evicted and collected
+        this.indices = CacheBuilder.newBuilder().maximumSize(MAXIMUM_FILES).expireAfterAccess(30, TimeUnit.MINUTES)
+                .build(new CacheLoader<String, FrameIndex>() {
+                    @Override
+                    public FrameIndex load(String sopInstanceUID) throws Exception {
+                        return index(sopInstanceUID);
+                    }
+                });
+    }
+
+    public static synchronized WSITileReader getInstance() {
+        if (instance == null) {
+            instance = new WSITileReader();
+        }
+        return instance;
+    }
+
+    /** Read and decode a single frame of a WSI instance.
+     *
+     * @param sopInstanceUID the SOP Instance UID of the WSI instance
+     * @param frameIndex the index of the frame (zero based)
+     * @return the decoded tile, or null if the instance cannot be accessed this way
+     * @throws IOException if the frame could not be read or decoded
+     */
+    public BufferedImage readTile(String sopInstanceUID, int frameIndex) throws IOException {
+        FrameIndex index = getIndex(sopInstanceUID);
+        if (index == null) {
+            return null;
+        }
+        return index.decode(frameIndex);
+    }
+
+    /** Read and decode several frames of a WSI instance in parallel.
+     *
+     * @param sopInstanceUID the SOP Instance UID of the WSI instance
+     * @param frameIndices the indices of the frames (zero based)
+     * @return the decoded tiles by frame index, without the frames which could not be decoded,
+     *         or null if the instance cannot be accessed this way
+     * @throws InterruptedException if the calling thread was interrupted while waiting for the tiles
+     */
+    public Map<Integer, BufferedImage> readTiles(String sopInstanceUID, Collection<Integer> frameIndices)
+            throws InterruptedException {
+        FrameIndex index = getIndex(sopInstanceUID);
+        if (index == null) {
+            return null;
+        }
+        TaskManager pool = TaskManager.shared("wsi", Math.max(1, DECODE_THREADS));
+        Map<Integer, Task<BufferedImage>> tasks = new HashMap<>();
+        for (Integer frame : frameIndices) {
+            String name = String.format("decode frame %d of %s", frame, sopInstanceUID);
+            Task<BufferedImage> task = new Task<>(name, () -> index.decode(frame));
+            tasks.put(frame, task);
+            pool.dispatch(task);
+        }
+        Map<Integer, BufferedImage> tiles = new HashMap<>();
+        for (Map.Entry<Integer, Task<BufferedImage>> e : tasks.entrySet()) {
+            try {
+                BufferedImage tile = e.getValue().get();
+                if (tile != null) {
+                    tiles.put(e.getKey(), tile);
+                }
+            } catch (ExecutionException ex) {
+                logger.warn("Failed to decode frame {} of {}", e.getKey(), sopInstanceUID, ex.getCause());
+            } catch (CancellationException ex) {
+                logger.warn("Decoding frame {} of {} was cancelled", e.getKey(), sopInstanceUID);
+            }
+        }
+        return tiles;
+    }
+
+    /** Forget the frame index of an instance, e.g. because its file changed.
+     *
+     * @param sopInstanceUID the SOP Instance UID
+     */
+    public void invalidate(String sopInstanceUID) {
+        indices.invalidate(sopInstanceUID);
+    }
+
+    /** Forget the frame indices of the instances in the given files or directories,
+     * e.g. because they were unindexed or removed.
+     *
+     * @param paths the URIs of the files or directories
+     */
+    public void invalidate(Collection<URI> paths) {
+        if (paths.isEmpty() || indices.size() == 0) {
+            return;
+        }
+        List<String> prefixes = new ArrayList<>(paths.size());
+        for (URI p : paths) {
+            String path = p.toString();
+            prefixes.add(path.endsWith("/") ? path : path + '/');
+        }
+        indices.asMap().values().removeIf(index -> {
+            if (index.uri == null) {
+                return false;
+            }
+            String path = index.uri.toString();
+            return paths.contains(index.uri) || prefixes.stream().anyMatch(path::startsWith);
+        });
+    }
+
+    /** @return the number of instances currently indexed, including unsupported ones */
+    long size() {
+        return indices.size();
+    }
+
+    private FrameIndex getIndex(String sopInstanceUID) {
+        try {
+            FrameIndex index = indices.get(sopInstanceUID);
+            return index == FrameIndex.UNSUPPORTED ? null : index;
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof NotFoundException) {
+                // not cached, the instance may be found later
+                logger.debug("Could not locate the file of {}", sopInstanceUID);
+            } else {
+                logger.warn("Failed to index the frames of {}", sopInstanceUID, ex.getCause());
+            }
+            return null;
+        } catch (RuntimeException ex) {
+            logger.warn("Failed to index the frames of {}", sopInstanceUID, ex);
+            return null;
+        }
+    }
+
+    private FrameIndex index(String sopInstanceUID) throws IOException {
+        URI uri = locator.apply(sopInstanceUID);
+        if (uri == null) {
+            throw new NotFoundException();
+        }
+        if (!"file".equals(uri.getScheme())) {
+            return FrameIndex.UNSUPPORTED;
+        }
+        File file = new File(uri);
+        if (!file.isFile()) {
+            throw new NotFoundException();
+        }
+
+        Attributes attrs;
+        String tsuid;
+        long pixelDataPosition;
+        int pixelDataLength;
+        try (DicomInputStream dis = new DicomInputStream(new FileInputStream(file))) {
+            attrs = dis.readDataset(-1, Tag.PixelData);
+            if (dis.tag() != Tag.PixelData) {
+                return FrameIndex.UNSUPPORTED;
+            }
+            tsuid = dis.getTransferSyntax();
+            pixelDataPosition = dis.getPosition();
+            pixelDataLength = dis.length();
+        }
+
+        Format format = Format.of(tsuid, attrs);
+        if (format == null) {
+            logger.debug("Frames of {} in {} are not supported for direct access", sopInstanceUID, tsuid);
+            return FrameIndex.UNSUPPORTED;
+        }
+        if (hasVOILUT(attrs)) {
+            logger.debug("Frames of {} have a VOI LUT, which is not applied in direct access", sopInstanceUID);
+            return FrameIndex.UNSUPPORTED;
+        }
+
+        FrameIndex index = new FrameIndex(uri, file, format, attrs);
+        // map before the index is published, so that decoding threads do not need to synchronize
+        index.map();
+        int frames = attrs.getInt(Tag.NumberOfFrames, 1);
+        if (format == Format.NATIVE) {
+            long frameLength = index.nativeFrameLength();
+            if (pixelDataLength == -1 || frameLength * frames > (pixelDataLength & 0xFFFFFFFFL)) {
+                return FrameIndex.UNSUPPORTED;
+            }
+            for (int i = 0; i < frames; i++) {
+                index.addFrame(new long[] {pixelDataPosition + i * frameLength, frameLength});
+            }
+        } else {
+            if (pixelDataLength != -1 || !index.indexFragments(pixelDataPosition, frames)) {
+                return FrameIndex.UNSUPPORTED;
+            }
+        }
+        return index;
+    }
+
+    /** Check whether a monochrome image has a VOI LUT or window, for the whole image or for some frames. */
+    private static boolean hasVOILUT(Attributes attrs) {
+        if (!attrs.getString(Tag.PhotometricInterpretation, "").startsWith("MONOCHROME")) {
+            return false;
+        }
+        if (attrs.containsValue(Tag.WindowCenter) || attrs.containsValue(Tag.VOILUTSequence)) {
+            return true;
+        }
+        for (int groups : new int[] {Tag.SharedFunctionalGroupsSequence, Tag.PerFrameFunctionalGroupsSequence}) {
+            Sequence seq = attrs.getSequence(groups);
+            if (seq == null) {
+                continue;
+            }
+            for (Attributes item : seq) {
+                if (item.containsValue(Tag.FrameVOILUTSequence)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Thrown when the file of an instance is not found, so that the miss is not cached. */
+    private static final class NotFoundException extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /** How the frames of an instance are decoded. */
+    private enum Format {
+        NATIVE, JPEG, JPEG2000;
+
+        static Format of(String tsuid, Attributes attrs) {
+            String photometric = attrs.getString(Tag.PhotometricInterpretation, "");
+            switch (tsuid) {
+                case UID.ImplicitVRLittleEndian:
+                case UID.ExplicitVRLittleEndian:
+                    int samples = attrs.getInt(Tag.SamplesPerPixel, 1);
+                    if (attrs.getInt(Tag.BitsAllocated, 8) != 8 || attrs.getInt(Tag.PlanarConfiguration, 0) != 0) {
+                        return null;
+                    }
+                    if ((samples == 3 && photometric.equals("RGB"))
+                            || (samples == 1 && photometric.equals("MONOCHROME2"))) {
+                        return NATIVE;
+                    }
+                    return null;
+                case UID.JPEGBaseline1:
+                case UID.JPEGExtended24:
+                    // the JPEG image reader assumes YCbCr for 3 component images without color markers
+                    if (photometric.startsWith("YBR_FULL") || photometric.equals("MONOCHROME2")) {
+                        return JPEG;
+                    }
+                    return null;
+                case UID.JPEG2000LosslessOnly:
+                case UID.JPEG2000:
+                    return ImageIO.getImageReadersByFormatName("jpeg2000").hasNext() ? JPEG2000 : null;
+                default:
+                    return null;
+            }
+        }
+    }
+
+    /** The memory-mapped file of an instance and the position of each of its frames. */
+    private static final class FrameIndex {
+        static final FrameIndex UNSUPPORTED = new FrameIndex(null, null, null, null);
+
+        private final URI uri;
+        private final File file;
+        private final Format format;
+        private final int rows;
+        private final int columns;
+        private final int samples;
+        /** the fragments of each frame, as pairs of position and length */
+        private final List<long[]> frames = new ArrayList<>();
+        private MappedByteBuffer[] segments;
+
+        FrameIndex(URI uri, File file, Format format, Attributes attrs) {
+            this.uri = uri;
+            this.file = file;
+            this.format = format;
+            this.rows = attrs == null ? 0 : attrs.getInt(Tag.Rows, 0);
+            this.columns = attrs == null ? 0 : attrs.getInt(Tag.Columns, 0);
+            this.samples = attrs == null ? 0 : attrs.getInt(Tag.SamplesPerPixel, 1);
+        }
+
+        long nativeFrameLength() {
+            return (long) rows * columns * samples;
+        }
+
+        void addFrame(long[] fragments) {
+            frames.add(fragments);
+        }
+
+        private void map() throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+                long size = channel.size();
+                int n = (int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+                MappedByteBuffer[] mapped = new MappedByteBuffer[n];
+                for (int i = 0; i < n; i++) {
+                    long start = i * SEGMENT_SIZE;
+                    mapped[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+                }
+                this.segments = mapped;
+            }
+        }
+
+        /** Obtain a view of a region of the file, without copying it if it lies within a mapped segment. */
+        private ByteBuffer slice(long position, int length) throws IOException {
+            int segment = (int) (position / SEGMENT_SIZE);
+            int offset = (int) (position % SEGMENT_SIZE);
+            if (segment < segments.length && offset + (long) length <= segments[segment].capacity()) {
+                ByteBuffer view = segments[segment].duplicate();
+                view.position(offset).limit(offset + length);
+                return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+            }
+            ByteBuffer buf = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+                while (buf.hasRemaining()) {
+                    if (channel.read(buf, position + buf.position()) < 0) {
+                        throw new IOException("Unexpected end of file " + file);
+                    }
+                }
+            }
+            buf.flip();
+            return buf;
+        }
+
+        /** Index the fragments of encapsulated pixel data, starting at the basic offset table. */
+        boolean indexFragments(long position, int numberOfFrames) throws IOException {
+            ByteBuffer header = slice(position, 8);
+            if (tag(header) != ITEM) {
+                return false;
+            }
+            int botLength = header.getInt(4);
+            ByteBuffer bot = slice(position + 8, botLength);
+            long firstFragment = position + 8 + botLength;
+
+            // position and length of each fragment, relative to the first fragment
+            List<long[]> fragments = new ArrayList<>();
+            long pos = firstFragment;
+            while (true) {
+                header = slice(pos, 8);
+                int tag = tag(header);
+                if (tag == SEQUENCE_DELIMITER) {
+                    break;
+                }
+                if (tag != ITEM) {
+                    return false;
+                }
+                long length = header.getInt(4) & 0xFFFFFFFFL;
+                fragments.add(new long[] {pos - firstFragment, pos + 8, length});
+                pos += 8 + length;
+            }
+
+            if (fragments.size() == numberOfFrames) {
+                for (long[] f : fragments) {
+                    addFrame(new long[] {f[1], f[2]});
+                }
+                return true;
+            }
+            if (numberOfFrames == 1) {
+                long[] all = new long[fragments.size() * 2];
+                for (int i = 0; i < fragments.size(); i++) {
+                    all[2 * i] = fragments.get(i)[1];
+                    all[2 * i + 1] = fragments.get(i)[2];
+                }
+                addFrame(all);
+                return true;
+            }
+            if (botLength / 4 != numberOfFrames) {
+                // frames cannot be told apart
+                return false;
+            }
+            // group the fragments by the offsets of the frames
+            Iterator<long[]> it = fragments.iterator();
+            long[] next = it.hasNext() ? it.next() : null;
+            for (int i = 0; i < numberOfFrames; i++) {
+                long end = i + 1 < numberOfFrames ? bot.getInt(4 * (i + 1)) & 0xFFFFFFFFL : Long.MAX_VALUE;
+                List<Long> frame = new ArrayList<>();
+                while (next != null && next[0] < end) {
+                    frame.add(next[1]);
+                    frame.add(next[2]);
+                    next = it.hasNext() ? it.next() : null;
+                }
+                long[] f = new long[frame.size()];
+                for (int j = 0; j < f.length; j++) {
+                    f[j] = frame.get(j);
+                }
+                addFrame(f);
+            }
+            return true;
+        }
+
+        private static int tag(ByteBuffer header) {
+            return (header.getShort(0) & 0xFFFF) << 16 | (header.getShort(2) & 0xFFFF);
+        }
+
+        BufferedImage decode(int frameIndex) throws IOException {
+            if (frameIndex < 0 || frameIndex >= frames.size()) {
+                throw new IndexOutOfBoundsException("No frame " + frameIndex + " in " + file);
+            }
+            long[] fragments = frames.get(frameIndex);
+            ByteBuffer data;
+            if (fragments.length == 2) {
+                data = slice(fragments[0], (int) fragments[1]);
+            } else {
+                long total = 0;
+                for (int i = 1; i < fragments.length; i += 2) {
+                    total += fragments[i];
+                }
+                data = ByteBuffer.allocate((int) total);
+                for (int i = 0; i < fragments.length; i += 2) {
+                    data.put(slice(fragments[i], (int) fragments[i + 1]));
+                }
+                data.flip();
+            }
+
+            if (format == Format.NATIVE) {
+                return decodeNative(data);
+            }
+            try (ImageInputStream iis = new MemoryCacheImageInputStream(new ByteBufferInputStream(data))) {
+                Iterator<ImageReader> readers =
+                        ImageIO.getImageReadersByFormatName(format == Format.JPEG ? "jpeg" : "jpeg2000");
+                if (!readers.hasNext()) {
+                    throw new IOException("No image reader for " + format);
+                }
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(iis, true, true);
+                    return reader.read(0);
+                } finally {
+                    reader.dispose();
+                }
+            }
+        }
+
+        private BufferedImage decodeNative(ByteBuffer data) {
+            BufferedImage image = new BufferedImage(columns, rows,
+                    samples == 3 ? BufferedImage.TYPE_3BYTE_BGR : BufferedImage.TYPE_BYTE_GRAY);
+            byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+            data.get(pixels, 0, Math.min(pixels.length, data.remaining()));
+            if (samples == 3) {
+                // RGB to BGR
+                for (int i = 0; i + 2 < pixels.length; i += 3) {
+                    byte r = pixels[i];
+                    pixels[i] = pixels[i + 2];
+                    pixels[i + 2] = r;
+                }
+            }
+            return image;
+        }
+    }
+
+    /** An input stream over a byte buffer, which does not copy its contents. */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -43,6 +43,7 @@ import pt.ua.dicoogle.core.QueryExpressionBuilder;
 import pt.ua.dicoogle.sdk.datastructs.dim.DIMGeneric;
 import pt.ua.dicoogle.plugins.PluginController;
 import pt.ua.dicoogle.sdk.utils.DictionaryAccess;
+import pt.ua.dicoogle.sdk.datastructs.QueryExpression;
 import pt.ua.dicoogle.sdk.datastructs.SearchResult;
 import pt.ua.dicoogle.sdk.task.JointQueryTask;
 import pt.ua.dicoogle.sdk.task.Task;
@@ -63,14 +64,14 @@ public class RestDimResource extends ServerResource {
 
         Form queryForm = getRequest().getResourceRef().getQueryAsForm();
 
-        String search = queryForm.getValues("q");
+        String freeText = queryForm.getValues("q");
         String advSearch = queryForm.getValues("advq");
 
-        if (StringUtils.isNotEmpty(search)) {
-            QueryExpressionBuilder q = new QueryExpressionBuilder(search);
-            search = q.getQueryString();
+        final QueryExpression search;
+        if (StringUtils.isNotEmpty(freeText)) {
+            search = new QueryExpressionBuilder(freeText).getQueryExpression();
         } else if (StringUtils.isNotEmpty(advSearch)) {
-            search = advSearch;
+            search = QueryExpression.raw(advSearch);
         } else {
             // SEND ERROR NO QUERY DEFINED
             setStatus(new Status(401),
@@ -25,6 +25,7 @@ import org.slf4j.LoggerFactory;
 import static org.apache.commons.lang3.StringEscapeUtils.escapeHtml3;
 import org.restlet.resource.Get;
 import org.restlet.resource.ServerResource;
+import pt.ua.dicoogle.core.InstanceLocationCache;
 import pt.ua.dicoogle.plugins.PluginController;
 import pt.ua.dicoogle.sdk.utils.DictionaryAccess;
 import pt.ua.dicoogle.sdk.datastructs.SearchResult;
@@ -91,7 +92,6 @@ public class RestDumpResource extends ServerResource {
         try {
             System.out.println("Query: + " + query);
             queryResultList = PluginController.getInstance().queryAll(holder, query, extraFields).get();
-            Thread.sleep(1000);
         } catch (InterruptedException ex) {
             LoggerFactory.getLogger(RestDumpResource.class).error(ex.getMessage(), ex);
         } catch (ExecutionException ex) {
@@ -113,6 +113,7 @@ public class RestDumpResource extends ServerResource {
         while (it.hasNext()) {
             System.out.println("results: +++");
             SearchResult r = (SearchResult) it.next();
+            InstanceLocationCache.getInstance().put(SOPInstanceUID, r.getURI());
             for (String s : r.getExtraData().keySet()) {
                 System.out.println(s);
                 sb.append("\t<tag name=\"").append(s).append("\">")
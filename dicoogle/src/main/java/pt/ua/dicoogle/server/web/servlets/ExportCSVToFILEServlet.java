@@ -24,6 +24,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.*;
 
 import javax.servlet.ServletException;
@@ -86,10 +87,9 @@ public class ExportCSVToFILEServlet extends HttpServlet {
         // Make sure to show the download dialog
         resp.setHeader("Content-disposition", "attachment; filename=QueryResultsExport.csv");
 
-        try (BufferedInputStream bi = new BufferedInputStream(new FileInputStream(tmpFile))) {
-
-            IOUtils.copy(bi, resp.getOutputStream());
-            resp.getOutputStream().flush();
+        try (BufferedInputStream bi = new BufferedInputStream(new FileInputStream(tmpFile));
+                OutputStream out = ResponseUtil.openOutputStream(req, resp)) {
+            IOUtils.copy(bi, out);
         }
     }
 
@@ -142,22 +142,26 @@ public class ExportCSVToFILEServlet extends HttpServlet {
         logger.debug("UID: {}", uid);
         logger.debug("FilePath: {}", tempFile.getAbsolutePath());
 
-        FileOutputStream outStream = new FileOutputStream(tempFile);
-        BufferedOutputStream bos = new BufferedOutputStream(outStream);
-
-        ExportToCSVQueryTask task = new ExportToCSVQueryTask(orderedFields, bos);
-
-        if (arr == null || arr.length == 0) {
-            PluginController.getInstance().queryAll(task, queryString, fields);
-        } else {
-            List<String> providers = new ArrayList<>();
-            for (Object f : arr) {
-                providers.add(f.toString());
+        try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(tempFile))) {
+            ExportToCSVQueryTask task = new ExportToCSVQueryTask(orderedFields, bos);
+
+            if (arr == null || arr.length == 0) {
+                PluginController.getInstance().queryAll(task, queryString, fields);
+            } else {
+                List<String> providers = new ArrayList<>();
+                for (Object f : arr) {
+                    providers.add(f.toString());
+                }
+                PluginController.getInstance().query(task, providers, queryString, fields);
             }
-            PluginController.getInstance().query(task, providers, queryString, fields);
-        }
 
-        task.await();
+            task.export();
+        } catch (IOException ex) {
+            logger.warn("Failed to write the CSV export file", ex);
+            tempFile.delete();
+            ResponseUtil.sendError(resp, 500, "Failed to export the query results");
+            return;
+        }
 
         JSONObject obj = new JSONObject();
         obj.put("uid", uid);
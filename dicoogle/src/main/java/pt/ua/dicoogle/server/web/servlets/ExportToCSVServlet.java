@@ -19,6 +19,7 @@
 package pt.ua.dicoogle.server.web.servlets;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -32,28 +33,35 @@ import javax.servlet.http.HttpServletResponse;
 import net.sf.json.JSONArray;
 import net.sf.json.JSONException;
 import net.sf.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import pt.ua.dicoogle.core.query.ExportToCSVQueryTask;
 import pt.ua.dicoogle.plugins.PluginController;
+import pt.ua.dicoogle.server.web.utils.ResponseUtil;
 
 /**
  * @author fredericosilva@ua.pt
  */
 public class ExportToCSVServlet extends HttpServlet {
 
+    private static final Logger logger = LoggerFactory.getLogger(ExportToCSVServlet.class);
     private static final long serialVersionUID = 1L;
 
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-        resp.setHeader("Content-disposition", "attachment; filename=QueryResultsExport.csv");
         String queryString = req.getParameter("query");
         String[] fields = req.getParameterValues("fields");
         String[] providers = req.getParameterValues("providers");
 
-        if (queryString == null)
+        if (queryString == null) {
             resp.sendError(401, "Query Parameters not found");
+            return;
+        }
 
-        if (fields == null || fields.length == 0)
+        if (fields == null || fields.length == 0) {
             resp.sendError(402, "Fields Parameters not found");
+            return;
+        }
 
         List<String> fieldList = new ArrayList<>(fields.length);
         Map<String, String> fieldsMap = new HashMap<>();
@@ -62,19 +70,13 @@ public class ExportToCSVServlet extends HttpServlet {
             fieldsMap.put(f, f);
         }
 
-        ExportToCSVQueryTask task = new ExportToCSVQueryTask(fieldList, resp.getOutputStream());
-
-        if (providers == null || providers.length == 0) {
-            PluginController.getInstance().queryAll(task, queryString, fieldsMap);
-        } else {
-            List<String> providersList = new ArrayList<>();
+        List<String> providersList = new ArrayList<>();
+        if (providers != null) {
             for (String f : providers) {
                 providersList.add(f);
             }
-            PluginController.getInstance().query(task, providersList, queryString, fieldsMap);
         }
-
-        task.await();
+        export(req, resp, fieldList, providersList, queryString, fieldsMap);
     }
 
     @Override
@@ -116,20 +118,38 @@ public class ExportToCSVServlet extends HttpServlet {
             return;
         }
 
-        ExportToCSVQueryTask task = new ExportToCSVQueryTask(orderedFields, resp.getOutputStream());
-
-        if (arr.isEmpty()) {
-            PluginController.getInstance().queryAll(task, queryString, fields);
-        } else {
-            List<String> providers = new ArrayList<>();
-            for (Object f : arr) {
-                providers.add(f.toString());
-            }
-            PluginController.getInstance().query(task, providers, queryString, fields);
+        List<String> providers = new ArrayList<>();
+        for (Object f : arr) {
+            providers.add(f.toString());
         }
+        export(req, resp, orderedFields, providers, queryString, fields);
+    }
+
+    /**
+     * Issue the query and stream the results to the client as a CSV table,
+     * compressed if the client supports it.
+     *
+     * @param providers the query providers to use, all of them if empty
+     */
+    private static void export(HttpServletRequest req, HttpServletResponse resp, List<String> orderedFields,
+            List<String> providers, String queryString, Map<String, String> fields) throws IOException {
+        resp.setContentType("application/csv");
+        resp.setHeader("Content-disposition", "attachment; filename=QueryResultsExport.csv");
+
+        try (OutputStream out = ResponseUtil.openOutputStream(req, resp)) {
+            ExportToCSVQueryTask task = new ExportToCSVQueryTask(orderedFields, out);
 
-        task.await();
+            if (providers.isEmpty()) {
+                PluginController.getInstance().queryAll(task, queryString, fields);
+            } else {
+                PluginController.getInstance().query(task, providers, queryString, fields);
+            }
 
+            task.export();
+        } catch (IOException ex) {
+            // most likely the client went away, the pending providers were already cancelled
+            logger.debug("CSV export interrupted", ex);
+        }
     }
 
 }
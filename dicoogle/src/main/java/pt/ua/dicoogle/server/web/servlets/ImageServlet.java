@@ -30,10 +30,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
 
 import javax.servlet.ServletOutputStream;
 
@@ -41,21 +40,21 @@ import net.sf.json.JSONObject;
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import pt.ua.dicoogle.core.InstanceLocationCache;
 import pt.ua.dicoogle.core.settings.ServerSettingsManager;
 import pt.ua.dicoogle.plugins.PluginController;
 import pt.ua.dicoogle.sdk.StorageInputStream;
 import pt.ua.dicoogle.sdk.StorageInterface;
-import pt.ua.dicoogle.sdk.datastructs.SearchResult;
-import pt.ua.dicoogle.sdk.task.JointQueryTask;
-import pt.ua.dicoogle.sdk.task.Task;
-import pt.ua.dicoogle.sdk.utils.QueryParseException;
 import pt.ua.dicoogle.server.web.dicom.Convert2PNG;
 import pt.ua.dicoogle.server.web.dicom.Information;
+import pt.ua.dicoogle.server.web.utils.ImageFormat;
 import pt.ua.dicoogle.server.web.utils.LocalImageCache;
 import pt.ua.dicoogle.server.web.utils.ResponseUtil;
 
 /**
- * Handles the requests for DICOM frames, returning them as PNG images.
+ * Handles the requests for DICOM frames, returning them as PNG images,
+ * or in another image format if the client asks for it in the Accept header.
+ * PNG is served as well when the Accept header does not name any of the available formats.
  * Also maintains a cache of the images already served to speed-up the next requests (minimizing server load by doing way less conversions).
  *
  * @author Antonio
@@ -105,18 +104,28 @@ public class ImageServlet extends HttpServlet {
         if (sFrame == null) {
             frame = 0;
         } else {
-            frame = Integer.parseInt(sFrame);
+            try {
+                frame = Integer.parseInt(sFrame);
+            } catch (NumberFormatException ex) {
+                frame = -1;
+            }
+            if (frame < 0) {
+                ResponseUtil.sendError(response, 400, "Invalid frame number");
+                return;
+            }
         }
 
+        ImageFormat format = ImageFormat.fromAccept(request.getHeader("Accept"));
+        if (format == null) {
+            // e.g. a generic client asking for JSON, serve PNG as before
+            format = ImageFormat.PNG;
+        }
+        response.setHeader("Vary", "Accept");
+
         StorageInputStream imgFile;
         if (sopInstanceUID != null) {
-            try {
-                // get the image file for that SOP Instance UID
-                imgFile = getFileFromSOPInstanceUID(sopInstanceUID, providers);
-            } catch (QueryParseException ex) {
-                ResponseUtil.sendError(response, 400, "Failed to parse the query: " + ex.getMessage());
-                return;
-            }
+            // get the image file for that SOP Instance UID
+            imgFile = getFileFromSOPInstanceUID(sopInstanceUID, providers);
             // if no .dcm file was found tell the client
             if (imgFile == null) {
                 ResponseUtil.sendError(response, 404, "No image file for supplied SOP Instance UID");
@@ -145,14 +154,16 @@ public class ImageServlet extends HttpServlet {
         if (cache != null && cache.isRunning()) {
 
             try {
-                InputStream istream = cache.get(imgFile.getURI(), frame, thumbnail);
-                response.setContentType("image/png");
+                InputStream istream = cache.get(imgFile.getURI(), frame, thumbnail, format);
+                response.setContentType(format.getMimeType());
                 try (ServletOutputStream out = response.getOutputStream()) {
                     IOUtils.copy(istream, out);
                 }
             } catch (IOException ex) {
                 logger.warn("Could not convert the image", ex);
                 ResponseUtil.sendError(response, 500, "Failed to convert the image");
+            } catch (IndexOutOfBoundsException ex) {
+                ResponseUtil.sendError(response, 404, "No such frame in the image");
             } catch (RuntimeException ex) {
                 logger.error("Unexpected exception", ex);
                 ResponseUtil.sendError(response, 500, "Unexpected internal server error");
@@ -161,31 +172,33 @@ public class ImageServlet extends HttpServlet {
         } else {
             // if the cache is invalid or not running convert the image and return it "on-the-fly"
             try {
-                ByteArrayOutputStream pngStream = getPNGStream(imgFile, frame, thumbnail);
-                response.setContentType("image/png"); // set the appropriate type for the PNG image
-                response.setContentLength(pngStream.size()); // set the image size
+                ByteArrayOutputStream imageStream = getImageStream(imgFile, frame, thumbnail, format);
+                response.setContentType(format.getMimeType()); // set the appropriate type for the image
+                response.setContentLength(imageStream.size()); // set the image size
                 try (ServletOutputStream out = response.getOutputStream()) {
-                    pngStream.writeTo(out);
-                    pngStream.flush();
+                    imageStream.writeTo(out);
+                    imageStream.flush();
                 }
             } catch (IOException ex) {
                 logger.warn("Could not convert the image", ex);
                 ResponseUtil.sendError(response, 500, "Failed to convert the image");
+            } catch (IndexOutOfBoundsException ex) {
+                ResponseUtil.sendError(response, 404, "No such frame in the image");
             }
         }
     }
 
-    private ByteArrayOutputStream getPNGStream(StorageInputStream imgFile, int frame, boolean thumbnail)
-            throws IOException {
-        ByteArrayOutputStream pngStream;
+    private ByteArrayOutputStream getImageStream(StorageInputStream imgFile, int frame, boolean thumbnail,
+            ImageFormat format) throws IOException {
+        ByteArrayOutputStream imageStream;
         if (thumbnail) {
             // retrieve thumbnail dimension settings
             int thumbSize = ServerSettingsManager.getSettings().getArchiveSettings().getThumbnailSize();
-            pngStream = Convert2PNG.DICOM2ScaledPNGStream(imgFile, frame, thumbSize, thumbSize);
+            imageStream = Convert2PNG.DICOM2ScaledStream(imgFile, frame, thumbSize, thumbSize, format);
         } else {
-            pngStream = Convert2PNG.DICOM2PNGStream(imgFile, frame);
+            imageStream = Convert2PNG.DICOM2Stream(imgFile, frame, format);
         }
-        return pngStream;
+        return imageStream;
     }
 
     @Override
@@ -218,49 +231,24 @@ public class ImageServlet extends HttpServlet {
         wr.print(r.toString());
     }
 
-    private static StorageInputStream getFileFromSOPInstanceUID(String sopInstanceUID, List<String> providers)
-            throws IOException {
-        JointQueryTask qt = new JointQueryTask() {
-            @Override
-            public void onCompletion() {}
-
-            @Override
-            public void onReceive(Task<Iterable<SearchResult>> e) {}
-        };
-        try {
-            PluginController pc = PluginController.getInstance();
+    private static StorageInputStream getFileFromSOPInstanceUID(String sopInstanceUID, List<String> providers) {
+        PluginController pc = PluginController.getInstance();
+        if (providers == null) {
+            // use only DIM sources
+            providers = ServerSettingsManager.getSettings().getArchiveSettings().getDIMProviders();
             if (providers == null) {
-                // use only DIM sources
-                providers = ServerSettingsManager.getSettings().getArchiveSettings().getDIMProviders();
-                if (providers == null) {
+                // fallback to all query providers
+                providers = pc.getQueryProvidersName(true);
+            } else {
+                // exclude unknown query providers
+                providers = new ArrayList<>(providers);
+                providers.removeIf(pName -> pc.getQueryProviderByName(pName, true) == null);
+                if (providers.isEmpty()) {
                     // fallback to all query providers
                     providers = pc.getQueryProvidersName(true);
-                } else {
-                    // exclude unknown query providers
-                    providers.removeIf(pName -> pc.getQueryProviderByName(pName, true) == null);
-                    if (providers.isEmpty()) {
-                        // fallback to all query providers
-                        providers = pc.getQueryProvidersName(true);
-                    }
                 }
             }
-            Iterator<SearchResult> it =
-                    pc.query(qt, providers, "SOPInstanceUID:\"" + sopInstanceUID + '"').get().iterator();
-            if (!it.hasNext()) {
-                throw new IOException("No such image of SOPInstanceUID " + sopInstanceUID);
-            }
-            SearchResult res = it.next();
-            StorageInterface storage = pc.getStorageForSchema(res.getURI());
-            if (storage == null) {
-                throw new IOException("Unsupported file scheme");
-            }
-            StorageInputStream item = storage.get(res.getURI());
-            if (item == null) {
-                throw new IOException("No storage item found");
-            }
-            return item;
-        } catch (InterruptedException | ExecutionException ex) {
-            throw new IOException(ex);
         }
+        return InstanceLocationCache.getInstance().open(sopInstanceUID, providers);
     }
 }
@@ -22,6 +22,7 @@ import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
 import java.net.URI;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
@@ -62,6 +63,7 @@ public class IndexerServlet extends HttpServlet {
     public static final String ACTION_SET_ADVANCED_SETTINGS = "setadvancedsettings";
     public static final String ACTION_GET_PATH_CONTENTS = "pathcontents";
     public static final String ACTION_PARAM_PATH = "path";
+    public static final String ACTION_PARAM_INCREMENTAL = "incremental";
 
     /*
      * Action codes for internal use.
@@ -275,7 +277,13 @@ public class IndexerServlet extends HttpServlet {
 
                 if (uri != null) {
                     System.out.println("URI: " + uri.toString());
-                    List<Task<Report>> report = PluginController.getInstance().index(uri);
+                    List<Task<Report>> report;
+                    if (Boolean.parseBoolean(request.getParameter(ACTION_PARAM_INCREMENTAL))) {
+                        Task<Report> task = PluginController.getInstance().indexIncremental(uri, null);
+                        report = task == null ? Collections.emptyList() : Collections.singletonList(task);
+                    } else {
+                        report = PluginController.getInstance().index(uri);
+                    }
                     System.out.println("Report Length: " + report.size());
                     if (this.ongoingTasks == null)
                         this.ongoingTasks = report;
@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.web.servlets.management;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.common.cache.CacheStats;
+
+import net.sf.json.JSONObject;
+import pt.ua.dicoogle.core.InstanceLocationCache;
+import pt.ua.dicoogle.core.query.QueryPlanCache;
+import pt.ua.dicoogle.core.query.QueryResultCache;
+import pt.ua.dicoogle.server.web.utils.LocalImageCache;
+import pt.ua.dicoogle.server.web.utils.cache.WSITileCache;
+
+/** Servlet exposing the size and hit/miss statistics of Dicoogle's internal caches.
+ */
+public class CacheMetricsServlet extends HttpServlet {
+
+    private final LocalImageCache imageCache;
+
+    /**
+     * Creates the cache metrics servlet.
+     *
+     * @param imageCache the local image cache of the image servlet, can be null if there is none
+     */
+    public CacheMetricsServlet(LocalImageCache imageCache) {
+        this.imageCache = imageCache;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        resp.setContentType("application/json");
+        resp.getWriter().write(metrics().toString());
+    }
+
+    /** @return the size and statistics of each cache, by cache name */
+    JSONObject metrics() {
+        JSONObject object = new JSONObject();
+
+        InstanceLocationCache locations = InstanceLocationCache.getInstance();
+        object.put("instanceLocations", toJSON(locations.size(), locations.stats()));
+
+        WSITileCache tiles = WSITileCache.getInstance();
+        JSONObject tilesJSON = toJSON(tiles.size(), tiles.stats());
+        tilesJSON.put("bytes", tiles.weight());
+        tilesJSON.put("maxBytes", tiles.maximumWeight());
+        object.put("wsiTiles", tilesJSON);
+
+        QueryPlanCache plans = QueryPlanCache.getInstance();
+        object.put("queryPlans", toJSON(plans.size(), plans.stats()));
+
+        QueryResultCache queryResults = QueryResultCache.getInstance();
+        JSONObject queryResultsJSON = toJSON(queryResults.size(), queryResults.stats());
+        queryResultsJSON.put("bytes", queryResults.weight());
+        queryResultsJSON.put("maxBytes", queryResults.maximumWeight());
+        queryResultsJSON.put("generation", queryResults.getGeneration());
+        object.put("queryResults", queryResultsJSON);
+
+        if (imageCache != null) {
+            JSONObject imagesJSON = toJSON(imageCache.size(), imageCache.stats());
+            imagesJSON.put("bytes", imageCache.weight());
+            imagesJSON.put("maxBytes", imageCache.maximumWeight());
+            object.put("images", imagesJSON);
+        }
+        return object;
+    }
+
+    static JSONObject toJSON(long size, CacheStats stats) {
+        JSONObject json = new JSONObject();
+        json.put("size", size);
+        json.put("hits", stats.hitCount());
+        json.put("misses", stats.missCount());
+        json.put("hitRate", stats.hitRate());
+        json.put("evictions", stats.evictionCount());
+        return json;
+    }
+}
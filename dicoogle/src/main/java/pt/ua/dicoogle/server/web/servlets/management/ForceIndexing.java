@@ -39,6 +39,7 @@ import java.lang.reflect.Modifier;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -60,11 +61,17 @@ public class ForceIndexing extends HttpServlet {
         // Getting Parameters.
         String[] uris = req.getParameterValues("uri");
         String[] pluginsName = req.getParameterValues("plugin");
+        boolean bulk = Boolean.parseBoolean(req.getParameter("bulk"));
+        boolean incremental = Boolean.parseBoolean(req.getParameter("incremental"));
 
         if (uris == null) {
             resp.sendError(400, "No uri provided");
             return;
         }
+        if (bulk && incremental) {
+            resp.sendError(400, "Bulk and incremental indexing cannot be combined");
+            return;
+        }
 
         final PluginController pc = PluginController.getInstance();
 
@@ -78,7 +85,13 @@ public class ForceIndexing extends HttpServlet {
             try {
                 URI u = encodeURI(uri);
                 logger.debug("Request to index {}", u);
-                if (pluginsName == null) {
+                if (incremental || bulk) {
+                    List<String> names = pluginsName == null ? null : Arrays.asList(pluginsName);
+                    Task<Report> task = incremental ? pc.indexIncremental(u, names) : pc.bulkIndex(u, names);
+                    if (task != null) {
+                        tasks.add(task);
+                    }
+                } else if (pluginsName == null) {
                     tasks.addAll(pc.index(u));
                 } else {
                     for (String pluginName : pluginsName) {
@@ -53,6 +53,19 @@ public class ServerStorageServlet extends HttpServlet {
         String aetitle = req.getParameter("aetitle");
         String publicParam = req.getParameter("public");
         String portParam = req.getParameter("port");
+        int associations = 1;
+        try {
+            String associationsParam = req.getParameter("associations");
+            if (associationsParam != null) {
+                associations = Integer.parseInt(associationsParam);
+            }
+            if (associations <= 0) {
+                throw new NumberFormatException();
+            }
+        } catch (NumberFormatException _ex) {
+            ResponseUtil.sendError(resp, 400, "Illegal associations parameter: must be a positive integer");
+            return;
+        }
         try {
             boolean isPublic = publicParam != null ? publicParam.isEmpty() || Boolean.parseBoolean(publicParam) : false;
             int port = Integer.parseInt(portParam);
@@ -65,8 +78,8 @@ public class ServerStorageServlet extends HttpServlet {
 
             switch (type) {
                 case "add":
-                    ServerSettingsManager.getSettings().getDicomServicesSettings()
-                            .addMoveDestination(new MoveDestination(aetitle, ip, port, isPublic, description));
+                    ServerSettingsManager.getSettings().getDicomServicesSettings().addMoveDestination(
+                            new MoveDestination(aetitle, ip, port, isPublic, description, associations));
                     ResponseUtil.simpleResponse(resp, "added", true);
                     break;
                 case "remove":
@@ -18,23 +18,285 @@
  */
 package pt.ua.dicoogle.server.web.servlets.mlprovider;
 
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.restlet.data.Status;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import pt.ua.dicoogle.core.mlprovider.BulkInferenceTask;
+import pt.ua.dicoogle.plugins.PluginController;
+import pt.ua.dicoogle.sdk.datastructs.dim.BulkAnnotation;
+import pt.ua.dicoogle.sdk.datastructs.dim.DimLevel;
+import pt.ua.dicoogle.sdk.datastructs.dim.Point2D;
+import pt.ua.dicoogle.sdk.mlprovider.MLInference;
+import pt.ua.dicoogle.sdk.mlprovider.MLInferenceRequest;
+import pt.ua.dicoogle.sdk.mlprovider.MLProviderInterface;
+import pt.ua.dicoogle.sdk.task.Task;
+import pt.ua.dicoogle.server.web.dicom.ROIExtractor;
 import pt.ua.dicoogle.server.web.utils.ResponseUtil;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
 
+/**
+ * Bulk inference over the series or instances of studies, of series, or of the results of a query,
+ * or over a list of regions of interest.
+ *
+ * The outcome of each object is streamed back as soon as it is available,
+ * as a line of JSON (newline-delimited JSON) with the progress of the procedure,
+ * and the last line holds a summary.
+ */
 public class BulkInferServlet extends HttpServlet {
 
     private static final Logger log = LoggerFactory.getLogger(BulkInferServlet.class);
 
+    private final ROIExtractor roiExtractor;
+
+    public BulkInferServlet() {
+        this.roiExtractor = new ROIExtractor();
+    }
+
+    /** A region of interest of an instance */
+    private static class ROI {
+        final String uid;
+        final BulkAnnotation.AnnotationType type;
+        final List<Point2D> points;
+
+        ROI(String uid, BulkAnnotation.AnnotationType type, List<Point2D> points) {
+            this.uid = uid;
+            this.type = type;
+            this.points = points;
+        }
+    }
+
     @Override
-    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-        ResponseUtil.sendError(resp, Status.SERVER_ERROR_NOT_IMPLEMENTED.getCode(), "Endpoint not implemented");
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+
+        String jsonString = IOUtils.toString(request.getReader());
+        ObjectMapper mapper = new ObjectMapper();
+        JsonNode body = mapper.readTree(jsonString);
+
+        if (body == null || !body.has("provider")) {
+            ResponseUtil.sendError(response, Status.CLIENT_ERROR_BAD_REQUEST.getCode(),
+                    "Provider provided was invalid");
+            return;
+        }
+
+        if (!body.has("modelID")) {
+            ResponseUtil.sendError(response, Status.CLIENT_ERROR_BAD_REQUEST.getCode(), "Model identifier was invalid");
+            return;
+        }
+
+        String provider = body.get("provider").asText();
+        String modelID = body.get("modelID").asText();
+
+        Map<String, Object> parameters;
+        if (body.has("parameters"))
+            parameters = mapper.convertValue(body.get("parameters"), Map.class);
+        else
+            parameters = new HashMap<>();
+
+        ResultWriter writer = new ResultWriter(response, mapper);
+        Task<BulkInferenceTask.Summary> task;
+
+        if (body.has("rois")) {
+            MLProviderInterface providerInterface =
+                    PluginController.getInstance().getMachineLearningProviderByName(provider, true);
+            if (providerInterface == null) {
+                ResponseUtil.sendError(response, Status.CLIENT_ERROR_NOT_FOUND.getCode(), "No such provider");
+                return;
+            }
+            List<ROI> rois = new ArrayList<>();
+            try {
+                for (JsonNode roi : body.get("rois")) {
+                    rois.add(new ROI(roi.get("uid").asText(),
+                            BulkAnnotation.AnnotationType.valueOf(roi.get("type").asText()),
+                            mapper.readValue(roi.get("points").toString(), new TypeReference<List<Point2D>>() {})));
+                }
+            } catch (IllegalArgumentException | NullPointerException | IOException e) {
+                ResponseUtil.sendError(response, Status.CLIENT_ERROR_BAD_REQUEST.getCode(),
+                        "Regions of interest provided were invalid");
+                return;
+            }
+
+            // the regions are extracted by the workers of the bulk inference task, in parallel
+            task = new Task<>("MLBulkInferenceTask" + UUID.randomUUID(),
+                    new BulkInferenceTask<ROI>(providerInterface, rois, roi -> {
+                        // as in single inference, larger regions are rejected
+                        if (area(roi) > InferServlet.MAX_ROI_AREA) {
+                            throw new IllegalArgumentException("Region of interest is too large");
+                        }
+                        BufferedImage bi = roiExtractor.extractROI(roi.uid, roi.type, roi.points);
+                        if (bi == null)
+                            return null;
+                        MLInferenceRequest predictionRequest =
+                                new MLInferenceRequest(true, DimLevel.INSTANCE, roi.uid, modelID);
+                        predictionRequest.setParameters(parameters);
+                        predictionRequest.setRoi(bi);
+                        return predictionRequest;
+                    }, writer.<ROI>listener(roi -> roi.uid)));
+        } else {
+            String query = buildQuery(body);
+            if (query == null) {
+                ResponseUtil.sendError(response, Status.CLIENT_ERROR_BAD_REQUEST.getCode(),
+                        "One of studies, series, query or rois must be provided");
+                return;
+            }
+            DimLevel level;
+            try {
+                level = body.has("level") ? DimLevel.valueOf(body.get("level").asText().toUpperCase())
+                        : DimLevel.SERIES;
+            } catch (IllegalArgumentException e) {
+                ResponseUtil.sendError(response, Status.CLIENT_ERROR_BAD_REQUEST.getCode(),
+                        "DIM level provided was invalid");
+                return;
+            }
+            task = PluginController.getInstance().bulkInfer(provider, modelID, level, query, parameters,
+                    writer.<String>listener(uid -> uid));
+            if (task == null) {
+                ResponseUtil.sendError(response, Status.CLIENT_ERROR_NOT_FOUND.getCode(), "No such provider");
+                return;
+            }
+        }
+
+        writer.start(task);
+        task.run();
+        try {
+            writer.summary(task.get());
+        } catch (CancellationException e) {
+            log.info("Bulk inference was cancelled");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.error("Bulk inference failed", e.getCause());
+            writer.error(e.getCause());
+        }
+    }
+
+    /** Build the query selecting the objects of the request, or null if there is none. */
+    private static String buildQuery(JsonNode body) {
+        if (body.has("query")) {
+            return body.get("query").asText();
+        }
+        List<String> terms = new ArrayList<>();
+        if (body.has("studies")) {
+            for (JsonNode uid : body.get("studies")) {
+                terms.add("StudyInstanceUID:" + quote(uid.asText()));
+            }
+        }
+        if (body.has("series")) {
+            for (JsonNode uid : body.get("series")) {
+                terms.add("SeriesInstanceUID:" + quote(uid.asText()));
+            }
+        }
+        if (terms.isEmpty()) {
+            return null;
+        }
+        return String.join(" OR ", terms);
+    }
+
+    /** Quote a term of a query, escaping the characters which would end it. */
+    static String quote(String term) {
+        return '"' + term.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+
+    /** The area of the bounding box of a region of interest, in pixels. */
+    private static double area(ROI roi) {
+        return new BulkAnnotation(roi.type, BulkAnnotation.PixelOrigin.VOLUME).getArea(roi.points);
+    }
+
+    /** Writes the outcome of each object as a line of JSON, as it is produced. */
+    private static class ResultWriter {
+        private final HttpServletResponse response;
+        private final ObjectMapper mapper;
+        private Task<BulkInferenceTask.Summary> task;
+        private PrintWriter out;
+
+        ResultWriter(HttpServletResponse response, ObjectMapper mapper) {
+            this.response = response;
+            this.mapper = mapper;
+        }
+
+        void start(Task<BulkInferenceTask.Summary> task) throws IOException {
+            this.task = task;
+            response.setContentType("application/x-ndjson");
+            response.setCharacterEncoding("UTF-8");
+            this.out = response.getWriter();
+        }
+
+        <T> BulkInferenceTask.Listener<T> listener(Function<T, String> uidOf) {
+            return new BulkInferenceTask.Listener<T>() {
+                @Override
+                public void onInference(T item, MLInference inference) {
+                    ObjectNode line = mapper.createObjectNode();
+                    line.put("uid", uidOf.apply(item));
+                    line.set("inference", mapper.valueToTree(inference));
+                    write(line);
+
+                    // DICOM SEG objects cannot be sent along, as in single inference
+                    if (!StringUtils.isBlank(inference.getResourcesFolder())) {
+                        try {
+                            FileUtils.deleteDirectory(new File(inference.getResourcesFolder()));
+                        } catch (IOException e) {
+                            log.warn("Could not delete temporary file", e);
+                        }
+                    }
+                }
+
+                @Override
+                public void onFailure(T item, Exception error) {
+                    log.debug("Could not make prediction on {}", uidOf.apply(item), error);
+                    ObjectNode line = mapper.createObjectNode();
+                    line.put("uid", uidOf.apply(item));
+                    line.put("error", String.valueOf(error.getMessage()));
+                    write(line);
+                }
+            };
+        }
+
+        void summary(BulkInferenceTask.Summary summary) {
+            ObjectNode line = mapper.createObjectNode();
+            ObjectNode json = line.putObject("summary");
+            json.put("submitted", summary.getSubmitted());
+            json.put("inferred", summary.getInferred());
+            json.put("failed", summary.getFailed());
+            json.put("elapsedTime", summary.getElapsedTime());
+            write(line);
+        }
+
+        void error(Throwable error) {
+            ObjectNode line = mapper.createObjectNode();
+            line.put("error", "Bulk inference failed: " + error.getMessage());
+            write(line);
+        }
+
+        private synchronized void write(ObjectNode line) {
+            if (task != null) {
+                line.put("progress", task.getProgress());
+            }
+            out.println(line.toString());
+            // push each line to the client right away
+            out.flush();
+            if (out.checkError() && task != null) {
+                // the client went away, no point in going on
+                task.cancel(true);
+            }
+        }
     }
 }
@@ -55,6 +55,10 @@ public class InferServlet extends HttpServlet {
 
     private static final Logger log = LoggerFactory.getLogger(InferServlet.class);
 
+    /** The largest region of interest, in pixels.
+     * This equates to a maximum of 4000x4000 which represents in RGB an image of 48MB */
+    static final double MAX_ROI_AREA = 16000000;
+
     private final ROIExtractor roiExtractor;
 
     private final WSICache wsiCache;
@@ -176,7 +180,7 @@ public class InferServlet extends HttpServlet {
 
             // Verify dimensions of annotation, reject if too big. In the future, adopt a sliding window strategy to process large processing windows.
             double area = annotation.getArea(annotation.getAnnotations().get(0));
-            if (area > 16000000) // This equates to a maximum of 4000x4000 which represents in RGB an image of 48MB
+            if (area > MAX_ROI_AREA)
                 return null;
 
             BufferedImage bi = roiExtractor.extractROI(dicomMetaData, annotation.getAnnotationType(),
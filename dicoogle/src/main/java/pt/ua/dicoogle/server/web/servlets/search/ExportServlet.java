@@ -19,6 +19,7 @@
 package pt.ua.dicoogle.server.web.servlets.search;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.*;
 import java.util.Map.Entry;
 
@@ -33,6 +34,7 @@ import org.slf4j.LoggerFactory;
 import pt.ua.dicoogle.core.QueryExpressionBuilder;
 import pt.ua.dicoogle.core.query.ExportToCSVQueryTask;
 import pt.ua.dicoogle.plugins.PluginController;
+import pt.ua.dicoogle.server.web.utils.ResponseUtil;
 import pt.ua.dicoogle.sdk.utils.DictionaryAccess;
 
 public class ExportServlet extends HttpServlet {
@@ -80,21 +82,24 @@ public class ExportServlet extends HttpServlet {
     }
 
     private void doGetExportCvs(HttpServletRequest req, HttpServletResponse resp) throws IOException {
-        resp.setHeader("Content-disposition", "attachment; filename=QueryResultsExport.csv");
         String queryString = req.getParameter("query");
         String[] fields = req.getParameterValues("fields");
         String[] providers = req.getParameterValues("providers");
         boolean keyword = Boolean.parseBoolean(req.getParameter("keyword"));
 
         logger.debug("queryString: {}", queryString);
-        logger.debug("fields: {}", Arrays.asList(fields));
         logger.debug("keyword: {}", keyword);
 
-        if (queryString == null)
+        if (queryString == null) {
             resp.sendError(401, "Query Parameters not found");
+            return;
+        }
 
-        if (fields == null || fields.length == 0)
+        if (fields == null || fields.length == 0) {
             resp.sendError(402, "Fields Parameters not found");
+            return;
+        }
+        logger.debug("fields: {}", Arrays.asList(fields));
 
         if (!keyword) {
             QueryExpressionBuilder q = new QueryExpressionBuilder(queryString);
@@ -108,16 +113,24 @@ public class ExportServlet extends HttpServlet {
             fieldsMap.put(f, f);
         }
 
-        ExportToCSVQueryTask task = new ExportToCSVQueryTask(fieldList, resp.getOutputStream());
+        resp.setContentType("application/csv");
+        resp.setHeader("Content-disposition", "attachment; filename=QueryResultsExport.csv");
 
-        if (providers == null || providers.length == 0) {
-            PluginController.getInstance().queryAll(task, queryString, fieldsMap);
-        } else {
-            List<String> providersList = Arrays.asList(providers);
-            PluginController.getInstance().query(task, providersList, queryString, fieldsMap);
-        }
+        try (OutputStream out = ResponseUtil.openOutputStream(req, resp)) {
+            ExportToCSVQueryTask task = new ExportToCSVQueryTask(fieldList, out);
 
-        task.await();
+            if (providers == null || providers.length == 0) {
+                PluginController.getInstance().queryAll(task, queryString, fieldsMap);
+            } else {
+                List<String> providersList = Arrays.asList(providers);
+                PluginController.getInstance().query(task, providersList, queryString, fieldsMap);
+            }
+
+            task.export();
+        } catch (IOException ex) {
+            // most likely the client went away, the pending providers were already cancelled
+            logger.debug("CSV export interrupted", ex);
+        }
     }
 
 
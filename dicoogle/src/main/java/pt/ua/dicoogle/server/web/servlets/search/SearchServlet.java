@@ -24,11 +24,16 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import java.io.IOException;
+import java.io.Writer;
 import java.util.*;
 
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
-import com.google.common.collect.ImmutableList;
 import net.sf.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONWriter;
@@ -39,9 +44,13 @@ import net.sf.json.JSONObject;
 
 import org.apache.commons.lang3.StringUtils;
 
+import pt.ua.dicoogle.core.InstanceLocationCache;
 import pt.ua.dicoogle.core.QueryExpressionBuilder;
-import pt.ua.dicoogle.sdk.datastructs.dim.DIMGeneric;
+import pt.ua.dicoogle.sdk.datastructs.dim.DIMAggregator;
 import pt.ua.dicoogle.plugins.PluginController;
+import pt.ua.dicoogle.sdk.datastructs.PagedResults;
+import pt.ua.dicoogle.sdk.datastructs.QueryExpression;
+import pt.ua.dicoogle.sdk.datastructs.QueryPage;
 import pt.ua.dicoogle.sdk.datastructs.SearchResult;
 import pt.ua.dicoogle.sdk.task.JointQueryTask;
 import pt.ua.dicoogle.sdk.task.Task;
@@ -92,6 +101,9 @@ public class SearchServlet extends HttpServlet {
         String[] fields = request.getParameterValues("field");
         String pExpand = request.getParameter("expand");
         boolean expand = pExpand != null && (pExpand.isEmpty() || Boolean.parseBoolean(pExpand));
+        String pCount = request.getParameter("count");
+        boolean countResults = pCount == null || pCount.isEmpty() || Boolean.parseBoolean(pCount);
+        String cursor = StringUtils.trimToNull(request.getParameter("cursor"));
 
         final int psize;
         final int offset;
@@ -156,10 +168,8 @@ public class SearchServlet extends HttpServlet {
             return;
         }
 
-        if (expand) {
-            QueryExpressionBuilder q = new QueryExpressionBuilder(query);
-            query = q.getQueryString();
-        }
+        final QueryExpression expression =
+                expand ? new QueryExpressionBuilder(query).getQueryExpression() : QueryExpression.raw(query);
 
         List<String> providerList = providers != null ? Arrays.asList(providers) : new ArrayList<>();
         providerList = PluginController.getInstance().filterDicomQueryProviders(providerList);
@@ -208,39 +218,89 @@ public class SearchServlet extends HttpServlet {
             }
         }
 
+        // push the requested page down to the providers when all of them support it,
+        // so that the cost of a page does not depend on how deep it is
+        final boolean pushDown = this.searchType == SearchType.ALL
+                && PluginController.getInstance().supportsPagination(providerList);
+        final boolean singleProvider = providerList.size() == 1;
+        if (cursor != null && !(pushDown && singleProvider)) {
+            sendError(response, 400,
+                    "Parameter cursor is only applicable to a single query provider with pagination support");
+            return;
+        }
+        final Object[] parameters;
+        final int skip;
+        if (pushDown) {
+            skip = singleProvider ? 0 : offset;
+            parameters = new Object[] {extraFields, pageFor(cursor, offset, psize, singleProvider)};
+        } else {
+            skip = offset;
+            parameters = new Object[] {extraFields};
+        }
+
+        final AtomicReference<Iterable<SearchResult>> received = new AtomicReference<>();
         JointQueryTask queryTaskHolder = new JointQueryTask() {
 
             @Override
             public void onCompletion() {}
 
             @Override
-            public void onReceive(Task<Iterable<SearchResult>> e) {}
+            public void onReceive(Task<Iterable<SearchResult>> e) {
+                if (!e.isCancelled()) {
+                    try {
+                        received.set(e.get());
+                    } catch (InterruptedException | ExecutionException ex) {
+                        // failed providers are reported by the result stream
+                    }
+                }
+            }
         };
 
-        try {
-            long elapsedTime = System.currentTimeMillis();
-            Iterable<SearchResult> results =
-                    PluginController.getInstance().query(queryTaskHolder, providerList, query, extraFields).get();
+        long startTime = System.currentTimeMillis();
+        // results are streamed as each provider delivers them
+        try (Stream<SearchResult> results = PluginController.getInstance()
+                .query(queryTaskHolder, providerList, expression, parameters)
+                .stream(PluginController.QUERY_PROVIDER_TIMEOUT, TimeUnit.MILLISECONDS)) {
 
             if (this.searchType == SearchType.PATIENT) {
                 try {
-                    DIMGeneric dimModel = new DIMGeneric(ImmutableList.copyOf(results));
-                    JSONObject obj = dimModel.getJSONObject(depth, offset, psize);
-                    elapsedTime = System.currentTimeMillis() - elapsedTime;
+                    // aggregate as results arrive, only building the requested page and depth
+                    JSONObject obj = new DIMAggregator(depth, offset, psize).addAll(results.iterator())
+                            .getJSONObject();
+                    long elapsedTime = System.currentTimeMillis() - startTime;
                     obj.put("elapsedTime", elapsedTime);
+                    Set<String> failedProviders = queryTaskHolder.getFailures().keySet();
+                    if (!failedProviders.isEmpty()) {
+                        obj.put("failedProviders", failedProviders);
+                    }
                     response.getWriter().write(obj.toString());
                 } catch (Exception e) {
                     logger.warn("Failed to get DIM", e);
                 }
             } else {
-                elapsedTime = System.currentTimeMillis() - elapsedTime;
-                this.writeResponse(response, results, elapsedTime, offset, psize);
+                final String countQuery = expression.toQueryString();
+                final List<String> countProviders = providerList;
+                LongSupplier totalCount = () -> -1;
+                if (pushDown && countResults) {
+                    // the page alone does not tell the total, ask the providers for it
+                    totalCount = () -> PluginController.getInstance().count(countProviders, countQuery, extraFields);
+                }
+                Supplier<String> nextCursor = () -> {
+                    Iterable<SearchResult> page = received.get();
+                    if (pushDown && singleProvider && page instanceof PagedResults) {
+                        return ((PagedResults) page).getNextCursor();
+                    }
+                    return null;
+                };
+                writeResponse(response.getWriter(), results.iterator(), startTime, skip, psize,
+                        !pushDown && countResults, totalCount, nextCursor,
+                        () -> queryTaskHolder.getFailures().keySet());
             }
 
         } catch (QueryParseException ex) {
             sendError(response, 400, ex.getMessage());
             return;
-        } catch (InterruptedException | ExecutionException | RuntimeException ex) {
+        } catch (RuntimeException ex) {
             logger.error("Failed to retrieve results", ex);
             sendError(response, 500, "Could not generate results");
             return;
@@ -250,17 +310,54 @@ public class SearchServlet extends HttpServlet {
         }
     }
 
-    private void writeResponse(HttpServletResponse resp, Iterable<SearchResult> results, long elapsedTime, int offset,
-            int psize) throws IOException, JSONException {
-        JSONWriter writer = new JSONWriter(resp.getWriter());
+    /** Define the page of results to request from the query providers.
+     *
+     * @param cursor the continuation cursor given by the client, or null
+     * @param offset the number of results to skip
+     * @param psize the maximum number of results in the page
+     * @param singleProvider whether a single provider is queried
+     * @return the page to pass to each provider
+     */
+    static QueryPage pageFor(String cursor, int offset, int psize, boolean singleProvider) {
+        if (cursor != null) {
+            return QueryPage.after(cursor, psize);
+        } else if (singleProvider) {
+            return QueryPage.of(offset, psize);
+        }
+        // providers are merged here, each of them only needs to deliver up to the end of the page
+        return QueryPage.of(0, (int) Math.min(QueryPage.UNLIMITED, (long) offset + psize));
+    }
+
+    /** Write the search results as they are retrieved.
+     *
+     * @param out the output writer
+     * @param offset the number of results to skip
+     * @param psize the maximum number of results to write
+     * @param countRows whether to traverse all results in order to count them,
+     *        otherwise the traversal stops at the end of the page
+     * @param totalCount the number of results when not counted here, or -1 if unknown,
+     *        in which case the number of results written is reported instead
+     * @param nextCursor the continuation cursor to include, evaluated after the results were written
+     * @param failedProviders the providers which failed, evaluated after the results were written
+     */
+    static void writeResponse(Writer out, Iterator<SearchResult> results, long startTime, int offset, int psize,
+            boolean countRows, LongSupplier totalCount, Supplier<String> nextCursor,
+            Supplier<? extends Collection<String>> failedProviders) throws JSONException {
+        JSONWriter writer = new JSONWriter(out);
         writer.object(); // begin output
         // results
         writer.key("results").array(); // begin results
+        long end = (long) offset + psize;
         int count = 0;
-        for (Iterator<SearchResult> it = results.iterator(); it.hasNext(); ++count) {
+        int written = 0;
+        for (Iterator<SearchResult> it = results; it.hasNext(); ++count) {
+            if (count >= end && !countRows)
+                break;
             SearchResult res = it.next();
-            if (count < offset || count >= offset + psize)
+            if (count < offset || count >= end)
                 continue;
+            written++;
+            InstanceLocationCache.getInstance().put(res);
             writer.object() // begin result
                     .key("uri").value(res.getURI().toString()).key("fields").object();
             for (Map.Entry<String, Object> e : res.getExtraData().entrySet()) {
@@ -268,9 +365,25 @@ public class SearchServlet extends HttpServlet {
             }
             writer.endObject().endObject(); // end result
         }
+        writer.endArray(); // end results
         // other fields
-        writer.endArray() // end results
-                .key("elapsedTime").value(elapsedTime).key("numResults").value(count);
+        long numResults = countRows ? count : totalCount.getAsLong();
+        if (numResults < 0)
+            numResults = written;
+        String cursor = nextCursor.get();
+        long elapsedTime = System.currentTimeMillis() - startTime;
+        writer.key("elapsedTime").value(elapsedTime);
+        writer.key("numResults").value(numResults);
+        if (cursor != null)
+            writer.key("nextCursor").value(cursor);
+        Collection<String> failed = failedProviders.get();
+        if (!failed.isEmpty()) {
+            writer.key("failedProviders").array();
+            for (String provider : failed) {
+                writer.value(provider);
+            }
+            writer.endArray();
+        }
         writer.endObject(); // end output
     }
 
@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.web.utils;
+
+import java.util.Locale;
+import javax.imageio.ImageIO;
+
+/**
+ * The image formats in which Dicoogle can serve frames and thumbnails to web clients.
+ */
+public enum ImageFormat {
+    /** Lossless PNG, the default format. */
+    PNG("image/png", "png", "png"),
+    /** Lossy JPEG, much smaller and faster to encode than PNG. */
+    JPEG("image/jpeg", "jpg", "jpeg"),
+    /** Lossy WebP, only available if an image writer plug-in for it is installed. */
+    WEBP("image/webp", "webp", "webp");
+
+    private final String mimeType;
+    private final String extension;
+    private final String formatName;
+
+    ImageFormat(String mimeType, String extension, String formatName) {
+        this.mimeType = mimeType;
+        this.extension = extension;
+        this.formatName = formatName;
+    }
+
+    /** @return the media type of the format, as used in HTTP headers */
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /** @return the file extension of the format, without the leading dot */
+    public String getExtension() {
+        return extension;
+    }
+
+    /** @return the name of the format, as known to the image I/O framework */
+    public String getFormatName() {
+        return formatName;
+    }
+
+    /** @return whether there is an image writer for this format */
+    public boolean isAvailable() {
+        return ImageIO.getImageWritersByFormatName(formatName).hasNext();
+    }
+
+    /**
+     * Choose the image format to serve, according to the contents of an HTTP <tt>Accept</tt> header.
+     * Explicitly named formats are chosen by their quality value, and then by their order in the header.
+     * Wildcards (<tt>image/*</tt> and <tt>*&#47;*</tt>) resolve to PNG, so that clients which do not ask
+     * for a specific format keep receiving lossless images.
+     *
+     * @param accept the value of the Accept header, can be null
+     * @return the negotiated format, or null if the header does not accept any of the available formats,
+     *         in which case callers should fall back to PNG
+     */
+    public static ImageFormat fromAccept(String accept) {
+        if (accept == null || accept.trim().isEmpty()) {
+            return PNG;
+        }
+        ImageFormat best = null;
+        float bestQ = 0;
+        for (String range : accept.split(",")) {
+            String[] parts = range.split(";");
+            String type = parts[0].trim().toLowerCase(Locale.ROOT);
+            float q = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Float.parseFloat(param.substring(2).trim());
+                    } catch (NumberFormatException ex) {
+                        q = 0;
+                    }
+                }
+            }
+            ImageFormat format;
+            if (type.equals("*/*") || type.equals("image/*")) {
+                format = PNG;
+            } else {
+                format = fromMimeType(type);
+            }
+            if (format != null && q > bestQ && format.isAvailable()) {
+                best = format;
+                bestQ = q;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Obtain the image format with the given media type.
+     *
+     * @param mimeType the media type, such as <tt>image/png</tt>
+     * @return the matching format, or null if none matches
+     */
+    public static ImageFormat fromMimeType(String mimeType) {
+        for (ImageFormat format : values()) {
+            if (format.mimeType.equalsIgnoreCase(mimeType)) {
+                return format;
+            }
+        }
+        return null;
+    }
+}
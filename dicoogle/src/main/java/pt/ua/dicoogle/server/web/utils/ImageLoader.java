@@ -19,12 +19,15 @@
 package pt.ua.dicoogle.server.web.utils;
 
 import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URI;
 import java.util.Iterator;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReadParam;
 import javax.imageio.ImageReader;
+import javax.imageio.stream.FileImageInputStream;
 import javax.imageio.stream.ImageInputStream;
 import org.slf4j.LoggerFactory;
 import pt.ua.dicoogle.sdk.StorageInputStream;
@@ -36,6 +39,10 @@ import pt.ua.dicoogle.sdk.StorageInputStream;
  */
 public class ImageLoader {
 
+    /** Whether to read images stored in local files directly, with random access */
+    private static final boolean DIRECT_FILE_ACCESS =
+            Boolean.parseBoolean(System.getProperty("dicoogle.image.directFileAccess", "true"));
+
     private ImageLoader() {}
 
     static {
@@ -51,25 +58,27 @@ public class ImageLoader {
      * @throws IOException if the image format is not supported or another IO issue occurred
      */
     public static BufferedImage loadImage(InputStream inputStream) throws IOException {
+        return loadImage(inputStream, 0);
+    }
+
+    /**
+     * Obtain a frame of an image from an ordinary input stream. This method will attempt to automatically use the
+     * appropriate image reader for the image's format, including DICOM.
+     *
+     * @param inputStream the input stream to retrieve the image from
+     * @param frame the index of the frame to read (zero based)
+     * @return a buffered image
+     * @throws IOException if the image format is not supported or another IO issue occurred
+     * @throws IndexOutOfBoundsException if the image does not have the given frame
+     */
+    public static BufferedImage loadImage(InputStream inputStream, int frame) throws IOException {
         BufferedImage image;
         try (ImageInputStream imageInputStream = ImageIO.createImageInputStream(inputStream)) {
-
-            Iterator<ImageReader> readers = ImageIO.getImageReaders(imageInputStream);
-            if (!readers.hasNext()) {
-                throw new IOException("Unsupported image format");
-            }
-            ImageReader reader = readers.next();
-            reader.setInput(imageInputStream, false);
-            if (reader.getFormatName().equalsIgnoreCase("DICOM")) {
-                ImageReadParam param = reader.getDefaultReadParam();
-                image = reader.read(0, param);
-            } else {
-                image = reader.read(0);
-            }
+            image = readFrame(imageInputStream, frame);
         } catch (org.dcm4che2.data.ConfigurationError | IOException ex) {
             LoggerFactory.getLogger(ImageLoader.class)
                     .debug("Failed to load image reader, attempting special DICOM reading mechanism", ex);
-            image = loadDICOMImage(inputStream);
+            image = loadDICOMImage(inputStream, frame);
         }
         return image;
     }
@@ -83,7 +92,119 @@ public class ImageLoader {
      * @throws IOException if the image format is not supported or another IO issue occurred
      */
     public static BufferedImage loadImage(StorageInputStream imageFromStorage) throws IOException {
-        return loadImage(imageFromStorage.getInputStream());
+        return loadImage(imageFromStorage, 0);
+    }
+
+    /**
+     * Obtain a frame of an image from a Dicoogle storage input stream. This method will attempt to automatically
+     * use the appropriate image reader for the image's format, including DICOM.
+     * Images in local files are read with random access, so that only the requested frame is read and decoded.
+     *
+     * @param imageFromStorage the storage input stream to retrieve the image from
+     * @param frame the index of the frame to read (zero based)
+     * @return a buffered image
+     * @throws IOException if the image format is not supported or another IO issue occurred
+     * @throws IndexOutOfBoundsException if the image does not have the given frame
+     */
+    public static BufferedImage loadImage(StorageInputStream imageFromStorage, int frame) throws IOException {
+        try (ImageInputStream imageInputStream = openImageInputStream(imageFromStorage)) {
+            return readFrame(imageInputStream, frame);
+        } catch (org.dcm4che2.data.ConfigurationError | IOException ex) {
+            LoggerFactory.getLogger(ImageLoader.class)
+                    .debug("Failed to load image reader, attempting special DICOM reading mechanism", ex);
+            return loadDICOMImage(imageFromStorage, frame);
+        }
+    }
+
+    /**
+     * Obtain a frame of an image from a Dicoogle storage input stream, reduced at decoding time for display
+     * in the given dimensions. Readers which support source subsampling skip the rows and columns
+     * that are not needed, so that the full resolution image is never built.
+     * The resulting image keeps at least twice the target dimensions, leaving the final smooth scaling
+     * to the caller, and is not subsampled at all if it is already small enough.
+     *
+     * @param imageFromStorage the storage input stream to retrieve the image from
+     * @param frame the index of the frame to read (zero based)
+     * @param width the width at which the image will be displayed
+     * @param height the height at which the image will be displayed
+     * @return a buffered image, possibly smaller than the original
+     * @throws IOException if the image format is not supported or another IO issue occurred
+     * @throws IndexOutOfBoundsException if the image does not have the given frame
+     */
+    public static BufferedImage loadSubsampledImage(StorageInputStream imageFromStorage, int frame, int width,
+            int height) throws IOException {
+        try (ImageInputStream imageInputStream = openImageInputStream(imageFromStorage)) {
+            return readFrame(imageInputStream, frame, width, height);
+        } catch (org.dcm4che2.data.ConfigurationError | IOException ex) {
+            LoggerFactory.getLogger(ImageLoader.class)
+                    .debug("Failed to load image reader, attempting special DICOM reading mechanism", ex);
+            return loadDICOMImage(imageFromStorage, frame);
+        }
+    }
+
+    /**
+     * Open an image input stream over a Dicoogle storage item.
+     * Items in the local file system are opened for random access,
+     * so that seeking to a frame does not require reading everything before it.
+     *
+     * @param imageFromStorage the storage input stream
+     * @return an image input stream, which should be closed after use
+     * @throws IOException if the item could not be opened
+     */
+    public static ImageInputStream openImageInputStream(StorageInputStream imageFromStorage) throws IOException {
+        URI uri = imageFromStorage.getURI();
+        if (DIRECT_FILE_ACCESS && uri != null && "file".equals(uri.getScheme())) {
+            File file = new File(uri);
+            if (file.isFile()) {
+                return new FileImageInputStream(file);
+            }
+        }
+        return ImageIO.createImageInputStream(imageFromStorage.getInputStream());
+    }
+
+    /** Read a single frame, letting the reader seek directly to it. */
+    private static BufferedImage readFrame(ImageInputStream imageInputStream, int frame) throws IOException {
+        return readFrame(imageInputStream, frame, 0, 0);
+    }
+
+    /** Read a single frame, subsampled towards the given dimensions if they are positive. */
+    private static BufferedImage readFrame(ImageInputStream imageInputStream, int frame, int width, int height)
+            throws IOException {
+        if (imageInputStream == null) {
+            throw new IOException("Could not open image stream");
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(imageInputStream);
+        if (!readers.hasNext()) {
+            throw new IOException("Unsupported image format");
+        }
+        ImageReader reader = readers.next();
+        try {
+            reader.setInput(imageInputStream, false);
+            ImageReadParam param = reader.getDefaultReadParam();
+            if (width > 0 && height > 0) {
+                int subsampling = subsamplingFactor(reader.getWidth(frame), reader.getHeight(frame), width, height);
+                if (subsampling > 1) {
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                }
+            }
+            return reader.read(frame, param);
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * Calculate how many pixels can be skipped in each dimension when decoding an image for display in
+     * smaller dimensions, while keeping at least twice the target resolution for smooth scaling.
+     *
+     * @param imageWidth the width of the full image
+     * @param imageHeight the height of the full image
+     * @param width the target width
+     * @param height the target height
+     * @return the subsampling factor, 1 if the image should be read in full
+     */
+    private static int subsamplingFactor(int imageWidth, int imageHeight, int width, int height) {
+        return Math.max(1, Math.min(imageWidth / (2 * width), imageHeight / (2 * height)));
     }
 
     /**
@@ -95,13 +216,21 @@ public class ImageLoader {
      * @throws IOException if the image format is not DICOM or another IO issue occurred
      */
     public static BufferedImage loadDICOMImage(InputStream inputStream) throws IOException {
+        return loadDICOMImage(inputStream, 0);
+    }
+
+    /**
+     * Obtain a frame of a DICOM image from an orginary input stream. This method will attempt to read the file in
+     * storage as a DICOM file only.
+     *
+     * @param inputStream the input stream to retrieve the DICOM image from
+     * @param frame the index of the frame to read (zero based)
+     * @return a buffered image
+     * @throws IOException if the image format is not DICOM or another IO issue occurred
+     */
+    public static BufferedImage loadDICOMImage(InputStream inputStream, int frame) throws IOException {
         try (ImageInputStream imageInputStream = ImageIO.createImageInputStream(inputStream)) {
-            Iterator<ImageReader> iter = ImageIO.getImageReadersByFormatName("DICOM");
-            ImageReader reader = iter.next();
-            ImageReadParam param = reader.getDefaultReadParam();
-            reader.setInput(imageInputStream, false);
-            BufferedImage img = reader.read(0, param);
-            return img;
+            return readDICOMFrame(imageInputStream, frame);
         }
     }
 
@@ -114,6 +243,33 @@ public class ImageLoader {
      * @throws IOException if the image format is not DICOM or another IO issue occurred
      */
     public static BufferedImage loadDICOMImage(StorageInputStream imageFromStorage) throws IOException {
-        return loadDICOMImage(imageFromStorage.getInputStream());
+        return loadDICOMImage(imageFromStorage, 0);
+    }
+
+    /**
+     * Obtain a frame of a DICOM image from a Dicoogle storage input stream. This method will attempt to read
+     * the file in storage as a DICOM file only.
+     *
+     * @param imageFromStorage the storage input stream to retrieve the DICOM image from
+     * @param frame the index of the frame to read (zero based)
+     * @return a buffered image
+     * @throws IOException if the image format is not DICOM or another IO issue occurred
+     */
+    public static BufferedImage loadDICOMImage(StorageInputStream imageFromStorage, int frame) throws IOException {
+        try (ImageInputStream imageInputStream = openImageInputStream(imageFromStorage)) {
+            return readDICOMFrame(imageInputStream, frame);
+        }
+    }
+
+    private static BufferedImage readDICOMFrame(ImageInputStream imageInputStream, int frame) throws IOException {
+        Iterator<ImageReader> iter = ImageIO.getImageReadersByFormatName("DICOM");
+        ImageReader reader = iter.next();
+        try {
+            ImageReadParam param = reader.getDefaultReadParam();
+            reader.setInput(imageInputStream, false);
+            return reader.read(frame, param);
+        } finally {
+            reader.dispose();
+        }
     }
 }
@@ -0,0 +1,358 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.web.utils;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.io.DicomInputStream;
+import org.dcm4che2.io.StopTagInputHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+import pt.ua.dicoogle.plugins.PluginController;
+import pt.ua.dicoogle.sdk.StorageInputStream;
+import pt.ua.dicoogle.sdk.StorageInterface;
+
+/**
+ * Renders the images of newly stored instances into the {@link LocalImageCache} ahead of time,
+ * so that the first user to open a study does not wait for the conversions.
+ * A thumbnail is rendered for each instance, and once a series stops receiving instances,
+ * the middle instance of the series is also rendered in full size, as its key image.
+ *
+ * Rendering takes place on low priority threads, at a limited rate, and pauses while
+ * the image servlet is converting images for interactive requests.
+ * Instances already waiting to be rendered are not scheduled again.
+ * It is disabled by default, see the <tt>dicoogle.prerender.*</tt> system properties.
+ */
+public final class ImagePrerenderer {
+    private static final Logger logger = LoggerFactory.getLogger(ImagePrerenderer.class);
+
+    /** Whether newly stored instances are rendered ahead of time */
+    private static final boolean ENABLED =
+            Boolean.parseBoolean(System.getProperty("dicoogle.prerender.enabled", "false"));
+    /** The modalities of the instances to render (all if empty) */
+    private static final Set<String> MODALITIES = parseList(System.getProperty("dicoogle.prerender.modalities", ""));
+    /** The calling AE titles of the instances to render (all if empty) */
+    private static final Set<String> CALLING_AETS = parseList(System.getProperty("dicoogle.prerender.aets", ""));
+    /** The media types of the formats to render */
+    private static final Set<String> FORMATS = parseList(System.getProperty("dicoogle.prerender.formats", "image/png"));
+    /** Number of rendering threads */
+    private static final int THREADS = Math.max(1, Integer.getInteger("dicoogle.prerender.threads", 1));
+    /** Maximum number of instances waiting to be rendered, more are discarded */
+    private static final int QUEUE_SIZE = Math.max(1, Integer.getInteger("dicoogle.prerender.queueSize", 10000));
+    /** Maximum number of images rendered per second */
+    private static final double RATE = Double.parseDouble(System.getProperty("dicoogle.prerender.rate", "20"));
+    /** Time (in milliseconds) without new instances after which a series is considered complete */
+    private static final long SERIES_SETTLE_MS = Math.max(1, Long.getLong("dicoogle.prerender.seriesSettleMs", 10000));
+    /** Maximum time (in milliseconds) to wait for interactive requests before rendering anyway */
+    private static final long MAX_YIELD_MS = Long.getLong("dicoogle.prerender.maxYieldMs", 5000);
+    private static final long YIELD_STEP_MS = 50;
+
+    private static ImagePrerenderer instance;
+
+    public static synchronized ImagePrerenderer getInstance() {
+        if (instance == null) {
+            instance = new ImagePrerenderer();
+        }
+        return instance;
+    }
+
+    private final boolean enabled;
+    private final Set<String> modalities;
+    private final Set<String> callingAETs;
+    private final long seriesSettleMs;
+    private final List<ImageFormat> formats = new ArrayList<>();
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService seriesScheduler;
+    private final RateLimiter rateLimiter;
+    private final ConcurrentMap<String, Series> series = new ConcurrentHashMap<>();
+    /** the instances waiting for their thumbnails to be rendered */
+    private final Set<URI> pending = ConcurrentHashMap.newKeySet();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile LocalImageCache cache;
+
+    /** The instances of a series received so far, by URI. */
+    private static final class Series {
+        final Map<URI, Integer> instances = new HashMap<>();
+        volatile long lastUpdate = System.currentTimeMillis();
+    }
+
+    private ImagePrerenderer() {
+        this(ENABLED, MODALITIES, CALLING_AETS, FORMATS, RATE, SERIES_SETTLE_MS);
+    }
+
+    /**
+     * Create an image pre-renderer.
+     *
+     * @param enabled whether newly stored instances are rendered
+     * @param modalities the modalities of the instances to render, in upper case (all if empty)
+     * @param callingAETs the calling AE titles of the instances to render, in upper case (all if empty)
+     * @param mimeTypes the media types of the formats to render
+     * @param rate the maximum number of images rendered per second
+     * @param seriesSettleMs the time without new instances after which a series is considered complete
+     */
+    ImagePrerenderer(boolean enabled, Set<String> modalities, Set<String> callingAETs, Set<String> mimeTypes,
+            double rate, long seriesSettleMs) {
+        this.enabled = enabled;
+        this.modalities = modalities;
+        this.callingAETs = callingAETs;
+        this.seriesSettleMs = Math.max(1, seriesSettleMs);
+        this.rateLimiter = RateLimiter.create(rate);
+        for (String mimeType : mimeTypes) {
+            ImageFormat format = ImageFormat.fromMimeType(mimeType);
+            if (format != null && format.isAvailable()) {
+                formats.add(format);
+            } else {
+                logger.warn("Unsupported pre-rendering format {}, ignoring", mimeType);
+            }
+        }
+
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(QUEUE_SIZE),
+                r -> {
+                    Thread t = new Thread(r, "image-prerender-" + threadCount.getAndIncrement());
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+
+        seriesScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "image-prerender-series");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+        if (enabled) {
+            long period = Math.max(1, this.seriesSettleMs / 2);
+            seriesScheduler.scheduleWithFixedDelay(this::renderSettledSeries, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static Set<String> parseList(String value) {
+        Set<String> set = new HashSet<>();
+        for (String item : value.split(",")) {
+            item = item.trim();
+            if (!item.isEmpty()) {
+                set.add(item.toUpperCase(Locale.ROOT));
+            }
+        }
+        return Collections.unmodifiableSet(set);
+    }
+
+    /**
+     * Define the cache into which images are rendered. Pre-rendering only takes place while there is one.
+     *
+     * @param cache the local image cache of the image servlet, or null to stop pre-rendering
+     */
+    public void setCache(LocalImageCache cache) {
+        this.cache = cache;
+    }
+
+    /** @return whether pre-rendering is enabled */
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Schedule the rendering of a newly stored instance. The details of the instance may be omitted
+     * if they are not at hand, in which case they are read from storage before rendering.
+     *
+     * @param uri the URI of the stored instance
+     * @param callingAET the AE title of the node which sent the instance
+     * @param modality the modality of the instance, or null if unknown
+     * @param seriesInstanceUID the series instance UID of the instance, or null if unknown
+     * @param instanceNumber the instance number of the instance, or -1 if unknown
+     */
+    public void submit(URI uri, String callingAET, String modality, String seriesInstanceUID, int instanceNumber) {
+        if (!enabled || cache == null || formats.isEmpty() || executor.isShutdown()) {
+            return;
+        }
+        if (!callingAETs.isEmpty()
+                && (callingAET == null || !callingAETs.contains(callingAET.trim().toUpperCase(Locale.ROOT)))) {
+            return;
+        }
+        if (modality != null && !acceptsModality(modality)) {
+            return;
+        }
+        if (!pending.add(uri)) {
+            // already waiting to be rendered
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    renderInstance(uri, modality, seriesInstanceUID, instanceNumber);
+                } finally {
+                    pending.remove(uri);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            pending.remove(uri);
+            if (!executor.isShutdown() && dropped.getAndIncrement() % 1000 == 0) {
+                logger.info("Image pre-rendering queue is full, skipping instances ({} so far)", dropped.get());
+            }
+        }
+    }
+
+    private boolean acceptsModality(String modality) {
+        return modalities.isEmpty()
+                || (modality != null && modalities.contains(modality.trim().toUpperCase(Locale.ROOT)));
+    }
+
+    private void renderInstance(URI uri, String modality, String seriesInstanceUID, int instanceNumber) {
+        String seriesUID = seriesInstanceUID;
+        int number = instanceNumber;
+        if (modality == null) {
+            DicomObject header = readHeader(uri);
+            if (header == null || !acceptsModality(header.getString(Tag.Modality))) {
+                return;
+            }
+            seriesUID = header.getString(Tag.SeriesInstanceUID);
+            number = header.getInt(Tag.InstanceNumber, -1);
+        }
+
+        render(uri, true);
+
+        if (seriesUID != null) {
+            Series s = series.computeIfAbsent(seriesUID, k -> new Series());
+            synchronized (s) {
+                s.instances.put(uri, number);
+                s.lastUpdate = System.currentTimeMillis();
+            }
+        }
+    }
+
+    /** Render the key image of each series which did not receive instances in a while. */
+    private void renderSettledSeries() {
+        long deadline = System.currentTimeMillis() - seriesSettleMs;
+        for (Map.Entry<String, Series> e : series.entrySet()) {
+            Series s = e.getValue();
+            if (s.lastUpdate >= deadline || !series.remove(e.getKey(), s)) {
+                continue;
+            }
+            URI keyImage;
+            synchronized (s) {
+                if (s.instances.isEmpty()) {
+                    continue;
+                }
+                List<Map.Entry<URI, Integer>> instances = new ArrayList<>(s.instances.entrySet());
+                instances.sort(Comparator.comparing(Map.Entry::getValue));
+                keyImage = instances.get(instances.size() / 2).getKey();
+            }
+            try {
+                executor.execute(() -> render(keyImage, false));
+            } catch (RejectedExecutionException ex) {
+                dropped.incrementAndGet();
+            }
+        }
+    }
+
+    /** Stop pre-rendering, discarding the instances waiting to be rendered. */
+    public void shutdown() {
+        seriesScheduler.shutdownNow();
+        executor.shutdownNow();
+        series.clear();
+        pending.clear();
+    }
+
+    /** @return whether the pre-renderer was shut down */
+    public boolean isShutdown() {
+        return executor.isShutdown();
+    }
+
+    /** @return the number of instances waiting for their thumbnails to be rendered */
+    int pending() {
+        return pending.size();
+    }
+
+    /** Render the first frame of an instance in all formats. */
+    private void render(URI uri, boolean thumbnail) {
+        LocalImageCache c = this.cache;
+        if (c == null || !c.isRunning()) {
+            return;
+        }
+        for (ImageFormat format : formats) {
+            yieldToInteractive(c);
+            rateLimiter.acquire();
+            try {
+                c.prefetch(uri, 0, thumbnail, format);
+            } catch (IOException | RuntimeException ex) {
+                logger.debug("Could not pre-render image {}", uri, ex);
+                return;
+            }
+        }
+    }
+
+    /** Wait while the cache is busy with interactive requests, up to a maximum time. */
+    private static void yieldToInteractive(LocalImageCache c) {
+        long deadline = System.currentTimeMillis() + MAX_YIELD_MS;
+        while (c.getActiveRequests() > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(YIELD_STEP_MS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /** Read the attributes of a stored instance, up to the pixel data. */
+    private static DicomObject readHeader(URI uri) {
+        StorageInterface storage = PluginController.getInstance().getStorageForSchema(uri);
+        if (storage == null) {
+            return null;
+        }
+        for (StorageInputStream item : storage.at(uri)) {
+            try (DicomInputStream dis = new DicomInputStream(new BufferedInputStream(item.getInputStream()))) {
+                dis.setHandler(new StopTagInputHandler(Tag.PixelData));
+                return dis.readDicomObject();
+            } catch (IOException ex) {
+                logger.debug("Could not read instance {}", uri, ex);
+                return null;
+            }
+        }
+        return null;
+    }
+}
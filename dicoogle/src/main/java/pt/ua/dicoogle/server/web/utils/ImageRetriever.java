@@ -37,5 +37,29 @@ public interface ImageRetriever {
      * @return an input stream for retrieving the image's content
      * @throws IOException 
      */
-    public InputStream get(URI uri, int frame, boolean thumbnail) throws IOException;
+    public default InputStream get(URI uri, int frame, boolean thumbnail) throws IOException {
+        return get(uri, frame, thumbnail, ImageFormat.PNG);
+    }
+
+    /** Obtain an image by URI, encoded in the given format.
+     *
+     * @param uri the URI to the image
+     * @param frame the frame number
+     * @param thumbnail whether to retrieve a thumbnail (true) or the image in its original size (false)
+     * @param format the format of the image
+     * @return an input stream for retrieving the image's content
+     * @throws IOException if the image could not be retrieved or encoded
+     */
+    public InputStream get(URI uri, int frame, boolean thumbnail, ImageFormat format) throws IOException;
+
+    /** Describe the settings which affect the content of the images retrieved, such as the thumbnail size
+     * or the encoding quality. Caches of this retriever use it to tell apart images rendered with different settings.
+     *
+     * @param thumbnail whether the description is for thumbnails (true) or images in their original size (false)
+     * @param format the format of the images
+     * @return a description of the rendering settings, equal for equivalent settings
+     */
+    public default String getRenderingParameters(boolean thumbnail, ImageFormat format) {
+        return "";
+    }
 }
@@ -19,30 +19,68 @@
 package pt.ua.dicoogle.server.web.utils;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.NavigableMap;
 import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.google.common.cache.CacheStats;
 import com.google.common.hash.Hashing;
 
-import pt.ua.dicoogle.server.web.dicom.Convert2PNG;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
- * Handles the caching of PNG images generated by the Image Servlet.
- * The cached images are kept inside a temporary directory created inside the user (or system) temporary directory.
- * These are maintained for a maximum period of time if they are not used, and deleted on a regular basis to save disk space while not hurting the cache performance.
+ * Handles the caching of images generated by the Image Servlet, in each of the formats requested.
+ * The cached images are kept inside a directory in the user (or system) temporary directory,
+ * and survive restarts of the server.
+ * The cache is bounded by a byte budget, evicting the least recently used images first. Images
+ * which are not used for a maximum period of time are also deleted on a regular basis.
+ * Concurrent requests for the same image wait for a single conversion.
+ * Images are keyed by the size and modification time of their source file as well as by the rendering
+ * parameters of the underlying retriever, so that changed files and settings are never served from the cache.
+ * The images of unindexed or removed files are dropped with {@link #invalidateAll(Collection)}.
  *
  * @author António Novo <antonio.novo@ua.pt>
  */
 public class LocalImageCache extends Thread implements ImageRetriever {
+    private static final Logger logger = LoggerFactory.getLogger(LocalImageCache.class);
+
+    /** The default maximum number of bytes of images kept on disk */
+    public static final long DEFAULT_MAX_BYTES = Long.getLong("dicoogle.imageCache.maxBytes", 512L * 1024 * 1024);
+
+    /** Suffix of the files still being written */
+    private static final String PARTIAL_SUFFIX = ".part";
+    /** The minimum number of milliseconds between updates of a file's modification time on access */
+    private static final long TOUCH_INTERVAL = 60 * 1000;
+
     /**
      * The number of milliseconds to wait between pool cache directory pooling.
      */
@@ -52,15 +90,53 @@ public class LocalImageCache extends Thread implements ImageRetriever {
      */
     private volatile int maxAge;
 
+    private final long maxBytes;
     private final File cacheFolder;
     private volatile boolean running;
 
-    private final ConcurrentMap<String, File> filesBeingWritten;
+    /** The cached files, from least to most recently used. Guarded by itself, along with totalBytes. */
+    private final LinkedHashMap<String, Entry> index = new LinkedHashMap<>(256, 0.75f, true);
+    private long totalBytes = 0;
+
+    /** The file names of the cached images rendered in this run, by source URI. Guarded by the index lock. */
+    private final NavigableMap<String, Set<String>> bySource = new TreeMap<>();
+
+    /** The caches which were started and not yet terminated */
+    private static final Set<LocalImageCache> started = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    /** The conversions currently taking place, by file name */
+    private final ConcurrentMap<String, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong loadSuccesses = new AtomicLong();
+    private final AtomicLong loadFailures = new AtomicLong();
+    private final AtomicLong totalLoadTime = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicInteger activeRequests = new AtomicInteger();
 
     private final ImageRetriever under;
 
+    private static final class Entry {
+        final File file;
+        final long size;
+        /** the URI of the source image, or null if the entry was recovered from a previous run */
+        final String source;
+        volatile long lastAccess;
+        volatile long lastTouched;
+
+        Entry(File file, long size, String source, long lastAccess) {
+            this.file = file;
+            this.size = size;
+            this.source = source;
+            this.lastAccess = lastAccess;
+            this.lastTouched = lastAccess;
+        }
+    }
+
     /**
-     * Creates a local image cache that pools its cache directory at interval rates and deletes files older than maxAge.
+     * Creates a local image cache that pools its cache directory at interval rates and deletes files older than maxAge,
+     * keeping at most {@link #DEFAULT_MAX_BYTES} bytes of images.
      *
      * @param name the name of the cache directory.
      * @param interval the number of seconds to wait between pool cache directory pooling.
@@ -68,6 +144,20 @@ public class LocalImageCache extends Thread implements ImageRetriever {
      * @param under the underlying image retriever
      */
     public LocalImageCache(String name, int interval, int maxAge, ImageRetriever under) {
+        this(name, interval, maxAge, DEFAULT_MAX_BYTES, under);
+    }
+
+    /**
+     * Creates a local image cache that pools its cache directory at interval rates and deletes files older than maxAge,
+     * keeping at most the given number of bytes of images.
+     *
+     * @param name the name of the cache directory.
+     * @param interval the number of seconds to wait between pool cache directory pooling.
+     * @param maxAge the number of seconds that a file can stay in the cache without being used/read.
+     * @param maxBytes the maximum number of bytes of images to keep in the cache directory.
+     * @param under the underlying image retriever
+     */
+    public LocalImageCache(String name, int interval, int maxAge, long maxBytes, ImageRetriever under) {
         super("cache-" + name);
         Objects.requireNonNull(under);
 
@@ -83,55 +173,66 @@ public class LocalImageCache extends Thread implements ImageRetriever {
         }
         this.maxAge = maxAge * 1000;
 
-        filesBeingWritten = new ConcurrentSkipListMap<>();
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("Illegal maxBytes");
+        }
+        this.maxBytes = maxBytes;
+
         running = false;
 
         this.setDaemon(true);
         this.under = under;
 
-        // create the temporary directory
+        // the cache directory, inside the temporary directory
         File sysTmpDir = new File(System.getProperty("java.io.tmpdir"));
         cacheFolder = new File(sysTmpDir, name);
     }
 
-    /**
-     * Deletes a directory and all its contents.
-     *
-     * @param dir the directory to delete.
-     */
-    private static void deleteDirectory(File dir) {
-        if ((dir == null) || (!dir.exists())) {
-            return;
-        }
-
-        // delete all the files and folders inside this folder
-        for (File f : dir.listFiles()) {
-            if (f.isDirectory()) {
-                // if it's a sub-directory then delete its content
-                deleteDirectory(f);
-            } else {
-                f.delete();
-            }
-        }
-
-        // remove the folder
-        dir.delete();
-    }
-
     @Override
     public void start() {
-        // abort if we couldn't make the temp dir
-        if (cacheFolder == null)
-            return;
+        // abort if we couldn't make the cache dir
         if (!cacheFolder.exists())
             if (!cacheFolder.mkdirs())
                 return;
-        cacheFolder.deleteOnExit();
+
+        // recover the images cached before the last shutdown
+        loadIndex();
 
         // start running
+        started.add(this);
         super.start();
     }
 
+    /**
+     * Registers the files already in the cache folder, assuming that the least recently modified files
+     * were the least recently used. Files left partially written are deleted.
+     */
+    private void loadIndex() {
+        File[] files = cacheFolder.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        List<File> evicted;
+        synchronized (index) {
+            for (File f : files) {
+                if (f.isDirectory()) {
+                    continue;
+                }
+                if (f.getName().endsWith(PARTIAL_SUFFIX)) {
+                    f.delete();
+                    continue;
+                }
+                long size = f.length();
+                index.put(f.getName(), new Entry(f, size, null, f.lastModified()));
+                totalBytes += size;
+            }
+            evicted = evictOverBudget();
+        }
+        deleteAll(evicted);
+        logger.debug("Recovered {} cached images ({} bytes)", size(), weight());
+    }
+
     @Override
     public void run() {
         // if the cache isn't setup abort
@@ -141,7 +242,7 @@ public class LocalImageCache extends Thread implements ImageRetriever {
         running = true;
         do {
             // check if there are any files worh deleting and if so do it
-            checkAndRemoveOldFiles();
+            removeOldFiles();
 
             // wait for the defined interval to be over
             try {
@@ -154,41 +255,117 @@ public class LocalImageCache extends Thread implements ImageRetriever {
 
     /**
      * Stop this cache from checking for old files.
+     * The cached files are kept, so that they can be used again when the cache is next started.
      */
     public synchronized void terminate() {
         this.running = false;
+        started.remove(this);
 
         // if needed wake the thread from its sleeping state
         this.interrupt();
+    }
 
-        // clear and delete the temporary folder
-        deleteDirectory(cacheFolder);
+    /**
+     * Removes the files which were not used in the last maxAge milliseconds.
+     */
+    private void removeOldFiles() {
+        long deadline = System.currentTimeMillis() - maxAge;
+        List<File> expired = new ArrayList<>();
+        synchronized (index) {
+            // the index is in access order, so all expired entries come first
+            Iterator<Entry> it = index.values().iterator();
+            while (it.hasNext()) {
+                Entry e = it.next();
+                if (e.lastAccess >= deadline) {
+                    break;
+                }
+                it.remove();
+                forget(e);
+                expired.add(e.file);
+            }
+        }
+        evictions.addAndGet(expired.size());
+        deleteAll(expired);
     }
 
     /**
-     * Loops through the cache folder and tries to removes old/un-used files.
+     * Removes the least recently used entries until the cache is within its byte budget.
+     * Must be called while holding the index lock.
+     *
+     * @return the files of the removed entries, to be deleted after releasing the lock
      */
-    private synchronized void checkAndRemoveOldFiles() {
-        // if the cache isn't setup abort
-        if (!cacheFolder.exists())
-            return;
+    private List<File> evictOverBudget() {
+        List<File> evicted = new ArrayList<>();
+        Iterator<Entry> it = index.values().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Entry e = it.next();
+            it.remove();
+            forget(e);
+            evicted.add(e.file);
+        }
+        evictions.addAndGet(evicted.size());
+        return evicted;
+    }
 
-        long currentTime = System.currentTimeMillis();
+    /**
+     * Accounts for an entry which was removed from the index.
+     * Must be called while holding the index lock.
+     */
+    private void forget(Entry e) {
+        totalBytes -= e.size;
+        if (e.source != null) {
+            Set<String> names = bySource.get(e.source);
+            if (names != null && names.remove(e.file.getName()) && names.isEmpty()) {
+                bySource.remove(e.source);
+            }
+        }
+    }
 
-        // go through all the files inside the temp folder and check their last access
-        File[] files = cacheFolder.listFiles();
-        if (files == null) {
-            cacheFolder.mkdirs();
-            return;
+    /**
+     * Drops the cached images of the given files or directories.
+     *
+     * @param paths the URIs of unindexed or removed files or directories
+     */
+    public void invalidate(Collection<URI> paths) {
+        List<File> removed = new ArrayList<>();
+        synchronized (index) {
+            for (URI p : paths) {
+                String s = p.toString();
+                String prefix = s.endsWith("/") ? s : s + '/';
+                List<String> names = new ArrayList<>();
+                Set<String> exact = bySource.get(s);
+                if (exact != null) {
+                    names.addAll(exact);
+                }
+                bySource.subMap(prefix, prefix + '\uffff').values().forEach(names::addAll);
+                for (String name : names) {
+                    Entry e = index.remove(name);
+                    if (e != null) {
+                        forget(e);
+                        removed.add(e.file);
+                    }
+                }
+            }
         }
-        for (File f : files) {
-            // skip if the current file is a folder
-            if (f.isDirectory())
-                continue;
+        deleteAll(removed);
+    }
 
-            // check the last access done to the file, and if it's "past its due" tries to delete it
-            if (currentTime - f.lastModified() > maxAge)
-                f.delete();
+    /**
+     * Drops the cached images of the given files or directories from all running caches.
+     *
+     * @param paths the URIs of unindexed or removed files or directories
+     */
+    public static void invalidateAll(Collection<URI> paths) {
+        for (LocalImageCache cache : started) {
+            cache.invalidate(paths);
+        }
+    }
+
+    private static void deleteAll(List<File> files) {
+        for (File f : files) {
+            if (!f.delete() && f.exists()) {
+                logger.debug("Could not delete cached image {}", f);
+            }
         }
     }
 
@@ -227,55 +404,197 @@ public class LocalImageCache extends Thread implements ImageRetriever {
         }
     }
 
-    protected static String toFileName(String imageUri, int frameNumber, boolean thumbnail) {
-        String filecode = imageUri + ':' + frameNumber + ':' + (thumbnail ? '1' : '0');
-        return Hashing.sha256().hashString(filecode, StandardCharsets.UTF_8).toString() + ".png";
+    /**
+     * Obtain the name of the cached file of an image. Besides the image requested, the name depends on the
+     * rendering parameters of the underlying retriever and, for local files, on the size and modification
+     * time of the source file.
+     */
+    private String toFileName(URI uri, int frameNumber, boolean thumbnail, ImageFormat format) {
+        long sourceSize = 0;
+        long sourceModified = 0;
+        if ("file".equals(uri.getScheme())) {
+            try {
+                File source = new File(uri);
+                sourceSize = source.length();
+                sourceModified = source.lastModified();
+            } catch (IllegalArgumentException ex) {
+                // not a hierarchical file URI, rely on invalidation alone
+            }
+        }
+        String filecode = uri.toString() + ':' + frameNumber + ':' + (thumbnail ? '1' : '0') + ':' + format.name()
+                + ':' + under.getRenderingParameters(thumbnail, format) + ':' + sourceSize + ':' + sourceModified;
+        return Hashing.sha256().hashString(filecode, StandardCharsets.UTF_8).toString() + '.' + format.getExtension();
     }
 
     @Override
-    public InputStream get(URI uri, final int frameNumber, final boolean thumbnail) throws IOException {
-        File f = this.implGetFile(toFileName(uri.toString(), frameNumber, thumbnail));
-        synchronized (f) {
-            if (f.exists()) {
-                return new FileInputStream(f);
+    public InputStream get(URI uri, final int frameNumber, final boolean thumbnail, final ImageFormat format)
+            throws IOException {
+        String fileName = toFileName(uri, frameNumber, thumbnail, format);
+        InputStream cached = open(fileName);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached;
+        }
+        misses.incrementAndGet();
+
+        activeRequests.incrementAndGet();
+        try {
+            return new ByteArrayInputStream(load(fileName, uri, frameNumber, thumbnail, format));
+        } finally {
+            activeRequests.decrementAndGet();
+        }
+    }
+
+    /**
+     * Convert an image ahead of time and keep it in the cache, if it is not there already.
+     * Unlike {@link #get(URI, int, boolean, ImageFormat)}, this does not count towards the hit and miss
+     * statistics of the cache.
+     *
+     * @param uri the URI to the image
+     * @param frameNumber the frame number
+     * @param thumbnail whether to convert a thumbnail (true) or the image in its original size (false)
+     * @param format the format of the image
+     * @return true if the image was converted, false if it was already cached
+     * @throws IOException if the image could not be retrieved or encoded
+     */
+    public boolean prefetch(URI uri, int frameNumber, boolean thumbnail, ImageFormat format) throws IOException {
+        String fileName = toFileName(uri, frameNumber, thumbnail, format);
+        synchronized (index) {
+            if (index.containsKey(fileName)) {
+                return false;
             }
         }
-        this.implCreateFile(f);
-        byte[] imageArray;
-        synchronized (f) {
-            InputStream istream = this.under.get(uri, frameNumber, thumbnail);
-            ByteArrayOutputStream result = Convert2PNG.DICOM2PNGStream(istream, frameNumber);
-            imageArray = result.toByteArray();
-
-            // create new cache file with the converted image
-            try (FileOutputStream fout = new FileOutputStream(f)) {
-                fout.write(imageArray);
+        load(fileName, uri, frameNumber, thumbnail, format);
+        return true;
+    }
+
+    /**
+     * @return the number of requests currently waiting for an image conversion, not counting prefetches
+     */
+    public int getActiveRequests() {
+        return activeRequests.get();
+    }
+
+    /** Convert an image and store it in the cache, or wait for the same conversion taking place elsewhere. */
+    private byte[] load(String fileName, URI uri, int frameNumber, boolean thumbnail, ImageFormat format)
+            throws IOException {
+        // join the conversion of this image if it is already taking place
+        CompletableFuture<byte[]> conversion = new CompletableFuture<>();
+        CompletableFuture<byte[]> ongoing = inFlight.putIfAbsent(fileName, conversion);
+        if (ongoing != null) {
+            return await(ongoing);
+        }
+
+        try {
+            byte[] imageArray;
+            InputStream cached = open(fileName);
+            if (cached != null) {
+                // another conversion finished in the meantime
+                try (InputStream istream = cached) {
+                    imageArray = IOUtils.toByteArray(istream);
+                }
+            } else {
+                long start = System.nanoTime();
+                // the underlying retriever already provides the converted frame
+                try (InputStream istream = this.under.get(uri, frameNumber, thumbnail, format)) {
+                    imageArray = IOUtils.toByteArray(istream);
+                }
+                totalLoadTime.addAndGet(System.nanoTime() - start);
+                loadSuccesses.incrementAndGet();
+                store(fileName, uri.toString(), imageArray);
             }
-            filesBeingWritten.remove(f.getAbsolutePath());
+            conversion.complete(imageArray);
+            return imageArray;
+        } catch (IOException | RuntimeException ex) {
+            loadFailures.incrementAndGet();
+            conversion.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            inFlight.remove(fileName, conversion);
         }
+    }
 
-        // and return it
-        return new ByteArrayInputStream(imageArray);
+    /** Open a cached file, or return null if it is not in the cache. */
+    private InputStream open(String fileName) {
+        Entry entry;
+        synchronized (index) {
+            entry = index.get(fileName);
+        }
+        if (entry == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        entry.lastAccess = now;
+        if (now - entry.lastTouched > TOUCH_INTERVAL) {
+            // keep the modification time close to the last access, for recovering the usage order on restart
+            entry.lastTouched = now;
+            entry.file.setLastModified(now);
+        }
+        try {
+            return new FileInputStream(entry.file);
+        } catch (FileNotFoundException ex) {
+            // deleted behind our back
+            synchronized (index) {
+                if (index.remove(fileName, entry)) {
+                    forget(entry);
+                }
+            }
+            return null;
+        }
     }
 
-    private File implGetFile(String fileName) throws IOException {
-        // check if the file is currently being written to
-        String thatFilePath = new File(fileName).getAbsolutePath();
-        File f = this.filesBeingWritten.get(thatFilePath);
-        if (f == null) {
-            f = new File(cacheFolder, fileName);
+    /** Write a converted image to the cache folder and register it in the index. */
+    private void store(String fileName, String source, byte[] imageArray) {
+        if (imageArray.length > maxBytes) {
+            return;
         }
-        return f;
+        File f = new File(cacheFolder, fileName);
+        File partial = null;
+        try {
+            partial = File.createTempFile(fileName, PARTIAL_SUFFIX, cacheFolder);
+            try (FileOutputStream fout = new FileOutputStream(partial)) {
+                fout.write(imageArray);
+            }
+            Files.move(partial.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            logger.warn("Failed to write image to the cache", ex);
+            if (partial != null) {
+                partial.delete();
+            }
+            return;
+        }
+
+        List<File> evicted;
+        synchronized (index) {
+            Entry old = index.put(fileName, new Entry(f, imageArray.length, source, System.currentTimeMillis()));
+            if (old != null) {
+                forget(old);
+            }
+            totalBytes += imageArray.length;
+            bySource.computeIfAbsent(source, k -> new HashSet<>()).add(fileName);
+            evicted = evictOverBudget();
+        }
+        deleteAll(evicted);
     }
 
-    private File implCreateFile(File f) throws IOException {
-        // f.createNewFile();
-        f.deleteOnExit();
-        // if it does not exist add it to the list of files being written (because new content is going to be written to it outside this class) and create the
-        // empty file
-        filesBeingWritten.put(f.getAbsolutePath(), f);
-        // return the common handle to the currently created and empty file
-        return f;
+    /** Wait for a conversion taking place in another thread. */
+    private static byte[] await(CompletableFuture<byte[]> conversion) throws IOException {
+        try {
+            return conversion.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for image conversion");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("Image conversion failed", cause);
+        }
     }
 
     /**
@@ -284,4 +603,37 @@ public class LocalImageCache extends Thread implements ImageRetriever {
     public boolean isRunning() {
         return running;
     }
+
+    /**
+     * @return the hit, miss, conversion and eviction statistics of this cache
+     */
+    public CacheStats stats() {
+        return new CacheStats(hits.get(), misses.get(), loadSuccesses.get(), loadFailures.get(), totalLoadTime.get(),
+                evictions.get());
+    }
+
+    /**
+     * @return the number of images in the cache
+     */
+    public long size() {
+        synchronized (index) {
+            return index.size();
+        }
+    }
+
+    /**
+     * @return the number of bytes of images in the cache
+     */
+    public long weight() {
+        synchronized (index) {
+            return totalBytes;
+        }
+    }
+
+    /**
+     * @return the maximum number of bytes of images kept in the cache
+     */
+    public long maximumWeight() {
+        return maxBytes;
+    }
 }
@@ -20,8 +20,12 @@
 package pt.ua.dicoogle.server.web.utils;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import net.sf.json.JSONObject;
@@ -33,6 +37,11 @@ import net.sf.json.JSONObject;
  */
 public class ResponseUtil {
 
+    /** Whether large responses may be compressed with gzip */
+    private static final boolean GZIP_RESPONSES =
+            Boolean.parseBoolean(System.getProperty("dicoogle.web.gzipResponses", "true"));
+    private static final int GZIP_BUFFER_SIZE = 8192;
+
     public static void simpleResponse(HttpServletResponse resp, String name, boolean state) throws IOException {
         resp.setContentType("application/json");
         JSONObject object = new JSONObject();
@@ -67,6 +76,63 @@ public class ResponseUtil {
         resp.getWriter().append(obj.toString());
     }
 
+    /**
+     * Obtain the output stream of a response, compressed with gzip if the client accepts it.
+     * Compression can be disabled with the <tt>dicoogle.web.gzipResponses</tt> system property.
+     * The stream must be closed to complete the response.
+     *
+     * @param req the request
+     * @param resp the response, which must not have been committed yet
+     * @return the output stream to write the response body to
+     * @throws IOException if an I/O error occurs
+     */
+    public static OutputStream openOutputStream(HttpServletRequest req, HttpServletResponse resp)
+            throws IOException {
+        if (GZIP_RESPONSES && acceptsGzip(req.getHeader("Accept-Encoding"))) {
+            resp.setHeader("Content-Encoding", "gzip");
+            resp.addHeader("Vary", "Accept-Encoding");
+            return new GZIPOutputStream(resp.getOutputStream(), GZIP_BUFFER_SIZE, true);
+        }
+        return resp.getOutputStream();
+    }
+
+    /**
+     * Check whether an <tt>Accept-Encoding</tt> header accepts gzip, either by name or through a wildcard.
+     * Codings with a quality value of zero are not accepted.
+     *
+     * @param acceptEncoding the value of the header, can be null
+     * @return whether the response may be compressed with gzip
+     */
+    public static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        Float gzipQ = null;
+        float wildcardQ = 0;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim().toLowerCase(Locale.ROOT);
+            float q = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Float.parseFloat(param.substring(2).trim());
+                    } catch (NumberFormatException ex) {
+                        q = 0;
+                    }
+                }
+            }
+            if (name.equals("gzip") || name.equals("x-gzip")) {
+                gzipQ = q;
+            } else if (name.equals("*")) {
+                wildcardQ = q;
+            }
+        }
+        // an explicit entry takes precedence over the wildcard
+        return (gzipQ != null ? gzipQ : wildcardQ) > 0;
+    }
+
     /*
      * Generic Pair Util for Json response
      */
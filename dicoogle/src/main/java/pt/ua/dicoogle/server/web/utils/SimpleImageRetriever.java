@@ -43,8 +43,20 @@ public class SimpleImageRetriever implements ImageRetriever {
     private static final Logger logger = LoggerFactory.getLogger(SimpleImageRetriever.class);
 
     @Override
-    public ByteArrayInputStream get(URI uri, int frame, boolean thumbnail) throws IOException {
-        return getPNGStream(fromURI(uri), frame, thumbnail);
+    public ByteArrayInputStream get(URI uri, int frame, boolean thumbnail, ImageFormat format) throws IOException {
+        return getImageStream(fromURI(uri), frame, thumbnail, format);
+    }
+
+    @Override
+    public String getRenderingParameters(boolean thumbnail, ImageFormat format) {
+        StringBuilder params = new StringBuilder();
+        if (thumbnail) {
+            params.append("size=").append(ServerSettingsManager.getSettings().getArchiveSettings().getThumbnailSize());
+        }
+        if (format != ImageFormat.PNG) {
+            params.append(";quality=").append(Convert2PNG.getLossyQuality());
+        }
+        return params.toString();
     }
 
     private static StorageInputStream fromURI(URI uri) throws IOException {
@@ -56,16 +68,16 @@ public class SimpleImageRetriever implements ImageRetriever {
         return store.next();
     }
 
-    private static ByteArrayInputStream getPNGStream(StorageInputStream imgFile, int frame, boolean thumbnail)
-            throws IOException {
-        ByteArrayOutputStream pngStream;
+    private static ByteArrayInputStream getImageStream(StorageInputStream imgFile, int frame, boolean thumbnail,
+            ImageFormat format) throws IOException {
+        ByteArrayOutputStream imageStream;
         if (thumbnail) {
             // retrieve thumbnail dimension settings
             int thumbSize = ServerSettingsManager.getSettings().getArchiveSettings().getThumbnailSize();
-            pngStream = Convert2PNG.DICOM2ScaledPNGStream(imgFile, frame, thumbSize, thumbSize);
+            imageStream = Convert2PNG.DICOM2ScaledStream(imgFile, frame, thumbSize, thumbSize, format);
         } else {
-            pngStream = Convert2PNG.DICOM2PNGStream(imgFile, frame);
+            imageStream = Convert2PNG.DICOM2Stream(imgFile, frame, format);
         }
-        return new ByteArrayInputStream(pngStream.toByteArray());
+        return new ByteArrayInputStream(imageStream.toByteArray());
     }
 }
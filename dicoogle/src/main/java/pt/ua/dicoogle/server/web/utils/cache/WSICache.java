@@ -24,15 +24,14 @@ import org.dcm4che3.data.Attributes;
 import org.dcm4che3.imageio.plugins.dcm.DicomMetaData;
 import org.dcm4che3.io.BulkDataDescriptor;
 import org.dcm4che3.io.DicomInputStream;
+import pt.ua.dicoogle.core.InstanceLocationCache;
 import pt.ua.dicoogle.core.settings.ServerSettingsManager;
 import pt.ua.dicoogle.plugins.PluginController;
-import pt.ua.dicoogle.sdk.QueryInterface;
 import pt.ua.dicoogle.sdk.StorageInputStream;
-import pt.ua.dicoogle.sdk.datastructs.SearchResult;
-import pt.ua.dicoogle.sdk.utils.QueryException;
 
 import java.net.URI;
 import java.security.InvalidParameterException;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
@@ -46,7 +45,6 @@ public class WSICache extends MemoryCache<DicomMetaData> {
     private static final String EXTENSION_GZIP = ".gz";
     private static final int BUFFER_SIZE = 8192;
 
-    private QueryInterface queryInterface;
     private final String queryProvider;
 
     private WSICache() {
@@ -73,8 +71,6 @@ public class WSICache extends MemoryCache<DicomMetaData> {
         @Override
         public DicomMetaData load(String sopInstanceUID) throws Exception {
 
-            queryInterface = PluginController.getInstance().getQueryProviderByName(queryProvider, false);
-
             URI uri = retrieveURI(sopInstanceUID);
             if (uri == null) {
                 throw new IllegalArgumentException("Could not find the desired URI");
@@ -103,30 +99,15 @@ public class WSICache extends MemoryCache<DicomMetaData> {
     /**
      * Helper method to retrieve the URI to
      * the file with the given SOP Instance UID
-     * from the archive's DIM provider.
-    
+     * from the archive's DIM provider,
+     * through the shared instance location cache.
      *
      * @param sop SopInstanceUID
      * @return uri of the SopInstance
      */
     private URI retrieveURI(String sop) {
-        String query = "SOPInstanceUID:\"" + sop + '"';
-
-
-        Iterable<SearchResult> results;
-        try {
-            results = queryInterface.query(query);
-        } catch (QueryException e) {
-            logger.error("Could not complete query:", e);
-            return null;
-        }
-
-        for (SearchResult first : results) {
-            if (first != null) {
-                return first.getURI();
-            }
-        }
-        return null;
+        List<String> providers = queryProvider.isEmpty() ? null : Collections.singletonList(queryProvider);
+        return InstanceLocationCache.getInstance().locate(sop, providers);
     }
 
     private StorageInputStream retrieveInputStream(URI uri) {
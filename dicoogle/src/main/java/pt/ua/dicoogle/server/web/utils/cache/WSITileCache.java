@@ -0,0 +1,289 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.web.utils.cache;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalNotification;
+import org.dcm4che3.imageio.plugins.dcm.DicomImageReader;
+import org.dcm4che3.imageio.plugins.dcm.DicomMetaData;
+import pt.ua.dicoogle.core.InstanceLocationCache;
+import pt.ua.dicoogle.server.web.dicom.WSITileReader;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Cache of decoded WSI tiles, by SOP Instance UID and frame index.
+ * Entries are weighed by the size of their raster, up to a total budget in bytes.
+ * The cached images are shared and must not be modified.
+ * The location of each instance with cached tiles is kept as well,
+ * so that its tiles can be dropped when the file is unindexed or removed.
+ */
+public class WSITileCache extends MemoryCache<BufferedImage> {
+
+    /** Maximum total size of the cached tiles, in bytes */
+    private static final long MAXIMUM_WEIGHT = Long.getLong("dicoogle.wsi.tileCacheBytes", 256L << 20);
+
+    private static WSITileCache instance = null;
+
+    private final long maximumWeight;
+    private final Function<String, URI> locator;
+    /** the instances with cached tiles, by SOP Instance UID */
+    private final ConcurrentMap<String, Source> sources = new ConcurrentHashMap<>();
+
+    /** The location of an instance and its number of cached tiles. */
+    private static final class Source {
+        final URI uri;
+        final int tiles;
+
+        Source(URI uri, int tiles) {
+            this.uri = uri;
+            this.tiles = tiles;
+        }
+    }
+
+    private WSITileCache() {
+        this(MAXIMUM_WEIGHT, sopInstanceUID -> InstanceLocationCache.getInstance().locate(sopInstanceUID, null));
+    }
+
+    /** Create a tile cache.
+     *
+     * @param maximumWeight the maximum total size of the cached tiles, in bytes
+     * @param locator the function obtaining the location of an instance, may return null
+     */
+    WSITileCache(long maximumWeight, Function<String, URI> locator) {
+        super();
+        this.maximumWeight = maximumWeight;
+        this.locator = locator;
+        memoryCache = CacheBuilder.newBuilder().maximumWeight(maximumWeight)
+                .weigher((String key, BufferedImage tile) -> weigh(tile))
+                .removalListener(this::onRemoval)
+                .expireAfterAccess(hoursToKeep, TimeUnit.HOURS).recordStats().build(new TileLoader());
+    }
+
+    public static synchronized WSITileCache getInstance() {
+        if (instance == null) {
+            instance = new WSITileCache();
+        }
+        return instance;
+    }
+
+    private static String key(String sopInstanceUID, int frameIndex) {
+        return sopInstanceUID + '/' + frameIndex;
+    }
+
+    private static String uidOf(String key) {
+        return key.substring(0, key.lastIndexOf('/'));
+    }
+
+    /** Count a tile of an instance, which is about to be added to the cache. */
+    private void retain(String sopInstanceUID) {
+        Source known = sources.get(sopInstanceUID);
+        URI uri = known != null ? known.uri : locator.apply(sopInstanceUID);
+        sources.compute(sopInstanceUID,
+                (uid, source) -> source == null ? new Source(uri, 1) : new Source(source.uri, source.tiles + 1));
+    }
+
+    private void onRemoval(RemovalNotification<String, BufferedImage> notification) {
+        sources.computeIfPresent(uidOf(notification.getKey()),
+                (uid, source) -> source.tiles <= 1 ? null : new Source(source.uri, source.tiles - 1));
+    }
+
+    /** The size of a tile's raster, in bytes. */
+    static int weigh(BufferedImage tile) {
+        DataBuffer buffer = tile.getRaster().getDataBuffer();
+        long bytes = (long) buffer.getSize() * buffer.getNumBanks()
+                * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+        return (int) Math.min(bytes, Integer.MAX_VALUE);
+    }
+
+    /** Obtain a decoded tile, decoding it if it is not cached.
+     *
+     * @param sopInstanceUID the SOP Instance UID of the WSI instance
+     * @param frameIndex the index of the frame (zero based)
+     * @return the decoded tile, or null if it could not be decoded
+     */
+    public BufferedImage get(String sopInstanceUID, int frameIndex) {
+        return get(key(sopInstanceUID, frameIndex));
+    }
+
+    /** Obtain the tiles of several frames, decoding the ones which are not cached in parallel when possible.
+     * Frames which cannot be decoded directly from the stored file are left out of the result.
+     *
+     * @param sopInstanceUID the SOP Instance UID of the WSI instance
+     * @param frameIndices the indices of the frames (zero based)
+     * @return the decoded tiles by frame index
+     * @throws InterruptedException if the calling thread was interrupted while waiting for the tiles
+     */
+    public Map<Integer, BufferedImage> getAll(String sopInstanceUID, Collection<Integer> frameIndices)
+            throws InterruptedException {
+        Map<Integer, BufferedImage> tiles = new HashMap<>();
+        List<Integer> missing = new ArrayList<>();
+        for (Integer frame : frameIndices) {
+            BufferedImage tile = memoryCache.getIfPresent(key(sopInstanceUID, frame));
+            if (tile != null) {
+                tiles.put(frame, tile);
+            } else {
+                missing.add(frame);
+            }
+        }
+        if (!missing.isEmpty()) {
+            Map<Integer, BufferedImage> decoded = WSITileReader.getInstance().readTiles(sopInstanceUID, missing);
+            if (decoded != null) {
+                for (Map.Entry<Integer, BufferedImage> e : decoded.entrySet()) {
+                    put(sopInstanceUID, e.getKey(), e.getValue());
+                }
+                tiles.putAll(decoded);
+            }
+        }
+        return tiles;
+    }
+
+    /** Add a decoded tile to the cache.
+     *
+     * @param sopInstanceUID the SOP Instance UID of the WSI instance
+     * @param frameIndex the index of the frame (zero based)
+     * @param tile the decoded tile
+     */
+    public void put(String sopInstanceUID, int frameIndex, BufferedImage tile) {
+        retain(sopInstanceUID);
+        memoryCache.put(key(sopInstanceUID, frameIndex), tile);
+    }
+
+    /** Drop the tiles of the instances in the given files or directories,
+     * e.g. because they were unindexed or removed.
+     *
+     * @param paths the URIs of the files or directories
+     */
+    public void invalidate(Collection<URI> paths) {
+        if (paths.isEmpty() || sources.isEmpty()) {
+            return;
+        }
+        List<String> prefixes = new ArrayList<>(paths.size());
+        for (URI p : paths) {
+            String path = p.toString();
+            prefixes.add(path.endsWith("/") ? path : path + '/');
+        }
+        Set<String> uids = new HashSet<>();
+        for (Map.Entry<String, Source> e : sources.entrySet()) {
+            URI uri = e.getValue().uri;
+            if (uri == null) {
+                continue;
+            }
+            String path = uri.toString();
+            if (paths.contains(uri) || prefixes.stream().anyMatch(path::startsWith)) {
+                uids.add(e.getKey());
+            }
+        }
+        if (!uids.isEmpty()) {
+            memoryCache.asMap().keySet().removeIf(key -> uids.contains(uidOf(key)));
+        }
+    }
+
+    /** @return the hit and miss statistics of the cache */
+    public CacheStats stats() {
+        return memoryCache.stats();
+    }
+
+    /** @return the number of cached tiles */
+    public long size() {
+        return memoryCache.size();
+    }
+
+    /** @return the total size of the cached tiles, in bytes */
+    public long weight() {
+        long total = 0;
+        for (BufferedImage tile : memoryCache.asMap().values()) {
+            total += weigh(tile);
+        }
+        return total;
+    }
+
+    /** @return the maximum total size of the cached tiles, in bytes */
+    public long maximumWeight() {
+        return maximumWeight;
+    }
+
+    private class TileLoader extends CacheLoader<String, BufferedImage> {
+
+        @Override
+        public BufferedImage load(String key) throws Exception {
+            int sep = key.lastIndexOf('/');
+            String sopInstanceUID = key.substring(0, sep);
+            int frameIndex = Integer.parseInt(key.substring(sep + 1));
+
+            BufferedImage tile = read(sopInstanceUID, frameIndex);
+            if (tile != null) {
+                retain(sopInstanceUID);
+            }
+            return tile;
+        }
+
+        private BufferedImage read(String sopInstanceUID, int frameIndex) throws IOException {
+            BufferedImage tile = WSITileReader.getInstance().readTile(sopInstanceUID, frameIndex);
+            if (tile != null) {
+                return tile;
+            }
+
+            // read through the DICOM image reader
+            DicomMetaData metaData = WSICache.getInstance().get(sopInstanceUID);
+            if (metaData == null) {
+                throw new IOException("Could not obtain the metadata of " + sopInstanceUID);
+            }
+            ImageReader reader = getImageReader();
+            if (reader == null) {
+                throw new IOException("No DICOM image reader available");
+            }
+            try {
+                reader.setInput(metaData);
+                return reader.read(frameIndex, reader.getDefaultReadParam());
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static ImageReader getImageReader() {
+        Iterator<ImageReader> iter = ImageIO.getImageReadersByFormatName("DICOM");
+        while (iter.hasNext()) {
+            ImageReader reader = iter.next();
+            if (reader instanceof DicomImageReader)
+                return reader;
+        }
+        return null;
+    }
+}
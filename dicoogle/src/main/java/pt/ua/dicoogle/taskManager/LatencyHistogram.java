@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.taskManager;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.sf.json.JSONObject;
+
+/** A lock-free latency histogram with fixed, roughly logarithmic buckets.
+ *
+ * Quantiles are approximated by the upper bound of the bucket in which they fall.
+ */
+public class LatencyHistogram {
+
+    /** Bucket upper bounds, in milliseconds */
+    private static final long[] BOUNDS_MS =
+            {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000, 300000};
+
+    private final AtomicLongArray counts = new AtomicLongArray(BOUNDS_MS.length + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /** Record a new sample.
+     * @param nanos the measured latency, in nanoseconds
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        long ms = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int i = 0;
+        while (i < BOUNDS_MS.length && ms >= BOUNDS_MS[i]) {
+            i++;
+        }
+        counts.incrementAndGet(i);
+        count.incrementAndGet();
+        sumNanos.addAndGet(nanos);
+        long max;
+        while ((max = maxNanos.get()) < nanos && !maxNanos.compareAndSet(max, nanos)) {
+            // retry
+        }
+    }
+
+    /** @return the number of samples recorded */
+    public long getCount() {
+        return count.get();
+    }
+
+    /** @return the mean latency in milliseconds, or 0 if there are no samples */
+    public double getMeanMillis() {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        return sumNanos.get() / 1e6 / n;
+    }
+
+    /** Estimate a quantile of the recorded latencies.
+     *
+     * @param q the quantile, between 0 and 1
+     * @return the upper bound in milliseconds of the bucket containing the quantile,
+     * or the maximum recorded latency if it falls in the last bucket
+     */
+    public double getQuantileMillis(double q) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(q * n);
+        long seen = 0;
+        for (int i = 0; i < BOUNDS_MS.length; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return BOUNDS_MS[i];
+            }
+        }
+        return maxNanos.get() / 1e6;
+    }
+
+    public JSONObject toJSON() {
+        JSONObject obj = new JSONObject();
+        obj.put("count", getCount());
+        obj.put("meanMs", getMeanMillis());
+        obj.put("p50Ms", getQuantileMillis(0.5));
+        obj.put("p95Ms", getQuantileMillis(0.95));
+        obj.put("p99Ms", getQuantileMillis(0.99));
+        obj.put("maxMs", maxNanos.get() / 1e6);
+
+        JSONObject buckets = new JSONObject();
+        for (int i = 0; i < BOUNDS_MS.length; i++) {
+            buckets.put("le" + BOUNDS_MS[i], counts.get(i));
+        }
+        buckets.put("inf", counts.get(BOUNDS_MS.length));
+        obj.put("buckets", buckets);
+        return obj;
+    }
+}
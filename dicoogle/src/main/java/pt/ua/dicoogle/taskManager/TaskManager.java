@@ -16,40 +16,313 @@
  * You should have received a copy of the GNU General Public License
  * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
  */
-
 package pt.ua.dicoogle.taskManager;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import pt.ua.dicoogle.sdk.task.Task;
 
-/**
- * 
- * This is a task manager for Dicoogle.
- * Currently it is based on a fixed thread pool executor with a maximum of 4 threads executing simultaneously. 
- * 
+/** A named pool of worker threads for running Dicoogle tasks.
+ *
+ * The pending task queue can be bounded, in which case the saturation policy
+ * decides what happens to tasks dispatched while the queue is full.
+ * Each task manager keeps track of its queue depth, active threads,
+ * and how long tasks wait in the queue and take to run.
+ *
+ * Pool settings can be tuned with the system properties
+ * <code>dicoogle.taskManager.&lt;name&gt;.queueCapacity</code> (default 0, unbounded)
+ * and <code>dicoogle.taskManager.&lt;name&gt;.saturationPolicy</code> (default caller-runs).
+ *
+ * Alternatively, a task manager can run each task on its own (virtual) thread,
+ * see {@link #newThreadPerTask(String)}.
+ *
+ * Task manager names are unique while the task manager is running.
+ * Components sharing a pool should obtain it with {@link #shared(String, int)}.
+ *
  * TODO: change interface to use generics.
- * 
+ *
  * @author psytek
  */
 public class TaskManager {
+
+    private static final Logger logger = LoggerFactory.getLogger(TaskManager.class);
+
+    /** What to do with tasks dispatched while the queue is full. */
+    public enum SaturationPolicy {
+        /** wait until there is room in the queue */
+        BLOCK,
+        /** run the task on the dispatching thread */
+        CALLER_RUNS,
+        /** reject the task, which is cancelled */
+        ABORT;
+
+        public static SaturationPolicy parse(String value) {
+            return SaturationPolicy.valueOf(value.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    private static final Map<String, TaskManager> managers = new ConcurrentHashMap<>();
+    private static final AtomicInteger unnamedCount = new AtomicInteger();
+
+    /** @return all task managers which were not shut down */
+    public static Collection<TaskManager> getTaskManagers() {
+        return new ArrayList<>(managers.values());
+    }
+
+    /** Obtain the running task manager with the given name,
+     * creating it with the given number of threads if there is none.
+     *
+     * @param name the name of the pool
+     * @param nConcurrentThreads the number of worker threads, if the pool is created
+     * @return the task manager
+     */
+    public static TaskManager shared(String name, int nConcurrentThreads) {
+        synchronized (managers) {
+            TaskManager manager = managers.get(name);
+            if (manager == null) {
+                manager = new TaskManager(name, nConcurrentThreads);
+            }
+            return manager;
+        }
+    }
+
+    private static void register(TaskManager manager) {
+        synchronized (managers) {
+            if (managers.putIfAbsent(manager.name, manager) != null) {
+                manager.taskExecutor.shutdown();
+                throw new IllegalStateException("A task manager named " + manager.name + " is already running");
+            }
+        }
+    }
+
+    private final String name;
     ExecutorService taskExecutor;
     int nConcurrentThreads = 3;
+    private final int queueCapacity;
+    private final SaturationPolicy saturationPolicy;
+
+    private final LatencyHistogram waitLatency = new LatencyHistogram();
+    private final LatencyHistogram runLatency = new LatencyHistogram();
+    private final AtomicLong dispatched = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong callerRuns = new AtomicLong();
+    private final AtomicInteger active = new AtomicInteger();
 
     public TaskManager() {
-        taskExecutor = Executors.newFixedThreadPool(nConcurrentThreads);
+        this(3);
     }
 
     public TaskManager(int nConcurrentThreads) {
+        this("pool-" + unnamedCount.incrementAndGet(), nConcurrentThreads);
+    }
+
+    /** Create a task manager configured by system properties.
+     *
+     * @param name the name of the pool
+     * @param nConcurrentThreads the number of worker threads
+     */
+    public TaskManager(String name, int nConcurrentThreads) {
+        this(name, nConcurrentThreads,
+                Integer.parseInt(System.getProperty("dicoogle.taskManager." + name + ".queueCapacity", "0")),
+                SaturationPolicy.parse(
+                        System.getProperty("dicoogle.taskManager." + name + ".saturationPolicy", "caller-runs")));
+    }
+
+    /** Create a task manager.
+     *
+     * @param name the name of the pool
+     * @param nConcurrentThreads the number of worker threads
+     * @param queueCapacity the maximum number of pending tasks, 0 for unbounded
+     * @param saturationPolicy what to do with tasks dispatched while the queue is full
+     * @throws IllegalStateException if a task manager with the same name is running
+     */
+    public TaskManager(String name, int nConcurrentThreads, int queueCapacity, SaturationPolicy saturationPolicy) {
+        this.name = name;
         this.nConcurrentThreads = nConcurrentThreads;
-        taskExecutor = Executors.newFixedThreadPool(nConcurrentThreads);
+        this.queueCapacity = queueCapacity;
+        this.saturationPolicy = saturationPolicy;
+
+        BlockingQueue<Runnable> queue =
+                queueCapacity > 0 ? new LinkedBlockingQueue<>(queueCapacity) : new LinkedBlockingQueue<>();
+        taskExecutor = new ThreadPoolExecutor(nConcurrentThreads, nConcurrentThreads, 0L, TimeUnit.MILLISECONDS,
+                queue, new NamedThreadFactory(name), new SaturationHandler());
+        register(this);
+    }
+
+    private TaskManager(String name, ExecutorService executor) {
+        this.name = name;
+        this.nConcurrentThreads = 0;
+        this.queueCapacity = 0;
+        this.saturationPolicy = SaturationPolicy.ABORT;
+        this.taskExecutor = executor;
+        register(this);
+    }
+
+    /** Create a task manager which runs each task on a new thread,
+     * virtual if the virtual thread execution mode is enabled.
+     * Tasks are never queued, so the number of concurrent tasks
+     * should be limited by the caller.
+     *
+     * @param name the name of the pool
+     * @return a new task manager
+     * @see VirtualThreads
+     */
+    public static TaskManager newThreadPerTask(String name) {
+        return new TaskManager(name, VirtualThreads.newThreadPerTaskExecutor("dicoogle-" + name + "-task"));
     }
 
     /**asynch execution of a task*/
     public void dispatch(Task<?> t) {
-        taskExecutor.submit(t);
+        dispatched.incrementAndGet();
+        taskExecutor.execute(new InstrumentedTask(t));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** Stop accepting tasks and release the pool's threads once pending tasks are done.
+     * The name of this task manager becomes available again.
+     */
+    public void shutdown() {
+        managers.remove(name, this);
+        taskExecutor.shutdown();
+    }
+
+    /** @return whether this task manager was shut down */
+    public boolean isShutdown() {
+        return taskExecutor.isShutdown();
+    }
+
+    /** @return the number of tasks waiting in the queue */
+    public int getQueuedCount() {
+        if (taskExecutor instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor) taskExecutor).getQueue().size();
+        }
+        return 0;
+    }
+
+    /** @return the number of threads currently running tasks */
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    /** @return the number of tasks rejected so far */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public LatencyHistogram getWaitLatency() {
+        return waitLatency;
+    }
+
+    public LatencyHistogram getRunLatency() {
+        return runLatency;
+    }
+
+    public JSONObject toJSON() {
+        JSONObject obj = new JSONObject();
+        obj.put("name", name);
+        if (taskExecutor instanceof ThreadPoolExecutor) {
+            obj.put("threads", nConcurrentThreads);
+            obj.put("poolSize", ((ThreadPoolExecutor) taskExecutor).getPoolSize());
+        } else {
+            obj.put("threadPerTask", true);
+            obj.put("virtualThreads", VirtualThreads.isEnabled());
+        }
+        obj.put("activeThreads", getActiveCount());
+        obj.put("queued", getQueuedCount());
+        obj.put("queueCapacity", queueCapacity);
+        obj.put("saturationPolicy", saturationPolicy.name());
+        obj.put("dispatched", dispatched.get());
+        obj.put("completed", completed.get());
+        obj.put("rejected", rejected.get());
+        obj.put("callerRuns", callerRuns.get());
+        obj.put("waitLatency", waitLatency.toJSON());
+        obj.put("runLatency", runLatency.toJSON());
+        return obj;
     }
 
+    /** Wrapper recording the time spent waiting in the queue and running. */
+    private final class InstrumentedTask implements Runnable {
+        private final Task<?> task;
+        private final long enqueuedAt;
 
+        InstrumentedTask(Task<?> task) {
+            this.task = task;
+            this.enqueuedAt = System.nanoTime();
+        }
 
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            waitLatency.record(start - enqueuedAt);
+            active.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                active.decrementAndGet();
+                runLatency.record(System.nanoTime() - start);
+                completed.incrementAndGet();
+            }
+        }
+    }
+
+    private final class SaturationHandler implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (!executor.isShutdown()) {
+                switch (saturationPolicy) {
+                    case BLOCK:
+                        try {
+                            executor.getQueue().put(r);
+                            return;
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                        }
+                        break;
+                    case CALLER_RUNS:
+                        callerRuns.incrementAndGet();
+                        r.run();
+                        return;
+                    default:
+                        break;
+                }
+            }
+            rejected.incrementAndGet();
+            Task<?> task = ((InstrumentedTask) r).task;
+            logger.warn("Task manager {} is saturated, task {} was rejected", name, task.getName());
+            task.cancel(false);
+        }
+    }
+
+    private static final class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            this.prefix = "dicoogle-" + name + "-task-";
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, prefix + count.incrementAndGet());
+        }
+    }
 }
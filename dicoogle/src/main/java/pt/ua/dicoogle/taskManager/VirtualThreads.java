@@ -0,0 +1,130 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.taskManager;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Support for running blocking work on virtual threads.
+ *
+ * The virtual thread execution mode is opt-in, via the system property
+ * <code>dicoogle.executor.virtualThreads</code>.
+ * Since Dicoogle is built for Java 8, virtual threads are obtained reflectively,
+ * and only when running on a Java runtime which supports them (Java 21 or later).
+ * Otherwise, a new platform thread is created per task, as before.
+ */
+public final class VirtualThreads {
+
+    private static final Logger logger = LoggerFactory.getLogger(VirtualThreads.class);
+
+    private static final boolean REQUESTED =
+            Boolean.parseBoolean(System.getProperty("dicoogle.executor.virtualThreads", "false"));
+
+    /** Thread.ofVirtual(), or null if not available */
+    private static final Method OF_VIRTUAL;
+    /** Thread.Builder.name(String, long) */
+    private static final Method BUILDER_NAME;
+    /** Thread.Builder.factory() */
+    private static final Method BUILDER_FACTORY;
+
+    static {
+        Method ofVirtual = null;
+        Method builderName = null;
+        Method builderFactory = null;
+        if (REQUESTED) {
+            try {
+                ofVirtual = Thread.class.getMethod("ofVirtual");
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                builderName = builderClass.getMethod("name", String.class, long.class);
+                builderFactory = builderClass.getMethod("factory");
+                // check that virtual threads can be created (not a preview feature)
+                newFactory(ofVirtual, builderName, builderFactory, "probe-");
+                logger.info("Virtual thread execution mode enabled");
+            } catch (ReflectiveOperationException | RuntimeException | LinkageError ex) {
+                logger.warn("Virtual threads are not supported by this Java runtime, using platform threads");
+                ofVirtual = null;
+            }
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = builderName;
+        BUILDER_FACTORY = builderFactory;
+    }
+
+    private VirtualThreads() {}
+
+    /** @return whether the virtual thread execution mode is enabled and supported */
+    public static boolean isEnabled() {
+        return OF_VIRTUAL != null;
+    }
+
+    /** Create an executor which runs each task on a new thread,
+     * which is virtual if the virtual thread execution mode is enabled.
+     *
+     * @param name the prefix of the threads' names
+     * @return a new executor service
+     */
+    public static ExecutorService newThreadPerTaskExecutor(String name) {
+        ThreadFactory factory = newThreadFactory(name);
+        if (isEnabled()) {
+            try {
+                Method m = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+                return (ExecutorService) m.invoke(null, factory);
+            } catch (ReflectiveOperationException ex) {
+                logger.warn("Failed to create virtual thread executor, using platform threads", ex);
+                factory = platformThreadFactory(name);
+            }
+        }
+        return Executors.newCachedThreadPool(factory);
+    }
+
+    /** Create a thread factory,
+     * which creates virtual threads if the virtual thread execution mode is enabled.
+     *
+     * @param name the prefix of the threads' names
+     * @return a thread factory
+     */
+    public static ThreadFactory newThreadFactory(String name) {
+        if (isEnabled()) {
+            try {
+                return newFactory(OF_VIRTUAL, BUILDER_NAME, BUILDER_FACTORY, name + "-");
+            } catch (ReflectiveOperationException ex) {
+                logger.warn("Failed to create virtual thread factory, using platform threads", ex);
+            }
+        }
+        return platformThreadFactory(name);
+    }
+
+    private static ThreadFactory platformThreadFactory(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> new Thread(r, name + "-" + count.getAndIncrement());
+    }
+
+    private static ThreadFactory newFactory(Method ofVirtual, Method builderName, Method builderFactory,
+            String prefix) throws ReflectiveOperationException {
+        Object builder = ofVirtual.invoke(null);
+        builder = builderName.invoke(builder, prefix, 0L);
+        return (ThreadFactory) builderFactory.invoke(builder);
+    }
+}
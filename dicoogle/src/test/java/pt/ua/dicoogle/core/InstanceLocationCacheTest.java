@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.core;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import pt.ua.dicoogle.sdk.datastructs.SearchResult;
+
+public class InstanceLocationCacheTest {
+
+    private final InstanceLocationCache cache = InstanceLocationCache.getInstance();
+
+    @Before
+    public void setUp() {
+        cache.invalidateAll();
+    }
+
+    @Test
+    public void testPutAndLocate() {
+        URI uri = URI.create("file:/data/a/1.dcm");
+        cache.put(" 1.2.3.4 ", uri);
+        assertEquals(uri, cache.locate("1.2.3.4", Collections.emptyList()));
+        assertEquals(1, cache.size());
+
+        HashMap<String, Object> fields = new HashMap<>();
+        fields.put("SOPInstanceUID", "1.2.3.5");
+        URI other = URI.create("file:/data/a/2.dcm");
+        cache.put(new SearchResult(other, 1, fields));
+        assertEquals(other, cache.locate("1.2.3.5", Collections.emptyList()));
+
+        // results without a SOP Instance UID are ignored
+        cache.put(new SearchResult(URI.create("file:/data/a/3.dcm"), 1, new HashMap<>()));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testInvalidate() {
+        cache.put("1", URI.create("file:/data/a/1.dcm"));
+        cache.put("2", URI.create("file:/data/a/sub/2.dcm"));
+        cache.put("3", URI.create("file:/data/ab/3.dcm"));
+        cache.put("4", URI.create("file:/data/b/4.dcm"));
+
+        cache.invalidate(URI.create("file:/data/b/4.dcm"));
+        assertEquals(3, cache.size());
+
+        // a directory covers everything inside it, but not its siblings
+        cache.invalidate(Arrays.asList(URI.create("file:/data/a"), URI.create("file:/data/c/")));
+        assertEquals(1, cache.size());
+        assertEquals(URI.create("file:/data/ab/3.dcm"), cache.locate("3", Collections.emptyList()));
+
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testInvalidateMovedInstance() {
+        cache.put("1", URI.create("file:/data/a/1.dcm"));
+        cache.put("1", URI.create("file:/data/b/1.dcm"));
+        cache.put("2", URI.create("file:/data/a/2.dcm"));
+        cache.put("2", URI.create("file:/data/a/2.dcm"));
+
+        // the old location of a moved instance no longer refers to it
+        cache.invalidate(URI.create("file:/data/a"));
+        assertEquals(1, cache.size());
+        assertEquals(URI.create("file:/data/b/1.dcm"), cache.locate("1", Collections.emptyList()));
+
+        cache.invalidate(URI.create("file:/data/b/1.dcm"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testIgnoresIncompleteEntries() {
+        cache.put(null, URI.create("file:/data/a/1.dcm"));
+        cache.put("  ", URI.create("file:/data/a/1.dcm"));
+        cache.put("1", null);
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.core;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import pt.ua.dicoogle.core.query.QueryPlanCache;
+import pt.ua.dicoogle.sdk.datastructs.QueryExpression;
+
+public class QueryExpressionBuilderTest {
+
+    @Before
+    public void setUp() {
+        QueryPlanCache.getInstance().invalidateAll();
+    }
+
+    @Test
+    public void testFreeText() {
+        ArrayList<String> tags = new ArrayList<>(Arrays.asList("PatientName", "Modality"));
+        QueryExpressionBuilder builder = new QueryExpressionBuilder("Smith^John CT", tags);
+        assertEquals(Arrays.asList("Smith", "John", "CT"), builder.getTokens());
+        assertEquals("(PatientName:Smith OR Modality:Smith OR others:Smith)"
+                + " AND (PatientName:John OR Modality:John OR others:John)"
+                + " AND (PatientName:CT OR Modality:CT OR others:CT)", builder.getQueryString());
+
+        assertEquals("*:*", new QueryExpressionBuilder("  ", tags).getQueryString());
+    }
+
+    @Test
+    public void testRepeatedQueriesArePlannedOnce() {
+        ArrayList<String> tags = new ArrayList<>(Arrays.asList("PatientName", "Modality"));
+        QueryExpression first = new QueryExpressionBuilder("Smith CT", tags).getQueryExpression();
+        QueryExpression second = new QueryExpressionBuilder("Smith  CT", tags).getQueryExpression();
+        assertEquals(first, second);
+        assertEquals(1, QueryPlanCache.getInstance().stats().hitCount());
+
+        // the terms are not part of the plan
+        QueryExpression other = new QueryExpressionBuilder("Jones MR", tags).getQueryExpression();
+        assertEquals(2, QueryPlanCache.getInstance().stats().hitCount());
+        assertEquals("(PatientName:Jones OR Modality:Jones OR others:Jones)"
+                + " AND (PatientName:MR OR Modality:MR OR others:MR)", other.toQueryString());
+        assertEquals(1, QueryPlanCache.getInstance().size());
+
+        // other tags make for another plan
+        QueryExpression third = new QueryExpressionBuilder("Smith CT", new ArrayList<>(Arrays.asList("PatientName")))
+                .getQueryExpression();
+        assertEquals("(PatientName:Smith OR others:Smith) AND (PatientName:CT OR others:CT)", third.toQueryString());
+    }
+}
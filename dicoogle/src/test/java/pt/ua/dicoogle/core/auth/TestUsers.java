@@ -46,8 +46,10 @@ public class TestUsers {
         assertTrue(u.verifyPassword(passwd));
 
         passwd = "correctHorseBatteryStaple";
+        long epoch = u.getTokenEpoch();
         assertTrue(u.changePassword("123", passwd));
         assertTrue(u.verifyPassword(passwd));
+        assertTrue(u.getTokenEpoch() != epoch);
 
         passwd = "VeryStrongPassword!!11";
         assertTrue(u.resetPassword(passwd));
@@ -0,0 +1,207 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.core.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import pt.ua.dicoogle.sdk.StorageInputStream;
+import pt.ua.dicoogle.sdk.datastructs.IndexReport2;
+import pt.ua.dicoogle.sdk.datastructs.Report;
+import pt.ua.dicoogle.sdk.task.Task;
+
+public class BulkIndexerTest {
+
+    private static final URI ROOT = URI.create("mem:/archive/");
+
+    private MemoryStorage storage;
+    private Path checkpointDir;
+
+    @Before
+    public void setUp() throws IOException {
+        storage = new MemoryStorage(ROOT);
+        for (int p = 0; p < 3; p++) {
+            for (int s = 0; s < 4; s++) {
+                for (int i = 0; i < 10; i++) {
+                    storage.put("patient" + p + "/study" + s + "/" + i + ".dcm", "");
+                }
+            }
+        }
+        storage.put("loose1.dcm", "");
+        storage.put("loose2.dcm", "");
+        checkpointDir = Files.createTempDirectory("bulk-index-test");
+    }
+
+    @Test
+    public void testIndexAll() throws Exception {
+        CountingIndexer indexer = new CountingIndexer(-1);
+        BulkIndexer bulk = new BulkIndexer(ROOT, storage, Collections.singleton(indexer), 3, 4, checkpointDir);
+
+        List<BulkIndexer.Shard> plan = bulk.plan();
+        assertTrue(plan.size() > 3);
+        assertTrue(plan.contains(new BulkIndexer.Shard(BulkIndexer.Shard.FILES, ROOT)));
+
+        IndexReport2 report = (IndexReport2) bulk.call();
+        assertEquals(122, report.getNIndexed());
+        assertEquals(0, report.getNErrors());
+        assertEquals(122, indexer.indexed.size());
+        assertEquals(122, indexer.calls.get());
+        assertEquals(1.0f, bulk.getProgress(), 0.0001f);
+
+        // a complete procedure leaves no checkpoint behind
+        try (Stream<Path> files = Files.list(checkpointDir)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        // fails after a few batches, leaving some shards incomplete
+        CountingIndexer failing = new CountingIndexer(6);
+        BulkIndexer first = new BulkIndexer(ROOT, storage, Collections.singleton(failing), 1, 4, checkpointDir);
+        first.call();
+        int indexedBefore = failing.indexed.size();
+        assertTrue(indexedBefore > 0);
+        assertTrue(indexedBefore < 122);
+        try (Stream<Path> files = Files.list(checkpointDir)) {
+            assertEquals(1, files.count());
+        }
+
+        // the next run over the same tree with the same indexer resumes from the checkpoint
+        CountingIndexer resumed = new CountingIndexer(-1);
+        BulkIndexer second = new BulkIndexer(ROOT, storage, Collections.singleton(resumed), 2, 4, checkpointDir);
+        second.call();
+        Set<URI> all = ConcurrentHashMap.newKeySet();
+        all.addAll(failing.indexed);
+        all.addAll(resumed.indexed);
+        assertEquals(122, all.size());
+        assertEquals(122 - indexedBefore, resumed.indexed.size());
+        for (URI uri : resumed.indexed) {
+            assertFalse(failing.indexed.contains(uri));
+        }
+        try (Stream<Path> files = Files.list(checkpointDir)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    public void testFailedBatchIsNotCheckpointed() throws Exception {
+        // the task of the third batch fails, instead of the indexer crashing
+        AtomicInteger batches = new AtomicInteger();
+        List<URI> failedBatch = new ArrayList<>();
+        CountingIndexer flaky = new CountingIndexer(-1) {
+            @Override
+            public Task<Report> index(Iterable<StorageInputStream> files, Object... parameters) {
+                if (batches.incrementAndGet() == 3) {
+                    files.forEach(file -> failedBatch.add(file.getURI()));
+                    return new Task<>(() -> {
+                        throw new IOException("indexer failed");
+                    });
+                }
+                return super.index(files, parameters);
+            }
+        };
+        new BulkIndexer(ROOT, storage, Collections.singleton(flaky), 1, 4, checkpointDir).call();
+        assertEquals(4, failedBatch.size());
+        assertTrue(flaky.indexed.size() < 122);
+        try (Stream<Path> files = Files.list(checkpointDir)) {
+            assertEquals(1, files.count());
+        }
+
+        // the files of the failed batch are indexed on the next run
+        CountingIndexer resumed = new CountingIndexer(-1);
+        new BulkIndexer(ROOT, storage, Collections.singleton(resumed), 2, 4, checkpointDir).call();
+        assertTrue(resumed.indexed.containsAll(failedBatch));
+        Set<URI> all = ConcurrentHashMap.newKeySet();
+        all.addAll(flaky.indexed);
+        all.addAll(resumed.indexed);
+        assertEquals(122, all.size());
+    }
+
+    @Test
+    public void testResumeAddsNewDirectories() throws Exception {
+        CountingIndexer failing = new CountingIndexer(6);
+        BulkIndexer first = new BulkIndexer(ROOT, storage, Collections.singleton(failing), 1, 4, checkpointDir);
+        first.call();
+        int indexedBefore = failing.indexed.size();
+        assertTrue(indexedBefore < 122);
+
+        // directories created after the plan was recorded are indexed as well
+        storage.put("patient9/study0/0.dcm", "");
+        storage.put("patient9/study1/0.dcm", "");
+        CountingIndexer resumed = new CountingIndexer(-1);
+        BulkIndexer second = new BulkIndexer(ROOT, storage, Collections.singleton(resumed), 2, 4, checkpointDir);
+        second.call();
+        assertEquals(124 - indexedBefore, resumed.indexed.size());
+        assertTrue(resumed.indexed.contains(storage.uri("patient9/study0/0.dcm")));
+        assertTrue(resumed.indexed.contains(storage.uri("patient9/study1/0.dcm")));
+        for (URI uri : resumed.indexed) {
+            assertFalse(failing.indexed.contains(uri));
+        }
+    }
+
+    @Test
+    public void testResumeUnlistableStorage() throws Exception {
+        // a storage which cannot be listed, and returns the files of a tree in no particular order
+        MemoryStorage unordered = new MemoryStorage(ROOT) {
+            @Override
+            public Stream<URI> list(URI location) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public Iterable<StorageInputStream> at(URI location, Object... parameters) {
+                List<StorageInputStream> items = new ArrayList<>();
+                super.at(location).forEach(items::add);
+                Collections.shuffle(items);
+                return items;
+            }
+        };
+        for (int i = 0; i < 50; i++) {
+            unordered.put("dir" + (i % 5) + "/" + i + ".dcm", "");
+        }
+
+        CountingIndexer failing = new CountingIndexer(3);
+        new BulkIndexer(ROOT, unordered, Collections.singleton(failing), 2, 4, checkpointDir).call();
+        assertEquals(12, failing.indexed.size());
+
+        CountingIndexer resumed = new CountingIndexer(-1);
+        new BulkIndexer(ROOT, unordered, Collections.singleton(resumed), 2, 4, checkpointDir).call();
+        assertEquals(38, resumed.indexed.size());
+        for (URI uri : resumed.indexed) {
+            assertFalse(failing.indexed.contains(uri));
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.core.index;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import pt.ua.dicoogle.sdk.IndexerInterface;
+import pt.ua.dicoogle.sdk.StorageInputStream;
+import pt.ua.dicoogle.sdk.datastructs.IndexReport2;
+import pt.ua.dicoogle.sdk.datastructs.Report;
+import pt.ua.dicoogle.sdk.settings.ConfigurationHolder;
+import pt.ua.dicoogle.sdk.task.Task;
+
+/** An indexer which records what it indexes, and optionally crashes after a number of batches. */
+class CountingIndexer implements IndexerInterface {
+
+    final Set<URI> indexed = ConcurrentHashMap.newKeySet();
+    final Set<URI> unindexed = ConcurrentHashMap.newKeySet();
+    final AtomicInteger calls = new AtomicInteger();
+    private final AtomicInteger batchesLeft;
+
+    /** @param maxBatches the number of batches to index before crashing, or -1 to never crash */
+    CountingIndexer(int maxBatches) {
+        this.batchesLeft = new AtomicInteger(maxBatches < 0 ? Integer.MAX_VALUE : maxBatches);
+    }
+
+    @Override
+    public Task<Report> index(Iterable<StorageInputStream> files, Object... parameters) {
+        if (batchesLeft.getAndDecrement() <= 0) {
+            throw new IllegalStateException("indexer crashed");
+        }
+        List<StorageInputStream> batch = new ArrayList<>();
+        files.forEach(batch::add);
+        return new Task<>(() -> {
+            for (StorageInputStream file : batch) {
+                indexed.add(file.getURI());
+                calls.incrementAndGet();
+            }
+            return new IndexReport2(batch.size(), 0, 0);
+        });
+    }
+
+    @Override
+    public Task<Report> index(StorageInputStream file, Object... parameters) {
+        return index(Collections.singletonList(file));
+    }
+
+    @Override
+    public boolean unindex(URI path) {
+        unindexed.add(path);
+        return true;
+    }
+
+    @Override
+    public String getName() {
+        return "counting";
+    }
+
+    @Override
+    public boolean enable() {
+        return true;
+    }
+
+    @Override
+    public boolean disable() {
+        return false;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return true;
+    }
+
+    @Override
+    public void setSettings(ConfigurationHolder settings) {}
+
+    @Override
+    public ConfigurationHolder getSettings() {
+        return null;
+    }
+}
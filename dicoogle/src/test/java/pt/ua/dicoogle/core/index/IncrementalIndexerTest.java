@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.core.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import pt.ua.dicoogle.sdk.datastructs.IndexReport2;
+
+public class IncrementalIndexerTest {
+
+    private static final URI ROOT = URI.create("mem:/archive/");
+
+    private MemoryStorage storage;
+    private Path manifestDir;
+
+    @Before
+    public void setUp() throws IOException {
+        storage = new MemoryStorage(ROOT);
+        for (int i = 0; i < 20; i++) {
+            storage.put("study/" + i + ".dcm", "content " + i);
+        }
+        manifestDir = Files.createTempDirectory("incremental-index-test");
+    }
+
+    private IndexReport2 run(CountingIndexer indexer) throws Exception {
+        return (IndexReport2) new IncrementalIndexer(ROOT, storage, Collections.singleton(indexer), 8, manifestDir)
+                .call();
+    }
+
+    @Test
+    public void testUnchangedFilesAreSkipped() throws Exception {
+        CountingIndexer first = new CountingIndexer(-1);
+        assertEquals(20, run(first).getNIndexed());
+        assertEquals(20, first.indexed.size());
+
+        CountingIndexer second = new CountingIndexer(-1);
+        assertEquals(0, run(second).getNIndexed());
+        assertTrue(second.indexed.isEmpty());
+        assertTrue(second.unindexed.isEmpty());
+    }
+
+    @Test
+    public void testChanges() throws Exception {
+        run(new CountingIndexer(-1));
+
+        storage.put("study/3.dcm", "content 3, modified");
+        storage.put("study/4.dcm", "CONTENT 4"); // same size, different content
+        storage.put("study/new.dcm", "new content");
+        storage.delete("study/7.dcm");
+
+        CountingIndexer indexer = new CountingIndexer(-1);
+        assertEquals(3, run(indexer).getNIndexed());
+        assertEquals(3, indexer.indexed.size());
+        assertTrue(indexer.indexed.contains(storage.uri("study/3.dcm")));
+        assertTrue(indexer.indexed.contains(storage.uri("study/4.dcm")));
+        assertTrue(indexer.indexed.contains(storage.uri("study/new.dcm")));
+        assertEquals(Collections.singleton(storage.uri("study/7.dcm")), indexer.unindexed);
+
+        // the removed file is forgotten
+        CountingIndexer again = new CountingIndexer(-1);
+        run(again);
+        assertTrue(again.indexed.isEmpty());
+        assertTrue(again.unindexed.isEmpty());
+    }
+
+    @Test
+    public void testFailedBatchesAreRetried() throws Exception {
+        // takes the first batch of 8 files, then crashes
+        CountingIndexer failing = new CountingIndexer(1);
+        try {
+            run(failing);
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+        assertEquals(8, failing.indexed.size());
+
+        CountingIndexer indexer = new CountingIndexer(-1);
+        run(indexer);
+        assertEquals(12, indexer.indexed.size());
+        assertTrue(indexer.unindexed.isEmpty());
+    }
+
+    @Test
+    public void testUnindexedFilesAreIndexedAgain() throws Exception {
+        run(new CountingIndexer(-1));
+
+        // unindexed outside of incremental indexing
+        IndexManifest.recordUnindexed(manifestDir, Collections.singleton(storage.uri("study/3.dcm")));
+
+        CountingIndexer indexer = new CountingIndexer(-1);
+        assertEquals(1, run(indexer).getNIndexed());
+        assertEquals(Collections.singleton(storage.uri("study/3.dcm")), indexer.indexed);
+
+        IndexManifest.recordUnindexed(manifestDir, Collections.singleton(ROOT));
+        CountingIndexer all = new CountingIndexer(-1);
+        assertEquals(20, run(all).getNIndexed());
+        assertTrue(all.unindexed.isEmpty());
+    }
+}
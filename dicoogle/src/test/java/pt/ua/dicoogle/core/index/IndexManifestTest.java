@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.core.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import pt.ua.dicoogle.sdk.StorageInputStream;
+
+public class IndexManifestTest {
+
+    private Path dir;
+    private Path manifestFile;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("index-manifest-test");
+        manifestFile = dir.resolve("test.manifest");
+    }
+
+    private static StorageInputStream item(Path path) {
+        return new StorageInputStream() {
+            @Override
+            public URI getURI() {
+                return path.toUri();
+            }
+
+            @Override
+            public InputStream getInputStream() throws IOException {
+                return Files.newInputStream(path);
+            }
+
+            @Override
+            public long getSize() throws IOException {
+                return Files.size(path);
+            }
+        };
+    }
+
+    private Path write(String name, String content) throws IOException {
+        return Files.write(dir.resolve(name), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testModificationTime() throws Exception {
+        Path file = write("a.dcm", "content");
+        IndexManifest manifest = IndexManifest.load(manifestFile);
+        IndexManifest.Entry entry = manifest.probe(item(file));
+        assertNotNull(entry);
+        manifest.put(file.toUri(), entry);
+        assertNull(manifest.probe(item(file)));
+
+        // same size and contents, but touched
+        Files.setLastModifiedTime(file, FileTime.fromMillis(entry.getLastModified() + 2000));
+        assertNotNull(manifest.probe(item(file)));
+    }
+
+    @Test
+    public void testJournal() throws Exception {
+        Path a = write("a.dcm", "a");
+        Path b = write("b.dcm", "b");
+        IndexManifest manifest = IndexManifest.load(manifestFile);
+        manifest.put(a.toUri(), manifest.probe(item(a)));
+        manifest.put(b.toUri(), manifest.probe(item(b)));
+        manifest.save();
+        manifest.remove(b.toUri());
+        Path c = write("c.dcm", "c");
+        manifest.put(c.toUri(), manifest.probe(item(c)));
+        manifest.flush();
+
+        // the changes since the last save are recovered from the journal
+        IndexManifest loaded = IndexManifest.load(manifestFile);
+        assertEquals(2, loaded.size());
+        assertNotNull(loaded.get(a.toUri()));
+        assertNull(loaded.get(b.toUri()));
+        assertNotNull(loaded.get(c.toUri()));
+
+        // and folded into the manifest on save
+        loaded.save();
+        assertFalse(Files.exists(dir.resolve("test.manifest.journal")));
+        assertEquals(2, IndexManifest.load(manifestFile).size());
+    }
+
+    @Test
+    public void testMissing() throws Exception {
+        Path a = write("a.dcm", "a");
+        Path b = write("b.dcm", "b");
+        IndexManifest manifest = IndexManifest.load(manifestFile);
+        manifest.put(a.toUri(), manifest.probe(item(a)));
+        manifest.put(b.toUri(), manifest.probe(item(b)));
+        manifest.save();
+
+        IndexManifest loaded = IndexManifest.load(manifestFile);
+        assertNull(loaded.probe(item(a)));
+        assertEquals(Collections.singletonList(b.toUri()), loaded.missing(dir.toUri()));
+        assertTrue(loaded.missing(URI.create("file:/elsewhere/")).isEmpty());
+    }
+
+    @Test
+    public void testUnindexed() throws Exception {
+        Path a = write("a.dcm", "a");
+        Path b = write("b.dcm", "b");
+        IndexManifest manifest = IndexManifest.load(manifestFile);
+        manifest.put(a.toUri(), manifest.probe(item(a)));
+        manifest.put(b.toUri(), manifest.probe(item(b)));
+        manifest.save();
+
+        IndexManifest.recordUnindexed(dir, Collections.singleton(a.toUri()));
+        IndexManifest loaded = IndexManifest.load(manifestFile);
+        assertNull(loaded.get(a.toUri()));
+        assertNotNull(loaded.get(b.toUri()));
+        loaded.put(a.toUri(), loaded.probe(item(a)));
+        loaded.save();
+
+        // the log is only applied once
+        assertEquals(2, IndexManifest.load(manifestFile).size());
+
+        // directories drop everything under them
+        IndexManifest.recordUnindexed(dir, Collections.singleton(dir.toUri()));
+        assertEquals(0, IndexManifest.load(manifestFile).size());
+    }
+}
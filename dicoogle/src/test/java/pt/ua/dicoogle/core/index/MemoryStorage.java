@@ -0,0 +1,154 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.core.index;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.io.DicomInputStream;
+
+import pt.ua.dicoogle.sdk.StorageInputStream;
+import pt.ua.dicoogle.sdk.StorageInterface;
+import pt.ua.dicoogle.sdk.settings.ConfigurationHolder;
+
+/** An in-memory storage of small files, listable like a file system. */
+class MemoryStorage implements StorageInterface {
+
+    private final URI root;
+    private final TreeMap<String, byte[]> files = new TreeMap<>();
+
+    MemoryStorage(URI root) {
+        this.root = root;
+    }
+
+    void put(String path, String content) {
+        files.put(root.getPath() + path, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    void delete(String path) {
+        files.remove(root.getPath() + path);
+    }
+
+    URI uri(String path) {
+        return URI.create("mem:" + root.getPath() + path);
+    }
+
+    @Override
+    public Stream<URI> list(URI location) throws IOException {
+        String base = location.getPath();
+        Set<String> children = new TreeSet<>();
+        for (String path : files.tailMap(base).keySet()) {
+            if (!path.startsWith(base)) {
+                break;
+            }
+            String rest = path.substring(base.length());
+            int slash = rest.indexOf('/');
+            children.add(slash < 0 ? rest : rest.substring(0, slash + 1));
+        }
+        return children.stream().map(c -> URI.create("mem:" + base + c));
+    }
+
+    @Override
+    public Iterable<StorageInputStream> at(URI location, Object... parameters) {
+        String base = location.getPath();
+        return files.tailMap(base).entrySet().stream().filter(e -> e.getKey().startsWith(base))
+                .map(e -> (StorageInputStream) new MemoryFile(URI.create("mem:" + e.getKey()), e.getValue()))
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public String getScheme() {
+        return "mem";
+    }
+
+    @Override
+    public URI store(DicomObject dicomObject, Object... parameters) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public URI store(DicomInputStream inputStream, Object... parameters) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void remove(URI location) {}
+
+    @Override
+    public String getName() {
+        return "memory";
+    }
+
+    @Override
+    public boolean enable() {
+        return true;
+    }
+
+    @Override
+    public boolean disable() {
+        return false;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return true;
+    }
+
+    @Override
+    public void setSettings(ConfigurationHolder settings) {}
+
+    @Override
+    public ConfigurationHolder getSettings() {
+        return null;
+    }
+
+    private static class MemoryFile implements StorageInputStream {
+        private final URI uri;
+        private final byte[] content;
+
+        MemoryFile(URI uri, byte[] content) {
+            this.uri = uri;
+            this.content = content;
+        }
+
+        @Override
+        public URI getURI() {
+            return uri;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return new ByteArrayInputStream(content);
+        }
+
+        @Override
+        public long getSize() throws IOException {
+            return content.length;
+        }
+    }
+}
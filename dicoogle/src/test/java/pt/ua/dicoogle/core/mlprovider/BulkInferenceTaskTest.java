@@ -0,0 +1,315 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.core.mlprovider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import pt.ua.dicoogle.sdk.datastructs.dim.DimLevel;
+import pt.ua.dicoogle.sdk.mlprovider.MLDicomDataset;
+import pt.ua.dicoogle.sdk.mlprovider.MLDataset;
+import pt.ua.dicoogle.sdk.mlprovider.MLInference;
+import pt.ua.dicoogle.sdk.mlprovider.MLInferenceRequest;
+import pt.ua.dicoogle.sdk.mlprovider.MLMethod;
+import pt.ua.dicoogle.sdk.mlprovider.MLModel;
+import pt.ua.dicoogle.sdk.mlprovider.MLModelTrainInfo;
+import pt.ua.dicoogle.sdk.mlprovider.MLProviderInterface;
+import pt.ua.dicoogle.sdk.mlprovider.MLTrainTask;
+import pt.ua.dicoogle.sdk.settings.ConfigurationHolder;
+import pt.ua.dicoogle.sdk.task.Task;
+import pt.ua.dicoogle.taskManager.TaskManager;
+
+public class BulkInferenceTaskTest {
+
+    /** A provider which infers on one request at a time, failing on the UIDs starting with "bad". */
+    private static class FakeProvider extends MLProviderInterface {
+        final AtomicInteger inferCalls = new AtomicInteger();
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final AtomicInteger maxBatch = new AtomicInteger();
+
+        @Override
+        public Task<List<MLInference>> batchInfer(List<MLInferenceRequest> inferRequests) {
+            maxBatch.accumulateAndGet(inferRequests.size(), Math::max);
+            Task<List<MLInference>> task = super.batchInfer(inferRequests);
+            return new Task<>(() -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(5);
+                    task.run();
+                    return task.get();
+                } finally {
+                    running.decrementAndGet();
+                }
+            });
+        }
+
+        @Override
+        public Task<MLInference> infer(MLInferenceRequest inferRequest) {
+            inferCalls.incrementAndGet();
+            return new Task<>(() -> {
+                if (inferRequest.getDimID().startsWith("bad")) {
+                    throw new IllegalStateException("bad object");
+                }
+                MLInference inference = new MLInference();
+                inference.setVersion(inferRequest.getDimID());
+                return inference;
+            });
+        }
+
+        @Override
+        public void dataStore(MLDataset dataset) {}
+
+        @Override
+        public Task<Boolean> cache(MLDicomDataset dataset) {
+            return null;
+        }
+
+        @Override
+        public MLModel createModel() {
+            return null;
+        }
+
+        @Override
+        public List<MLModel> listModels() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public MLModelTrainInfo modelInfo(String modelID) {
+            return null;
+        }
+
+        @Override
+        public MLTrainTask trainModel(String modelID) {
+            return null;
+        }
+
+        @Override
+        public boolean stopTraining(String trainingTaskID) {
+            return false;
+        }
+
+        @Override
+        public void deleteModel() {}
+
+        @Override
+        public void batchInfer() {}
+
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        public Set<MLMethod> getImplementedMethods() {
+            return Collections.singleton(MLMethod.INFER);
+        }
+
+        @Override
+        public String getName() {
+            return "fake";
+        }
+
+        @Override
+        public boolean enable() {
+            return true;
+        }
+
+        @Override
+        public boolean disable() {
+            return false;
+        }
+
+        @Override
+        public boolean isEnabled() {
+            return true;
+        }
+
+        @Override
+        public void setSettings(ConfigurationHolder settings) {}
+
+        @Override
+        public ConfigurationHolder getSettings() {
+            return null;
+        }
+    }
+
+    /** Records the outcome of each item. */
+    private static class Outcomes implements BulkInferenceTask.Listener<String> {
+        final Map<String, MLInference> inferences = new ConcurrentHashMap<>();
+        final Map<String, Exception> failures = new ConcurrentHashMap<>();
+
+        @Override
+        public void onInference(String item, MLInference inference) {
+            inferences.put(item, inference);
+        }
+
+        @Override
+        public void onFailure(String item, Exception error) {
+            failures.put(item, error);
+        }
+    }
+
+    /** Produces the given items, failing after them if requested, and records whether it was closed. */
+    private static class ClosableItems implements Iterator<String>, AutoCloseable {
+        final Iterator<String> it;
+        final boolean fail;
+        final AtomicBoolean closed = new AtomicBoolean();
+
+        ClosableItems(List<String> items, boolean fail) {
+            this.it = items.iterator();
+            this.fail = fail;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (!it.hasNext() && fail) {
+                throw new IllegalStateException("query failed");
+            }
+            return it.hasNext();
+        }
+
+        @Override
+        public String next() {
+            return it.next();
+        }
+
+        @Override
+        public void close() {
+            closed.set(true);
+        }
+    }
+
+    private static MLInferenceRequest prepare(String uid) {
+        return new MLInferenceRequest(false, DimLevel.SERIES, uid, "model");
+    }
+
+    @Test
+    public void testInfersAllInBatches() throws Exception {
+        List<String> uids = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            uids.add("1.2.3." + i);
+        }
+        FakeProvider provider = new FakeProvider();
+        Outcomes outcomes = new Outcomes();
+        BulkInferenceTask<String> task =
+                new BulkInferenceTask<>(provider, uids, BulkInferenceTaskTest::prepare, outcomes, 3, 4);
+        BulkInferenceTask.Summary summary = task.call();
+
+        assertEquals(50, summary.getSubmitted());
+        assertEquals(50, summary.getInferred());
+        assertEquals(0, summary.getFailed());
+        assertEquals(50, outcomes.inferences.size());
+        for (String uid : uids) {
+            assertEquals(uid, outcomes.inferences.get(uid).getVersion());
+        }
+        assertEquals(50, provider.inferCalls.get());
+        assertEquals(4, provider.maxBatch.get());
+        assertTrue(provider.maxRunning.get() <= 3);
+        assertEquals(1f, task.getProgress(), 0f);
+    }
+
+    @Test
+    public void testFailuresAreReported() throws Exception {
+        List<String> uids = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            uids.add((i % 3 == 0 ? "bad." : "1.2.3.") + i);
+        }
+        uids.add("unprepared");
+        FakeProvider provider = new FakeProvider();
+        Outcomes outcomes = new Outcomes();
+        BulkInferenceTask<String> task = new BulkInferenceTask<>(provider, uids, uid -> {
+            if (uid.equals("unprepared")) {
+                throw new IllegalArgumentException("cannot prepare");
+            }
+            return prepare(uid);
+        }, outcomes, 2, 3);
+        BulkInferenceTask.Summary summary = task.call();
+
+        assertEquals(11, summary.getSubmitted());
+        assertEquals(6, summary.getInferred());
+        assertEquals(5, summary.getFailed());
+        assertEquals(6, outcomes.inferences.size());
+        assertEquals(5, outcomes.failures.size());
+        assertTrue(outcomes.failures.containsKey("bad.0"));
+        assertTrue(outcomes.failures.get("unprepared") instanceof IllegalArgumentException);
+        // the unprepared item never reaches the provider
+        assertEquals(10, provider.inferCalls.get());
+    }
+
+    @Test
+    public void testBatchesRunOnSharedPool() throws Exception {
+        List<String> uids = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            uids.add("1.2.3." + i);
+        }
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        Outcomes outcomes = new Outcomes();
+        BulkInferenceTask<String> task = new BulkInferenceTask<>(new FakeProvider(), uids, uid -> {
+            threads.add(Thread.currentThread().getName());
+            return prepare(uid);
+        }, outcomes, 2, 2);
+        BulkInferenceTask.Summary summary = task.call();
+
+        assertEquals(8, summary.getInferred());
+        assertFalse(threads.isEmpty());
+        for (String thread : threads) {
+            assertTrue(thread, thread.startsWith("dicoogle-bulk-infer-task-"));
+        }
+        assertTrue(TaskManager.getTaskManagers().stream().anyMatch(m -> m.getName().equals("bulk-infer")));
+    }
+
+    @Test
+    public void testItemsAreClosed() throws Exception {
+        List<String> uids = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            uids.add("1.2.3." + i);
+        }
+        ClosableItems items = new ClosableItems(uids, false);
+        BulkInferenceTask.Summary summary = new BulkInferenceTask<>(new FakeProvider(), () -> items,
+                BulkInferenceTaskTest::prepare, new Outcomes(), 2, 2).call();
+        assertEquals(5, summary.getInferred());
+        assertTrue(items.closed.get());
+
+        ClosableItems failing = new ClosableItems(uids, true);
+        try {
+            new BulkInferenceTask<>(new FakeProvider(), () -> failing, BulkInferenceTaskTest::prepare,
+                    new Outcomes(), 2, 2).call();
+            fail("the failure of the items should be propagated");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+        assertTrue(failing.closed.get());
+    }
+}
@@ -0,0 +1,317 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.core.mlprovider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pt.ua.dicoogle.sdk.datastructs.dim.BulkAnnotation;
+import pt.ua.dicoogle.sdk.datastructs.dim.Point2D;
+import pt.ua.dicoogle.sdk.mlprovider.MLDataType;
+import pt.ua.dicoogle.sdk.mlprovider.MLDataset;
+import pt.ua.dicoogle.sdk.mlprovider.MLDicomDataset;
+import pt.ua.dicoogle.sdk.mlprovider.MLImageDataset;
+import pt.ua.dicoogle.sdk.mlprovider.MLInference;
+import pt.ua.dicoogle.sdk.mlprovider.MLInferenceRequest;
+import pt.ua.dicoogle.sdk.mlprovider.MLMethod;
+import pt.ua.dicoogle.sdk.mlprovider.MLModel;
+import pt.ua.dicoogle.sdk.mlprovider.MLModelTrainInfo;
+import pt.ua.dicoogle.sdk.mlprovider.MLProviderInterface;
+import pt.ua.dicoogle.sdk.mlprovider.MLTrainTask;
+import pt.ua.dicoogle.sdk.mlprovider.MLlabel;
+import pt.ua.dicoogle.sdk.settings.ConfigurationHolder;
+import pt.ua.dicoogle.sdk.task.Task;
+
+public class PrepareDatastoreTaskTest {
+
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("prepare-datastore-test");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /** A provider which only counts the datasets stored in it. */
+    private static class StoringProvider extends MLProviderInterface {
+        final AtomicInteger dataStoreCalls = new AtomicInteger();
+
+        @Override
+        public void dataStore(MLDataset dataset) {
+            dataStoreCalls.incrementAndGet();
+        }
+
+        @Override
+        public Task<Boolean> cache(MLDicomDataset dataset) {
+            return null;
+        }
+
+        @Override
+        public MLModel createModel() {
+            return null;
+        }
+
+        @Override
+        public List<MLModel> listModels() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public MLModelTrainInfo modelInfo(String modelID) {
+            return null;
+        }
+
+        @Override
+        public MLTrainTask trainModel(String modelID) {
+            return null;
+        }
+
+        @Override
+        public boolean stopTraining(String trainingTaskID) {
+            return false;
+        }
+
+        @Override
+        public void deleteModel() {}
+
+        @Override
+        public Task<MLInference> infer(MLInferenceRequest inferRequest) {
+            return null;
+        }
+
+        @Override
+        public void batchInfer() {}
+
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        public Set<MLMethod> getImplementedMethods() {
+            return Collections.singleton(MLMethod.DATASTORE);
+        }
+
+        @Override
+        public String getName() {
+            return "fake";
+        }
+
+        @Override
+        public boolean enable() {
+            return true;
+        }
+
+        @Override
+        public boolean disable() {
+            return false;
+        }
+
+        @Override
+        public boolean isEnabled() {
+            return true;
+        }
+
+        @Override
+        public void setSettings(ConfigurationHolder settings) {}
+
+        @Override
+        public ConfigurationHolder getSettings() {
+            return null;
+        }
+    }
+
+    /** A request for the given number of regions, labelled "lesion", on each of the given instances. */
+    private static DatastoreRequest request(Collection<String> uids, int regions) {
+        Map<String, List<BulkAnnotation>> dataset = new HashMap<>();
+        for (String uid : uids) {
+            List<List<Point2D>> points = new ArrayList<>();
+            for (int i = 0; i < regions; i++) {
+                List<Point2D> rectangle = new ArrayList<>();
+                rectangle.add(new Point2D(i, i));
+                rectangle.add(new Point2D(i + 8, i));
+                rectangle.add(new Point2D(i, i + 8));
+                rectangle.add(new Point2D(i + 8, i + 8));
+                points.add(rectangle);
+            }
+            BulkAnnotation annotation = new BulkAnnotation(BulkAnnotation.AnnotationType.RECTANGLE,
+                    BulkAnnotation.PixelOrigin.VOLUME, points);
+            annotation.setLabel(new MLlabel("lesion"));
+            List<BulkAnnotation> annotations = new ArrayList<>();
+            annotations.add(annotation);
+            dataset.put(uid, annotations);
+        }
+        DatastoreRequest request = new DatastoreRequest();
+        request.setProvider("fake");
+        request.setDataType(MLDataType.IMAGE);
+        request.setDataset(dataset);
+        return request;
+    }
+
+    private static List<String> uids(int n) {
+        List<String> uids = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            uids.add("1.2.3." + i);
+        }
+        return uids;
+    }
+
+    private static PrepareDatastoreTask.RegionReader image(int size) {
+        return (type, points) -> new BufferedImage(size, size, BufferedImage.TYPE_3BYTE_BGR);
+    }
+
+    private long countFiles() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.count();
+        }
+    }
+
+    @Test
+    public void testRegionsAreWrittenToDistinctFiles() throws Exception {
+        List<String> uids = uids(3);
+        PrepareDatastoreTask task = new PrepareDatastoreTask(request(uids, 4), LinkedHashSet::new,
+                uid -> image(16), dir, 4);
+        MLImageDataset dataset = (MLImageDataset) task.call();
+
+        // the file counter is shared by all instances, so no file overwrites another
+        assertEquals(12, dataset.getDataset().size());
+        assertEquals(12, countFiles());
+        assertEquals(1f, task.getProgress(), 0f);
+        assertEquals(0, task.pending());
+    }
+
+    @Test
+    public void testProgressCountsSkippedRegions() throws Exception {
+        List<String> uids = uids(4);
+        // one instance is not found, another cannot be read
+        PrepareDatastoreTask task = new PrepareDatastoreTask(request(uids, 3), requested -> {
+            Set<String> found = new LinkedHashSet<>(requested);
+            found.remove("1.2.3.0");
+            return found;
+        }, uid -> uid.equals("1.2.3.1") ? null : image(16), dir, 4);
+        MLImageDataset dataset = (MLImageDataset) task.call();
+
+        assertEquals(6, dataset.getDataset().size());
+        assertEquals(6, countFiles());
+        assertEquals(1f, task.getProgress(), 0f);
+    }
+
+    @Test
+    public void testPendingRegionsAreBounded() throws Exception {
+        List<String> uids = uids(4);
+        AtomicInteger extracted = new AtomicInteger();
+        AtomicInteger encoded = new AtomicInteger();
+        AtomicInteger maxPending = new AtomicInteger();
+        // extraction is much faster than encoding, so regions pile up unless bounded
+        PrepareDatastoreTask task = new PrepareDatastoreTask(request(uids, 10), LinkedHashSet::new, uid -> {
+            BufferedImage image = new BufferedImage(16, 16, BufferedImage.TYPE_3BYTE_BGR);
+            return (type, points) -> {
+                maxPending.accumulateAndGet(extracted.incrementAndGet() - encoded.get(), Math::max);
+                return image;
+            };
+        }, (image, output) -> {
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            encoded.incrementAndGet();
+        }, dir, 2);
+        MLImageDataset dataset = (MLImageDataset) task.call();
+
+        assertEquals(40, dataset.getDataset().size());
+        assertEquals(40, encoded.get());
+        assertTrue("pending " + maxPending.get(), maxPending.get() >= 1);
+        assertTrue("pending " + maxPending.get(), maxPending.get() <= 2);
+        assertEquals(1f, task.getProgress(), 0f);
+    }
+
+    @Test
+    public void testDatasetIsStoredWhenDone() throws Exception {
+        StoringProvider provider = new StoringProvider();
+        Task<MLDataset> task = new Task<>(
+                new PrepareDatastoreTask(request(uids(2), 2), LinkedHashSet::new, uid -> image(16), dir, 4));
+        PrepareDatastoreTask.storeWhenDone(task, provider);
+        task.run();
+
+        assertEquals(4, ((MLImageDataset) task.get()).getDataset().size());
+        assertEquals(1, provider.dataStoreCalls.get());
+    }
+
+    @Test
+    public void testCancelStopsExtractionAndSkipsStore() throws Exception {
+        StoringProvider provider = new StoringProvider();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        PrepareDatastoreTask.RegionReader blocking = (type, points) -> {
+            started.countDown();
+            try {
+                new CountDownLatch(1).await();
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        };
+        Task<MLDataset> task = new Task<>(
+                new PrepareDatastoreTask(request(uids(1), 5), LinkedHashSet::new, uid -> blocking, dir, 4));
+        PrepareDatastoreTask.storeWhenDone(task, provider);
+        Thread runner = new Thread(task);
+        runner.start();
+
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        task.cancel(true);
+        // the extraction of the instance is interrupted as well
+        assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+        runner.join(10000);
+        assertTrue(task.isCancelled());
+        assertEquals(0, provider.dataStoreCalls.get());
+        assertEquals(0, countFiles());
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.core.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import pt.ua.dicoogle.sdk.datastructs.SearchResult;
+import pt.ua.dicoogle.sdk.task.Task;
+
+public class ExportToCSVQueryTaskTest {
+
+    private static SearchResult result(String patientName, String modality) {
+        HashMap<String, Object> fields = new HashMap<>();
+        fields.put("PatientName", patientName);
+        fields.put("Modality", modality);
+        return new SearchResult(URI.create("file:/instance.dcm"), 1, fields);
+    }
+
+    private static Task<Iterable<SearchResult>> provider(SearchResult... results) {
+        return new Task<>(() -> Arrays.asList(results));
+    }
+
+    @Test
+    public void testExport() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ExportToCSVQueryTask task = new ExportToCSVQueryTask(Arrays.asList("PatientName", "Modality"), out);
+        Task<Iterable<SearchResult>> p1 = provider(result("A;B", "CT"), result("C\nD", null));
+        Task<Iterable<SearchResult>> p2 = provider(result("E", "MR"));
+        task.addTask(p1);
+        task.addTask(p2);
+        p2.run();
+        p1.run();
+
+        assertEquals(3, task.export());
+        String[] lines = new String(out.toByteArray(), StandardCharsets.UTF_8).split(System.lineSeparator());
+        assertEquals(4, lines.length);
+        assertEquals("\"PatientName\";\"Modality\";", lines[0]);
+        // rows come in order of provider completion
+        assertEquals("\"E\";\"MR\";", lines[1]);
+        assertEquals("\"A,B\";\"CT\";", lines[2]);
+        assertEquals("\"CD\";;", lines[3]);
+    }
+
+    @Test
+    public void testTruncated() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ExportToCSVQueryTask task = new ExportToCSVQueryTask(Arrays.asList("PatientName"), out, 2);
+        Task<Iterable<SearchResult>> p = provider(result("A", "CT"), result("B", "CT"), result("C", "CT"));
+        task.addTask(p);
+        p.run();
+
+        assertEquals(2, task.export());
+        assertTrue(task.isTruncated());
+        String[] lines = new String(out.toByteArray(), StandardCharsets.UTF_8).split(System.lineSeparator());
+        assertEquals(4, lines.length);
+        assertEquals("\"B\";", lines[2]);
+        assertTrue(lines[3].startsWith("\"# truncated"));
+
+        // reaching the maximum exactly is not a truncation
+        out.reset();
+        task = new ExportToCSVQueryTask(Arrays.asList("PatientName"), out, 2);
+        p = provider(result("A", "CT"), result("B", "CT"));
+        task.addTask(p);
+        p.run();
+        assertEquals(2, task.export());
+        assertFalse(task.isTruncated());
+    }
+
+    @Test
+    public void testNoProviders() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ExportToCSVQueryTask task = new ExportToCSVQueryTask(Arrays.asList("PatientName"), out);
+        assertEquals(0, task.export());
+        assertEquals("\"PatientName\";" + System.lineSeparator(),
+                new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testWriteFailureCancelsProviders() throws InterruptedException {
+        OutputStream broken = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("client went away");
+            }
+        };
+        CountDownLatch never = new CountDownLatch(1);
+        ExportToCSVQueryTask task = new ExportToCSVQueryTask(Arrays.asList("PatientName"), broken);
+        List<SearchResult> many = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            many.add(result("P" + i, "CT"));
+        }
+        Task<Iterable<SearchResult>> done = new Task<>(() -> many);
+        Task<Iterable<SearchResult>> pending = new Task<>(() -> {
+            never.await();
+            return new ArrayList<>();
+        });
+        task.addTask(done);
+        task.addTask(pending);
+        done.run();
+        try {
+            task.export();
+            throw new AssertionError("export should have failed");
+        } catch (IOException ex) {
+            // expected
+        }
+        assertTrue(pending.isCancelled());
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.core.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import pt.ua.dicoogle.sdk.datastructs.QueryPage;
+import pt.ua.dicoogle.sdk.datastructs.SearchResult;
+import pt.ua.dicoogle.sdk.datastructs.dim.DimLevel;
+
+public class QueryResultCacheTest {
+
+    private static List<SearchResult> results(int n) {
+        List<SearchResult> results = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            HashMap<String, Object> fields = new HashMap<>();
+            fields.put("SOPInstanceUID", "1.2.3." + i);
+            results.add(new SearchResult(URI.create("file:/data/" + i + ".dcm"), 1, fields));
+        }
+        return results;
+    }
+
+    private static int consume(Iterable<SearchResult> results) {
+        int n = 0;
+        for (SearchResult r : results) {
+            n++;
+        }
+        return n;
+    }
+
+    @Test
+    public void testKey() {
+        QueryResultCache cache = new QueryResultCache(1 << 20, 1, TimeUnit.MINUTES);
+        LinkedHashMap<String, String> fields = new LinkedHashMap<>();
+        fields.put("PatientName", "PatientName");
+        fields.put("Modality", "Modality");
+        LinkedHashMap<String, String> reordered = new LinkedHashMap<>();
+        reordered.put("Modality", "Modality");
+        reordered.put("PatientName", "PatientName");
+
+        assertEquals(cache.key("lucene", "Modality:CT", null, fields),
+                cache.key("Lucene", "Modality:CT", null, reordered));
+        assertNotEquals(cache.key("lucene", "Modality:CT", null, fields),
+                cache.key("other", "Modality:CT", null, fields));
+        assertNotEquals(cache.key("lucene", "Modality:CT", null, fields),
+                cache.key("lucene", "Modality:CT", DimLevel.STUDY, fields));
+        assertNotEquals(cache.key("lucene", "Modality:CT", null, fields, QueryPage.of(0, 10)),
+                cache.key("lucene", "Modality:CT", null, fields, QueryPage.of(10, 10)));
+        // unknown parameters cannot be told apart
+        assertNull(cache.key("lucene", "Modality:CT", null, fields, new Object()));
+        assertNull(new QueryResultCache(0, 1, TimeUnit.MINUTES).key("lucene", "Modality:CT", null, fields));
+    }
+
+    @Test
+    public void testNormalize() {
+        assertEquals("Modality:CT", QueryResultCache.normalize("  Modality:CT "));
+        assertEquals("Modality:CT AND PatientName:\"A  B\"",
+                QueryResultCache.normalize("PatientName:\"A  B\"   AND\tModality:CT"));
+        assertEquals(QueryResultCache.normalize("a AND b AND (c OR  d)"),
+                QueryResultCache.normalize("(c OR d) && b AND a"));
+        // anything but a plain conjunction keeps its order
+        assertEquals("b OR a", QueryResultCache.normalize("b  OR a"));
+        assertEquals("b AND NOT a", QueryResultCache.normalize("b AND NOT a"));
+        assertEquals("b a", QueryResultCache.normalize("b a"));
+    }
+
+    @Test
+    public void testRecordAndGet() {
+        QueryResultCache cache = new QueryResultCache(1 << 20, 1, TimeUnit.MINUTES);
+        String key = cache.key("lucene", "Modality:CT", null);
+        assertNull(cache.get(key));
+
+        Iterable<SearchResult> recorded = cache.record(key, cache.getGeneration("lucene"), results(5));
+        assertNull(cache.get(key));
+        assertEquals(5, consume(recorded));
+        assertNotNull(cache.get(key));
+        assertEquals(5, cache.get(key).size());
+        assertEquals(1, cache.size());
+        assertEquals(2, cache.stats().hitCount());
+    }
+
+    @Test
+    public void testResultsAreCopied() {
+        QueryResultCache cache = new QueryResultCache(1 << 20, 1, TimeUnit.MINUTES);
+        String key = cache.key("lucene", "Modality:CT", null);
+        for (SearchResult result : cache.record(key, cache.getGeneration("lucene"), results(2))) {
+            result.put("SOPInstanceUID", "changed by the first consumer");
+        }
+        cache.get(key).get(0).getExtraData().clear();
+        List<SearchResult> cached = cache.get(key);
+        assertEquals("1.2.3.0", cached.get(0).get("SOPInstanceUID"));
+        assertNotSame(cached.get(0), cache.get(key).get(0));
+    }
+
+    @Test
+    public void testPartialTraversalIsNotCached() {
+        QueryResultCache cache = new QueryResultCache(1 << 20, 1, TimeUnit.MINUTES);
+        String key = cache.key("lucene", "Modality:CT", null);
+        Iterator<SearchResult> it = cache.record(key, cache.getGeneration("lucene"), results(5)).iterator();
+        it.next();
+        it.next();
+        assertNull(cache.get(key));
+    }
+
+    @Test
+    public void testInvalidate() {
+        QueryResultCache cache = new QueryResultCache(1 << 20, 1, TimeUnit.MINUTES);
+        String key = cache.key("lucene", "Modality:CT", null);
+        consume(cache.record(key, cache.getGeneration("lucene"), results(3)));
+        assertNotNull(cache.get(key));
+
+        cache.invalidate();
+        assertNull(cache.get(key));
+
+        // results of a query issued before the index changed are not kept
+        long generation = cache.getGeneration("lucene");
+        Iterable<SearchResult> recorded = cache.record(key, generation, results(3));
+        cache.invalidate();
+        assertEquals(3, consume(recorded));
+        assertNull(cache.get(key));
+    }
+
+    @Test
+    public void testInvalidateIndex() {
+        QueryResultCache cache = new QueryResultCache(1 << 20, 1, TimeUnit.MINUTES);
+        cache.addIndexReaders("lucene-index", Collections.singleton("lucene"));
+        String lucene = cache.key("lucene", "Modality:CT", null);
+        String other = cache.key("other", "Modality:CT", null);
+        consume(cache.record(lucene, cache.getGeneration("lucene"), results(3)));
+        consume(cache.record(other, cache.getGeneration("other"), results(3)));
+
+        // only the providers reading from the index of the indexer are affected
+        long generation = cache.getGeneration("lucene");
+        Iterable<SearchResult> recorded = cache.record(lucene, generation, results(3));
+        cache.invalidateIndex("Lucene-Index");
+        assertNull(cache.get(lucene));
+        assertNotNull(cache.get(other));
+        assertEquals(3, consume(recorded));
+        assertNull(cache.get(lucene));
+
+        // an undeclared indexer affects the provider of the same name
+        cache.invalidateIndexes(Collections.singleton("other"));
+        assertNull(cache.get(other));
+    }
+
+    @Test
+    public void testMemoryBudget() {
+        QueryResultCache cache = new QueryResultCache(64 * 1024, 1, TimeUnit.MINUTES);
+        String small = cache.key("lucene", "Modality:CT", null);
+        String large = cache.key("lucene", "Modality:MR", null);
+        consume(cache.record(small, cache.getGeneration("lucene"), results(2)));
+        assertEquals(1000, consume(cache.record(large, cache.getGeneration("lucene"), results(1000))));
+
+        assertNotNull(cache.get(small));
+        assertNull(cache.get(large));
+        assertEquals(2, cache.get(small).size());
+    }
+}
@@ -19,14 +19,35 @@
 
 package pt.ua.dicoogle.server;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
+import org.dcm4che2.data.BasicDicomObject;
+import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
+import org.dcm4che2.data.UID;
+import org.dcm4che2.data.VR;
+import org.dcm4che2.io.DicomInputStream;
+import org.dcm4che2.io.DicomOutputStream;
 import org.junit.Test;
 
+import pt.ua.dicoogle.sdk.StorageInputStream;
+import pt.ua.dicoogle.sdk.StorageInterface;
+import pt.ua.dicoogle.sdk.settings.ConfigurationHolder;
+
 public class DicomStorageTest {
     final Set<String> priorityAETs = new HashSet<>(Arrays.asList("IMPORTANT AE 1", "IMPORTANT AE 2"));
 
@@ -49,4 +70,186 @@ public class DicomStorageTest {
         assertPriorityOrderAsc("IMPORTANT AE 1", 4, "IMPORTANT AE 2", 40);
 
     }
+
+    private static DicomObject dataSet() {
+        DicomObject dataSet = new BasicDicomObject();
+        dataSet.putString(Tag.SOPClassUID, VR.UI, UID.CTImageStorage);
+        dataSet.putString(Tag.SOPInstanceUID, VR.UI, "1.2.3.4");
+        dataSet.putString(Tag.Modality, VR.CS, "CT");
+        dataSet.putString(Tag.SeriesInstanceUID, VR.UI, "1.2.3");
+        dataSet.putInt(Tag.InstanceNumber, VR.IS, 7);
+        dataSet.putBytes(Tag.PixelData, VR.OW, new byte[2048]);
+        return dataSet;
+    }
+
+    private static byte[] encode(DicomObject dataSet) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (DicomOutputStream dos = new DicomOutputStream(out)) {
+            dos.writeDataset(dataSet, UID.ExplicitVRLittleEndian);
+        }
+        return out.toByteArray();
+    }
+
+    private static DicomObject fmi() {
+        DicomObject fmi = new BasicDicomObject();
+        fmi.initFileMetaInformation(UID.CTImageStorage, "1.2.3.4", UID.ExplicitVRLittleEndian);
+        return fmi;
+    }
+
+    @Test
+    public void testStoreStreamedSingleStorage() throws IOException {
+        byte[] data = {1, 2, 3, 4, 5};
+        StreamingStorage streaming = new StreamingStorage("a", true);
+        List<StorageInterface> plugins = Collections.singletonList(streaming);
+
+        assertTrue(DicomStorage.hasStreamingStorage(plugins));
+        List<URI> uris = DicomStorage.storeStreamed(plugins, new BasicDicomObject(), new ByteArrayInputStream(data));
+
+        assertEquals(Collections.singletonList(URI.create("test:/a")), uris);
+        assertArrayEquals(data, streaming.received);
+    }
+
+    @Test
+    public void testStoreStreamedToNonStreamingStorage() throws IOException {
+        byte[] data = encode(dataSet());
+        StreamingStorage streaming = new StreamingStorage("a", true);
+        StreamingStorage other = new StreamingStorage("b", false);
+        List<StorageInterface> plugins = Arrays.asList(other, streaming);
+
+        List<URI> uris = DicomStorage.storeStreamed(plugins, fmi(), new ByteArrayInputStream(data));
+
+        assertEquals(Arrays.asList(URI.create("test:/b"), URI.create("test:/a")), uris);
+        assertArrayEquals(data, streaming.received);
+        // the storage without streaming support gets the data set read back from the spool
+        assertEquals("CT", other.stored.getString(Tag.Modality));
+        assertEquals(2048, other.stored.getBytes(Tag.PixelData).length);
+        assertEquals(UID.ExplicitVRLittleEndian, other.stored.getString(Tag.TransferSyntaxUID));
+        assertEquals("1.2.3.4", other.stored.getString(Tag.MediaStorageSOPInstanceUID));
+    }
+
+    @Test
+    public void testHeaderCapture() throws IOException {
+        byte[] data = encode(dataSet());
+        StreamingStorage streaming = new StreamingStorage("a", true);
+        DicomStorage.HeaderCapture capture = new DicomStorage.HeaderCapture(new ByteArrayInputStream(data), 1024);
+
+        DicomStorage.storeStreamed(Collections.singletonList(streaming), fmi(), capture);
+
+        // the data set goes through untouched
+        assertArrayEquals(data, streaming.received);
+        DicomObject header = capture.header(UID.ExplicitVRLittleEndian);
+        assertEquals("CT", header.getString(Tag.Modality));
+        assertEquals("1.2.3", header.getString(Tag.SeriesInstanceUID));
+        assertEquals(7, header.getInt(Tag.InstanceNumber));
+
+        // a capture cut short within the header keeps what was read
+        capture = new DicomStorage.HeaderCapture(new ByteArrayInputStream(data), 40);
+        DicomStorage.storeStreamed(Collections.singletonList(streaming), fmi(), capture);
+        assertEquals(null, capture.header(UID.ExplicitVRLittleEndian).getString(Tag.Modality));
+    }
+
+    @Test
+    public void testStoreStreamedFansOut() throws IOException {
+        byte[] data = new byte[100000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        StreamingStorage s1 = new StreamingStorage("a", true);
+        StreamingStorage s2 = new StreamingStorage("b", true);
+        List<StorageInterface> plugins = Arrays.asList(s1, s2);
+
+        List<URI> uris = DicomStorage.storeStreamed(plugins, new BasicDicomObject(), new ByteArrayInputStream(data));
+
+        assertEquals(Arrays.asList(URI.create("test:/a"), URI.create("test:/b")), uris);
+        assertArrayEquals(data, s1.received);
+        assertArrayEquals(data, s2.received);
+    }
+
+    @Test
+    public void testNoStreamingStorage() {
+        assertFalse(DicomStorage.hasStreamingStorage(Collections.singletonList(new StreamingStorage("a", false))));
+        assertFalse(DicomStorage.hasStreamingStorage(Collections.emptyList()));
+    }
+
+    private static class StreamingStorage implements StorageInterface {
+        private final String name;
+        private final boolean streaming;
+        byte[] received;
+        DicomObject stored;
+
+        StreamingStorage(String name, boolean streaming) {
+            this.name = name;
+            this.streaming = streaming;
+        }
+
+        @Override
+        public boolean supportsStreamingStore() {
+            return streaming;
+        }
+
+        @Override
+        public URI storeStream(DicomObject fileMetaInformation, InputStream dataSet, Object... parameters)
+                throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = dataSet.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+            received = out.toByteArray();
+            return URI.create("test:/" + name);
+        }
+
+        @Override
+        public String getScheme() {
+            return "test";
+        }
+
+        @Override
+        public Iterable<StorageInputStream> at(URI location, Object... parameters) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public URI store(DicomObject dicomObject, Object... parameters) {
+            stored = dicomObject;
+            return URI.create("test:/" + name);
+        }
+
+        @Override
+        public URI store(DicomInputStream inputStream, Object... parameters) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void remove(URI location) {}
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public boolean enable() {
+            return true;
+        }
+
+        @Override
+        public boolean disable() {
+            return false;
+        }
+
+        @Override
+        public boolean isEnabled() {
+            return true;
+        }
+
+        @Override
+        public void setSettings(ConfigurationHolder settings) {}
+
+        @Override
+        public ConfigurationHolder getSettings() {
+            return null;
+        }
+    }
 }
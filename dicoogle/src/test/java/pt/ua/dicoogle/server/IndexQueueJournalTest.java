@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class IndexQueueJournalTest {
+
+    @Test
+    public void testReplayPendingEntries() throws IOException {
+        Path dir = Files.createTempDirectory("journal");
+        Path path = dir.resolve("index.journal");
+
+        IndexQueueJournal journal = IndexQueueJournal.open(path, 1000);
+        long id0 = journal.append(URI.create("file:/tmp/0.dcm"), "AE0");
+        long id1 = journal.append(URI.create("file:/tmp/1.dcm"), "AE 1");
+        long id2 = journal.append(URI.create("file:/tmp/2.dcm"), "AE2");
+        journal.sync();
+        journal.complete(Arrays.asList(id0, id2));
+        journal.close();
+
+        journal = IndexQueueJournal.open(path, 1000);
+        List<IndexQueueJournal.Entry> recovered = journal.takeRecovered();
+        assertEquals(1, recovered.size());
+        assertEquals(id1, recovered.get(0).getId());
+        assertEquals(URI.create("file:/tmp/1.dcm"), recovered.get(0).getUri());
+        assertEquals("AE 1", recovered.get(0).getCallingAET());
+        // only provided once
+        assertEquals(0, journal.takeRecovered().size());
+
+        // new IDs do not collide with recovered ones
+        long id3 = journal.append(URI.create("file:/tmp/3.dcm"), "AE3");
+        assertTrue(id3 > id2);
+        journal.complete(Collections.singletonList(id1));
+        journal.sync();
+        journal.close();
+
+        journal = IndexQueueJournal.open(path, 1000);
+        recovered = journal.takeRecovered();
+        assertEquals(1, recovered.size());
+        assertEquals(id3, recovered.get(0).getId());
+        journal.close();
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        Path dir = Files.createTempDirectory("journal");
+        Path path = dir.resolve("index.journal");
+
+        IndexQueueJournal journal = IndexQueueJournal.open(path, 4);
+        for (int i = 0; i < 10; i++) {
+            long id = journal.append(URI.create("file:/tmp/" + i + ".dcm"), "AE");
+            journal.sync();
+            if (i % 2 == 0) {
+                journal.complete(Collections.singletonList(id));
+            }
+        }
+        journal.sync();
+        assertEquals(5, journal.getPendingCount());
+        journal.close();
+
+        // compaction leaves only pending entries behind
+        List<String> lines = Files.readAllLines(path);
+        assertTrue(lines.size() < 15);
+
+        journal = IndexQueueJournal.open(path, 4);
+        assertEquals(5, journal.takeRecovered().size());
+        journal.close();
+    }
+
+    @Test
+    public void testCompactionKeepsUnsyncedAppends() throws IOException {
+        Path dir = Files.createTempDirectory("journal");
+        Path path = dir.resolve("index.journal");
+
+        // a non-positive threshold is clamped, compacting on every completion
+        IndexQueueJournal journal = IndexQueueJournal.open(path, 0);
+        long id0 = journal.append(URI.create("file:/tmp/0.dcm"), "AE");
+        journal.sync();
+        long id1 = journal.append(URI.create("file:/tmp/1.dcm"), "AE");
+        journal.complete(Collections.singletonList(id0));
+        journal.sync();
+        journal.close();
+
+        journal = IndexQueueJournal.open(path, 0);
+        List<IndexQueueJournal.Entry> recovered = journal.takeRecovered();
+        assertEquals(1, recovered.size());
+        assertEquals(id1, recovered.get(0).getId());
+        journal.close();
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package pt.ua.dicoogle.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+
+import org.junit.Test;
+
+import pt.ua.dicoogle.sdk.datastructs.Report;
+import pt.ua.dicoogle.sdk.task.Task;
+
+public class IndexQueueWorkerTest {
+
+    @Test
+    public void testTakeBatchBySize() throws InterruptedException {
+        BlockingQueue<Integer> queue = new PriorityBlockingQueue<>(Arrays.asList(5, 3, 9, 1, 7));
+
+        List<Integer> batch = IndexQueueWorker.takeBatch(queue, 3, 1000);
+        assertEquals(Arrays.asList(1, 3, 5), batch);
+        assertEquals(2, queue.size());
+
+        batch = IndexQueueWorker.takeBatch(queue, 3, 0);
+        assertEquals(Arrays.asList(7, 9), batch);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testTakeBatchByLinger() throws InterruptedException {
+        BlockingQueue<Integer> queue = new PriorityBlockingQueue<>();
+        queue.add(42);
+
+        long start = System.nanoTime();
+        List<Integer> batch = IndexQueueWorker.takeBatch(queue, 100, 50);
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+
+        assertEquals(Arrays.asList(42), batch);
+        assertTrue("batch was returned before the linger time", elapsedMs >= 40);
+    }
+
+    @Test
+    public void testFullQueueTimesOut() throws Exception {
+        IndexQueueWorker worker = new IndexQueueWorker(3, 100);
+        // a slow indexer, which has not finished any of its tasks yet
+        Task<Report> first = new Task<>(Report::new);
+        Task<Report> second = new Task<>(Report::new);
+        worker.track(2, Arrays.asList(first, second));
+        assertEquals(0, worker.getQueueSize());
+        assertEquals(2, worker.getPendingCount());
+        assertTrue(worker.awaitCapacity());
+
+        worker.track(1, Arrays.asList(new Task<>(Report::new)));
+        assertEquals(3, worker.getPendingCount());
+        long start = System.nanoTime();
+        assertFalse(worker.awaitCapacity());
+        assertTrue("did not wait for room", (System.nanoTime() - start) / 1_000_000 >= 90);
+    }
+
+    @Test
+    public void testAwaitCapacityBlocksUntilIndexed() throws Exception {
+        IndexQueueWorker worker = new IndexQueueWorker(2, 10000);
+        Task<Report> first = new Task<>(Report::new);
+        Task<Report> second = new Task<>(Report::new);
+        worker.track(2, Arrays.asList(first, second));
+
+        // room is only made once all tasks of the batch are done
+        first.run();
+        assertEquals(2, worker.getPendingCount());
+        Thread indexer = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ex) {
+                return;
+            }
+            second.run();
+        });
+        indexer.start();
+        long start = System.nanoTime();
+        assertTrue(worker.awaitCapacity());
+        assertTrue("did not wait for the indexer", (System.nanoTime() - start) / 1_000_000 >= 90);
+        assertEquals(0, worker.getPendingCount());
+        indexer.join();
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.queryretrieve;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.dcm4che2.data.UID;
+import org.junit.Test;
+
+import pt.ua.dicoogle.sdk.StorageInputStream;
+
+public class MoveSubOperationsTest {
+
+    private static StorageInputStream storageItem(URI uri) {
+        return new StorageInputStream() {
+            @Override
+            public URI getURI() {
+                return uri;
+            }
+
+            @Override
+            public InputStream getInputStream() throws IOException {
+                return new ByteArrayInputStream(new byte[0]);
+            }
+
+            @Override
+            public long getSize() throws IOException {
+                return 0;
+            }
+        };
+    }
+
+    @Test
+    public void testHeaderNeededWithoutTransferSyntax() throws IOException {
+        URI uri = URI.create("file:/1.dcm");
+        assertTrue(MoveSubOperations.needsHeader(new MoveSubOperations.Item(uri, null, null, null)));
+        assertTrue(MoveSubOperations.needsHeader(
+                new MoveSubOperations.Item(uri, UID.CTImageStorage, "1.2.3", null)));
+        assertFalse(MoveSubOperations.needsHeader(
+                new MoveSubOperations.Item(uri, UID.CTImageStorage, "1.2.3", UID.JPEGBaseline1)));
+
+        // not read again once the header is known
+        MoveSubOperations.Item item = new MoveSubOperations.Item(uri, UID.CTImageStorage, "1.2.3", null);
+        item.info = new DicoogleDcmSend.FileInfo(storageItem(uri), UID.CTImageStorage, "1.2.3", UID.JPEG2000);
+        assertFalse(MoveSubOperations.needsHeader(item));
+    }
+
+    @Test
+    public void testCompressedTransferSyntaxes() throws IOException {
+        URI uri1 = URI.create("file:/1.dcm");
+        URI uri2 = URI.create("file:/2.dcm");
+        URI uri3 = URI.create("file:/3.dcm");
+
+        // transfer syntax known from the index
+        MoveSubOperations.Item indexed =
+                new MoveSubOperations.Item(uri1, UID.CTImageStorage, "1.2.3.1", UID.JPEGBaseline1);
+        // transfer syntax missing from the index, read from the header
+        MoveSubOperations.Item read = new MoveSubOperations.Item(uri2, UID.CTImageStorage, "1.2.3.2", null);
+        read.info = new DicoogleDcmSend.FileInfo(storageItem(uri2), UID.CTImageStorage, "1.2.3.2", UID.JPEG2000);
+        MoveSubOperations.Item other =
+                new MoveSubOperations.Item(uri3, UID.MRImageStorage, "1.2.3.3", UID.ExplicitVRLittleEndian);
+
+        Map<String, Set<String>> capabilities =
+                MoveSubOperations.transferCapabilities(Arrays.asList(indexed, read, other));
+
+        assertEquals(new LinkedHashSet<>(Arrays.asList(UID.JPEGBaseline1, UID.JPEG2000)),
+                capabilities.get(UID.CTImageStorage));
+        assertEquals(Collections.singleton(UID.ExplicitVRLittleEndian), capabilities.get(UID.MRImageStorage));
+        assertEquals(2, capabilities.size());
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.web.auth;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class SignedTokensTest {
+
+    private static final byte[] SECRET = "0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void testSignAndVerify() {
+        SignedTokens tokens = new SignedTokens(SECRET);
+        String token = tokens.sign("dicoogle", 7, 2000);
+        assertTrue(SignedTokens.isSigned(token));
+        assertEquals("dicoogle", tokens.verify(token, 1000));
+        assertEquals(2000, SignedTokens.expiryOf(token));
+        assertEquals(7, SignedTokens.epochOf(token));
+
+        // user names may contain the separator
+        assertEquals("j.doe@example.org", tokens.verify(tokens.sign("j.doe@example.org", 0, 2000), 1000));
+    }
+
+    @Test
+    public void testExpired() {
+        SignedTokens tokens = new SignedTokens(SECRET);
+        String token = tokens.sign("dicoogle", 7, 2000);
+        assertNull(tokens.verify(token, 2000));
+        assertNull(tokens.verify(token, 3000));
+    }
+
+    @Test
+    public void testForged() {
+        SignedTokens tokens = new SignedTokens(SECRET);
+        String token = tokens.sign("dicoogle", 7, 2000);
+
+        // another secret
+        SignedTokens other = new SignedTokens("another secret".getBytes(StandardCharsets.UTF_8));
+        assertNull(other.verify(token, 1000));
+
+        // extended expiry time
+        String extended = token.replace(".2000.", ".9000.");
+        assertNull(tokens.verify(extended, 1000));
+
+        // another token epoch
+        String revived = token.replace(".7.", ".8.");
+        assertNull(tokens.verify(revived, 1000));
+
+        // another user
+        String admin = tokens.sign("admin", 7, 2000);
+        String swapped = admin.substring(0, admin.indexOf('.', 4)) + token.substring(token.indexOf('.', 4));
+        assertNull(tokens.verify(swapped, 1000));
+
+        // malformed
+        assertNull(tokens.verify("dt2.", 1000));
+        assertNull(tokens.verify("dt2.abc", 1000));
+        assertNull(tokens.verify("dt2.!!.7.2000.!!", 1000));
+        assertNull(tokens.verify("0b0f6b1c-2c43-4a4e-8a1f-6b3d1c7e9a10", 1000));
+    }
+}
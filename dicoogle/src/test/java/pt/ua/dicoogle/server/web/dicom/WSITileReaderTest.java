@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.web.dicom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomOutputStream;
+import org.junit.Test;
+
+public class WSITileReaderTest {
+
+    /** Write a 2x2 monochrome image with two frames, of pixel values 1-4 and 5-8. */
+    private static File writeNative(Path dir, String iuid, boolean window) throws IOException {
+        Attributes attrs = new Attributes();
+        attrs.setString(Tag.SOPClassUID, VR.UI, UID.SecondaryCaptureImageStorage);
+        attrs.setString(Tag.SOPInstanceUID, VR.UI, iuid);
+        attrs.setInt(Tag.Rows, VR.US, 2);
+        attrs.setInt(Tag.Columns, VR.US, 2);
+        attrs.setInt(Tag.SamplesPerPixel, VR.US, 1);
+        attrs.setString(Tag.PhotometricInterpretation, VR.CS, "MONOCHROME2");
+        attrs.setInt(Tag.BitsAllocated, VR.US, 8);
+        attrs.setInt(Tag.BitsStored, VR.US, 8);
+        attrs.setInt(Tag.HighBit, VR.US, 7);
+        attrs.setInt(Tag.PixelRepresentation, VR.US, 0);
+        attrs.setString(Tag.NumberOfFrames, VR.IS, "2");
+        if (window) {
+            attrs.setString(Tag.WindowCenter, VR.DS, "4");
+            attrs.setString(Tag.WindowWidth, VR.DS, "8");
+        }
+        attrs.setBytes(Tag.PixelData, VR.OB, new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+
+        File file = dir.resolve(iuid + ".dcm").toFile();
+        try (DicomOutputStream dos = new DicomOutputStream(file)) {
+            dos.writeDataset(attrs.createFileMetaInformation(UID.ExplicitVRLittleEndian), attrs);
+        }
+        return file;
+    }
+
+    @Test
+    public void testReadNativeTiles() throws Exception {
+        Path dir = Files.createTempDirectory("wsi");
+        File file = writeNative(dir, "1.2.3.1", false);
+        WSITileReader reader = new WSITileReader(uid -> file.toURI());
+
+        BufferedImage tile = reader.readTile("1.2.3.1", 1);
+        assertNotNull(tile);
+        assertEquals(2, tile.getWidth());
+        assertEquals(2, tile.getHeight());
+        assertEquals(5, tile.getRaster().getSample(0, 0, 0));
+        assertEquals(8, tile.getRaster().getSample(1, 1, 0));
+
+        Map<Integer, BufferedImage> tiles = reader.readTiles("1.2.3.1", Arrays.asList(0, 1));
+        assertEquals(2, tiles.size());
+        assertEquals(1, tiles.get(0).getRaster().getSample(0, 0, 0));
+        assertEquals(5, tiles.get(1).getRaster().getSample(0, 0, 0));
+    }
+
+    @Test
+    public void testWindowFallsBack() throws Exception {
+        Path dir = Files.createTempDirectory("wsi");
+        File file = writeNative(dir, "1.2.3.2", true);
+        WSITileReader reader = new WSITileReader(uid -> file.toURI());
+
+        // the window would not be applied, the caller reads the frame through the image reader
+        assertNull(reader.readTile("1.2.3.2", 0));
+    }
+
+    @Test
+    public void testMissingLocationNotCached() throws Exception {
+        Path dir = Files.createTempDirectory("wsi");
+        Map<String, URI> locations = new ConcurrentHashMap<>();
+        WSITileReader reader = new WSITileReader(locations::get);
+
+        assertNull(reader.readTile("1.2.3.3", 0));
+        assertEquals(0, reader.size());
+
+        // found once it is stored
+        locations.put("1.2.3.3", writeNative(dir, "1.2.3.3", false).toURI());
+        assertNotNull(reader.readTile("1.2.3.3", 0));
+        assertEquals(1, reader.size());
+    }
+
+    @Test
+    public void testInvalidateByPath() throws Exception {
+        Path dir = Files.createTempDirectory("wsi");
+        File file1 = writeNative(dir, "1.2.3.4", false);
+        File file2 = writeNative(dir, "1.2.3.5", false);
+        Map<String, URI> locations = new ConcurrentHashMap<>();
+        locations.put("1.2.3.4", file1.toURI());
+        locations.put("1.2.3.5", file2.toURI());
+        WSITileReader reader = new WSITileReader(locations::get);
+
+        assertNotNull(reader.readTile("1.2.3.4", 0));
+        assertNotNull(reader.readTile("1.2.3.5", 0));
+        assertEquals(2, reader.size());
+
+        reader.invalidate(Collections.singleton(file1.toURI()));
+        assertEquals(1, reader.size());
+
+        reader.invalidate(Collections.singleton(dir.toFile().toURI()));
+        assertEquals(0, reader.size());
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.web.servlets.management;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.google.common.cache.CacheStats;
+
+import net.sf.json.JSONObject;
+import pt.ua.dicoogle.server.web.utils.LocalImageCache;
+import pt.ua.dicoogle.server.web.utils.cache.WSITileCache;
+
+public class CacheMetricsServletTest {
+
+    @Test
+    public void testToJSON() {
+        JSONObject json = CacheMetricsServlet.toJSON(5, new CacheStats(3, 1, 0, 0, 0, 2));
+        assertEquals(5, json.getLong("size"));
+        assertEquals(3, json.getLong("hits"));
+        assertEquals(1, json.getLong("misses"));
+        assertEquals(0.75, json.getDouble("hitRate"), 1e-9);
+        assertEquals(2, json.getLong("evictions"));
+    }
+
+    @Test
+    public void testMetrics() {
+        JSONObject metrics = new CacheMetricsServlet(null).metrics();
+        assertTrue(metrics.has("instanceLocations"));
+        assertTrue(metrics.has("queryPlans"));
+        assertTrue(metrics.getJSONObject("queryResults").has("generation"));
+        assertEquals(WSITileCache.getInstance().maximumWeight(), metrics.getJSONObject("wsiTiles").getLong("maxBytes"));
+        assertTrue(metrics.getJSONObject("wsiTiles").has("bytes"));
+        // no image cache
+        assertFalse(metrics.has("images"));
+    }
+
+    @Test
+    public void testMetricsWithImageCache() {
+        LocalImageCache imageCache = new LocalImageCache("dicoogle-test-metrics-" + System.nanoTime(), 60, 600, 1024,
+                (uri, frame, thumbnail, format) -> null);
+        JSONObject images = new CacheMetricsServlet(imageCache).metrics().getJSONObject("images");
+        assertEquals(0, images.getLong("size"));
+        assertEquals(0, images.getLong("bytes"));
+        assertEquals(1024, images.getLong("maxBytes"));
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle-sdk.
+ *
+ * Dicoogle/dicoogle-sdk is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle-sdk is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.web.servlets.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.json.JSONObject;
+import org.junit.Test;
+
+import pt.ua.dicoogle.sdk.datastructs.QueryPage;
+import pt.ua.dicoogle.sdk.datastructs.SearchResult;
+
+public class SearchServletTest {
+
+    private static List<SearchResult> results(int n) {
+        List<SearchResult> results = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            HashMap<String, Object> fields = new HashMap<>();
+            fields.put("SOPInstanceUID", "1.2.3." + i);
+            results.add(new SearchResult(URI.create("file:/" + i + ".dcm"), 1, fields));
+        }
+        return results;
+    }
+
+    /** Iterator counting how many results were pulled from it. */
+    private static Iterator<SearchResult> counting(List<SearchResult> results, AtomicInteger pulled) {
+        Iterator<SearchResult> it = results.iterator();
+        return new Iterator<SearchResult>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public SearchResult next() {
+                pulled.incrementAndGet();
+                return it.next();
+            }
+        };
+    }
+
+    @Test
+    public void testPageFor() {
+        assertEquals(QueryPage.of(20, 10), SearchServlet.pageFor(null, 20, 10, true));
+        assertEquals(QueryPage.after("abc", 10), SearchServlet.pageFor("abc", 20, 10, true));
+        // several providers each deliver up to the end of the page
+        assertEquals(QueryPage.of(0, 30), SearchServlet.pageFor(null, 20, 10, false));
+        // no overflow with an unbounded page size
+        assertEquals(QueryPage.of(0, QueryPage.UNLIMITED),
+                SearchServlet.pageFor(null, 20, QueryPage.UNLIMITED, false));
+    }
+
+    @Test
+    public void testCountRows() throws Exception {
+        StringWriter out = new StringWriter();
+        AtomicInteger pulled = new AtomicInteger();
+        SearchServlet.writeResponse(out, counting(results(25), pulled), System.currentTimeMillis(), 10, 5, true,
+                () -> -1, () -> null, Collections::emptyList);
+
+        JSONObject obj = JSONObject.fromObject(out.toString());
+        assertEquals(5, obj.getJSONArray("results").size());
+        assertEquals("file:/10.dcm", obj.getJSONArray("results").getJSONObject(0).getString("uri"));
+        assertEquals(25, obj.getInt("numResults"));
+        assertEquals(25, pulled.get());
+        assertFalse(obj.has("nextCursor"));
+        assertFalse(obj.has("failedProviders"));
+    }
+
+    @Test
+    public void testPushDownCount() throws Exception {
+        // the provider produced the page only, the total comes from the count
+        StringWriter out = new StringWriter();
+        AtomicInteger pulled = new AtomicInteger();
+        SearchServlet.writeResponse(out, counting(results(5), pulled), System.currentTimeMillis(), 0, 5, false,
+                () -> 1234, () -> "next", Collections::emptyList);
+
+        JSONObject obj = JSONObject.fromObject(out.toString());
+        assertEquals(5, obj.getJSONArray("results").size());
+        assertEquals(1234, obj.getInt("numResults"));
+        assertEquals("next", obj.getString("nextCursor"));
+    }
+
+    @Test
+    public void testNumResultsFallback() throws Exception {
+        // without a count, the traversal stops at the end of the page
+        StringWriter out = new StringWriter();
+        AtomicInteger pulled = new AtomicInteger();
+        SearchServlet.writeResponse(out, counting(results(25), pulled), System.currentTimeMillis(), 10, 5, false,
+                () -> -1, () -> null, Collections::emptyList);
+
+        JSONObject obj = JSONObject.fromObject(out.toString());
+        assertEquals(5, obj.getJSONArray("results").size());
+        assertEquals(15, pulled.get());
+        // the number of results returned
+        assertEquals(5, obj.getInt("numResults"));
+    }
+
+    @Test
+    public void testFailedProviders() throws Exception {
+        StringWriter out = new StringWriter();
+        SearchServlet.writeResponse(out, Collections.emptyIterator(), System.currentTimeMillis(), 0, 10, true,
+                () -> -1, () -> null, () -> Collections.singletonList("broken"));
+
+        JSONObject obj = JSONObject.fromObject(out.toString());
+        assertEquals(0, obj.getInt("numResults"));
+        assertTrue(obj.has("failedProviders"));
+        assertEquals("broken", obj.getJSONArray("failedProviders").getString(0));
+    }
+}
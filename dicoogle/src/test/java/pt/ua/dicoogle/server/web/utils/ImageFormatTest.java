@@ -0,0 +1,41 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.web.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class ImageFormatTest {
+
+    @Test
+    public void testFromAccept() {
+        assertEquals(ImageFormat.PNG, ImageFormat.fromAccept(null));
+        assertEquals(ImageFormat.PNG, ImageFormat.fromAccept("*/*"));
+        assertEquals(ImageFormat.PNG, ImageFormat.fromAccept("image/png"));
+        assertEquals(ImageFormat.JPEG, ImageFormat.fromAccept("image/jpeg"));
+        assertEquals(ImageFormat.JPEG, ImageFormat.fromAccept("image/*;q=0.8, image/jpeg"));
+        assertEquals(ImageFormat.PNG, ImageFormat.fromAccept("image/jpeg;q=0.5, image/png"));
+        // unknown formats are skipped in favor of the wildcard
+        assertEquals(ImageFormat.PNG, ImageFormat.fromAccept("image/avif,image/*,*/*;q=0.8"));
+        assertNull(ImageFormat.fromAccept("image/gif"));
+        assertNull(ImageFormat.fromAccept("image/jpeg;q=0"));
+    }
+}
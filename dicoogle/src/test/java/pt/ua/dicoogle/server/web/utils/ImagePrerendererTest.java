@@ -0,0 +1,223 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.web.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.Test;
+
+public class ImagePrerendererTest {
+
+    /** Records the images converted, optionally waiting to be released before each conversion. */
+    private static class RecordingRetriever implements ImageRetriever {
+        final List<String> calls = new CopyOnWriteArrayList<>();
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release;
+
+        RecordingRetriever(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public InputStream get(URI uri, int frame, boolean thumbnail, ImageFormat format) throws IOException {
+            calls.add(uri + (thumbnail ? " thumbnail" : " full"));
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                throw new IOException(ex);
+            }
+            return new ByteArrayInputStream(new byte[16]);
+        }
+
+        long count(String call) {
+            return calls.stream().filter(call::equals).count();
+        }
+    }
+
+    private static Set<String> set(String... items) {
+        return new HashSet<>(Arrays.asList(items));
+    }
+
+    private static LocalImageCache newCache(ImageRetriever retriever) {
+        LocalImageCache cache = new LocalImageCache("dicoogle-test-prerender-" + System.nanoTime(), 60, 600, 1 << 20,
+                retriever);
+        cache.start();
+        return cache;
+    }
+
+    private static void delete(LocalImageCache cache) {
+        cache.terminate();
+        File dir = new File(System.getProperty("java.io.tmpdir"), cache.getName().substring("cache-".length()));
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    @Test
+    public void testThumbnailsAndKeyImage() throws Exception {
+        RecordingRetriever retriever = new RecordingRetriever(new CountDownLatch(0));
+        LocalImageCache cache = newCache(retriever);
+        ImagePrerenderer prerenderer =
+                new ImagePrerenderer(true, set(), set(), set("image/png"), 1000, 500);
+        try {
+            prerenderer.setCache(cache);
+            prerenderer.submit(URI.create("file:/s/3.dcm"), "STORESCU", "CT", "1.2", 3);
+            prerenderer.submit(URI.create("file:/s/1.dcm"), "STORESCU", "CT", "1.2", 1);
+            prerenderer.submit(URI.create("file:/s/2.dcm"), "STORESCU", "CT", "1.2", 2);
+
+            // a thumbnail of each instance, then the middle instance in full size once the series settles
+            await(() -> retriever.calls.size() == 4);
+            assertEquals(1, retriever.count("file:/s/1.dcm thumbnail"));
+            assertEquals(1, retriever.count("file:/s/2.dcm thumbnail"));
+            assertEquals(1, retriever.count("file:/s/3.dcm thumbnail"));
+            assertEquals("file:/s/2.dcm full", retriever.calls.get(3));
+        } finally {
+            prerenderer.shutdown();
+            delete(cache);
+        }
+    }
+
+    @Test
+    public void testFilters() throws Exception {
+        RecordingRetriever retriever = new RecordingRetriever(new CountDownLatch(0));
+        LocalImageCache cache = newCache(retriever);
+        ImagePrerenderer prerenderer =
+                new ImagePrerenderer(true, set("CT"), set("STORESCU"), set("image/png"), 1000, 60000);
+        try {
+            prerenderer.setCache(cache);
+            prerenderer.submit(URI.create("file:/f/1.dcm"), "STORESCU", "MR", null, -1);
+            prerenderer.submit(URI.create("file:/f/2.dcm"), "OTHER", "CT", null, -1);
+            prerenderer.submit(URI.create("file:/f/3.dcm"), "storescu ", "ct", null, -1);
+
+            await(() -> retriever.calls.size() == 1);
+            await(() -> prerenderer.pending() == 0);
+            assertEquals(Collections.singletonList("file:/f/3.dcm thumbnail"), retriever.calls);
+        } finally {
+            prerenderer.shutdown();
+            delete(cache);
+        }
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        RecordingRetriever retriever = new RecordingRetriever(new CountDownLatch(0));
+        LocalImageCache cache = newCache(retriever);
+        ImagePrerenderer prerenderer = new ImagePrerenderer(false, set(), set(), set("image/png"), 1000, 100);
+        try {
+            prerenderer.setCache(cache);
+            prerenderer.submit(URI.create("file:/d/1.dcm"), "STORESCU", "CT", "1.2", 1);
+            assertEquals(0, prerenderer.pending());
+        } finally {
+            prerenderer.shutdown();
+            delete(cache);
+        }
+        assertTrue(retriever.calls.isEmpty());
+    }
+
+    @Test
+    public void testDeduplication() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingRetriever retriever = new RecordingRetriever(release);
+        LocalImageCache cache = newCache(retriever);
+        ImagePrerenderer prerenderer =
+                new ImagePrerenderer(true, set(), set(), set("image/png"), 1000, 60000);
+        try {
+            prerenderer.setCache(cache);
+            URI a = URI.create("file:/d/a.dcm");
+            URI b = URI.create("file:/d/b.dcm");
+            prerenderer.submit(a, "STORESCU", "CT", null, -1);
+            assertTrue(retriever.entered.await(5, TimeUnit.SECONDS));
+
+            // a is being rendered and b is queued, neither is scheduled again
+            prerenderer.submit(a, "STORESCU", "CT", null, -1);
+            prerenderer.submit(b, "STORESCU", "CT", null, -1);
+            prerenderer.submit(b, "STORESCU", "CT", null, -1);
+            assertEquals(2, prerenderer.pending());
+
+            release.countDown();
+            await(() -> prerenderer.pending() == 0);
+            assertEquals(1, retriever.count("file:/d/a.dcm thumbnail"));
+            assertEquals(1, retriever.count("file:/d/b.dcm thumbnail"));
+        } finally {
+            prerenderer.shutdown();
+            delete(cache);
+        }
+    }
+
+    @Test
+    public void testShutdown() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingRetriever retriever = new RecordingRetriever(release);
+        LocalImageCache cache = newCache(retriever);
+        ImagePrerenderer prerenderer =
+                new ImagePrerenderer(true, set(), set(), set("image/png"), 1000, 100);
+        try {
+            prerenderer.setCache(cache);
+            prerenderer.submit(URI.create("file:/x/1.dcm"), "STORESCU", "CT", "1.2", 1);
+            assertTrue(retriever.entered.await(5, TimeUnit.SECONDS));
+            prerenderer.submit(URI.create("file:/x/2.dcm"), "STORESCU", "CT", "1.2", 2);
+            assertFalse(prerenderer.isShutdown());
+
+            // queued instances are discarded, and no more are accepted
+            prerenderer.shutdown();
+            assertTrue(prerenderer.isShutdown());
+            assertEquals(0, prerenderer.pending());
+            prerenderer.submit(URI.create("file:/x/3.dcm"), "STORESCU", "CT", "1.2", 3);
+            assertEquals(0, prerenderer.pending());
+
+            release.countDown();
+            Thread.sleep(300);
+            assertEquals(Collections.singletonList("file:/x/1.dcm thumbnail"), retriever.calls);
+        } finally {
+            release.countDown();
+            prerenderer.shutdown();
+            delete(cache);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.web.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class LocalImageCacheTest {
+
+    /** Produces images of a fixed size, filled with the frame number. */
+    private static class CountingRetriever implements ImageRetriever {
+        final AtomicInteger calls = new AtomicInteger();
+        final int size;
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release;
+        volatile String parameters = "";
+
+        CountingRetriever(int size, CountDownLatch release) {
+            this.size = size;
+            this.release = release;
+        }
+
+        @Override
+        public InputStream get(URI uri, int frame, boolean thumbnail, ImageFormat format) throws IOException {
+            calls.incrementAndGet();
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                throw new IOException(ex);
+            }
+            byte[] data = new byte[size];
+            Arrays.fill(data, (byte) frame);
+            return new ByteArrayInputStream(data);
+        }
+
+        @Override
+        public String getRenderingParameters(boolean thumbnail, ImageFormat format) {
+            return parameters;
+        }
+    }
+
+    private static String newCacheName() {
+        return "dicoogle-test-cache-" + System.nanoTime();
+    }
+
+    private static void delete(String name) {
+        File dir = new File(System.getProperty("java.io.tmpdir"), name);
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static byte[] read(LocalImageCache cache, String uri, int frame) throws IOException {
+        try (InputStream in = cache.get(URI.create(uri), frame, true, ImageFormat.PNG)) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+
+    @Test
+    public void testSingleConversion() throws Exception {
+        String name = newCacheName();
+        CountDownLatch release = new CountDownLatch(1);
+        CountingRetriever retriever = new CountingRetriever(16, release);
+        LocalImageCache cache = new LocalImageCache(name, 60, 600, 1024, retriever);
+        cache.start();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<byte[]>> results = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                results.add(executor.submit(() -> read(cache, "file:/a.dcm", 3)));
+            }
+            retriever.entered.await(5, TimeUnit.SECONDS);
+            // give the other callers time to join the conversion
+            Thread.sleep(100);
+            release.countDown();
+            for (Future<byte[]> result : results) {
+                assertEquals(16, result.get(5, TimeUnit.SECONDS).length);
+            }
+            assertEquals(1, retriever.calls.get());
+            assertEquals(1, cache.size());
+        } finally {
+            executor.shutdown();
+            cache.terminate();
+            delete(name);
+        }
+    }
+
+    @Test
+    public void testByteBudget() throws Exception {
+        String name = newCacheName();
+        CountDownLatch release = new CountDownLatch(0);
+        CountingRetriever retriever = new CountingRetriever(40, release);
+        LocalImageCache cache = new LocalImageCache(name, 60, 600, 100, retriever);
+        cache.start();
+        try {
+            read(cache, "file:/a.dcm", 1);
+            read(cache, "file:/b.dcm", 2);
+            // touch the first image, so that the second is the least recently used
+            read(cache, "file:/a.dcm", 1);
+            read(cache, "file:/c.dcm", 3);
+            assertEquals(3, retriever.calls.get());
+            assertEquals(2, cache.size());
+            assertEquals(80, cache.weight());
+            assertEquals(1, cache.stats().evictionCount());
+            assertEquals(1, cache.stats().hitCount());
+
+            read(cache, "file:/a.dcm", 1);
+            assertEquals(3, retriever.calls.get());
+            read(cache, "file:/b.dcm", 2);
+            assertEquals(4, retriever.calls.get());
+        } finally {
+            cache.terminate();
+            delete(name);
+        }
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        String name = newCacheName();
+        CountDownLatch release = new CountDownLatch(0);
+        CountingRetriever retriever = new CountingRetriever(8, release);
+        LocalImageCache cache = new LocalImageCache(name, 60, 600, 1024, retriever);
+        cache.start();
+        try {
+            URI uri = URI.create("file:/a.dcm");
+            assertTrue(cache.prefetch(uri, 0, true, ImageFormat.PNG));
+            assertFalse(cache.prefetch(uri, 0, true, ImageFormat.PNG));
+            assertEquals(0, cache.stats().requestCount());
+
+            read(cache, "file:/a.dcm", 0);
+            assertEquals(1, retriever.calls.get());
+            assertEquals(1, cache.stats().hitCount());
+            assertEquals(0, cache.getActiveRequests());
+        } finally {
+            cache.terminate();
+            delete(name);
+        }
+    }
+
+    @Test
+    public void testPersistence() throws Exception {
+        String name = newCacheName();
+        CountDownLatch release = new CountDownLatch(0);
+        CountingRetriever retriever = new CountingRetriever(8, release);
+        LocalImageCache cache = new LocalImageCache(name, 60, 600, 1024, retriever);
+        cache.start();
+        try {
+            byte[] first = read(cache, "file:/a.dcm", 5);
+            cache.terminate();
+
+            LocalImageCache restarted = new LocalImageCache(name, 60, 600, 1024, retriever);
+            restarted.start();
+            assertEquals(1, restarted.size());
+            assertArrayEquals(first, read(restarted, "file:/a.dcm", 5));
+            assertEquals(1, retriever.calls.get());
+            restarted.terminate();
+        } finally {
+            delete(name);
+        }
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        String name = newCacheName();
+        CountingRetriever retriever = new CountingRetriever(8, new CountDownLatch(0));
+        LocalImageCache cache = new LocalImageCache(name, 60, 600, 1024, retriever);
+        cache.start();
+        try {
+            read(cache, "file:/data/a/1.dcm", 0);
+            read(cache, "file:/data/a/1.dcm", 1);
+            read(cache, "file:/data/a/sub/2.dcm", 0);
+            read(cache, "file:/data/ab/3.dcm", 0);
+            assertEquals(4, cache.size());
+
+            // a directory covers everything inside it, but not its siblings
+            LocalImageCache.invalidateAll(Collections.singleton(URI.create("file:/data/a")));
+            assertEquals(1, cache.size());
+            assertEquals(8, cache.weight());
+            read(cache, "file:/data/ab/3.dcm", 0);
+            assertEquals(4, retriever.calls.get());
+
+            read(cache, "file:/data/a/1.dcm", 0);
+            assertEquals(5, retriever.calls.get());
+        } finally {
+            cache.terminate();
+            delete(name);
+        }
+    }
+
+    @Test
+    public void testChangedSourceOrSettings() throws Exception {
+        String name = newCacheName();
+        CountingRetriever retriever = new CountingRetriever(8, new CountDownLatch(0));
+        LocalImageCache cache = new LocalImageCache(name, 60, 600, 1024, retriever);
+        cache.start();
+        File source = File.createTempFile("dicoogle-test-source", ".dcm");
+        try {
+            String uri = source.toURI().toString();
+            read(cache, uri, 0);
+            read(cache, uri, 0);
+            assertEquals(1, retriever.calls.get());
+
+            // a different thumbnail size or quality renders the image again
+            retriever.parameters = "size=128";
+            read(cache, uri, 0);
+            assertEquals(2, retriever.calls.get());
+
+            // and so does a change to the source file
+            source.setLastModified(source.lastModified() - 60000);
+            read(cache, uri, 0);
+            assertEquals(3, retriever.calls.get());
+        } finally {
+            cache.terminate();
+            source.delete();
+            delete(name);
+        }
+    }
+}
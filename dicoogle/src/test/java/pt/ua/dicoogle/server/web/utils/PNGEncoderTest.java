@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.web.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+public class PNGEncoderTest {
+
+    private static BufferedImage roundTrip(BufferedImage image, int level) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PNGEncoder.write(image, out, level);
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+        assertNotNull(decoded);
+        assertEquals(image.getWidth(), decoded.getWidth());
+        assertEquals(image.getHeight(), decoded.getHeight());
+        return decoded;
+    }
+
+    private static void fillRandom(BufferedImage image, int maxSample) {
+        Random random = new Random(42);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                for (int b = 0; b < image.getRaster().getNumBands(); b++) {
+                    image.getRaster().setSample(x, y, b, random.nextInt(maxSample + 1));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testGray8() throws IOException {
+        // large enough to span several IDAT chunks
+        BufferedImage image = new BufferedImage(300, 257, BufferedImage.TYPE_BYTE_GRAY);
+        fillRandom(image, 255);
+        BufferedImage decoded = roundTrip(image, Deflater.BEST_SPEED);
+        assertEquals(1, decoded.getRaster().getNumBands());
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                assertEquals(image.getRaster().getSample(x, y, 0), decoded.getRaster().getSample(x, y, 0));
+            }
+        }
+    }
+
+    @Test
+    public void testGray16() throws IOException {
+        BufferedImage image = new BufferedImage(31, 17, BufferedImage.TYPE_USHORT_GRAY);
+        fillRandom(image, 65535);
+        BufferedImage decoded = roundTrip(image, Deflater.NO_COMPRESSION);
+        assertEquals(16, decoded.getSampleModel().getSampleSize(0));
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                assertEquals(image.getRaster().getSample(x, y, 0), decoded.getRaster().getSample(x, y, 0));
+            }
+        }
+    }
+
+    @Test
+    public void testRGB() throws IOException {
+        BufferedImage image = new BufferedImage(40, 23, BufferedImage.TYPE_INT_RGB);
+        fillRandom(image, 255);
+        BufferedImage decoded = roundTrip(image, Deflater.BEST_COMPRESSION);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                assertEquals(image.getRGB(x, y), decoded.getRGB(x, y));
+            }
+        }
+    }
+}
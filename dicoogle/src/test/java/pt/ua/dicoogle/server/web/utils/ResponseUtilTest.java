@@ -0,0 +1,41 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.web.utils;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ResponseUtilTest {
+
+    @Test
+    public void testAcceptsGzip() {
+        assertTrue(ResponseUtil.acceptsGzip("gzip"));
+        assertTrue(ResponseUtil.acceptsGzip("deflate, GZIP;q=0.5"));
+        assertTrue(ResponseUtil.acceptsGzip("br, *"));
+        assertFalse(ResponseUtil.acceptsGzip(null));
+        assertFalse(ResponseUtil.acceptsGzip("identity"));
+        assertFalse(ResponseUtil.acceptsGzip("gzip;q=0"));
+        assertFalse(ResponseUtil.acceptsGzip("gzip; q=0.0, deflate"));
+        // an explicit refusal takes precedence over the wildcard
+        assertFalse(ResponseUtil.acceptsGzip("*, gzip;q=0"));
+        assertFalse(ResponseUtil.acceptsGzip("*;q=0"));
+    }
+}
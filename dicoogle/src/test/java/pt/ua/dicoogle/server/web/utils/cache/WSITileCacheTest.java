@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.server.web.utils.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class WSITileCacheTest {
+
+    private static final URI DIR = URI.create("file:/data/wsi/");
+
+    private static Map<String, URI> locations() {
+        Map<String, URI> locations = new HashMap<>();
+        locations.put("1.2.1", DIR.resolve("a/1.dcm"));
+        locations.put("1.2.2", DIR.resolve("a/2.dcm"));
+        locations.put("1.2.3", DIR.resolve("b/3.dcm"));
+        return locations;
+    }
+
+    private static BufferedImage tile() {
+        return new BufferedImage(16, 16, BufferedImage.TYPE_BYTE_GRAY);
+    }
+
+    @Test
+    public void testWeigh() {
+        assertEquals(16 * 16, WSITileCache.weigh(new BufferedImage(16, 16, BufferedImage.TYPE_BYTE_GRAY)));
+        assertEquals(16 * 16 * 3, WSITileCache.weigh(new BufferedImage(16, 16, BufferedImage.TYPE_3BYTE_BGR)));
+        assertEquals(16 * 16 * 4, WSITileCache.weigh(new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB)));
+    }
+
+    @Test
+    public void testPutAndGetAll() throws Exception {
+        WSITileCache cache = new WSITileCache(1 << 20, locations()::get);
+        BufferedImage tile0 = tile();
+        BufferedImage tile1 = tile();
+        cache.put("1.2.1", 0, tile0);
+        cache.put("1.2.1", 1, tile1);
+
+        assertSame(tile0, cache.get("1.2.1", 0));
+        Map<Integer, BufferedImage> tiles = cache.getAll("1.2.1", Arrays.asList(0, 1));
+        assertEquals(2, tiles.size());
+        assertSame(tile1, tiles.get(1));
+        assertEquals(2, cache.size());
+        assertEquals(2 * 16 * 16, cache.weight());
+        assertEquals(3, cache.stats().hitCount());
+    }
+
+    @Test
+    public void testMaximumWeight() throws Exception {
+        WSITileCache cache = new WSITileCache(4 * 16 * 16, locations()::get);
+        for (int i = 0; i < 16; i++) {
+            cache.put("1.2.1", i, tile());
+        }
+        assertTrue(cache.weight() <= cache.maximumWeight());
+        assertTrue(cache.stats().evictionCount() > 0);
+    }
+
+    @Test
+    public void testInvalidateFile() throws Exception {
+        WSITileCache cache = new WSITileCache(1 << 20, locations()::get);
+        cache.put("1.2.1", 0, tile());
+        cache.put("1.2.1", 1, tile());
+        cache.put("1.2.2", 0, tile());
+
+        cache.invalidate(Collections.singleton(DIR.resolve("a/1.dcm")));
+        assertEquals(1, cache.size());
+        assertNotNull(cache.getAll("1.2.2", Collections.singleton(0)).get(0));
+    }
+
+    @Test
+    public void testInvalidateDirectory() throws Exception {
+        WSITileCache cache = new WSITileCache(1 << 20, locations()::get);
+        cache.put("1.2.1", 0, tile());
+        cache.put("1.2.2", 0, tile());
+        cache.put("1.2.3", 0, tile());
+
+        // with and without the trailing slash
+        cache.invalidate(Collections.singleton(URI.create("file:/data/wsi/a")));
+        assertEquals(1, cache.size());
+        cache.invalidate(Collections.singleton(DIR));
+        assertEquals(0, cache.size());
+
+        // other directories with the same prefix are kept
+        cache.put("1.2.3", 0, tile());
+        cache.invalidate(Collections.singleton(URI.create("file:/data/wsi/b2")));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testInvalidateAfterReplace() throws Exception {
+        WSITileCache cache = new WSITileCache(1 << 20, locations()::get);
+        cache.put("1.2.1", 0, tile());
+        cache.put("1.2.1", 0, tile());
+        cache.put("1.2.1", 1, tile());
+        // the location is still known after a tile was replaced
+        cache.invalidate(Collections.singleton(URI.create("file:/elsewhere/")));
+        assertEquals(2, cache.size());
+        cache.invalidate(Collections.singleton(DIR));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testUnknownLocation() throws Exception {
+        WSITileCache cache = new WSITileCache(1 << 20, uid -> null);
+        cache.put("1.2.9", 0, tile());
+        cache.invalidate(Collections.singleton(DIR));
+        assertEquals(1, cache.size());
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle.
+ *
+ * Dicoogle/dicoogle is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.taskManager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import pt.ua.dicoogle.sdk.task.Task;
+
+public class TaskManagerTest {
+
+    @Test
+    public void testDuplicateNameRejected() {
+        TaskManager manager = new TaskManager("test-duplicate", 1);
+        try {
+            new TaskManager("test-duplicate", 1);
+            fail("expected a duplicate task manager name to be rejected");
+        } catch (IllegalStateException ex) {
+            // ok
+        }
+        assertSame(manager, TaskManager.shared("test-duplicate", 2));
+        manager.shutdown();
+    }
+
+    @Test
+    public void testShutdownDeregisters() {
+        TaskManager manager = TaskManager.shared("test-shutdown", 1);
+        assertTrue(TaskManager.getTaskManagers().contains(manager));
+
+        manager.shutdown();
+        assertTrue(manager.isShutdown());
+        assertFalse(TaskManager.getTaskManagers().contains(manager));
+
+        // the name can be reused
+        TaskManager other = new TaskManager("test-shutdown", 1);
+        assertNotSame(manager, other);
+        other.shutdown();
+    }
+
+    @Test
+    public void testUnboundedByDefault() throws Exception {
+        TaskManager manager = new TaskManager("test-default", 1);
+        assertEquals(0, manager.toJSON().getInt("queueCapacity"));
+
+        Task<String> task = new Task<>(() -> "done");
+        manager.dispatch(task);
+        assertEquals("done", task.get(5, TimeUnit.SECONDS));
+        manager.shutdown();
+    }
+}
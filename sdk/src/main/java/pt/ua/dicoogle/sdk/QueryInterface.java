@@ -18,6 +18,9 @@
  */
 package pt.ua.dicoogle.sdk;
 
+import pt.ua.dicoogle.sdk.datastructs.PagedResults;
+import pt.ua.dicoogle.sdk.datastructs.QueryExpression;
+import pt.ua.dicoogle.sdk.datastructs.QueryPage;
 import pt.ua.dicoogle.sdk.datastructs.SearchResult;
 import pt.ua.dicoogle.sdk.utils.QueryException;
 import pt.ua.dicoogle.sdk.utils.QueryParseException;
@@ -51,4 +54,44 @@ public interface QueryInterface extends DicooglePlugin {
 
     public Iterable<SearchResult> query(String query, Object... parameters) throws QueryException;
 
+    /**
+     * Performs a search on the database with a structured query.
+     *
+     * The default implementation hands the equivalent query string over to {@link #query(String, Object...)}.
+     * Providers with a query language of their own should override this method
+     * and translate the expression tree, rather than parse the query string.
+     *
+     * @param query the structured query
+     * @param parameters a variable list of parameters of the query, as in {@link #query(String, Object...)}
+     * @return the results of the query as a (possibly lazy) iterable
+     * @throws QueryException if the provider could not perform the query
+     */
+    public default Iterable<SearchResult> query(QueryExpression query, Object... parameters) throws QueryException {
+        return query(query.toQueryString(), parameters);
+    }
+
+    /**
+     * Check whether this provider honours a {@link QueryPage} in the query parameters.
+     * When it does, only the results within the page are produced, and the returned iterable
+     * may be a {@link PagedResults} so that the page can be continued.
+     *
+     * @return whether the query provider supports pagination, false by default
+     */
+    public default boolean supportsPagination() {
+        return false;
+    }
+
+    /**
+     * Count the number of results of a query, without retrieving them.
+     * Providers are encouraged to override this method whenever the count can be obtained
+     * more cheaply than by traversing all results.
+     *
+     * @param query a string describing the query, as in {@link #query(String, Object...)}
+     * @param parameters a variable list of parameters of the query
+     * @return the total number of results, or -1 if the provider cannot count them
+     * @throws QueryException if the provider could not perform the query
+     */
+    public default long count(String query, Object... parameters) throws QueryException {
+        return -1;
+    }
 }
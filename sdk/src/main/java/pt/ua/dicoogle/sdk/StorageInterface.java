@@ -19,6 +19,7 @@
 package pt.ua.dicoogle.sdk;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.NotDirectoryException;
@@ -26,6 +27,7 @@ import java.util.Objects;
 import java.util.stream.Stream;
 
 import org.dcm4che2.data.DicomObject;
+import org.dcm4che2.data.Tag;
 import org.dcm4che2.io.DicomInputStream;
 
 /** Storage plugin interface. These types of plugins provide an abstraction to reading and writing from
@@ -133,6 +135,54 @@ public interface StorageInterface extends DicooglePlugin {
      */
     public URI store(DicomInputStream inputStream, Object... parameters) throws IOException;
 
+    /**
+     * Checks whether this storage can store DICOM objects
+     * directly from a stream of their data set,
+     * as in {@link #storeStream(DicomObject, InputStream, Object...)},
+     * without holding the full object in memory.
+     *
+     * When supported, Dicoogle may use this method instead of {@link #store(DicomObject, Object...)}
+     * to store objects received via C-STORE.
+     * While streaming stores are enabled, storages which do not support them
+     * do not receive objects via C-STORE.
+     * The default implementation returns <code>false</code>.
+     *
+     * @return whether this storage supports streaming stores
+     */
+    public default boolean supportsStreamingStore() {
+        return false;
+    }
+
+    /**
+     * Stores a DICOM object from a stream of its data set.
+     *
+     * The data set is encoded in the transfer syntax stated in the file meta information,
+     * and ends at the end of the stream.
+     * Implementations are expected to write the file meta information
+     * followed by the contents of the stream (see {@code DicomOutputStream#writeFileMetaInformation}),
+     * so that pixel data never needs to be materialized.
+     * The stream is owned by the caller and should not be closed.
+     *
+     * The default implementation reads the full data set into memory
+     * and calls {@link #store(DicomObject, Object...)}.
+     *
+     * @param fileMetaInformation the file meta information of the object,
+     *        including the SOP class UID, SOP instance UID, and transfer syntax UID
+     * @param dataSet an input stream with the object's data set
+     * @param parameters a variable list of extra parameters for the store
+     * @return the URI of the stored object, or <code>null</code> if it was not stored
+     * @throws IOException if an I/O error occurs
+     */
+    public default URI storeStream(DicomObject fileMetaInformation, InputStream dataSet, Object... parameters)
+            throws IOException {
+        String tsuid = fileMetaInformation.getString(Tag.TransferSyntaxUID);
+        DicomInputStream din = new DicomInputStream(dataSet, tsuid);
+        DicomObject dicomObject = din.readDicomObject();
+        dicomObject.initFileMetaInformation(fileMetaInformation.getString(Tag.MediaStorageSOPClassUID),
+                fileMetaInformation.getString(Tag.MediaStorageSOPInstanceUID), tsuid);
+        return store(dicomObject, parameters);
+    }
+
     /** Removes an element at the given URI.
      * 
      * @param location the URI of the stored data
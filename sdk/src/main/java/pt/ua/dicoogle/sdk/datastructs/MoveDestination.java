@@ -31,7 +31,7 @@ import java.util.Objects;
 @JsonRootName("move-destination")
 @JsonAutoDetect(isGetterVisibility = JsonAutoDetect.Visibility.NONE, getterVisibility = JsonAutoDetect.Visibility.NONE)
 public class MoveDestination implements Serializable {
-    static final long serialVersionUID = 2L;
+    static final long serialVersionUID = 3L;
 
     @JacksonXmlProperty(isAttribute = true, localName = "aetitle")
     private final String AETitle;
@@ -44,16 +44,24 @@ public class MoveDestination implements Serializable {
     private final String description;
     @JacksonXmlProperty(isAttribute = true, localName = "public")
     private final boolean isPublic;
+    /** Maximum number of parallel associations for C-MOVE sub-operations to this destination */
+    @JacksonXmlProperty(isAttribute = true, localName = "associations")
+    private final int associations;
 
     @JsonCreator
     public MoveDestination(@JsonProperty("aetitle") String AETitle, @JsonProperty("address") String ipAddr,
             @JsonProperty("port") int port, @JsonProperty("public") boolean isPublic,
-            @JsonProperty("description") String description) {
+            @JsonProperty("description") String description, @JsonProperty("associations") Integer associations) {
         this.AETitle = AETitle;
         this.ipAddrs = ipAddr;
         this.port = port;
         this.isPublic = isPublic;
         this.description = description;
+        this.associations = associations != null && associations > 0 ? associations : 1;
+    }
+
+    public MoveDestination(String AETitle, String ipAddr, int port, boolean isPublic, String description) {
+        this(AETitle, ipAddr, port, isPublic, description, 1);
     }
 
     public MoveDestination(String AETitle, String ipAddr, int port, boolean isPublic) {
@@ -118,6 +126,13 @@ public class MoveDestination implements Serializable {
         return isPublic;
     }
 
+    /**
+     * @return the maximum number of parallel associations for C-MOVE sub-operations, at least 1
+     */
+    public int getAssociations() {
+        return associations;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o)
@@ -125,12 +140,13 @@ public class MoveDestination implements Serializable {
         if (o == null || getClass() != o.getClass())
             return false;
         MoveDestination that = (MoveDestination) o;
-        return port == that.port && isPublic == that.isPublic && Objects.equals(AETitle, that.AETitle)
-                && Objects.equals(ipAddrs, that.ipAddrs) && Objects.equals(description, that.description);
+        return port == that.port && isPublic == that.isPublic && associations == that.associations
+                && Objects.equals(AETitle, that.AETitle) && Objects.equals(ipAddrs, that.ipAddrs)
+                && Objects.equals(description, that.description);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(AETitle, ipAddrs, port, description, isPublic);
+        return Objects.hash(AETitle, ipAddrs, port, description, isPublic, associations);
     }
 }
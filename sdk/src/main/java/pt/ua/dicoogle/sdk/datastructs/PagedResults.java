@@ -0,0 +1,34 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle-sdk.
+ *
+ * Dicoogle/dicoogle-sdk is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle-sdk is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.sdk.datastructs;
+
+/** A page of search results which may be continued in a subsequent query.
+ *
+ * Query providers supporting pagination may return an iterable of this type,
+ * so that clients can request the following page with {@link QueryPage#after(String, int)}.
+ */
+public interface PagedResults extends Iterable<SearchResult> {
+
+    /** Obtain the cursor for the page following this one.
+     * This method is only guaranteed to yield the right cursor after the results were fully traversed.
+     *
+     * @return an opaque continuation cursor, or null if there are no more results
+     */
+    String getNextCursor();
+}
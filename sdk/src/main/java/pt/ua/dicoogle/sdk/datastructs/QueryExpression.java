@@ -0,0 +1,422 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle-sdk.
+ *
+ * Dicoogle/dicoogle-sdk is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle-sdk is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.sdk.datastructs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import pt.ua.dicoogle.sdk.utils.TagsStruct;
+
+/** An immutable, structured description of a query.
+ *
+ * Query expressions are built once by the services receiving queries (C-FIND, the web search, etc.)
+ * and handed over to the query providers as is.
+ * Providers may inspect the expression tree (see {@link Visitor}) and translate it to their own query language,
+ * whereas legacy providers receive the equivalent Lucene-style query string,
+ * as given by {@link #toQueryString()}.
+ *
+ * @see pt.ua.dicoogle.sdk.QueryInterface#query(QueryExpression, Object...)
+ */
+public abstract class QueryExpression {
+
+    /** The field matched by free text in addition to the DIM fields */
+    public static final String OTHERS_FIELD = "others";
+
+    private volatile String queryString;
+
+    QueryExpression() {}
+
+    /** A visitor over the nodes of a query expression.
+     *
+     * @param <R> the type of result produced by the visitor
+     */
+    public interface Visitor<R> {
+        R visitMatchAll(MatchAll node);
+
+        R visitRaw(Raw node);
+
+        R visitTerm(Term node);
+
+        R visitRange(Range node);
+
+        R visitFreeText(FreeText node);
+
+        R visitJunction(Junction node);
+    }
+
+    /** Apply a visitor to this node.
+     *
+     * @param visitor the visitor
+     * @param <R> the type of result produced by the visitor
+     * @return the visitor's result
+     */
+    public abstract <R> R accept(Visitor<R> visitor);
+
+    /** Obtain the Lucene-style query string equivalent to this expression,
+     * for query providers which only understand query strings.
+     *
+     * @return the query string
+     */
+    public final String toQueryString() {
+        String s = queryString;
+        if (s == null) {
+            StringBuilder sb = new StringBuilder();
+            render(sb);
+            queryString = s = sb.toString();
+        }
+        return s;
+    }
+
+    abstract void render(StringBuilder sb);
+
+    @Override
+    public String toString() {
+        return toQueryString();
+    }
+
+    /** @return an expression matching everything */
+    public static QueryExpression matchAll() {
+        return MatchAll.INSTANCE;
+    }
+
+    /** Wrap a query string which was not built from a structured query.
+     *
+     * @param query the query string, passed as is to query providers
+     * @return an opaque query expression
+     */
+    public static QueryExpression raw(String query) {
+        return new Raw(query);
+    }
+
+    /** @return an expression matching the documents in which the given field has the given value
+     *          (which may contain wildcards) */
+    public static QueryExpression term(String field, String value) {
+        return new Term(field, value);
+    }
+
+    /** @return an expression matching the documents in which the given field is within the given bounds,
+     *          inclusive */
+    public static QueryExpression range(String field, String lower, String upper) {
+        return new Range(field, lower, upper);
+    }
+
+    /** @return an expression matching the documents in which any of the DIM fields has the given value */
+    public static QueryExpression freeText(String value) {
+        return new FreeText(value, null);
+    }
+
+    /** @return an expression matching the documents in which any of the given fields has the given value */
+    public static QueryExpression freeText(String value, List<String> fields) {
+        return new FreeText(value, Objects.requireNonNull(fields));
+    }
+
+    /** @return an expression matching the documents matched by all of the given expressions */
+    public static QueryExpression and(List<QueryExpression> operands) {
+        return junction(true, operands);
+    }
+
+    /** @return an expression matching the documents matched by any of the given expressions */
+    public static QueryExpression or(List<QueryExpression> operands) {
+        return junction(false, operands);
+    }
+
+    private static QueryExpression junction(boolean conjunction, List<QueryExpression> operands) {
+        if (operands.isEmpty()) {
+            return matchAll();
+        }
+        if (operands.size() == 1) {
+            return operands.get(0);
+        }
+        return new Junction(conjunction, operands);
+    }
+
+    /** The expression matching everything. */
+    public static final class MatchAll extends QueryExpression {
+        static final MatchAll INSTANCE = new MatchAll();
+
+        private MatchAll() {}
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitMatchAll(this);
+        }
+
+        @Override
+        void render(StringBuilder sb) {
+            sb.append("*:*");
+        }
+    }
+
+    /** An opaque query string. */
+    public static final class Raw extends QueryExpression {
+        private final String query;
+
+        Raw(String query) {
+            this.query = Objects.requireNonNull(query);
+        }
+
+        public String getQuery() {
+            return query;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitRaw(this);
+        }
+
+        @Override
+        void render(StringBuilder sb) {
+            sb.append(query);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Raw && query.equals(((Raw) o).query);
+        }
+
+        @Override
+        public int hashCode() {
+            return query.hashCode();
+        }
+    }
+
+    /** A field matching a value. */
+    public static final class Term extends QueryExpression {
+        private final String field;
+        private final String value;
+
+        Term(String field, String value) {
+            this.field = Objects.requireNonNull(field);
+            this.value = Objects.requireNonNull(value);
+        }
+
+        public String getField() {
+            return field;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitTerm(this);
+        }
+
+        @Override
+        void render(StringBuilder sb) {
+            sb.append(field).append(':').append(value);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Term)) {
+                return false;
+            }
+            Term other = (Term) o;
+            return field.equals(other.field) && value.equals(other.value);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * field.hashCode() + value.hashCode();
+        }
+    }
+
+    /** A field within an inclusive range. */
+    public static final class Range extends QueryExpression {
+        private final String field;
+        private final String lower;
+        private final String upper;
+
+        Range(String field, String lower, String upper) {
+            this.field = Objects.requireNonNull(field);
+            this.lower = Objects.requireNonNull(lower);
+            this.upper = Objects.requireNonNull(upper);
+        }
+
+        public String getField() {
+            return field;
+        }
+
+        public String getLower() {
+            return lower;
+        }
+
+        public String getUpper() {
+            return upper;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitRange(this);
+        }
+
+        @Override
+        void render(StringBuilder sb) {
+            sb.append(field).append(":[").append(lower).append(" TO ").append(upper).append(']');
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Range)) {
+                return false;
+            }
+            Range other = (Range) o;
+            return field.equals(other.field) && lower.equals(other.lower) && upper.equals(other.upper);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(field, lower, upper);
+        }
+    }
+
+    /** A value matching any of a set of fields, which are the DIM fields unless specified. */
+    public static final class FreeText extends QueryExpression {
+        private static volatile DimAliases dimAliases = null;
+
+        private final String value;
+        private final List<String> fields;
+
+        FreeText(String value, List<String> fields) {
+            this.value = Objects.requireNonNull(value);
+            this.fields = fields == null ? null : Collections.unmodifiableList(new ArrayList<>(fields));
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        /** @return the fields to match, or null if these are the DIM fields */
+        public List<String> getFields() {
+            return fields;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitFreeText(this);
+        }
+
+        @Override
+        void render(StringBuilder sb) {
+            List<String> f = fields != null ? fields : getDimAliases();
+            sb.append('(');
+            for (String field : f) {
+                sb.append(field).append(':').append(value).append(" OR ");
+            }
+            sb.append(OTHERS_FIELD).append(':').append(value).append(')');
+        }
+
+        /** The DIM aliases are only listed again when the DIM fields change. */
+        private static List<String> getDimAliases() {
+            TagsStruct tags = TagsStruct.getInstance();
+            DimAliases cached = dimAliases;
+            int version = tags.getVersion();
+            if (cached == null || cached.version != version) {
+                cached = new DimAliases(version, Collections.unmodifiableList(tags.getDIMAlias()));
+                dimAliases = cached;
+            }
+            return cached.aliases;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FreeText)) {
+                return false;
+            }
+            FreeText other = (FreeText) o;
+            return value.equals(other.value) && Objects.equals(fields, other.fields);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * value.hashCode() + Objects.hashCode(fields);
+        }
+
+        private static final class DimAliases {
+            final int version;
+            final List<String> aliases;
+
+            DimAliases(int version, List<String> aliases) {
+                this.version = version;
+                this.aliases = aliases;
+            }
+        }
+    }
+
+    /** A conjunction or disjunction of expressions. */
+    public static final class Junction extends QueryExpression {
+        private final boolean conjunction;
+        private final List<QueryExpression> operands;
+
+        Junction(boolean conjunction, List<QueryExpression> operands) {
+            this.conjunction = conjunction;
+            this.operands = Collections.unmodifiableList(new ArrayList<>(operands));
+        }
+
+        /** @return true if all operands must match, false if any of them must match */
+        public boolean isConjunction() {
+            return conjunction;
+        }
+
+        public List<QueryExpression> getOperands() {
+            return operands;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitJunction(this);
+        }
+
+        @Override
+        void render(StringBuilder sb) {
+            String operator = conjunction ? " AND " : " OR ";
+            for (int i = 0; i < operands.size(); i++) {
+                if (i > 0) {
+                    sb.append(operator);
+                }
+                QueryExpression operand = operands.get(i);
+                if (operand instanceof Junction || operand instanceof Raw) {
+                    sb.append('(');
+                    operand.render(sb);
+                    sb.append(')');
+                } else {
+                    operand.render(sb);
+                }
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Junction)) {
+                return false;
+            }
+            Junction other = (Junction) o;
+            return conjunction == other.conjunction && operands.equals(other.operands);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * operands.hashCode() + (conjunction ? 1 : 0);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle-sdk.
+ *
+ * Dicoogle/dicoogle-sdk is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle-sdk is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.sdk.datastructs;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/** An immutable description of the page of results requested from a query provider.
+ *
+ * Query providers declaring {@link pt.ua.dicoogle.sdk.QueryInterface#supportsPagination()}
+ * will find an instance of this class among the query parameters,
+ * and should only produce the results within the page.
+ * A page is either defined by an offset, or by an opaque continuation cursor
+ * previously produced by the same provider (see {@link PagedResults#getNextCursor()}).
+ *
+ * @see pt.ua.dicoogle.sdk.QueryInterface#query(String, Object...)
+ */
+public final class QueryPage implements Serializable {
+    static final long serialVersionUID = 1L;
+
+    /** The limit used when the number of results is not bounded */
+    public static final int UNLIMITED = Integer.MAX_VALUE;
+
+    private final int offset;
+    private final int limit;
+    private final String cursor;
+
+    private QueryPage(int offset, int limit, String cursor) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset must not be negative");
+        }
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative");
+        }
+        this.offset = offset;
+        this.limit = limit;
+        this.cursor = cursor;
+    }
+
+    /** Create a page of results starting at the given position.
+     *
+     * @param offset the number of results to skip
+     * @param limit the maximum number of results to produce
+     * @return a query page
+     */
+    public static QueryPage of(int offset, int limit) {
+        return new QueryPage(offset, limit, null);
+    }
+
+    /** Create a page of results continuing from a previous page.
+     *
+     * @param cursor the continuation cursor produced by the provider for the previous page
+     * @param limit the maximum number of results to produce
+     * @return a query page
+     */
+    public static QueryPage after(String cursor, int limit) {
+        return new QueryPage(0, limit, Objects.requireNonNull(cursor));
+    }
+
+    /** Look for a query page in the given query parameters.
+     *
+     * @param parameters the parameters passed to the query provider
+     * @return the first query page in the parameters, or null if none was given
+     */
+    public static QueryPage find(Object... parameters) {
+        if (parameters == null) {
+            return null;
+        }
+        for (Object o : parameters) {
+            if (o instanceof QueryPage) {
+                return (QueryPage) o;
+            }
+        }
+        return null;
+    }
+
+    /** @return the number of results to skip, always 0 when a cursor is defined */
+    public int getOffset() {
+        return offset;
+    }
+
+    /** @return the maximum number of results to produce */
+    public int getLimit() {
+        return limit;
+    }
+
+    /** @return the continuation cursor, or null if the page is defined by an offset */
+    public String getCursor() {
+        return cursor;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (o == null || getClass() != o.getClass())
+            return false;
+        QueryPage that = (QueryPage) o;
+        return offset == that.offset && limit == that.limit && Objects.equals(cursor, that.cursor);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(offset, limit, cursor);
+    }
+
+    @Override
+    public String toString() {
+        return "QueryPage{offset=" + offset + ", limit=" + limit + (cursor != null ? ", cursor=" + cursor : "")
+                + "}";
+    }
+}
@@ -0,0 +1,393 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle-sdk.
+ *
+ * Dicoogle/dicoogle-sdk is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle-sdk is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.sdk.datastructs.dim;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import org.apache.commons.lang3.StringUtils;
+
+import pt.ua.dicoogle.sdk.datastructs.SearchResult;
+
+/**
+ * Single-pass aggregator of search results into the DIM (patient, study, series, image) hierarchy.
+ *
+ * Unlike {@link DIMGeneric}, which materializes the full tree before it can be paginated,
+ * this aggregator is told the requested depth and page up front. Patients outside the page are
+ * only counted, and levels below the requested depth are never built, so only the attributes
+ * which end up in the output are read from each result.
+ * The produced JSON is the same as {@link DIMGeneric#getJSONObject(int, int, int)},
+ * including study descriptions concatenated by {@link ConcatTags} rules.
+ *
+ * Instances of this class are not thread safe.
+ */
+public class DIMAggregator {
+
+    /** Placeholder for patients which are outside the requested page. */
+    private static final PatientNode OUT_OF_PAGE = new PatientNode("", "", "", "");
+    /** Placeholder for studies of patients when only the number of studies is needed. */
+    private static final StudyNode COUNTED_STUDY = new StudyNode("", "", "", "");
+
+    private final ConcatTags tags;
+    private final int depth;
+    private final long pageStart;
+    private final long pageEnd;
+
+    /** All patient identifiers seen so far, mapped to their node if within the page */
+    private final Map<String, PatientNode> patientsById = new HashMap<>();
+    private final List<PatientNode> page = new ArrayList<>();
+
+    /**
+     * Create a new DIM aggregator.
+     *
+     * @param depth the depth of the tree from 0 (patient) to 4 (images)
+     * @param offset the number of patient records to skip
+     * @param psize the number of patient records to return, 0 or less means all
+     */
+    public DIMAggregator(int depth, int offset, int psize) {
+        this(null, depth, offset, psize);
+    }
+
+    /**
+     * Create a new DIM aggregator which fills in empty study descriptions as configured.
+     *
+     * @param tags the rules for filling in study descriptions, may be null
+     * @param depth the depth of the tree from 0 (patient) to 4 (images)
+     * @param offset the number of patient records to skip
+     * @param psize the number of patient records to return, 0 or less means all
+     */
+    public DIMAggregator(ConcatTags tags, int depth, int offset, int psize) {
+        if (depth < 0 || depth > 4) {
+            throw new IllegalArgumentException("Invalid DIM depth " + depth);
+        }
+        if (offset < 0) {
+            throw new IllegalArgumentException("Invalid offset " + offset);
+        }
+        this.tags = tags;
+        this.depth = depth;
+        this.pageStart = offset;
+        this.pageEnd = psize <= 0 ? Long.MAX_VALUE : (long) offset + psize;
+    }
+
+    /** Aggregate all results from the given iterator.
+     * @param results the search results to aggregate
+     * @return this aggregator
+     */
+    public DIMAggregator addAll(Iterator<? extends SearchResult> results) {
+        while (results.hasNext()) {
+            this.add(results.next());
+        }
+        return this;
+    }
+
+    /** Aggregate all results from the given iterable.
+     * @param results the search results to aggregate
+     * @return this aggregator
+     */
+    public DIMAggregator addAll(Iterable<? extends SearchResult> results) {
+        return this.addAll(results.iterator());
+    }
+
+    /** Aggregate a single search result.
+     * @param r the search result
+     */
+    public void add(SearchResult r) {
+        Map<String, Object> extra = r.getExtraData();
+
+        String patientID = toTrimmedString(extra.get("PatientID"), false);
+        String patientName = null;
+        String patientIdentifier = patientID;
+        if (patientID.isEmpty()) {
+            patientName = toTrimmedString(extra.get("PatientName"), false);
+            patientIdentifier = patientName;
+        }
+
+        PatientNode patient = this.patientsById.get(patientIdentifier);
+        if (patient == null) {
+            long index = this.patientsById.size();
+            if (this.depth == 0 || index < this.pageStart || index >= this.pageEnd) {
+                this.patientsById.put(patientIdentifier, OUT_OF_PAGE);
+                return;
+            }
+            if (patientName == null) {
+                patientName = toTrimmedString(extra.get("PatientName"), false);
+            }
+            patient = new PatientNode(patientID, patientName, toTrimmedString(extra.get("PatientSex"), false),
+                    toTrimmedString(extra.get("PatientBirthDate"), false));
+            this.patientsById.put(patientIdentifier, patient);
+            this.page.add(patient);
+        } else if (patient == OUT_OF_PAGE) {
+            return;
+        }
+
+        String studyUID = toTrimmedString(extra.get("StudyInstanceUID"), false);
+        StudyNode study = patient.studies.get(studyUID);
+        if (study == null) {
+            if (this.depth < 2) {
+                patient.studies.put(studyUID, COUNTED_STUDY);
+                return;
+            }
+            study = new StudyNode(studyUID, toTrimmedString(extra.get("StudyDate"), false),
+                    studyDescription(extra), toTrimmedString(extra.get("InstitutionName"), false));
+            patient.studies.put(studyUID, study);
+        } else if (study == COUNTED_STUDY) {
+            return;
+        } else {
+            // the last seen description prevails, as in DIMGeneric
+            study.description = studyDescription(extra);
+        }
+
+        String seriesUID = toTrimmedString(extra.get("SeriesInstanceUID"), false);
+        SeriesNode series = study.series.get(seriesUID);
+        if (series == null) {
+            String modality = toTrimmedString(extra.get("Modality"), false);
+            if (this.depth < 3) {
+                series = new SeriesNode(seriesUID, modality, 0, null);
+            } else {
+                series = new SeriesNode(seriesUID, modality,
+                        parseSeriesNumber(toTrimmedString(extra.get("SeriesNumber"), true)),
+                        toTrimmedString(extra.get("SeriesDescription"), false));
+            }
+            study.series.put(seriesUID, series);
+        }
+
+        if (this.depth >= 4) {
+            String sopInstanceUID = toTrimmedString(extra.get("SOPInstanceUID"), true);
+            series.addImage(new ImageNode(r.getURI(), sopInstanceUID == null ? "no uid" : sopInstanceUID,
+                    toTrimmedString(extra.get("InstanceNumber"), true)));
+        }
+    }
+
+    /** @return the number of distinct patients seen so far, including those outside the page */
+    public int getNumResults() {
+        return this.patientsById.size();
+    }
+
+    /** Obtain a JSON representation of the aggregated page of the DIM tree.
+     *
+     * @return an in-memory JSON object containing the patients of the requested page
+     * @see DIMGeneric#getJSONObject(int, int, int)
+     */
+    public JSONObject getJSONObject() {
+        JSONObject result = new JSONObject();
+        result.put("numResults", this.patientsById.size());
+
+        if (this.depth == 0) {
+            return result;
+        }
+
+        JSONArray patients = new JSONArray();
+        for (PatientNode p : this.page) {
+            JSONObject patient = new JSONObject();
+            patient.put("id", p.id);
+            patient.put("name", p.name);
+            patient.put("gender", p.sex);
+            patient.put("nStudies", p.studies.size());
+            patient.put("birthdate", p.birthdate);
+
+            if (this.depth < 2) {
+                patients.add(patient);
+                continue;
+            }
+
+            JSONArray studies = new JSONArray();
+            for (StudyNode s : p.studies.values()) {
+                JSONObject study = new JSONObject();
+                study.put("studyInstanceUID", s.uid);
+                study.put("studyDate", s.date);
+                study.put("studyDescription", s.description);
+                study.put("institutionName", s.institutionName);
+
+                Set<String> modalities = new HashSet<>();
+                JSONArray series = new JSONArray();
+                for (SeriesNode serie : s.series.values()) {
+                    modalities.add(serie.modality);
+                    if (this.depth < 3) {
+                        continue;
+                    }
+
+                    JSONObject seriesObj = new JSONObject();
+                    seriesObj.put("serieNumber", serie.number);
+                    seriesObj.put("serieInstanceUID", serie.uid);
+                    seriesObj.put("serieDescription", serie.description);
+                    seriesObj.put("serieModality", serie.modality);
+
+                    if (this.depth >= 4) {
+                        JSONArray instances = new JSONArray();
+                        for (ImageNode i : serie.images) {
+                            instances.add(i.toJSON());
+                        }
+                        seriesObj.put("images", instances);
+                    }
+                    series.add(seriesObj);
+                }
+                study.put("modalities", StringUtils.join(modalities, ","));
+
+                if (this.depth >= 3) {
+                    study.put("series", series);
+                }
+                studies.add(study);
+            }
+            patient.put("studies", studies);
+            patients.add(patient);
+        }
+
+        result.put("results", patients);
+        return result;
+    }
+
+    /** Obtain the study description of a result,
+     * replaced by the concatenation of other attributes when empty, as in {@link DIMGeneric}.
+     */
+    private String studyDescription(Map<String, Object> extra) {
+        String description = toTrimmedString(extra.get("StudyDescription"), false);
+        if (this.tags == null || !(description.isEmpty() || description.toLowerCase().contains("fuji"))) {
+            return description;
+        }
+        String modality = toTrimmedString(extra.get("Modality"), false);
+        StringBuilder concatenated = new StringBuilder();
+        for (ConcatTags.Rule rule : this.tags.getRules()) {
+            if (modality.equals(rule.getModality())) {
+                Object valueTagToReplace = extra.get(rule.getTagToReplace());
+                if (valueTagToReplace != null) {
+                    concatenated.append(
+                            valueTagToReplace.toString().trim().replaceAll("[^a-zA-Z0-9\\. ÉéàÀÃ;,]+", ""));
+                    concatenated.append("; ");
+                }
+            }
+        }
+        return concatenated.toString();
+    }
+
+    private static int parseSeriesNumber(String seriesNumber) {
+        if (seriesNumber == null) {
+            return 0;
+        }
+        try {
+            return (int) Float.parseFloat(seriesNumber);
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    private static String toTrimmedString(Object o, boolean allowNull) {
+        if (o == null) {
+            return allowNull ? null : "";
+        }
+        return allowNull ? StringUtils.trimToNull(o.toString()) : StringUtils.trimToEmpty(o.toString());
+    }
+
+    private static final class PatientNode {
+        final String id;
+        final String name;
+        final String sex;
+        final String birthdate;
+        final Map<String, StudyNode> studies = new LinkedHashMap<>(4);
+
+        PatientNode(String id, String name, String sex, String birthdate) {
+            this.id = id;
+            this.name = name;
+            this.sex = sex;
+            this.birthdate = birthdate;
+        }
+    }
+
+    private static final class StudyNode {
+        final String uid;
+        final String date;
+        String description;
+        final String institutionName;
+        final Map<String, SeriesNode> series = new LinkedHashMap<>(4);
+
+        StudyNode(String uid, String date, String description, String institutionName) {
+            this.uid = uid;
+            this.date = date;
+            this.description = description;
+            this.institutionName = institutionName;
+        }
+    }
+
+    private static final class SeriesNode {
+        final String uid;
+        final String modality;
+        final int number;
+        final String description;
+        List<ImageNode> images = Collections.emptyList();
+
+        SeriesNode(String uid, String modality, int number, String description) {
+            this.uid = uid;
+            this.modality = modality;
+            this.number = number;
+            this.description = description;
+        }
+
+        void addImage(ImageNode image) {
+            if (this.images.isEmpty()) {
+                this.images = new ArrayList<>();
+            }
+            this.images.add(image);
+        }
+    }
+
+    private static final class ImageNode {
+        final URI uri;
+        final String sopInstanceUID;
+        final String instanceNumber;
+
+        ImageNode(URI uri, String sopInstanceUID, String instanceNumber) {
+            this.uri = uri;
+            this.sopInstanceUID = sopInstanceUID;
+            this.instanceNumber = instanceNumber;
+        }
+
+        JSONObject toJSON() {
+            JSONObject image = new JSONObject();
+            image.put("sopInstanceUID", this.sopInstanceUID);
+            String rawPath = this.uri.getRawPath();
+            image.put("rawPath", rawPath);
+            image.put("uri", this.uri.toString());
+            if (rawPath != null) {
+                image.put("filename", rawPath.substring(rawPath.lastIndexOf('/') + 1));
+            }
+            String instanceNum = this.instanceNumber;
+            if (instanceNum != null) {
+                if (instanceNum.endsWith(".0")) {
+                    instanceNum = instanceNum.substring(0, instanceNum.length() - 2);
+                }
+                try {
+                    image.put("number", Long.parseLong(instanceNum));
+                } catch (NumberFormatException e) {
+                    // not a number, do not include
+                }
+            }
+            return image;
+        }
+    }
+}
@@ -18,11 +18,15 @@
  */
 package pt.ua.dicoogle.sdk.mlprovider;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import pt.ua.dicoogle.sdk.DicooglePlugin;
 import pt.ua.dicoogle.sdk.task.Task;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Experimental interface to define Machine Learning providers.
@@ -45,6 +49,8 @@ import java.util.Set;
  */
 public abstract class MLProviderInterface implements DicooglePlugin {
 
+    private static final Logger logger = LoggerFactory.getLogger(MLProviderInterface.class);
+
     protected Set<MLDataType> acceptedDataTypes;
 
     /**
@@ -113,6 +119,48 @@ public abstract class MLProviderInterface implements DicooglePlugin {
      */
     public abstract void batchInfer();
 
+    /**
+     * Order predictions over several objects at once,
+     * each request being handled as in {@link #infer(MLInferenceRequest)}.
+     *
+     * The default implementation runs the inference task of each request, one after the other,
+     * logging the cause of each request which fails.
+     * Providers which can process several objects in a single call should override this method,
+     * as well as {@link #getMaxBatchSize()}.
+     *
+     * @param inferRequests the inference requests, no more than {@link #getMaxBatchSize()}
+     * @return a task to the inferences, in the same order as the requests,
+     *         with null in place of the requests which produced no inference
+     */
+    public Task<List<MLInference>> batchInfer(List<MLInferenceRequest> inferRequests) {
+        return new Task<>(() -> {
+            List<MLInference> inferences = new ArrayList<>(inferRequests.size());
+            for (MLInferenceRequest request : inferRequests) {
+                Task<MLInference> task = infer(request);
+                MLInference inference = null;
+                if (task != null) {
+                    task.run();
+                    try {
+                        inference = task.get();
+                    } catch (ExecutionException ex) {
+                        // no inference for this request
+                        logger.warn("Provider {} could not infer on {}", getName(), request.getDimID(),
+                                ex.getCause());
+                    }
+                }
+                inferences.add(inference);
+            }
+            return inferences;
+        });
+    }
+
+    /**
+     * @return the maximum number of requests which may be passed to {@link #batchInfer(List)} at once
+     */
+    public int getMaxBatchSize() {
+        return 16;
+    }
+
     /**
      * This method indicates if the service is available.
      * @return true if the provider is ready to be used, false otherwise.
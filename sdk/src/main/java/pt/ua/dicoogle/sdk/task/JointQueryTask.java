@@ -19,8 +19,26 @@
 package pt.ua.dicoogle.sdk.task;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.slf4j.Logger;
 
 import pt.ua.dicoogle.sdk.datastructs.SearchResult;
 
@@ -28,36 +46,52 @@ import pt.ua.dicoogle.sdk.datastructs.SearchResult;
  * Advanced task which encompases multiple sub-tasks.
  * 
  * This class helps dicoogle to deal with multiple providers simultaneously.
+ * Results can either be gathered all at once with {@link #get()},
+ * or consumed as each provider delivers them with {@link #stream()}.
  * 
  * @author Tiago Marques Godinho, tmgodinho@ua.pt
  *
  */
 public abstract class JointQueryTask {
 
-    private boolean cancelled;
-    private int numberOfCompletedTasks;
+    private static final Logger LOG = org.slf4j.LoggerFactory.getLogger(JointQueryTask.class);
+
+    private volatile boolean cancelled;
+    private final AtomicInteger numberOfCompletedTasks;
 
-    private List<Task<Iterable<SearchResult>>> searchTasks;
+    private final List<Task<Iterable<SearchResult>>> searchTasks;
+    /** sub-tasks in order of completion, consumed by the result stream */
+    private final BlockingQueue<Task<Iterable<SearchResult>>> completedTasks;
+    private final AtomicBoolean streamed;
+    /** failures of the sub-tasks observed by the result stream, by task name */
+    private final Map<String, Throwable> failures;
 
     public JointQueryTask() {
-        this.searchTasks = new ArrayList<>();
-        this.numberOfCompletedTasks = 0;
+        this.searchTasks = new CopyOnWriteArrayList<>();
+        this.completedTasks = new LinkedBlockingQueue<>();
+        this.numberOfCompletedTasks = new AtomicInteger(0);
+        this.streamed = new AtomicBoolean(false);
+        this.failures = Collections.synchronizedMap(new LinkedHashMap<>());
         this.cancelled = false;
     }
 
     public boolean addTask(final Task<Iterable<SearchResult>> e) {
+        boolean added = searchTasks.add(e);
+
         // Add hook
         e.onCompletion(new Runnable() {
             @Override
             public void run() {
-                numberOfCompletedTasks++;
+                int completed = numberOfCompletedTasks.incrementAndGet();
                 onReceive(e);
-                if (numberOfCompletedTasks == searchTasks.size())
+                if (completed == searchTasks.size())
                     onCompletion();
+                // only hand the task to the result stream once the progress reflects it
+                completedTasks.add(e);
             }
         });
 
-        return searchTasks.add(e);
+        return added;
     }
 
     public abstract void onCompletion();
@@ -75,6 +109,68 @@ public abstract class JointQueryTask {
         return list;
     }
 
+    /** Obtain a stream of the results,
+     * which yields each provider's results as soon as that provider completes,
+     * without waiting for the remaining providers.
+     *
+     * @return a stream of search results
+     * @see #stream(long, TimeUnit)
+     */
+    public Stream<SearchResult> stream() {
+        return stream(0, TimeUnit.MILLISECONDS);
+    }
+
+    /** Obtain a stream of the results,
+     * which yields each provider's results as soon as that provider completes,
+     * without waiting for the remaining providers.
+     * 
+     * Providers which do not complete within the given timeout
+     * (counting from the moment each provider starts running, or from the moment this method is called
+     * if the provider was already running) are cancelled and their results skipped.
+     * Providers which fail are skipped as well.
+     * Both kinds of failure are reported by {@link #getFailures()}.
+     * Closing the stream cancels any provider which has not completed yet,
+     * so the stream should be closed if it is not fully consumed.
+     * 
+     * The results of this joint task can only be streamed once.
+     * All sub-tasks should be added before calling this method.
+     *
+     * @param providerTimeout the maximum time to wait for each provider, 0 to wait indefinitely
+     * @param unit the time unit of the timeout
+     * @return a stream of search results
+     * @throws IllegalStateException if the results were already streamed
+     */
+    public Stream<SearchResult> stream(long providerTimeout, TimeUnit unit) {
+        if (!streamed.compareAndSet(false, true)) {
+            throw new IllegalStateException("The results of this task were already streamed");
+        }
+        Iterator<SearchResult> it =
+                new StreamingIterator(searchTasks.size(), providerTimeout > 0 ? unit.toNanos(providerTimeout) : 0);
+        return StreamSupport
+                .stream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(this::cancelPending);
+    }
+
+    /** Cancel the sub-tasks which have not completed yet. */
+    private void cancelPending() {
+        for (Task<Iterable<SearchResult>> t : searchTasks) {
+            if (!t.isDone()) {
+                t.cancel(true);
+            }
+        }
+    }
+
+    /** Obtain the failures of the providers which were skipped by the result stream.
+     * Providers which did not respond in time fail with a {@link TimeoutException}.
+     *
+     * @return the failure of each skipped provider, by task name
+     */
+    public Map<String, Throwable> getFailures() {
+        synchronized (failures) {
+            return new LinkedHashMap<>(failures);
+        }
+    }
+
     public float getProgress() {
         if (isCancelled())
             return -1;
@@ -82,7 +178,7 @@ public abstract class JointQueryTask {
         if (isDone())
             return 1;
 
-        return numberOfCompletedTasks / searchTasks.size();
+        return (float) numberOfCompletedTasks.get() / searchTasks.size();
     }
 
     public boolean isCancelled() {
@@ -90,10 +186,11 @@ public abstract class JointQueryTask {
     }
 
     public boolean isDone() {
-        return numberOfCompletedTasks == searchTasks.size();
+        return numberOfCompletedTasks.get() == searchTasks.size();
     }
 
     public boolean cancel(boolean mayInterruptIfRunning) {
+        cancelled = true;
         boolean ret = true;
         for (Task<Iterable<SearchResult>> t : searchTasks) {
             if (!t.isCancelled())
@@ -101,4 +198,98 @@ public abstract class JointQueryTask {
         }
         return ret;
     }
+
+    /** Iterator over the results of the sub-tasks, in order of completion. */
+    private final class StreamingIterator implements Iterator<SearchResult> {
+        private final int total;
+        private final long timeoutNanos;
+        private final long streamStart;
+        private int taken = 0;
+        private Iterator<SearchResult> current = Collections.emptyIterator();
+
+        StreamingIterator(int total, long timeoutNanos) {
+            this.total = total;
+            this.timeoutNanos = timeoutNanos;
+            this.streamStart = System.nanoTime();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!current.hasNext()) {
+                if (taken >= total || cancelled) {
+                    return false;
+                }
+                Task<Iterable<SearchResult>> task;
+                try {
+                    task = nextCompleted();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    cancelPending();
+                    return false;
+                }
+                taken++;
+                if (task.isCancelled()) {
+                    continue;
+                }
+                try {
+                    Iterable<SearchResult> results = task.get();
+                    current = results != null ? results.iterator() : Collections.emptyIterator();
+                } catch (ExecutionException ex) {
+                    LOG.warn("Query task {} failed, skipping its results", task.getName(), ex.getCause());
+                    failures.put(task.getName(), ex.getCause());
+                } catch (InterruptedException ex) {
+                    // should not happen, the task is complete
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private Task<Iterable<SearchResult>> nextCompleted() throws InterruptedException {
+            if (timeoutNanos == 0) {
+                return completedTasks.take();
+            }
+            for (;;) {
+                long wait = cancelOverdue();
+                Task<Iterable<SearchResult>> task = completedTasks.poll(wait, TimeUnit.NANOSECONDS);
+                if (task != null) {
+                    return task;
+                }
+            }
+        }
+
+        /** Cancel the running sub-tasks which exceeded the timeout.
+         * Cancelled sub-tasks are then delivered to the completed task queue.
+         *
+         * @return the time until the next running sub-task exceeds the timeout
+         */
+        private long cancelOverdue() {
+            long now = System.nanoTime();
+            long wait = timeoutNanos;
+            for (Task<Iterable<SearchResult>> t : searchTasks) {
+                if (t.isDone() || !t.isStarted()) {
+                    continue;
+                }
+                long start = t.getStartNanos() - streamStart > 0 ? t.getStartNanos() : streamStart;
+                long remaining = start + timeoutNanos - now;
+                if (remaining > 0) {
+                    wait = Math.min(wait, remaining);
+                } else if (t.cancel(true)) {
+                    LOG.warn("Query provider {} did not respond in time, cancelling it", t.getName());
+                    failures.put(t.getName(), new TimeoutException("Query provider " + t.getName()
+                            + " did not respond within " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms"));
+                }
+            }
+            return wait;
+        }
+
+        @Override
+        public SearchResult next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+    }
 }
@@ -20,6 +20,7 @@ package pt.ua.dicoogle.sdk.task;
 
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.Callable;
 import java.util.concurrent.FutureTask;
@@ -40,7 +41,10 @@ public class Task<Type> extends FutureTask<Type> {
     private String taskName;
     private Callable<Type> callable;
     private ArrayList<Runnable> toRunWhenComplete;
+    private boolean completed = false;
     private LocalDateTime timeCreated;
+    /** the value of System.nanoTime() when the task started running, 0 if not started */
+    private volatile long startNanos = 0;
 
     /** Create a new task with a randomly generated ID. */
     public Task(Callable<Type> c) {
@@ -61,29 +65,54 @@ public class Task<Type> extends FutureTask<Type> {
         this.timeCreated = LocalDateTime.now();
     }
 
+    @Override
+    public void run() {
+        if (startNanos == 0) {
+            startNanos = System.nanoTime();
+        }
+        super.run();
+    }
+
     /** When the task is done, run the runnables registered
      * then clean up references to reduce footprint.
      */
     @Override
     protected void done() {
-        for (Runnable r : this.toRunWhenComplete) {
-            try {
-                r.run();
-            } catch (Exception ex) {
-                LOG.warn("Error running task completion hook", ex);
-            }
+        List<Runnable> hooks;
+        synchronized (this) {
+            this.completed = true;
+            hooks = new ArrayList<>(this.toRunWhenComplete);
+            this.toRunWhenComplete.clear();
+        }
+        for (Runnable r : hooks) {
+            runHook(r);
         }
-        this.toRunWhenComplete.clear();
         this.callable = null;
     }
 
+    private static void runHook(Runnable r) {
+        try {
+            r.run();
+        } catch (Exception ex) {
+            LOG.warn("Error running task completion hook", ex);
+        }
+    }
+
     public String getUid() {
         return uid;
     }
 
-    /** Add a completion hook to this task. */
+    /** Add a completion hook to this task.
+     * If the task is already complete, the hook runs immediately on the calling thread.
+     */
     public void onCompletion(Runnable r) {
-        toRunWhenComplete.add(r);
+        synchronized (this) {
+            if (!this.completed) {
+                toRunWhenComplete.add(r);
+                return;
+            }
+        }
+        runHook(r);
     }
 
     /** Gets the task's name
@@ -118,6 +147,16 @@ public class Task<Type> extends FutureTask<Type> {
         return this.timeCreated;
     }
 
+    /** @return whether the task started running */
+    boolean isStarted() {
+        return startNanos != 0;
+    }
+
+    /** @return the value of System.nanoTime() when the task started running */
+    long getStartNanos() {
+        return startNanos;
+    }
+
     private static String generateUID() {
         return UUID.randomUUID().toString();
     }
@@ -67,6 +67,9 @@ public class TagsStruct {
 
     private static TagsStruct instance = null;
 
+    /** incremented whenever the DIM fields change */
+    private volatile int version = 0;
+
     /** Obtain a global instance of Tag information.
      *
      * @return the application's global instance, for use in production
@@ -169,6 +172,7 @@ public class TagsStruct {
         if (!isDICOMField(field) && !isPrivateField(field))
             addPrivateField(field);
         addTag(field);
+        version++;
     }
 
     /**
@@ -200,6 +204,7 @@ public class TagsStruct {
         this.nPrivateFields.remove(tag);
         this.nDIMFields.remove(tag);
         removeTag(tag);
+        version++;
         return true;
     }
 
@@ -245,6 +250,15 @@ public class TagsStruct {
         return SetUtils.unmodifiableSet(this.nDIMFields);
     }
 
+    /**
+     * Gets a number which changes whenever the DIM fields change,
+     * so that information derived from them can be cached.
+     * @return the version of the DIM fields
+     */
+    public int getVersion() {
+        return version;
+    }
+
     /**
      * Gets a List with the DIM fields names.
      * @return
@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle-sdk.
+ *
+ * Dicoogle/dicoogle-sdk is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle-sdk is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.sdk.datastructs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class QueryExpressionTest {
+
+    @Test
+    public void testRendering() {
+        assertEquals("*:*", QueryExpression.matchAll().toQueryString());
+        assertEquals("*:*", QueryExpression.and(Collections.emptyList()).toQueryString());
+        assertEquals("PatientName:SMITH*", QueryExpression.term("PatientName", "SMITH*").toQueryString());
+        assertEquals("StudyDate:[20200101 TO 20201231]",
+                QueryExpression.range("StudyDate", "20200101", "20201231").toQueryString());
+
+        QueryExpression modalities = QueryExpression
+                .or(Arrays.asList(QueryExpression.term("Modality", "CT"), QueryExpression.term("Modality", "MR")));
+        QueryExpression query = QueryExpression.and(Arrays.asList(QueryExpression.term("PatientID", "123"),
+                modalities, QueryExpression.raw("A:1 OR B:2")));
+        assertEquals("PatientID:123 AND (Modality:CT OR Modality:MR) AND (A:1 OR B:2)", query.toQueryString());
+
+        assertEquals("(PatientName:x OR Modality:x OR others:x)",
+                QueryExpression.freeText("x", Arrays.asList("PatientName", "Modality")).toQueryString());
+    }
+
+    @Test
+    public void testSingleOperand() {
+        QueryExpression term = QueryExpression.term("PatientID", "123");
+        assertSame(term, QueryExpression.and(Collections.singletonList(term)));
+        assertSame(term, QueryExpression.or(Collections.singletonList(term)));
+    }
+
+    @Test
+    public void testEquality() {
+        QueryExpression a = QueryExpression.and(
+                Arrays.asList(QueryExpression.term("PatientID", "123"), QueryExpression.range("StudyDate", "1", "2")));
+        QueryExpression b = QueryExpression.and(
+                Arrays.asList(QueryExpression.term("PatientID", "123"), QueryExpression.range("StudyDate", "1", "2")));
+        QueryExpression c = QueryExpression.or(
+                Arrays.asList(QueryExpression.term("PatientID", "123"), QueryExpression.range("StudyDate", "1", "2")));
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        assertNotEquals(a, c);
+    }
+
+    @Test
+    public void testVisitor() {
+        QueryExpression query = QueryExpression.and(Arrays.asList(QueryExpression.term("PatientID", "123"),
+                QueryExpression.freeText("x", Collections.singletonList("PatientName"))));
+        int terms = query.accept(new QueryExpression.Visitor<Integer>() {
+            @Override
+            public Integer visitMatchAll(QueryExpression.MatchAll node) {
+                return 0;
+            }
+
+            @Override
+            public Integer visitRaw(QueryExpression.Raw node) {
+                return 0;
+            }
+
+            @Override
+            public Integer visitTerm(QueryExpression.Term node) {
+                return 1;
+            }
+
+            @Override
+            public Integer visitRange(QueryExpression.Range node) {
+                return 1;
+            }
+
+            @Override
+            public Integer visitFreeText(QueryExpression.FreeText node) {
+                return node.getFields().size();
+            }
+
+            @Override
+            public Integer visitJunction(QueryExpression.Junction node) {
+                int n = 0;
+                for (QueryExpression operand : node.getOperands()) {
+                    n += operand.accept(this);
+                }
+                return n;
+            }
+        });
+        assertEquals(2, terms);
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle-sdk.
+ *
+ * Dicoogle/dicoogle-sdk is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle-sdk is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.sdk.datastructs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import org.junit.Test;
+
+public class QueryPageTest {
+
+    @Test
+    public void testOffsetPage() {
+        QueryPage page = QueryPage.of(20, 10);
+        assertEquals(20, page.getOffset());
+        assertEquals(10, page.getLimit());
+        assertNull(page.getCursor());
+    }
+
+    @Test
+    public void testCursorPage() {
+        QueryPage page = QueryPage.after("abc", 10);
+        assertEquals(0, page.getOffset());
+        assertEquals(10, page.getLimit());
+        assertEquals("abc", page.getCursor());
+    }
+
+    @Test
+    public void testInvalidPages() {
+        try {
+            QueryPage.of(-1, 10);
+            fail("expected a negative offset to be rejected");
+        } catch (IllegalArgumentException ex) {
+            // ok
+        }
+        try {
+            QueryPage.of(0, -1);
+            fail("expected a negative limit to be rejected");
+        } catch (IllegalArgumentException ex) {
+            // ok
+        }
+        try {
+            QueryPage.after(null, 10);
+            fail("expected a null cursor to be rejected");
+        } catch (NullPointerException ex) {
+            // ok
+        }
+    }
+
+    @Test
+    public void testFind() {
+        QueryPage page = QueryPage.of(0, 5);
+        assertSame(page, QueryPage.find("fields", page, QueryPage.of(5, 5)));
+        assertNull(QueryPage.find("fields"));
+        assertNull(QueryPage.find());
+        assertNull(QueryPage.find((Object[]) null));
+    }
+
+    @Test
+    public void testEquality() {
+        assertEquals(QueryPage.of(10, 5), QueryPage.of(10, 5));
+        assertEquals(QueryPage.of(10, 5).hashCode(), QueryPage.of(10, 5).hashCode());
+        assertEquals(QueryPage.after("c", 5), QueryPage.after("c", 5));
+        assertNotEquals(QueryPage.of(10, 5), QueryPage.of(10, 6));
+        assertNotEquals(QueryPage.after("c", 5), QueryPage.after("d", 5));
+        assertNotEquals(QueryPage.of(0, 5), QueryPage.after("c", 5));
+    }
+
+    @Test
+    public void testPagedResults() {
+        // a provider producing a page of results after the given cursor
+        QueryPage page = QueryPage.after("1", 2);
+        PagedResults results = new PagedResults() {
+            private final int start = Integer.parseInt(page.getCursor());
+            private int next = start;
+
+            @Override
+            public Iterator<SearchResult> iterator() {
+                return new Iterator<SearchResult>() {
+                    @Override
+                    public boolean hasNext() {
+                        return next < start + page.getLimit();
+                    }
+
+                    @Override
+                    public SearchResult next() {
+                        return new SearchResult(URI.create("file:/" + next++), 1, new HashMap<String, Object>());
+                    }
+                };
+            }
+
+            @Override
+            public String getNextCursor() {
+                return String.valueOf(next);
+            }
+        };
+
+        int n = 0;
+        for (SearchResult r : results) {
+            assertEquals(URI.create("file:/" + (n + 1)), r.getURI());
+            n++;
+        }
+        assertEquals(2, n);
+        assertEquals(QueryPage.after("3", 2), QueryPage.after(results.getNextCursor(), page.getLimit()));
+    }
+}
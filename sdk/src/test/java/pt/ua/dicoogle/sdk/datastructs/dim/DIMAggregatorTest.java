@@ -0,0 +1,169 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle-sdk.
+ *
+ * Dicoogle/dicoogle-sdk is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle-sdk is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.sdk.datastructs.dim;
+
+import static org.junit.Assert.*;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import pt.ua.dicoogle.sdk.datastructs.SearchResult;
+
+public class DIMAggregatorTest {
+
+    private static SearchResult createResult(String uri, Object... parts) {
+        assertTrue(parts.length % 2 == 0);
+        HashMap<String, Object> data = new HashMap<>();
+        for (int i = 0; i < parts.length; i += 2) {
+            data.put((String) parts[i], parts[i + 1]);
+        }
+        return new SearchResult(URI.create(uri), 1.0, data);
+    }
+
+    private static final String STUID1 = "1.2.345.777.1";
+    private static final String STUID2 = "1.2.345.777.2";
+    private static final String STUID3 = "1.2.345.777.3";
+    private static final String STUID4 = "1.2.345.777.4";
+
+    private static List<SearchResult> example() {
+        return new ArrayList<>(Arrays.asList(
+                createResult("file:/CR/P001/A1/1", "PatientID", "P001", "PatientName", "Patient^Anonymous",
+                        "AccessionNumber", "A1", "StudyInstanceUID", STUID1, "SeriesInstanceUID", STUID1 + ".1",
+                        "Modality", "CR", "SOPInstanceUID", STUID1 + ".1.1", "InstanceNumber", "1"),
+                createResult("file:/MG/P003/C5/1.dcm", "PatientID", "P003", "PatientName", "Patient^Anonymousse",
+                        "StudyDescription", "first", "StudyInstanceUID", STUID4, "SeriesInstanceUID",
+                        STUID4 + ".1", "SeriesNumber", "2.0", "Modality", "MG", "SOPInstanceUID", STUID4 + ".1.1",
+                        "InstanceNumber", "1.0"),
+                createResult("file:/CR/P001/A2/1", "PatientID", "P001", "PatientName", "Patient^Anonymous",
+                        "AccessionNumber", "A2", "StudyInstanceUID", STUID2, "SeriesInstanceUID", STUID2 + ".9",
+                        "Modality", "CR", "SOPInstanceUID", STUID2 + ".9.1", "InstanceNumber", "1"),
+                createResult("file:/CR/P002/B2/1", "PatientID", "", "PatientName", "Patient^Anonymouse",
+                        "AccessionNumber", "B2", "StudyInstanceUID", STUID3, "SeriesInstanceUID", STUID3 + ".1",
+                        "Modality", "CR", "SOPInstanceUID", STUID3 + ".1.1", "InstanceNumber", "1"),
+                createResult("file:/MG/P003/C5/2.dcm", "PatientID", "P003", "PatientName", "Patient^Anonymousse",
+                        "StudyDescription", "other", "StudyInstanceUID", STUID4, "SeriesInstanceUID",
+                        STUID4 + ".2", "SeriesNumber", "3", "Modality", "PR", "InstanceNumber", "x"),
+                createResult("file:/MG/P003/C5/3.dcm", "PatientID", "P003", "PatientName", "Patient^Anonymousse",
+                        "StudyDescription", "second", "StudyInstanceUID", STUID4, "SeriesInstanceUID",
+                        STUID4 + ".1", "Modality", "MG", "SOPInstanceUID", STUID4 + ".1.3", "InstanceNumber", "3")));
+    }
+
+    private static JSONObject aggregate(int depth, int offset, int psize) {
+        return new DIMAggregator(depth, offset, psize).addAll(example()).getJSONObject();
+    }
+
+    @Test
+    public void testSameAsDIMGeneric() throws Exception {
+        DIMGeneric dim = new DIMGeneric(example());
+        for (int depth = 0; depth <= 4; depth++) {
+            for (int offset = 0; offset <= 3; offset++) {
+                for (int psize = 0; psize <= 3; psize++) {
+                    assertEquals("depth=" + depth + " offset=" + offset + " psize=" + psize,
+                            dim.getJSONObject(depth, offset, psize).toString(),
+                            aggregate(depth, offset, psize).toString());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSameAsDIMGenericWithConcatTags() throws Exception {
+        ConcatTags tags = new ConcatTags();
+        tags.getRules().add(tags.parseLine("CR;StudyDescription;EMPTY;AccessionNumber;StudyDescription==staff"));
+        tags.getRules().add(tags.parseLine("CR;StudyDescription;EMPTY;Modality;StudyDescription==staff"));
+        tags.getRules().add(tags.parseLine("MG;StudyDescription;EMPTY;PatientName;StudyDescription==staff"));
+        List<SearchResult> results = example();
+        results.add(createResult("file:/MG/P004/D1/1.dcm", "PatientID", "P004", "PatientName", "Patient^Fuji",
+                "StudyDescription", "FUJI scan", "StudyInstanceUID", "1.2.345.777.5", "SeriesInstanceUID",
+                "1.2.345.777.5.1", "Modality", "MG", "SOPInstanceUID", "1.2.345.777.5.1.1"));
+
+        DIMGeneric dim = new DIMGeneric(tags, results);
+        for (int depth = 0; depth <= 4; depth++) {
+            for (int offset = 0; offset <= 4; offset++) {
+                for (int psize = 0; psize <= 4; psize++) {
+                    assertEquals("depth=" + depth + " offset=" + offset + " psize=" + psize,
+                            dim.getJSONObject(depth, offset, psize).toString(),
+                            new DIMAggregator(tags, depth, offset, psize).addAll(results).getJSONObject()
+                                    .toString());
+                }
+            }
+        }
+
+        JSONArray patients = new DIMAggregator(tags, 2, 0, 0).addAll(results).getJSONObject().getJSONArray("results");
+        JSONObject study = patients.getJSONObject(0).getJSONArray("studies").getJSONObject(0);
+        assertEquals("A1; CR; ", study.getString("studyDescription"));
+        study = patients.getJSONObject(3).getJSONArray("studies").getJSONObject(0);
+        assertEquals("PatientFuji; ", study.getString("studyDescription"));
+    }
+
+    @Test
+    public void testDepth0() {
+        JSONObject obj = aggregate(0, 0, 0);
+        assertEquals(3, obj.getInt("numResults"));
+        assertFalse(obj.has("results"));
+    }
+
+    @Test
+    public void testPaged() {
+        JSONObject obj = aggregate(3, 1, 1);
+        assertEquals("patients outside of the page are still counted", 3, obj.getInt("numResults"));
+
+        JSONArray patients = obj.getJSONArray("results");
+        assertEquals(1, patients.size());
+        JSONObject patient = patients.getJSONObject(0);
+        assertEquals("P003", patient.getString("id"));
+        assertEquals(1, patient.getInt("nStudies"));
+
+        JSONObject study = patient.getJSONArray("studies").getJSONObject(0);
+        assertEquals("second", study.getString("studyDescription"));
+        assertEquals(new HashSet<>(Arrays.asList("MG", "PR")),
+                new HashSet<>(Arrays.asList(study.getString("modalities").split(","))));
+
+        JSONArray series = study.getJSONArray("series");
+        assertEquals(2, series.size());
+        assertEquals(2, series.getJSONObject(0).getInt("serieNumber"));
+        assertFalse("images are not built below depth 4", series.getJSONObject(0).has("images"));
+    }
+
+    @Test
+    public void testImages() {
+        JSONObject obj = aggregate(4, 1, 0);
+        JSONArray patients = obj.getJSONArray("results");
+        assertEquals(2, patients.size());
+
+        JSONArray series = patients.getJSONObject(0).getJSONArray("studies").getJSONObject(0).getJSONArray("series");
+        JSONArray images = series.getJSONObject(0).getJSONArray("images");
+        assertEquals(2, images.size());
+        assertEquals("1.dcm", images.getJSONObject(0).getString("filename"));
+        assertEquals(1, images.getJSONObject(0).getLong("number"));
+        assertEquals(STUID4 + ".1.3", images.getJSONObject(1).getString("sopInstanceUID"));
+
+        JSONObject noUid = series.getJSONObject(1).getJSONArray("images").getJSONObject(0);
+        assertEquals("no uid", noUid.getString("sopInstanceUID"));
+        assertFalse(noUid.has("number"));
+    }
+}
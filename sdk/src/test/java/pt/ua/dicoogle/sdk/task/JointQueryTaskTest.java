@@ -0,0 +1,164 @@
+/**
+ * Copyright (C) 2014  Universidade de Aveiro, DETI/IEETA, Bioinformatics Group - http://bioinformatics.ua.pt/
+ *
+ * This file is part of Dicoogle/dicoogle-sdk.
+ *
+ * Dicoogle/dicoogle-sdk is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Dicoogle/dicoogle-sdk is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Dicoogle.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package pt.ua.dicoogle.sdk.task;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+import pt.ua.dicoogle.sdk.datastructs.SearchResult;
+
+public class JointQueryTaskTest {
+
+    private static class Holder extends JointQueryTask {
+        @Override
+        public void onCompletion() {}
+
+        @Override
+        public void onReceive(Task<Iterable<SearchResult>> e) {}
+    }
+
+    private static Task<Iterable<SearchResult>> providerTask(String name, CountDownLatch latch) {
+        return new Task<>(name, () -> {
+            latch.await();
+            return Collections.singletonList(
+                    new SearchResult(URI.create("file:/" + name), 1, new HashMap<String, Object>()));
+        });
+    }
+
+    @Test
+    public void testStreamInCompletionOrder() {
+        CountDownLatch slow = new CountDownLatch(1);
+        CountDownLatch fast = new CountDownLatch(0);
+        Task<Iterable<SearchResult>> t1 = providerTask("slow", slow);
+        Task<Iterable<SearchResult>> t2 = providerTask("fast", fast);
+
+        JointQueryTask holder = new Holder();
+        holder.addTask(t1);
+        holder.addTask(t2);
+        assertEquals(0f, holder.getProgress(), 1e-6);
+
+        new Thread(t1).start();
+        new Thread(t2).start();
+
+        try (Stream<SearchResult> stream = holder.stream()) {
+            java.util.Iterator<SearchResult> it = stream.iterator();
+            // the fast provider's results are available before the slow one completes
+            assertEquals(URI.create("file:/fast"), it.next().getURI());
+            assertEquals(0.5f, holder.getProgress(), 1e-6);
+
+            slow.countDown();
+            assertEquals(URI.create("file:/slow"), it.next().getURI());
+            assertTrue(!it.hasNext());
+        }
+        assertTrue(holder.isDone());
+    }
+
+    @Test
+    public void testStreamProviderTimeout() {
+        CountDownLatch never = new CountDownLatch(1);
+        Task<Iterable<SearchResult>> t1 = providerTask("stuck", never);
+        Task<Iterable<SearchResult>> t2 = providerTask("fast", new CountDownLatch(0));
+
+        JointQueryTask holder = new Holder();
+        holder.addTask(t1);
+        holder.addTask(t2);
+        new Thread(t1).start();
+        new Thread(t2).start();
+
+        List<SearchResult> results;
+        try (Stream<SearchResult> stream = holder.stream(200, TimeUnit.MILLISECONDS)) {
+            results = stream.collect(Collectors.toList());
+        }
+        assertEquals(1, results.size());
+        assertEquals(URI.create("file:/fast"), results.get(0).getURI());
+        // the stuck provider was cancelled
+        assertTrue(t1.isCancelled());
+        assertTrue(holder.getFailures().get("stuck") instanceof TimeoutException);
+    }
+
+    @Test
+    public void testStreamTimeoutPerProvider() throws InterruptedException {
+        Task<Iterable<SearchResult>> t1 = providerTask("late", new CountDownLatch(0));
+        Task<Iterable<SearchResult>> t2 = new Task<>("slow", () -> {
+            Thread.sleep(200);
+            return Collections.singletonList(
+                    new SearchResult(URI.create("file:/slow"), 1, new HashMap<String, Object>()));
+        });
+
+        JointQueryTask holder = new Holder();
+        holder.addTask(t1);
+        holder.addTask(t2);
+        Thread starter = new Thread(() -> {
+            try {
+                // a provider waiting for a query thread
+                Thread.sleep(300);
+            } catch (InterruptedException ex) {
+                return;
+            }
+            t2.run();
+            t1.run();
+        });
+        starter.start();
+
+        List<SearchResult> results;
+        try (Stream<SearchResult> stream = holder.stream(400, TimeUnit.MILLISECONDS)) {
+            results = stream.collect(Collectors.toList());
+        }
+        starter.join();
+        // each provider has the full timeout from the moment it starts running
+        assertEquals(2, results.size());
+        assertTrue(holder.getFailures().isEmpty());
+    }
+
+    @Test
+    public void testStreamReportsFailures() {
+        Task<Iterable<SearchResult>> t1 = new Task<>("broken", () -> {
+            throw new IllegalStateException("provider is broken");
+        });
+        Task<Iterable<SearchResult>> t2 = providerTask("ok", new CountDownLatch(0));
+
+        JointQueryTask holder = new Holder();
+        holder.addTask(t1);
+        holder.addTask(t2);
+        t1.run();
+        t2.run();
+
+        List<SearchResult> results;
+        try (Stream<SearchResult> stream = holder.stream()) {
+            results = stream.collect(Collectors.toList());
+        }
+        assertEquals(1, results.size());
+        Map<String, Throwable> failures = holder.getFailures();
+        assertEquals(1, failures.size());
+        assertTrue(failures.get("broken") instanceof IllegalStateException);
+    }
+}